@@ -43,8 +43,21 @@ import it.unibo.arces.wot.sepa.commons.protocol.SPARQL11Properties;
 				"port": 9443,
 				"path": "/subscribe"
 			}
-		}
+		},
+		"deflate": {
+			"level": 1,
+			"minSize": 1024
+		},
+		"notifications": "binary"
  * </pre>
+ *
+ * The optional <code>deflate</code> member offers the permessage-deflate
+ * extension to the server with the given compression level (from 1 to 9) and
+ * minimum size of the deflated messages.
+ *
+ * The optional <code>notifications</code> member requests the notifications
+ * binary encoded ("binary") or binary encoded with the terms already sent
+ * referred to by id ("dictionary") instead of JSON ("json", the default).
  */
 public class SPARQL11SEProperties extends SPARQL11Properties {
 
@@ -79,6 +92,10 @@ public class SPARQL11SEProperties extends SPARQL11Properties {
 		SECUREQUERY
 	}
 
+	public enum NotificationEncoding {
+		JSON, BINARY, DICTIONARY
+	}
+
 	public enum SubscriptionProtocol {
 		WS, WSS
 	}
@@ -219,6 +236,43 @@ public class SPARQL11SEProperties extends SPARQL11Properties {
 						.get(jsap.get("sparql11seprotocol").getAsJsonObject().get("protocol").getAsString()).getAsJsonObject().add("port",new JsonPrimitive(port));
 	}
 
+	/**
+	 * @return the compression level of the permessage-deflate extension (0 if
+	 *         the extension is not offered)
+	 */
+	public int getSubscribeDeflateLevel() {
+		try {
+			return jsap.get("sparql11seprotocol").getAsJsonObject().get("deflate").getAsJsonObject().get("level")
+					.getAsInt();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the messages smaller than this size (in bytes) are not deflated
+	 */
+	public int getSubscribeDeflateMinSize() {
+		try {
+			return jsap.get("sparql11seprotocol").getAsJsonObject().get("deflate").getAsJsonObject().get("minSize")
+					.getAsInt();
+		} catch (Exception e) {
+			return 1024;
+		}
+	}
+
+	/**
+	 * @return the encoding of the notifications requested to the server
+	 */
+	public NotificationEncoding getSubscribeNotificationEncoding() {
+		try {
+			return NotificationEncoding.valueOf(jsap.get("sparql11seprotocol").getAsJsonObject().get("notifications")
+					.getAsString().toUpperCase());
+		} catch (Exception e) {
+			return NotificationEncoding.JSON;
+		}
+	}
+
 	public SubscriptionProtocol getSubscriptionProtocol() {
 		if(jsap.get("sparql11seprotocol").getAsJsonObject().get("protocol").getAsString().toUpperCase().equals("WSS")) return SubscriptionProtocol.WSS;
 		return SubscriptionProtocol.WS;
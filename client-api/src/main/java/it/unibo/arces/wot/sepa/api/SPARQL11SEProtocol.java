@@ -19,6 +19,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package it.unibo.arces.wot.sepa.api;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,6 +28,7 @@ import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.protocol.SPARQL11Protocol;
 
+import it.unibo.arces.wot.sepa.commons.request.Request;
 import it.unibo.arces.wot.sepa.commons.request.SubscribeRequest;
 import it.unibo.arces.wot.sepa.commons.request.UnsubscribeRequest;
 
@@ -92,6 +94,20 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
 		subscriptionProtocol.unsubscribe(request);
 	}
 
+	/**
+	 * Sends the subscribe and unsubscribe requests of a batch in a single
+	 * message (if supported by the subscription protocol). Each request is
+	 * answered as if it was sent alone (e.g., by the alias of the subscription).
+	 *
+	 * @param requests the subscribe and unsubscribe requests
+	 * @throws SEPAProtocolException
+	 */
+	public void batch(List<Request> requests) throws SEPAProtocolException {
+		logger.debug("BATCH: " + requests.size() + " requests");
+
+		subscriptionProtocol.batch(requests);
+	}
+
 	/**
 	 * Free the http connection manager and the WebSocket client.
 	 * @throws SEPAProtocolException 
@@ -19,8 +19,10 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package it.unibo.arces.wot.sepa.api;
 
 import java.io.Closeable;
+import java.util.List;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.request.Request;
 import it.unibo.arces.wot.sepa.commons.request.SubscribeRequest;
 import it.unibo.arces.wot.sepa.commons.request.UnsubscribeRequest;
 import it.unibo.arces.wot.sepa.commons.security.ClientSecurityManager;
@@ -52,4 +54,20 @@ public abstract class SubscriptionProtocol implements Closeable {
 	public abstract void subscribe(SubscribeRequest request) throws SEPAProtocolException;
 
 	public abstract void unsubscribe(UnsubscribeRequest request) throws SEPAProtocolException;
+
+	/**
+	 * Sends the subscribe and unsubscribe requests of a batch (e.g., the
+	 * subscriptions of a dashboard). The responses are the ones of the single
+	 * requests. This implementation sends the requests one by one.
+	 */
+	public void batch(List<Request> requests) throws SEPAProtocolException {
+		for (Request request : requests) {
+			if (request instanceof SubscribeRequest)
+				subscribe((SubscribeRequest) request);
+			else if (request instanceof UnsubscribeRequest)
+				unsubscribe((UnsubscribeRequest) request);
+			else
+				throw new SEPAProtocolException("Not a subscribe or unsubscribe request: " + request);
+		}
+	}
 }
@@ -0,0 +1,329 @@
+/* The binary encoding of the SPARQL 1.1 SE notifications
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package it.unibo.arces.wot.sepa.api.protocols.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+
+/**
+ * The binary encoding of the notifications, used on the WebSocket connections
+ * that negotiated the {@link #PROTOCOL} subprotocol (JSON is the default). The
+ * other messages (e.g., the subscribe and unsubscribe responses) are still
+ * JSON text frames.
+ *
+ * Each RDF term is sent once per notification: the bindings refer to the
+ * terms by index. Integers are unsigned LEB128 varints and strings are UTF-8
+ * bytes preceded by their length.
+ *
+ * <pre>
+ * notification  = NOTIFICATION spuid:string sequence:varint | body
+ *                              per subscriber header          | shared by the subscribers of the SPU
+ * body          = terms:varint term* added:results removed:results
+ * term          = kind:byte value:string [datatype:string] [lang:string] [type:string]
+ * results       = vars:varint var:string* rows:varint (varint per var)*
+ * dictionary    = DICTIONARY spuid:string sequence:varint evicted:varint id:varint*
+ *                 defined:varint (id:varint term)* added:results removed:results
+ * </pre>
+ *
+ * The kind of a term is the type (URI, LITERAL, TYPED_LITERAL, BNODE or OTHER,
+ * followed by the type string) ORed with the DATATYPE and LANGUAGE flags. In a
+ * row, 0 is an unbound variable and i the term i-1.
+ *
+ * On the connections that negotiated the
+ * {@link ConnectionTermDictionary#PROTOCOL} subprotocol, the rows refer to the
+ * ids of a dictionary kept for the whole connection: a notification first
+ * evicts and then defines the ids it needs (see
+ * {@link ConnectionTermDictionary} and {@link TermDictionaryMirror}).
+ */
+public class BinaryNotification {
+	public static final String PROTOCOL = "sepa-binary";
+
+	// Message types
+	static final byte NOTIFICATION = 0x01;
+	static final byte DICTIONARY = 0x02;
+
+	// Term kinds
+	private static final int URI = 0;
+	private static final int LITERAL = 1;
+	private static final int TYPED_LITERAL = 2;
+	private static final int BNODE = 3;
+	private static final int OTHER = 4;
+	private static final int TYPE = 0x0f;
+	private static final int DATATYPE = 0x10;
+	private static final int LANGUAGE = 0x20;
+
+	/**
+	 * @return the header of the notification of a subscriber
+	 */
+	public static byte[] encodeHeader(String spuid, int sequence) {
+		Writer out = new Writer();
+		out.write(NOTIFICATION);
+		out.writeString(spuid);
+		out.writeVarint(sequence);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the body of the notifications with the given added and removed
+	 *         bindings
+	 */
+	public static byte[] encodeBody(ARBindingsResults results) {
+		// Term ==> index
+		Map<JsonObject, Integer> terms = new LinkedHashMap<JsonObject, Integer>();
+		for (JsonObject term : terms(results))
+			terms.put(term, terms.size());
+
+		Writer out = new Writer();
+		out.writeVarint(terms.size());
+		for (JsonObject term : terms.keySet())
+			writeTerm(out, term);
+		writeResults(out, results.getAddedBindings(), terms);
+		writeResults(out, results.getRemovedBindings(), terms);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the whole notification
+	 */
+	public static byte[] encode(Notification notification) {
+		byte[] header = encodeHeader(notification.getSpuid(), notification.getSequence());
+		byte[] body = encodeBody(notification.getARBindingsResults());
+		byte[] ret = new byte[header.length + body.length];
+		System.arraycopy(header, 0, ret, 0, header.length);
+		System.arraycopy(body, 0, ret, header.length, body.length);
+		return ret;
+	}
+
+	/**
+	 * @return the distinct terms of the added and removed bindings (in order of
+	 *         appearance)
+	 */
+	static LinkedHashSet<JsonObject> terms(ARBindingsResults results) {
+		LinkedHashSet<JsonObject> ret = new LinkedHashSet<JsonObject>();
+		for (BindingsResults section : new BindingsResults[] { results.getAddedBindings(),
+				results.getRemovedBindings() })
+			for (Bindings solution : section.getBindings())
+				for (Map.Entry<String, JsonElement> binding : solution.toJson().entrySet())
+					ret.add(binding.getValue().getAsJsonObject());
+		return ret;
+	}
+
+	static void writeTerm(Writer out, JsonObject term) {
+		String type = (term.has("type") ? term.get("type").getAsString() : "");
+		int kind;
+		switch (type) {
+		case "uri":
+			kind = URI;
+			break;
+		case "literal":
+			kind = LITERAL;
+			break;
+		case "typed-literal":
+			kind = TYPED_LITERAL;
+			break;
+		case "bnode":
+			kind = BNODE;
+			break;
+		default:
+			kind = OTHER;
+		}
+		if (term.has("datatype"))
+			kind |= DATATYPE;
+		if (term.has("xml:lang"))
+			kind |= LANGUAGE;
+
+		out.write(kind);
+		out.writeString(term.has("value") ? term.get("value").getAsString() : "");
+		if ((kind & DATATYPE) != 0)
+			out.writeString(term.get("datatype").getAsString());
+		if ((kind & LANGUAGE) != 0)
+			out.writeString(term.get("xml:lang").getAsString());
+		if ((kind & TYPE) == OTHER)
+			out.writeString(type);
+	}
+
+	static void writeResults(Writer out, BindingsResults results, Map<JsonObject, Integer> terms) {
+		// The variables of the head and of the solutions
+		LinkedHashSet<String> vars = new LinkedHashSet<String>(results.getVariables());
+		List<Bindings> solutions = results.getBindings();
+		for (Bindings solution : solutions)
+			for (Map.Entry<String, JsonElement> binding : solution.toJson().entrySet())
+				vars.add(binding.getKey());
+
+		out.writeVarint(vars.size());
+		for (String var : vars)
+			out.writeString(var);
+
+		out.writeVarint(solutions.size());
+		for (Bindings solution : solutions) {
+			JsonObject json = solution.toJson();
+			for (String var : vars)
+				out.writeVarint(json.has(var) ? terms.get(json.getAsJsonObject(var)) + 1 : 0);
+		}
+	}
+
+	/**
+	 * Decodes a notification. The terms bound in several solutions share the
+	 * same JSON object.
+	 *
+	 * @throws IllegalArgumentException if the message is not a binary
+	 *                                  notification
+	 */
+	public static Notification decode(ByteBuffer message) throws IllegalArgumentException {
+		ByteBuffer in = message.duplicate();
+		try {
+			if (in.get() != NOTIFICATION)
+				throw new IllegalArgumentException("Not a binary notification");
+			String spuid = readString(in);
+			int sequence = (int) readVarint(in);
+
+			int size = (int) readVarint(in);
+			List<JsonObject> terms = new ArrayList<JsonObject>(Math.min(size, in.remaining()));
+			for (int i = 0; i < size; i++)
+				terms.add(readTerm(in));
+
+			BindingsResults added = readResults(in, terms);
+			BindingsResults removed = readResults(in, terms);
+			return new Notification(spuid, new ARBindingsResults(added, removed), sequence);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated binary notification", e);
+		}
+	}
+
+	static JsonObject readTerm(ByteBuffer in) {
+		int kind = in.get() & 0xff;
+		String value = readString(in);
+		String datatype = ((kind & DATATYPE) != 0 ? readString(in) : null);
+		String language = ((kind & LANGUAGE) != 0 ? readString(in) : null);
+
+		String type;
+		switch (kind & TYPE) {
+		case URI:
+			type = "uri";
+			break;
+		case LITERAL:
+			type = "literal";
+			break;
+		case TYPED_LITERAL:
+			type = "typed-literal";
+			break;
+		case BNODE:
+			type = "bnode";
+			break;
+		default:
+			type = readString(in);
+		}
+
+		JsonObject term = new JsonObject();
+		if (!type.isEmpty())
+			term.add("type", new JsonPrimitive(type));
+		term.add("value", new JsonPrimitive(value));
+		if (datatype != null)
+			term.add("datatype", new JsonPrimitive(datatype));
+		if (language != null)
+			term.add("xml:lang", new JsonPrimitive(language));
+		return term;
+	}
+
+	static BindingsResults readResults(ByteBuffer in, List<JsonObject> terms) {
+		int size = (int) readVarint(in);
+		ArrayList<String> vars = new ArrayList<String>(Math.min(size, in.remaining()));
+		for (int i = 0; i < size; i++)
+			vars.add(readString(in));
+
+		int rows = (int) readVarint(in);
+		List<Bindings> solutions = new ArrayList<Bindings>(Math.min(rows, in.remaining()));
+		for (int i = 0; i < rows; i++) {
+			JsonObject solution = new JsonObject();
+			for (String var : vars) {
+				int term = (int) readVarint(in);
+				if (term == 0)
+					continue;
+				if (terms.get(term - 1) == null)
+					throw new IllegalArgumentException("Unknown term: " + (term - 1));
+				solution.add(var, terms.get(term - 1));
+			}
+			solutions.add(new Bindings(solution));
+		}
+		return new BindingsResults(vars, solutions);
+	}
+
+	static long readVarint(ByteBuffer in) {
+		long ret = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			ret |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return ret;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = (int) readVarint(in);
+		if (length < 0 || length > in.remaining())
+			throw new IllegalArgumentException("Malformed string");
+		if (!in.hasArray()) {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		String ret = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return ret;
+	}
+
+	/**
+	 * A byte array output stream with varints and strings
+	 */
+	static class Writer extends ByteArrayOutputStream {
+		Writer() {
+			super(256);
+		}
+
+		void writeVarint(long value) {
+			while ((value & ~0x7fL) != 0) {
+				write((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+}
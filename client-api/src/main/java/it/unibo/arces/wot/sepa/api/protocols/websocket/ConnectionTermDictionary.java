@@ -0,0 +1,112 @@
+/* The dictionary of the RDF terms sent on a WebSocket connection
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package it.unibo.arces.wot.sepa.api.protocols.websocket;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+
+/**
+ * The terms already sent to a client, used on the connections that negotiated
+ * the {@link #PROTOCOL} subprotocol: a term is defined once (with an id from 0
+ * to the capacity - 1) and then referred to by its id, until it is evicted.
+ *
+ * The dictionary is bounded: when it is full, the least recently used terms
+ * are evicted and their ids are reused. The evicted ids are listed by the
+ * notification before the new definitions, so that the client (see
+ * {@link TermDictionaryMirror}) can drop them. A notification with more
+ * distinct terms than the capacity is sent as a plain binary notification
+ * (see {@link BinaryNotification}).
+ *
+ * The notifications must be encoded in the order they are sent.
+ */
+public class ConnectionTermDictionary {
+	public static final String PROTOCOL = "sepa-binary-dictionary";
+
+	private final int capacity;
+
+	// Term ==> id (least recently used first)
+	private final LinkedHashMap<JsonObject, Integer> ids;
+
+	/**
+	 * @param capacity the maximum number of terms
+	 */
+	public ConnectionTermDictionary(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		ids = new LinkedHashMap<JsonObject, Integer>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return the notification referring to the terms of the dictionary
+	 */
+	public synchronized byte[] encode(Notification notification) {
+		ARBindingsResults results = notification.getARBindingsResults();
+		LinkedHashSet<JsonObject> terms = BinaryNotification.terms(results);
+		if (terms.size() > capacity)
+			return BinaryNotification.encode(notification);
+
+		// The terms already defined become the most recently used (and so are not evicted)
+		List<JsonObject> missing = new ArrayList<JsonObject>();
+		for (JsonObject term : terms)
+			if (ids.get(term) == null)
+				missing.add(term);
+
+		List<Integer> evictions = new ArrayList<Integer>();
+		for (JsonObject term : missing) {
+			int id = ids.size();
+			if (id == capacity) {
+				Iterator<Map.Entry<JsonObject, Integer>> eldest = ids.entrySet().iterator();
+				id = eldest.next().getValue();
+				eldest.remove();
+				evictions.add(id);
+			}
+			ids.put(term, id);
+		}
+
+		BinaryNotification.Writer out = new BinaryNotification.Writer();
+		out.write(BinaryNotification.DICTIONARY);
+		out.writeString(notification.getSpuid());
+		out.writeVarint(notification.getSequence());
+		out.writeVarint(evictions.size());
+		for (int id : evictions)
+			out.writeVarint(id);
+		out.writeVarint(missing.size());
+		for (JsonObject term : missing) {
+			out.writeVarint(ids.get(term));
+			BinaryNotification.writeTerm(out, term);
+		}
+		BinaryNotification.writeResults(out, results.getAddedBindings(), ids);
+		BinaryNotification.writeResults(out, results.getRemovedBindings(), ids);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the terms currently defined
+	 */
+	public synchronized int size() {
+		return ids.size();
+	}
+}
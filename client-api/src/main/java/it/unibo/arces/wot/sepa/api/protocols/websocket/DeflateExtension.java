@@ -0,0 +1,144 @@
+/* The client side of the WebSocket permessage-deflate extension
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package it.unibo.arces.wot.sepa.api.protocols.websocket;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import org.glassfish.tyrus.core.ProtocolException;
+import org.glassfish.tyrus.core.extension.ExtendedExtension;
+import org.glassfish.tyrus.core.frame.Frame;
+
+/**
+ * The permessage-deflate extension (RFC 7692) offered by the client, with
+ * client_no_context_takeover. The state of each connection (i.e., the
+ * inflater) is kept by the extension context.
+ */
+public class DeflateExtension implements ExtendedExtension {
+	private static final String INFLATER = PerMessageDeflate.EXTENSION + ".inflater";
+	private static final String INFLATING = PerMessageDeflate.EXTENSION + ".inflating";
+	private static final String DEFLATING = PerMessageDeflate.EXTENSION + ".deflating";
+
+	// Opcode of the continuation frames
+	private static final byte CONTINUATION = 0x00;
+
+	private final int level;
+	private final int minSize;
+
+	/**
+	 * @param level   the compression level (from 1 to 9)
+	 * @param minSize the messages smaller than this size (in bytes) are not
+	 *                deflated
+	 */
+	public DeflateExtension(int level, int minSize) {
+		this.level = Math.max(1, Math.min(9, level));
+		this.minSize = minSize;
+	}
+
+	@Override
+	public String getName() {
+		return PerMessageDeflate.EXTENSION;
+	}
+
+	@Override
+	public List<Parameter> getParameters() {
+		return Collections.singletonList(new Parameter() {
+			@Override
+			public String getName() {
+				return PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER;
+			}
+
+			@Override
+			public String getValue() {
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Frame processIncoming(ExtensionContext context, Frame frame) {
+		if (frame.isControlFrame())
+			return frame;
+
+		Map<String, Object> properties = context.getProperties();
+		if (frame.getOpcode() != CONTINUATION)
+			properties.put(INFLATING, frame.isRsv1());
+		if (!Boolean.TRUE.equals(properties.get(INFLATING)))
+			return frame;
+
+		PerMessageDeflate inflater = (PerMessageDeflate) properties.get(INFLATER);
+		if (inflater == null)
+			throw new ProtocolException("Deflated frame without negotiation");
+
+		try {
+			byte[] inflated = inflater.inflate(frame.getPayloadData(), frame.isFin());
+			return Frame.builder(frame).payloadData(inflated).payloadLength(inflated.length).rsv1(false).build();
+		} catch (DataFormatException e) {
+			throw new ProtocolException(e.getMessage());
+		}
+	}
+
+	@Override
+	public Frame processOutgoing(ExtensionContext context, Frame frame) {
+		if (frame.isControlFrame())
+			return frame;
+
+		Map<String, Object> properties = context.getProperties();
+		if (frame.getOpcode() != CONTINUATION)
+			properties.put(DEFLATING, frame.getPayloadLength() >= minSize);
+		if (!Boolean.TRUE.equals(properties.get(DEFLATING)))
+			return frame;
+
+		byte[] payload = frame.getPayloadData();
+		byte[] deflated = PerMessageDeflate.deflate(payload, 0, payload.length, level, frame.isFin());
+		return Frame.builder(frame).payloadData(deflated).payloadLength(deflated.length)
+				.rsv1(frame.getOpcode() != CONTINUATION).build();
+	}
+
+	/**
+	 * Server side only
+	 */
+	@Override
+	public List<Parameter> onExtensionNegotiation(ExtensionContext context, List<Parameter> requestedParameters) {
+		return null;
+	}
+
+	@Override
+	public void onHandshakeResponse(ExtensionContext context, List<Parameter> responseParameters) {
+		boolean serverNoContextTakeover = false;
+		for (Parameter parameter : responseParameters)
+			if (PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER.equals(parameter.getName()))
+				serverNoContextTakeover = true;
+
+		context.getProperties().put(INFLATER, new PerMessageDeflate(!serverNoContextTakeover, 0));
+	}
+
+	@Override
+	public void destroy(ExtensionContext context) {
+		PerMessageDeflate inflater = (PerMessageDeflate) context.getProperties().remove(INFLATER);
+		if (inflater != null)
+			inflater.end();
+	}
+
+	@Override
+	public String toString() {
+		return "DeflateExtension level: " + level + " minSize: " + minSize;
+	}
+}
@@ -0,0 +1,186 @@
+/* The compression of the WebSocket permessage-deflate extension (RFC 7692)
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package it.unibo.arces.wot.sepa.api.protocols.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates and inflates the payloads of the WebSocket messages as specified by
+ * the permessage-deflate extension (RFC 7692).
+ *
+ * Messages are always deflated without context takeover (i.e., each message
+ * with an empty sliding window), as allowed to both the endpoints whatever has
+ * been negotiated. This way no deflater is kept for each connection: the
+ * deflaters (a few hundred KB each) are kept by each thread and the pieces of a
+ * message deflated on their own can be concatenated (see
+ * {@link #deflate(byte[], int, int, int, boolean)}). Inflating instead follows
+ * the context takeover of the peer, so an instance of this class is kept by
+ * each connection.
+ */
+public class PerMessageDeflate {
+	public static final String EXTENSION = "permessage-deflate";
+	public static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	public static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	public static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	public static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+	// The empty stored block that ends a flushed message (removed on the wire)
+	private static final byte[] TAIL = new byte[] { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+	// Deflater of each level (from 1 to 9) of the thread
+	private static final ThreadLocal<Deflater[]> deflaters = ThreadLocal.withInitial(() -> new Deflater[10]);
+
+	/**
+	 * The inflated message exceeds the maximum size
+	 */
+	public static class MessageTooBigException extends DataFormatException {
+		private static final long serialVersionUID = 1L;
+
+		public MessageTooBigException(String s) {
+			super(s);
+		}
+	}
+
+	private final boolean contextTakeover;
+	private final long maxMessageSize;
+
+	private Inflater inflater = null;
+	private long inflated = 0;
+
+	/**
+	 * @param contextTakeover if the peer deflates the messages with the sliding
+	 *                        window of the previous messages (i.e., the
+	 *                        no_context_takeover parameter of the peer has not
+	 *                        been negotiated)
+	 * @param maxMessageSize  the maximum size of an inflated message (0 for no
+	 *                        limit)
+	 */
+	public PerMessageDeflate(boolean contextTakeover, long maxMessageSize) {
+		this.contextTakeover = contextTakeover;
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Deflates a message, or a piece of a message, with an empty sliding window.
+	 * The pieces of a message deflated on their own (the last one with
+	 * <code>last</code> set) can be concatenated: the result is the deflated
+	 * message.
+	 *
+	 * @param level the compression level (from 1 to 9)
+	 * @param last  if this is the last piece of the message: the trailing empty
+	 *              block is removed as required by the extension
+	 */
+	public static byte[] deflate(byte[] data, int offset, int length, int level, boolean last) {
+		Deflater[] levels = deflaters.get();
+		if (levels[level] == null)
+			levels[level] = new Deflater(level, true);
+		Deflater deflater = levels[level];
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+		byte[] buffer = new byte[Math.max(256, Math.min(length, 16384))];
+		try {
+			deflater.setInput(data, offset, length);
+			int n;
+			do {
+				n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				out.write(buffer, 0, n);
+			} while (n == buffer.length);
+		} finally {
+			deflater.reset();
+		}
+
+		byte[] ret = out.toByteArray();
+		if (!last || !endsWithTail(ret, ret.length))
+			return ret;
+		byte[] trimmed = new byte[ret.length - TAIL.length];
+		System.arraycopy(ret, 0, trimmed, 0, trimmed.length);
+		return trimmed;
+	}
+
+	private static boolean endsWithTail(byte[] data, int length) {
+		if (length < TAIL.length)
+			return false;
+		for (int i = 0; i < TAIL.length; i++)
+			if (data[length - TAIL.length + i] != TAIL[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Inflates a frame of a deflated message.
+	 *
+	 * @param last if this is the last frame of the message
+	 * @throws MessageTooBigException if the inflated message exceeds the maximum
+	 *                                size
+	 * @throws DataFormatException    if the data are not deflated
+	 */
+	public synchronized byte[] inflate(byte[] data, boolean last) throws DataFormatException {
+		if (inflater == null)
+			inflater = new Inflater(true);
+
+		if (last) {
+			byte[] tailed = new byte[data.length + TAIL.length];
+			System.arraycopy(data, 0, tailed, 0, data.length);
+			System.arraycopy(TAIL, 0, tailed, data.length, TAIL.length);
+			data = tailed;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		byte[] buffer = new byte[Math.max(256, Math.min(data.length * 4, 65536))];
+		try {
+			inflater.setInput(data);
+			while (true) {
+				int n = inflater.inflate(buffer);
+				if (n > 0) {
+					inflated += n;
+					if (maxMessageSize > 0 && inflated > maxMessageSize)
+						throw new MessageTooBigException("Inflated message larger than " + maxMessageSize + " bytes");
+					out.write(buffer, 0, n);
+				} else if (inflater.needsInput() || inflater.finished())
+					break;
+				else if (inflater.needsDictionary())
+					throw new DataFormatException("Preset dictionary not supported");
+			}
+		} catch (DataFormatException e) {
+			inflater.reset();
+			inflated = 0;
+			throw e;
+		}
+
+		// The peer may end the deflate stream (i.e., with a final block)
+		if (inflater.finished() || (last && !contextTakeover))
+			inflater.reset();
+		if (last)
+			inflated = 0;
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Releases the inflater
+	 */
+	public synchronized void end() {
+		if (inflater != null)
+			inflater.end();
+		inflater = null;
+		inflated = 0;
+	}
+}
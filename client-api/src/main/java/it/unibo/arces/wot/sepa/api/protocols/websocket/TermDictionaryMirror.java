@@ -0,0 +1,102 @@
+/* The client copy of the dictionary of a WebSocket connection
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package it.unibo.arces.wot.sepa.api.protocols.websocket;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.google.gson.JsonObject;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+
+/**
+ * The terms defined by the server on a connection (see
+ * {@link ConnectionTermDictionary}). A new mirror is needed for each
+ * connection and the notifications must be decoded in the order they are
+ * received.
+ */
+public class TermDictionaryMirror {
+	// The ids are allocated by the server: this bounds a misbehaving one
+	private static final int MAX_ID = 1 << 24;
+
+	// Id ==> term (null if evicted)
+	private final ArrayList<JsonObject> terms = new ArrayList<JsonObject>();
+	private int size = 0;
+
+	/**
+	 * Decodes a binary notification, with or without the dictionary
+	 *
+	 * @throws IllegalArgumentException if the message is not a binary
+	 *                                  notification or refers to unknown terms
+	 */
+	public synchronized Notification decode(ByteBuffer message) throws IllegalArgumentException {
+		if (message.remaining() > 0 && message.get(message.position()) == BinaryNotification.NOTIFICATION)
+			return BinaryNotification.decode(message);
+
+		ByteBuffer in = message.duplicate();
+		try {
+			if (in.get() != BinaryNotification.DICTIONARY)
+				throw new IllegalArgumentException("Not a binary notification");
+			String spuid = BinaryNotification.readString(in);
+			int sequence = (int) BinaryNotification.readVarint(in);
+
+			long evictions = BinaryNotification.readVarint(in);
+			for (long i = 0; i < evictions; i++)
+				set(id(in), null);
+
+			long definitions = BinaryNotification.readVarint(in);
+			for (long i = 0; i < definitions; i++) {
+				int id = id(in);
+				set(id, BinaryNotification.readTerm(in));
+			}
+
+			BindingsResults added = BinaryNotification.readResults(in, terms);
+			BindingsResults removed = BinaryNotification.readResults(in, terms);
+			return new Notification(spuid, new ARBindingsResults(added, removed), sequence);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated binary notification", e);
+		}
+	}
+
+	private static int id(ByteBuffer in) {
+		long id = BinaryNotification.readVarint(in);
+		if (id < 0 || id >= MAX_ID)
+			throw new IllegalArgumentException("Term id out of range: " + id);
+		return (int) id;
+	}
+
+	private void set(int id, JsonObject term) {
+		while (terms.size() <= id)
+			terms.add(null);
+		if (terms.get(id) != null)
+			size--;
+		if (term != null)
+			size++;
+		terms.set(id, term);
+	}
+
+	/**
+	 * @return the terms currently defined
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
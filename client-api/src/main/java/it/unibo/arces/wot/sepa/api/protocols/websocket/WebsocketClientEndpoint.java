@@ -21,11 +21,16 @@ package it.unibo.arces.wot.sepa.api.protocols.websocket;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
 import javax.websocket.DeploymentException;
 import javax.websocket.Endpoint;
 import javax.websocket.EndpointConfig;
+import javax.websocket.Extension;
 import javax.websocket.MessageHandler;
 import javax.websocket.Session;
 
@@ -39,10 +44,12 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 import it.unibo.arces.wot.sepa.api.ISubscriptionHandler;
+import it.unibo.arces.wot.sepa.api.SPARQL11SEProperties.NotificationEncoding;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.ResumeResponse;
 import it.unibo.arces.wot.sepa.commons.security.ClientSecurityManager;
 
 public class WebsocketClientEndpoint extends Endpoint implements Closeable {
@@ -51,11 +58,46 @@ public class WebsocketClientEndpoint extends Endpoint implements Closeable {
 	protected final ISubscriptionHandler handler;
 
 	protected final ClientManager client;
+	protected final ClientEndpointConfig config;
 	protected Session session;
 
 	public WebsocketClientEndpoint(ClientSecurityManager sm,ISubscriptionHandler handler) throws SEPASecurityException {
+		this(sm, handler, 0, 0);
+	}
+
+	/**
+	 * @param deflateLevel   the compression level (from 1 to 9) of the
+	 *                       permessage-deflate extension offered to the server (0
+	 *                       to not offer it)
+	 * @param deflateMinSize the messages smaller than this size (in bytes) are
+	 *                       not deflated
+	 */
+	public WebsocketClientEndpoint(ClientSecurityManager sm, ISubscriptionHandler handler, int deflateLevel,
+			int deflateMinSize) throws SEPASecurityException {
+		this(sm, handler, deflateLevel, deflateMinSize, NotificationEncoding.JSON);
+	}
+
+	/**
+	 * @param encoding the encoding of the notifications: the
+	 *                 {@link ConnectionTermDictionary#PROTOCOL} and
+	 *                 {@link BinaryNotification#PROTOCOL} subprotocols are
+	 *                 offered to the server in this order (the notifications
+	 *                 are JSON if the server supports none of them)
+	 */
+	public WebsocketClientEndpoint(ClientSecurityManager sm, ISubscriptionHandler handler, int deflateLevel,
+			int deflateMinSize, NotificationEncoding encoding) throws SEPASecurityException {
 		client = ClientManager.createClient();
 
+		List<Extension> extensions = new ArrayList<Extension>();
+		if (deflateLevel > 0)
+			extensions.add(new DeflateExtension(deflateLevel, deflateMinSize));
+		List<String> protocols = new ArrayList<String>();
+		if (encoding == NotificationEncoding.DICTIONARY)
+			protocols.add(ConnectionTermDictionary.PROTOCOL);
+		if (encoding != NotificationEncoding.JSON)
+			protocols.add(BinaryNotification.PROTOCOL);
+		config = ClientEndpointConfig.Builder.create().extensions(extensions).preferredSubprotocols(protocols).build();
+
 		if (sm != null) {
 			SslEngineConfigurator config = new SslEngineConfigurator(sm.getSSLContext());
 			config.setHostVerificationEnabled(false);
@@ -78,6 +120,9 @@ public class WebsocketClientEndpoint extends Endpoint implements Closeable {
 
 		this.session = session;
 
+		// The terms defined by the server are valid for this connection only
+		TermDictionaryMirror dictionary = new TermDictionaryMirror();
+
 		session.addMessageHandler(String.class, new MessageHandler.Whole<String>() {
 			@Override
 			public void onMessage(String message) {
@@ -93,38 +138,18 @@ public class WebsocketClientEndpoint extends Endpoint implements Closeable {
 				}
 
 				if (jsonMessage.has("notification")) {
-
 					JsonObject notification = jsonMessage.get("notification").getAsJsonObject();
+					String alias = null;
+					if (notification.has("alias"))
+						alias = notification.get("alias").getAsString();
 
-					// Subscribe
-					if (notification.get("sequence").getAsInt() == 0) {
-						String spuid = notification.get("spuid").getAsString();
-						String alias = null;
-						if (notification.has("alias"))
-							alias = notification.get("alias").getAsString();
-						try {
-							logger.trace("Subscribed: " + spuid + " alias: " + alias);
-							handler.onSubscribe(spuid, alias);
-						} catch (Exception e) {
-							logger.error("Exception on handling onSubscribe. Handler: " + handler + " Exception: "
-									+ e.getMessage());
-							return;
-						}
-					}
-
-					// Event
-					try {
-						logger.trace("Message received: " + jsonMessage);
-						Notification notify = new Notification(jsonMessage);
-						logger.trace("Notification: " + notify);
-						handler.onSemanticEvent(notify);
-					} catch (Exception e) {
-						logger.error("Exception on handling onSemanticEvent. Handler: " + handler + " Exception: "
-								+ e.getMessage());
-					}
+					logger.trace("Message received: " + jsonMessage);
+					onNotification(new Notification(jsonMessage), alias);
 				} else if (jsonMessage.has("error")) {
 					ErrorResponse error = new ErrorResponse(jsonMessage.get("status_code").getAsInt(),
 							jsonMessage.get("error").getAsString(), jsonMessage.get("error_description").getAsString());
+					if (jsonMessage.has("alias"))
+						error.setAlias(jsonMessage.get("alias").getAsString());
 					logger.error(error);
 					try {
 						handler.onError(error);
@@ -132,6 +157,16 @@ public class WebsocketClientEndpoint extends Endpoint implements Closeable {
 						logger.error(
 								"Exception on handling onError. Handler: " + handler + " Exception: " + e.getMessage());
 					}
+				} else if (jsonMessage.has("resumed")) {
+					// The missed notifications follow
+					ResumeResponse resumed = new ResumeResponse(jsonMessage);
+					logger.debug("resumed: " + resumed.getSpuid() + " sequence: " + resumed.getSequence());
+					try {
+						handler.onSubscribe(resumed.getSpuid(), (resumed.getAlias().isEmpty() ? null : resumed.getAlias()));
+					} catch (Exception e) {
+						logger.error("Exception on handling onSubscribe. Handler: " + handler + " Exception: "
+								+ e.getMessage());
+					}
 				} else if (jsonMessage.has("unsubscribed")) {
 					logger.debug("unsubscribed");
 					try {
@@ -145,6 +180,45 @@ public class WebsocketClientEndpoint extends Endpoint implements Closeable {
 					logger.error("Unknown message: " + message);
 			}
 		});
+
+		// Binary notifications
+		session.addMessageHandler(ByteBuffer.class, new MessageHandler.Whole<ByteBuffer>() {
+			@Override
+			public void onMessage(ByteBuffer message) {
+				Notification notify;
+				try {
+					notify = dictionary.decode(message);
+				} catch (IllegalArgumentException e) {
+					logger.error("Exception on decoding binary message: " + e.getMessage());
+					return;
+				}
+
+				onNotification(notify, null);
+			}
+		});
+	}
+
+	private void onNotification(Notification notify, String alias) {
+		// Subscribe
+		if (notify.getSequence() == 0) {
+			try {
+				logger.trace("Subscribed: " + notify.getSpuid() + " alias: " + alias);
+				handler.onSubscribe(notify.getSpuid(), alias);
+			} catch (Exception e) {
+				logger.error("Exception on handling onSubscribe. Handler: " + handler + " Exception: "
+						+ e.getMessage());
+				return;
+			}
+		}
+
+		// Event
+		try {
+			logger.trace("Notification: " + notify);
+			handler.onSemanticEvent(notify);
+		} catch (Exception e) {
+			logger.error("Exception on handling onSemanticEvent. Handler: " + handler + " Exception: "
+					+ e.getMessage());
+		}
 	}
 
 	@Override
@@ -183,7 +257,7 @@ public class WebsocketClientEndpoint extends Endpoint implements Closeable {
 		while (true) {
 			try {
 				logger.debug("Connect to: " + url);
-				client.connectToServer(this, url);
+				client.connectToServer(this, config, url);
 				return;
 
 			} catch (DeploymentException | IOException e) {
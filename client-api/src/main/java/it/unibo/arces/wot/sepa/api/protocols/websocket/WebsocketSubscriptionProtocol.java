@@ -21,11 +21,19 @@ package it.unibo.arces.wot.sepa.api.protocols.websocket;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import it.unibo.arces.wot.sepa.api.ISubscriptionHandler;
+import it.unibo.arces.wot.sepa.api.SPARQL11SEProperties.NotificationEncoding;
 import it.unibo.arces.wot.sepa.api.SubscriptionProtocol;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAPropertiesException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
@@ -46,10 +54,35 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 	protected Request lastRequest = null;
 	private Object requestLock = new Object();
 
+	// The responses still expected to the last batch (alias ==> requests)
+	private final Map<String, Integer> pending = new HashMap<String, Integer>();
+
 	protected final WebsocketClientEndpoint client;
 
 	public WebsocketSubscriptionProtocol(String host, int port, String path, ISubscriptionHandler handler,
 			ClientSecurityManager sm) throws SEPASecurityException, SEPAProtocolException {
+		this(host, port, path, handler, sm, 0, 0);
+	}
+
+	/**
+	 * @param deflateLevel   the compression level (from 1 to 9) of the
+	 *                       permessage-deflate extension (0 to not offer it)
+	 * @param deflateMinSize the requests smaller than this size (in bytes) are
+	 *                       not deflated
+	 */
+	public WebsocketSubscriptionProtocol(String host, int port, String path, ISubscriptionHandler handler,
+			ClientSecurityManager sm, int deflateLevel, int deflateMinSize)
+			throws SEPASecurityException, SEPAProtocolException {
+		this(host, port, path, handler, sm, deflateLevel, deflateMinSize, NotificationEncoding.JSON);
+	}
+
+	/**
+	 * @param encoding the encoding of the notifications requested to the server
+	 *                 (see {@link BinaryNotification})
+	 */
+	public WebsocketSubscriptionProtocol(String host, int port, String path, ISubscriptionHandler handler,
+			ClientSecurityManager sm, int deflateLevel, int deflateMinSize, NotificationEncoding encoding)
+			throws SEPASecurityException, SEPAProtocolException {
 		super(handler, sm);
 
 		// Connect
@@ -71,7 +104,7 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 				throw new SEPAProtocolException(e);
 			}
 
-		client = new WebsocketClientEndpoint(sm, this);
+		client = new WebsocketClientEndpoint(sm, this, deflateLevel, deflateMinSize, encoding);
 	}
 
 	@Override
@@ -79,12 +112,7 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 		logger.trace("@subscribe: " + request);
 
 		synchronized (requestLock) {
-			if (lastRequest != null)
-				try {
-					requestLock.wait();
-				} catch (InterruptedException e) {
-					throw new SEPAProtocolException(e.getMessage());
-				}
+			waitResponses();
 
 			lastRequest = request;
 
@@ -100,12 +128,7 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 		logger.debug("@unsubscribe: " + request);
 
 		synchronized (requestLock) {
-			if (lastRequest != null)
-				try {
-					requestLock.wait();
-				} catch (InterruptedException e) {
-					throw new SEPAProtocolException(e.getMessage());
-				}
+			waitResponses();
 			lastRequest = request;
 
 			if (client.isConnected())
@@ -113,11 +136,97 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 		}
 	}
 
+	/**
+	 * Sends the requests in a single message: {"batch":[request_1, ... request_n]}.
+	 * The next request is sent when all the requests of the batch have been
+	 * answered (an error is an answer too: it is not retried, even if the token
+	 * has expired) or the connection is broken.
+	 *
+	 * The responses are matched by alias: each subscribe request needs one and
+	 * the unsubscribe requests are sent with their SPUID as alias (which the
+	 * errors carry back).
+	 */
+	@Override
+	public void batch(List<Request> requests) throws SEPAProtocolException {
+		logger.debug("@batch: " + requests.size() + " requests");
+
+		JsonArray items = new JsonArray();
+		Map<String, Integer> aliases = new HashMap<String, Integer>();
+		for (Request request : requests) {
+			JsonObject item = new JsonParser().parse(request.toString()).getAsJsonObject();
+			String alias;
+			if (request instanceof SubscribeRequest) {
+				alias = ((SubscribeRequest) request).getAlias();
+				if (alias == null)
+					throw new SEPAProtocolException("A subscribe request of a batch needs an alias: " + request);
+			} else if (request instanceof UnsubscribeRequest) {
+				alias = ((UnsubscribeRequest) request).getSubscribeUUID();
+				item.getAsJsonObject("unsubscribe").addProperty("alias", alias);
+			} else
+				throw new SEPAProtocolException("Not a subscribe or unsubscribe request: " + request);
+			items.add(item);
+			aliases.merge(alias, 1, Integer::sum);
+		}
+		if (items.size() == 0)
+			return;
+		JsonObject batch = new JsonObject();
+		batch.add("batch", items);
+
+		synchronized (requestLock) {
+			waitResponses();
+			pending.putAll(aliases);
+
+			try {
+				if (!client.isConnected())
+					client.connect(url);
+
+				client.send(batch.toString());
+			} catch (SEPAProtocolException e) {
+				reset();
+				throw e;
+			}
+		}
+	}
+
+	private void waitResponses() throws SEPAProtocolException {
+		while (lastRequest != null || !pending.isEmpty())
+			try {
+				requestLock.wait();
+			} catch (InterruptedException e) {
+				throw new SEPAProtocolException(e.getMessage());
+			}
+	}
+
+	/**
+	 * @param alias the alias of the response (null if none)
+	 * @return true if the response is the one of a request of the last batch
+	 */
+	private boolean batchResponse(String alias) {
+		if (alias == null || !pending.containsKey(alias))
+			return false;
+		if (pending.merge(alias, -1, Integer::sum) == 0)
+			pending.remove(alias);
+		if (pending.isEmpty())
+			requestLock.notifyAll();
+		return true;
+	}
+
+	// No more responses are expected (e.g., the connection is closed)
+	private void reset() {
+		lastRequest = null;
+		pending.clear();
+		requestLock.notifyAll();
+	}
+
 	@Override
 	public void close() throws IOException {
 		logger.trace("Close");
 
 		client.close();
+
+		synchronized (requestLock) {
+			reset();
+		}
 	}
 
 	@Override
@@ -127,11 +236,22 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 
 	@Override
 	public void onBrokenConnection(ErrorResponse errorResponse) {
+		synchronized (requestLock) {
+			reset();
+		}
+
 		handler.onBrokenConnection(errorResponse);
 	}
 
 	@Override
 	public void onError(ErrorResponse errorResponse) {
+		synchronized (requestLock) {
+			if (batchResponse(errorResponse.getAlias())) {
+				handler.onError(errorResponse);
+				return;
+			}
+		}
+
 		// REFRESH TOKEN
 		if (sm != null && errorResponse.isTokenExpiredError()) {
 			try {
@@ -147,7 +267,7 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 				return;
 			}
 			
-			if (client.isConnected())
+			if (client.isConnected() && lastRequest != null)
 				try {
 //					if (lastRequest.isSubscribeRequest()) {
 //						SubscribeRequest subReq= (SubscribeRequest) lastRequest;
@@ -174,8 +294,10 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 	@Override
 	public void onSubscribe(String spuid, String alias) {
 		synchronized (requestLock) {
-			lastRequest = null;
-			requestLock.notify();
+			if (!batchResponse(alias)) {
+				lastRequest = null;
+				requestLock.notifyAll();
+			}
 			handler.onSubscribe(spuid, alias);
 		}
 
@@ -184,8 +306,10 @@ public class WebsocketSubscriptionProtocol extends SubscriptionProtocol implemen
 	@Override
 	public void onUnsubscribe(String spuid) {
 		synchronized (requestLock) {
-			lastRequest = null;
-			requestLock.notify();
+			if (!batchResponse(spuid)) {
+				lastRequest = null;
+				requestLock.notifyAll();
+			}
 			handler.onUnsubscribe(spuid);
 		}
 	}
@@ -32,6 +32,13 @@ public class SubscribeRequest extends Request {
 	/** The alias. */
 	private String alias = null;
 
+	/** The priority class (high, normal or low). */
+	private String priority = null;
+
+	/** The subscription to be resumed and the sequence of its last notification received. */
+	private String resumeSpuid = null;
+	private int resumeSequence = 0;
+
 	protected Set<String> default_graph_uri = null;
 	protected Set<String> named_graph_uri = null;
 	
@@ -62,6 +69,14 @@ public class SubscribeRequest extends Request {
 			body.add("authorization", new JsonPrimitive(getAuthorizationHeader()));
 		if (getAlias() != null)
 			body.add("alias", new JsonPrimitive(getAlias()));
+		if (priority != null)
+			body.add("priority", new JsonPrimitive(priority));
+		if (resumeSpuid != null) {
+			JsonObject resume = new JsonObject();
+			resume.add("spuid", new JsonPrimitive(resumeSpuid));
+			resume.add("sequence", new JsonPrimitive(resumeSequence));
+			body.add("resume", resume);
+		}
 		if (default_graph_uri != null) {
 			JsonArray array = new JsonArray();
 			for (String s: default_graph_uri) array.add(s);
@@ -87,6 +102,55 @@ public class SubscribeRequest extends Request {
 	public String getAlias() {
 		return alias;
 	}
+
+	/**
+	 * This method returns the priority class of the subscription.
+	 * 
+	 * @return The priority class or <i>null</i> if not set (i.e., normal)
+	 */
+	public String getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority class of the subscription: the engine processes the
+	 * subscriptions of higher priority first.
+	 * 
+	 * @param priority
+	 *            high, normal or low
+	 */
+	public void setPriority(String priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Asks the engine to resume a subscription (e.g., after a reconnection): if
+	 * the engine keeps the notifications missed in the meanwhile, the
+	 * subscription keeps its SPUID and the missed notifications follow the
+	 * response (see {@link it.unibo.arces.wot.sepa.commons.response.ResumeResponse}).
+	 * Otherwise, the response is the one of a new subscription (i.e., a new
+	 * SPUID and the full results).
+	 * 
+	 * @param spuid
+	 *            the SPUID of the subscription
+	 * @param sequence
+	 *            the sequence of the last notification received
+	 */
+	public void setResume(String spuid, int sequence) {
+		this.resumeSpuid = spuid;
+		this.resumeSequence = sequence;
+	}
+
+	/**
+	 * @return the SPUID of the subscription to be resumed or <i>null</i> if not set
+	 */
+	public String getResumeSpuid() {
+		return resumeSpuid;
+	}
+
+	public int getResumeSequence() {
+		return resumeSequence;
+	}
 	
 	/**
 	 * Default implementation. Two requests are equal if they belong to the same class and their SPARQL strings are equals. SPARQL matching should be based on SPARQL algebra
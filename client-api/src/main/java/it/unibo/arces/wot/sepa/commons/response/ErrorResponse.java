@@ -185,6 +185,15 @@ public class ErrorResponse extends Response {
 	public void setAlias(String alias){
 		json.add("alias",new JsonPrimitive(alias));
 	}
+
+	/**
+	 * Gets the alias of the subscription the error is referred to.
+	 *
+	 * @return the alias (null if not present)
+	 */
+	public String getAlias() {
+		return (json.has("alias") ? json.get("alias").getAsString() : null);
+	}
 	/**
 	 * Gets the HTTP status code.
 	 *
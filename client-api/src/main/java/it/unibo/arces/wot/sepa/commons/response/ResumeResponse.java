@@ -0,0 +1,86 @@
+/* This class represents the response to a subscribe request that resumed a subscription
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package it.unibo.arces.wot.sepa.commons.response;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The response to a subscribe request with a resume token (i.e., the SPUID of
+ * the subscription and the sequence of the last notification received). The
+ * subscription keeps its SPUID and the missed notifications follow the
+ * response. If the subscription cannot be resumed, the engine answers with a
+ * plain {@link SubscribeResponse} (i.e., a new SPUID and the full results).
+ *
+ * The JSON serialization is the following:
+ *
+ * {"resumed" : {"spuid":"SPUID","alias":"ALIAS"(optional),"sequence":N}}
+ */
+public class ResumeResponse extends SubscribeResponse {
+
+	public ResumeResponse(String spuid, String alias, int sequence) {
+		super(new JsonObject());
+
+		if (spuid == null) throw new IllegalArgumentException("SPUID is null");
+
+		JsonObject response = new JsonObject();
+		response.add("spuid", new JsonPrimitive(spuid));
+		if (alias != null)
+			response.add("alias", new JsonPrimitive(alias));
+		response.add("sequence", new JsonPrimitive(sequence));
+
+		json.add("resumed", response);
+	}
+
+	public ResumeResponse(JsonObject jsonMessage) {
+		super(jsonMessage);
+	}
+
+	@Override
+	public String getSpuid() {
+		try {
+			return json.get("resumed").getAsJsonObject().get("spuid").getAsString();
+		}
+		catch(Exception e) {
+			return "";
+		}
+	}
+
+	@Override
+	public String getAlias() {
+		try {
+			return json.get("resumed").getAsJsonObject().get("alias").getAsString();
+		}
+		catch(Exception e) {
+			return "";
+		}
+	}
+
+	/**
+	 * @return the sequence of the last notification received by the client
+	 *         (the replayed notifications follow it)
+	 */
+	public int getSequence() {
+		try {
+			return json.get("resumed").getAsJsonObject().get("sequence").getAsInt();
+		}
+		catch(Exception e) {
+			return 0;
+		}
+	}
+}
@@ -51,6 +51,10 @@ public abstract class Consumer extends Client implements IConsumer {
 	private boolean subscribed = false;
 	private final SPARQL11SEProtocol client;
 
+	// Resume token (i.e., the subscription and the last notification received)
+	private volatile String spuid = null;
+	private volatile int lastSequence = 0;
+
 	public Consumer(JSAP appProfile, String subscribeID, ClientSecurityManager sm)
 			throws SEPAProtocolException, SEPASecurityException {
 		super(appProfile,sm);
@@ -80,7 +84,9 @@ public abstract class Consumer extends Client implements IConsumer {
 		// Subscription protocol
 		SubscriptionProtocol protocol = null;
 		protocol = new WebsocketSubscriptionProtocol(appProfile.getSubscribeHost(subscribeID),
-				appProfile.getSubscribePort(subscribeID), appProfile.getSubscribePath(subscribeID),this,sm);
+				appProfile.getSubscribePort(subscribeID), appProfile.getSubscribePath(subscribeID),this,sm,
+				appProfile.getSubscribeDeflateLevel(), appProfile.getSubscribeDeflateMinSize(),
+				appProfile.getSubscribeNotificationEncoding());
 //		protocol.setHandler(this);
 //		if (appProfile.isSecure()) protocol.enableSecurity(sm);
 
@@ -96,6 +102,16 @@ public abstract class Consumer extends Client implements IConsumer {
 	}
 	
 	public final void subscribe(long timeout,long nRetry) throws SEPASecurityException, SEPAPropertiesException, SEPAProtocolException, SEPABindingsException {
+		subscribe(timeout, nRetry, false);
+	}
+	
+	/**
+	 * @param resume resume the last subscription (i.e., the engine sends the
+	 *               notifications missed since the last one received, or the
+	 *               first results of a new subscription if they are no longer
+	 *               available)
+	 */
+	private void subscribe(long timeout,long nRetry,boolean resume) throws SEPASecurityException, SEPAPropertiesException, SEPAProtocolException, SEPABindingsException {
 		String authorizationHeader = null;
 		
 		this.TIMEOUT = timeout;
@@ -103,9 +119,12 @@ public abstract class Consumer extends Client implements IConsumer {
 		
 		if (isSecure()) authorizationHeader = sm.getAuthorizationHeader();
 		
-		client.subscribe(new SubscribeRequest(appProfile.addPrefixesAndReplaceBindings(sparqlSubscribe, addDefaultDatatype(forcedBindings,subID,true)), null, appProfile.getDefaultGraphURI(subID),
+		SubscribeRequest req = new SubscribeRequest(appProfile.addPrefixesAndReplaceBindings(sparqlSubscribe, addDefaultDatatype(forcedBindings,subID,true)), null, appProfile.getDefaultGraphURI(subID),
 				appProfile.getNamedGraphURI(subID),
-				authorizationHeader,timeout,nRetry));
+				authorizationHeader,timeout,nRetry);
+		if (resume && spuid != null) req.setResume(spuid, lastSequence);
+		
+		client.subscribe(req);
 	}
 
 	public final void unsubscribe() throws SEPASecurityException, SEPAPropertiesException, SEPAProtocolException {
@@ -140,6 +159,7 @@ public abstract class Consumer extends Client implements IConsumer {
 		BindingsResults removed = results.getRemovedBindings();
 
 		logger.debug("onSemanticEvent: "+notify.getSpuid()+" "+notify.getSequence());
+		lastSequence = notify.getSequence();
 		
 		if (notify.getSequence() == 0) {
 			onFirstResults(added);
@@ -164,7 +184,7 @@ public abstract class Consumer extends Client implements IConsumer {
 		if (appProfile.reconnect()) {
 			while(!subscribed) {
 				try {
-					subscribe(TIMEOUT,NRETRY);
+					subscribe(TIMEOUT,NRETRY,true);
 				} catch (SEPASecurityException | SEPAPropertiesException | SEPAProtocolException
 						| SEPABindingsException e) {
 					logger.error(e.getMessage());
@@ -209,6 +229,12 @@ public abstract class Consumer extends Client implements IConsumer {
 		synchronized(client) {
 			logger.debug("onSubscribe");
 			subscribed = true;
+			
+			// A new subscription (i.e., not resumed)
+			if (!spuid.equals(this.spuid)) {
+				this.spuid = spuid;
+				lastSequence = 0;
+			}
 			client.notify();
 		}
 	}
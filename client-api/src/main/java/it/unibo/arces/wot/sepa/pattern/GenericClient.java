@@ -69,8 +69,17 @@ public final class GenericClient extends Client implements ISubscriptionHandler
 	// SPUID ==> client
 	private Hashtable<String, SPARQL11SEProtocol> subscriptions = new Hashtable<String, SPARQL11SEProtocol>();
 
+	/** The resume tokens. */
+	// SPUID ==> request
+	private Hashtable<String, SubscribeRequest> requests = new Hashtable<String, SubscribeRequest>();
+	// SPUID ==> sequence of the last notification received
+	private Hashtable<String, Integer> sequences = new Hashtable<String, Integer>();
+
 	@Override
 	public void onSemanticEvent(Notification notify) {
+		if (requests.containsKey(notify.getSpuid()))
+			sequences.put(notify.getSpuid(), notify.getSequence());
+
 		if (handler != null)
 			handler.onSemanticEvent(notify);
 	}
@@ -145,6 +154,20 @@ public final class GenericClient extends Client implements ISubscriptionHandler
 		synchronized (subLock) {
 			activeClients.put(url, client);
 			subscriptions.put(spuid, client);
+			if (req != null && req.isSubscribeRequest()) {
+				SubscribeRequest subscribe = (SubscribeRequest) req;
+				
+				// Not resumed: a new subscription (the first results follow)
+				if (!spuid.equals(subscribe.getResumeSpuid())) {
+					if (subscribe.getResumeSpuid() != null) {
+						subscriptions.remove(subscribe.getResumeSpuid());
+						requests.remove(subscribe.getResumeSpuid());
+						sequences.remove(subscribe.getResumeSpuid());
+					}
+					requests.put(spuid, subscribe);
+					sequences.put(spuid, 0);
+				}
+			}
 			req = null;
 			subLock.notify();
 		}
@@ -157,6 +180,8 @@ public final class GenericClient extends Client implements ISubscriptionHandler
 	public void onUnsubscribe(String spuid) {
 		synchronized (subLock) {
 			subscriptions.remove(spuid);
+			requests.remove(spuid);
+			sequences.remove(spuid);
 			req = null;
 			subLock.notify();
 		}
@@ -362,6 +387,48 @@ public final class GenericClient extends Client implements ISubscriptionHandler
 		_subscribe(ID, null, forced, null, TIMEOUT, NRETRY);
 	}
 
+	/**
+	 * Resumes a subscription after a broken connection (see
+	 * {@link ISubscriptionHandler#onBrokenConnection(ErrorResponse)}): the
+	 * engine sends the notifications missed since the last one received. If
+	 * they are no longer available, the subscription is replaced by a new one
+	 * (i.e., a new SPUID and the first results).
+	 *
+	 * @param spuid the SPUID of the subscription
+	 * @throws SEPAProtocolException   the SEPA protocol exception
+	 * @throws SEPASecurityException   the SEPA security exception
+	 * @throws SEPAPropertiesException the SEPA properties exception
+	 * @throws InterruptedException
+	 */
+	public void resume(String spuid)
+			throws SEPAProtocolException, SEPASecurityException, SEPAPropertiesException, InterruptedException {
+		SubscribeRequest last = requests.get(spuid);
+		if (last == null)
+			throw new SEPAProtocolException("Subscription not found " + spuid);
+
+		synchronized (subLock) {
+			if (req != null)
+				subLock.wait();
+
+			client = subscriptions.get(spuid);
+			for (String active : activeClients.keySet())
+				if (activeClients.get(active) == client)
+					url = active;
+
+			String auth = null;
+			if (sm != null)
+				auth = sm.getAuthorizationHeader();
+
+			SubscribeRequest subscribe = new SubscribeRequest(last.getSPARQL(), last.getAlias(),
+					last.getDefaultGraphUri(), last.getNamedGraphUri(), auth, last.getTimeout(), last.getNRetry());
+			subscribe.setPriority(last.getPriority());
+			subscribe.setResume(spuid, sequences.get(spuid));
+			req = subscribe;
+
+			client.subscribe(subscribe);
+		}
+	}
+
 	/**
 	 * Unsubscribe.
 	 *
@@ -592,7 +659,9 @@ public final class GenericClient extends Client implements ISubscriptionHandler
 				client = activeClients.get(url);
 			} else {
 				SubscriptionProtocol protocol = new WebsocketSubscriptionProtocol(appProfile.getSubscribeHost(ID),
-						appProfile.getSubscribePort(ID), appProfile.getSubscribePath(ID), this, sm);
+						appProfile.getSubscribePort(ID), appProfile.getSubscribePath(ID), this, sm,
+						appProfile.getSubscribeDeflateLevel(), appProfile.getSubscribeDeflateMinSize(),
+						appProfile.getSubscribeNotificationEncoding());
 				client = new SPARQL11SEProtocol(protocol);
 			}
 
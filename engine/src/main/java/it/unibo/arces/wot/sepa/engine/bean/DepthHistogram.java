@@ -0,0 +1,66 @@
+/* A histogram of queue depths with power of two buckets
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.bean;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the samples by bucket: bucket 0 counts the zero depths and bucket i
+ * the depths in [2^(i-1), 2^i). Adding a sample is lock free.
+ */
+public class DepthHistogram {
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong max = new AtomicLong(0);
+
+	public void add(long depth) {
+		if (depth < 0)
+			depth = 0;
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(depth));
+		max.accumulateAndGet(depth, Math::max);
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the non empty buckets (e.g., "4-7: 120")
+	 */
+	public String[] toStrings() {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (int i = 0; i < buckets.length(); i++) {
+			long count = buckets.get(i);
+			if (count == 0)
+				continue;
+			if (i <= 1)
+				ret.add(i + ": " + count);
+			else
+				ret.add((1L << (i - 1)) + "-" + ((1L << i) - 1) + ": " + count);
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++)
+			buckets.set(i, 0);
+		max.set(0);
+	}
+}
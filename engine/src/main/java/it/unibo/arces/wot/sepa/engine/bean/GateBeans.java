@@ -18,6 +18,12 @@
 
 package it.unibo.arces.wot.sepa.engine.bean;
 
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unibo.arces.wot.sepa.engine.gates.OutboundQueue.Policy;
 import it.unibo.arces.wot.sepa.timing.Timings;
 
 public class GateBeans {
@@ -44,6 +50,30 @@ public class GateBeans {
 	
 	private static long notifications = 0;
 	
+	// Notification delivery latency (from the SPU event to the gate send)
+	private static final int latencyWindow = 1024;
+	private static final LatencySamples deliveryLatency = new LatencySamples(latencyWindow);
+	private static final Map<String, LatencySamples> gateDeliveryLatency = new ConcurrentHashMap<String, LatencySamples>();
+	
+	// Outbound queue of each gate (limits apply to the gates opened afterwards)
+	private static int outboundQueueMessages = 10000;
+	private static long outboundQueueBytes = 67108864;
+	private static Policy slowConsumerPolicy = Policy.DISCONNECT;
+	private static int slowConsumerCloseCode = 1008;
+	private static int dictionarySize = 4096;
+	private static final DepthHistogram outboundQueueDepth = new DepthHistogram();
+	private static final DepthHistogram outboundQueueSize = new DepthHistogram();
+	private static final AtomicLong droppedNotifications = new AtomicLong(0);
+	private static final AtomicLong coalescedNotifications = new AtomicLong(0);
+	private static final AtomicLong slowConsumers = new AtomicLong(0);
+
+	// Connections closed because the pong was not received in time
+	private static final AtomicLong heartbeatTimeouts = new AtomicLong(0);
+
+	// Batches of requests (see Gate#onBatch)
+	private static final AtomicLong batches = new AtomicLong(0);
+	private static final AtomicLong batchedRequests = new AtomicLong(0);
+	
 	public static long unsubscribeTimings(long start) {
 		handledunsubscribes++;
 				
@@ -114,6 +144,18 @@ public class GateBeans {
 		unsubscribeResponses = 0;
 		errorResponses = 0;
 		notifications = 0;
+		
+		deliveryLatency.reset();
+		gateDeliveryLatency.clear();
+		
+		outboundQueueDepth.reset();
+		outboundQueueSize.reset();
+		droppedNotifications.set(0);
+		coalescedNotifications.set(0);
+		slowConsumers.set(0);
+		heartbeatTimeouts.set(0);
+		batches.set(0);
+		batchedRequests.set(0);
 	}
 
 	public static long getMessages(){
@@ -172,7 +214,7 @@ public class GateBeans {
 		return errorResponses;
 	}
 	
-	public static void notification() {
+	public synchronized static void notification() {
 		notifications++;
 	}
 	
@@ -180,4 +222,154 @@ public class GateBeans {
 		return notifications;
 	}
 	
+	public static void deliveryLatency(String gid, long latency) {
+		deliveryLatency.add(latency);
+		
+		if (gid == null) return;
+		LatencySamples samples = gateDeliveryLatency.get(gid);
+		if (samples == null) {
+			samples = new LatencySamples(latencyWindow);
+			LatencySamples previous = gateDeliveryLatency.putIfAbsent(gid, samples);
+			if (previous != null) samples = previous;
+		}
+		samples.add(latency);
+	}
+	
+	public static void removeGate(String gid) {
+		if (gid != null) gateDeliveryLatency.remove(gid);
+	}
+	
+	public static float getDeliveryLatency_p50() {
+		return deliveryLatency.percentile(50) / 1000000f;
+	}
+	
+	public static float getDeliveryLatency_p99() {
+		return deliveryLatency.percentile(99) / 1000000f;
+	}
+	
+	public static String[] getDeliveryLatency_perGate() {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (Map.Entry<String, LatencySamples> gate : gateDeliveryLatency.entrySet()) {
+			LatencySamples samples = gate.getValue();
+			ret.add(String.format("%s notifications %d p50 %.3f ms p90 %.3f ms p99 %.3f ms", gate.getKey(),
+					samples.getCount(), samples.percentile(50) / 1000000f, samples.percentile(90) / 1000000f,
+					samples.percentile(99) / 1000000f));
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public static int getOutboundQueueMessages() {
+		return outboundQueueMessages;
+	}
+
+	public static void setOutboundQueueMessages(int n) {
+		outboundQueueMessages = n;
+	}
+
+	public static long getOutboundQueueBytes() {
+		return outboundQueueBytes;
+	}
+
+	public static void setOutboundQueueBytes(long n) {
+		outboundQueueBytes = n;
+	}
+
+	public static Policy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	public static void setSlowConsumerPolicy(Policy policy) {
+		slowConsumerPolicy = policy;
+	}
+
+	public static int getSlowConsumerCloseCode() {
+		return slowConsumerCloseCode;
+	}
+
+	public static void setSlowConsumerCloseCode(int code) {
+		slowConsumerCloseCode = code;
+	}
+
+	public static int getDictionarySize() {
+		return dictionarySize;
+	}
+
+	public static void setDictionarySize(int n) {
+		dictionarySize = n;
+	}
+
+	/**
+	 * Samples the outbound queue of a gate when a message is sent
+	 *
+	 * @param messages the messages buffered for the gate
+	 * @param bytes    the bytes buffered for the gate
+	 */
+	public static void outboundQueue(long messages, long bytes) {
+		outboundQueueDepth.add(messages);
+		outboundQueueSize.add(bytes);
+	}
+
+	public static void droppedNotification() {
+		droppedNotifications.incrementAndGet();
+	}
+
+	public static void coalescedNotification() {
+		coalescedNotifications.incrementAndGet();
+	}
+
+	public static void slowConsumer() {
+		slowConsumers.incrementAndGet();
+	}
+
+	public static String[] getOutboundQueue_messagesHistogram() {
+		return outboundQueueDepth.toStrings();
+	}
+
+	public static String[] getOutboundQueue_bytesHistogram() {
+		return outboundQueueSize.toStrings();
+	}
+
+	public static long getOutboundQueue_maxMessages() {
+		return outboundQueueDepth.getMax();
+	}
+
+	public static long getOutboundQueue_maxBytes() {
+		return outboundQueueSize.getMax();
+	}
+
+	public static long getDroppedNotifications() {
+		return droppedNotifications.get();
+	}
+
+	public static long getCoalescedNotifications() {
+		return coalescedNotifications.get();
+	}
+
+	public static long getSlowConsumers() {
+		return slowConsumers.get();
+	}
+
+	public static void heartbeatTimeout() {
+		heartbeatTimeouts.incrementAndGet();
+	}
+
+	public static long getHeartbeatTimeouts() {
+		return heartbeatTimeouts.get();
+	}
+
+	/**
+	 * @param requests the requests of the batch
+	 */
+	public static void batch(int requests) {
+		batches.incrementAndGet();
+		batchedRequests.addAndGet(requests);
+	}
+
+	public static long getBatches() {
+		return batches.get();
+	}
+
+	public static long getBatchedRequests() {
+		return batchedRequests.get();
+	}
 }
@@ -0,0 +1,71 @@
+/* A bounded window of latency samples used to compute percentiles
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.bean;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the last N samples (in ns) in a ring buffer. Percentiles are computed
+ * on demand (i.e., when read through JMX), so adding a sample is cheap.
+ */
+public class LatencySamples {
+	private final long[] samples;
+	private int next = 0;
+	private int size = 0;
+	private long count = 0;
+
+	public LatencySamples(int window) {
+		samples = new long[window];
+	}
+
+	public synchronized void add(long sample) {
+		samples[next] = sample;
+		next = (next + 1) % samples.length;
+		if (size < samples.length)
+			size++;
+		count++;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @param p the percentile (e.g., 50, 99)
+	 * @return the percentile of the samples in the window or -1 if there are no
+	 *         samples
+	 */
+	public long percentile(double p) {
+		long[] sorted;
+		synchronized (this) {
+			if (size == 0)
+				return -1;
+			sorted = Arrays.copyOf(samples, size);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	public synchronized void reset() {
+		next = 0;
+		size = 0;
+		count = 0;
+	}
+}
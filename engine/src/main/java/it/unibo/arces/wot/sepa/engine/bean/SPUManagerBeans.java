@@ -18,6 +18,10 @@
 
 package it.unibo.arces.wot.sepa.engine.bean;
 
+import java.util.ArrayList;
+
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest.Priority;
+
 public class SPUManagerBeans {
 	private static long[] updateRequests = {0,0};
 	
@@ -34,6 +38,66 @@ public class SPUManagerBeans {
 
 	private static int SPUProcessingTimeout = 30000;
 
+	private static int quarantineThreshold = 3;
+	private static int quarantinePeriod = 10000;
+	private static long processingTimeouts = 0;
+
+	private static long cachedRows = 0;
+	private static long cachedRowsBytes = 0;
+
+	private static int spillThreshold = 100000;
+	private static String spillDirectory = "";
+	private static long spilledResults = 0;
+	private static long spilledBytes = 0;
+
+	private static int fingerprintThreshold = 0;
+	private static int fingerprintCacheSize = 1000;
+	private static long fingerprintRows = 0;
+	private static long fingerprintBytes = 0;
+	private static long fingerprintMisses = 0;
+
+	private static int incrementalMaxQuads = 1000;
+	private static long incrementalUpdates = 0;
+	private static long incrementalEvaluations = 0;
+	private static long uninstantiatedUpdates = 0;
+
+	private static long staleEvaluations = 0;
+
+	private static int maxConcurrentProcessing = 0;
+	private static final LatencySamples[] notificationLatency = new LatencySamples[Priority.values().length];
+	static {
+		for (int i = 0; i < notificationLatency.length; i++)
+			notificationLatency[i] = new LatencySamples(1024);
+	}
+
+	private static String snapshotFile = "";
+	private static long snapshotPeriod = 60000;
+	private static int revalidationRate = 10;
+	private static int snapshotSPUs = 0;
+	private static long snapshotTime = -1;
+	private static long restoredSPUs = 0;
+
+	// Notifications kept by each SPU for the resumed subscribers (see ReplayBuffer)
+	private static int replayBufferSize = 100;
+	private static long replayBufferBytes = 1048576;
+	private static long resumedSubscribers = 0;
+	private static long replayedNotifications = 0;
+	private static long resyncs = 0;
+	private static long resumeDenied = 0;
+
+	// The SPUs left without subscribers by the closed gates are killed after (ms)
+	private static long linger = 10000;
+	private static long lingeringSPUs = 0;
+	private static long lingerReattached = 0;
+	private static long lingerExpired = 0;
+
+	private static int initializationThreads = 5;
+
+	private static int notificationThreads = 4;
+	// Notifications waiting for a subscriber (see Subscriber#offer)
+	private static int notificationQueueSize = 1000;
+	private static long coalescedNotifications = 0;
+
 	private static long unitScale = 1000000;
 
 	private static int subscribers = 0;
@@ -110,6 +174,10 @@ public class SPUManagerBeans {
 		notifyExceptions++;
 	}
 	
+	public synchronized static void processingTimeout() {
+		processingTimeouts++;
+	}
+	
 	public synchronized static void preProcessingTimings(long start, long stop) {
 		updateRequests[0]++;
 		time[0] = stop - start;
@@ -178,6 +246,22 @@ public class SPUManagerBeans {
 		preProcessingExceptions = 0;
 		postProcessingExceptions = 0;
 		notifyExceptions = 0;
+		processingTimeouts = 0;
+		fingerprintMisses = 0;
+		incrementalUpdates = 0;
+		incrementalEvaluations = 0;
+		uninstantiatedUpdates = 0;
+		staleEvaluations = 0;
+		resumedSubscribers = 0;
+		replayedNotifications = 0;
+		resyncs = 0;
+		resumeDenied = 0;
+		lingeringSPUs = 0;
+		lingerReattached = 0;
+		lingerExpired = 0;
+		coalescedNotifications = 0;
+		for (LatencySamples samples : notificationLatency)
+			samples.reset();
 	}
 
 	public static float getPreProcessing_SPUs_time() {
@@ -228,6 +312,352 @@ public class SPUManagerBeans {
 		SPUProcessingTimeout = t;
 	}
 
+	public static int getQuarantineThreshold() {
+		return quarantineThreshold;
+	}
+
+	public static void setQuarantineThreshold(int n) {
+		quarantineThreshold = n;
+	}
+
+	public static int getQuarantinePeriod() {
+		return quarantinePeriod;
+	}
+
+	public static void setQuarantinePeriod(int t) {
+		quarantinePeriod = t;
+	}
+
+	public synchronized static long getProcessingTimeouts() {
+		return processingTimeouts;
+	}
+
+	public synchronized static void addCachedResults(long rows, long bytes) {
+		cachedRows += rows;
+		cachedRowsBytes += bytes;
+	}
+
+	public synchronized static long getCachedRows() {
+		return cachedRows;
+	}
+
+	public synchronized static long getCachedRowsBytes() {
+		return cachedRowsBytes;
+	}
+
+	public synchronized static void spill(long bytes) {
+		spilledResults += (bytes > 0 ? 1 : -1);
+		spilledBytes += bytes;
+	}
+
+	public synchronized static long getSpilledResults() {
+		return spilledResults;
+	}
+
+	public synchronized static long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	public static int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public static void setSpillThreshold(int rows) {
+		spillThreshold = rows;
+	}
+
+	public static String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public static void setSpillDirectory(String dir) {
+		spillDirectory = dir;
+	}
+
+	public synchronized static void addFingerprints(long rows, long bytes) {
+		fingerprintRows += rows;
+		fingerprintBytes += bytes;
+	}
+
+	public synchronized static long getFingerprintRows() {
+		return fingerprintRows;
+	}
+
+	public synchronized static long getFingerprintBytes() {
+		return fingerprintBytes;
+	}
+
+	public synchronized static void fingerprintMisses(int n) {
+		fingerprintMisses += n;
+	}
+
+	public synchronized static long getFingerprintMisses() {
+		return fingerprintMisses;
+	}
+
+	public static int getFingerprintThreshold() {
+		return fingerprintThreshold;
+	}
+
+	public static void setFingerprintThreshold(int rows) {
+		fingerprintThreshold = rows;
+	}
+
+	public static int getFingerprintCacheSize() {
+		return fingerprintCacheSize;
+	}
+
+	public static void setFingerprintCacheSize(int rows) {
+		fingerprintCacheSize = rows;
+	}
+
+	public static int getIncrementalMaxQuads() {
+		return incrementalMaxQuads;
+	}
+
+	public static void setIncrementalMaxQuads(int quads) {
+		incrementalMaxQuads = quads;
+	}
+
+	public synchronized static void incrementalUpdate() {
+		incrementalUpdates++;
+	}
+
+	public synchronized static long getIncrementalUpdates() {
+		return incrementalUpdates;
+	}
+
+	public synchronized static void incrementalEvaluation() {
+		incrementalEvaluations++;
+	}
+
+	public synchronized static long getIncrementalEvaluations() {
+		return incrementalEvaluations;
+	}
+
+	public synchronized static void uninstantiatedUpdate() {
+		uninstantiatedUpdates++;
+	}
+
+	public synchronized static long getUninstantiatedUpdates() {
+		return uninstantiatedUpdates;
+	}
+
+	public synchronized static void staleEvaluation() {
+		staleEvaluations++;
+	}
+
+	public synchronized static long getStaleEvaluations() {
+		return staleEvaluations;
+	}
+
+	public static int getMaxConcurrentProcessing() {
+		return maxConcurrentProcessing;
+	}
+
+	public static void setMaxConcurrentProcessing(int n) {
+		maxConcurrentProcessing = n;
+	}
+
+	public static void notificationLatency(Priority priority, long latency) {
+		notificationLatency[priority.ordinal()].add(latency);
+	}
+
+	/**
+	 * @return the percentile (ms) of the latency from the update of the endpoint
+	 *         to the notification of the SPUs of a priority class (-1 if none)
+	 */
+	public static float getNotificationLatency(Priority priority, double p) {
+		long latency = notificationLatency[priority.ordinal()].percentile(p);
+		return (latency < 0 ? -1 : latency / 1000000f);
+	}
+
+	public static String[] getNotificationLatency_perPriority() {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (Priority priority : Priority.values()) {
+			LatencySamples samples = notificationLatency[priority.ordinal()];
+			ret.add(String.format("%s notifications %d p50 %.3f ms p99 %.3f ms", priority.name().toLowerCase(),
+					samples.getCount(), getNotificationLatency(priority, 50), getNotificationLatency(priority, 99)));
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public static String getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	public static void setSnapshotFile(String file) {
+		snapshotFile = file;
+	}
+
+	public static long getSnapshotPeriod() {
+		return snapshotPeriod;
+	}
+
+	public static void setSnapshotPeriod(long ms) {
+		snapshotPeriod = ms;
+	}
+
+	public static int getRevalidationRate() {
+		return revalidationRate;
+	}
+
+	public static void setRevalidationRate(int n) {
+		revalidationRate = n;
+	}
+
+	public synchronized static void snapshot(int spus, long time) {
+		snapshotSPUs = spus;
+		snapshotTime = time;
+	}
+
+	public synchronized static int getSnapshotSPUs() {
+		return snapshotSPUs;
+	}
+
+	public synchronized static long getSnapshotTime() {
+		return snapshotTime;
+	}
+
+	public synchronized static void restoredSPU() {
+		restoredSPUs++;
+	}
+
+	public synchronized static long getRestoredSPUs() {
+		return restoredSPUs;
+	}
+
+	public static int getReplayBufferSize() {
+		return replayBufferSize;
+	}
+
+	public static void setReplayBufferSize(int n) {
+		replayBufferSize = n;
+	}
+
+	public static long getReplayBufferBytes() {
+		return replayBufferBytes;
+	}
+
+	public static void setReplayBufferBytes(long n) {
+		replayBufferBytes = n;
+	}
+
+	/**
+	 * @param notifications the notifications replayed to the subscriber
+	 */
+	public synchronized static void resumed(int notifications) {
+		resumedSubscribers++;
+		replayedNotifications += notifications;
+	}
+
+	/**
+	 * A subscriber could not be resumed (i.e., it gets the full results)
+	 */
+	public synchronized static void resync() {
+		resyncs++;
+	}
+
+	/**
+	 * A notification waiting for a slow subscriber has been coalesced with the
+	 * next one
+	 */
+	public synchronized static void coalescedNotification() {
+		coalescedNotifications++;
+	}
+
+	public synchronized static long getCoalescedNotifications() {
+		return coalescedNotifications;
+	}
+
+	public synchronized static long getResumedSubscribers() {
+		return resumedSubscribers;
+	}
+
+	public synchronized static long getReplayedNotifications() {
+		return replayedNotifications;
+	}
+
+	public synchronized static long getResyncs() {
+		return resyncs;
+	}
+
+	/**
+	 * A client asked to resume a subscriber with different credentials
+	 */
+	public synchronized static void resumeDenied() {
+		resumeDenied++;
+	}
+
+	public synchronized static long getResumeDenied() {
+		return resumeDenied;
+	}
+
+	public static long getLinger() {
+		return linger;
+	}
+
+	public static void setLinger(long ms) {
+		linger = ms;
+	}
+
+	/**
+	 * An SPU has been left without subscribers by a closed gate
+	 */
+	public synchronized static void lingering() {
+		lingeringSPUs++;
+	}
+
+	/**
+	 * A lingering SPU has got a subscriber again
+	 */
+	public synchronized static void lingerReattached() {
+		lingerReattached++;
+	}
+
+	/**
+	 * A lingering SPU has been killed
+	 */
+	public synchronized static void lingerExpired() {
+		lingerExpired++;
+	}
+
+	public synchronized static long getLingeringSPUs() {
+		return lingeringSPUs;
+	}
+
+	public synchronized static long getLingerReattached() {
+		return lingerReattached;
+	}
+
+	public synchronized static long getLingerExpired() {
+		return lingerExpired;
+	}
+
+	public static int getInitializationThreads() {
+		return initializationThreads;
+	}
+
+	public static void setInitializationThreads(int n) {
+		initializationThreads = n;
+	}
+
+	public static int getNotificationThreads() {
+		return notificationThreads;
+	}
+
+	public static void setNotificationThreads(int n) {
+		notificationThreads = n;
+	}
+
+	public static int getNotificationQueueSize() {
+		return notificationQueueSize;
+	}
+
+	public static void setNotificationQueueSize(int n) {
+		notificationQueueSize = n;
+	}
+
 	public synchronized static void addSubscriber() {
 		subscribers++;
 		if (subscribers > subscribers_max) subscribers_max = subscribers;
@@ -0,0 +1,124 @@
+/* JMX statistics of the update journal
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.bean;
+
+public class UpdateJournalBeans {
+	private static long size = 0;
+	private static int pending = 0;
+	private static long appended = 0;
+	private static long commits = 0;
+	private static long checkpoints = 0;
+	private static long errors = 0;
+
+	// Group commits (write + fsync) latency
+	private static final LatencySamples fsyncLatency = new LatencySamples(1024);
+	private static long fsyncMax = -1;
+
+	private static int replayed = 0;
+	private static int replayFailed = 0;
+	private static long replayTime = -1;
+
+	public synchronized static void commit(int records, long latency) {
+		appended += records;
+		commits++;
+		if (latency > fsyncMax)
+			fsyncMax = latency;
+		fsyncLatency.add(latency);
+	}
+
+	public synchronized static void setSize(long bytes, int updates) {
+		size = bytes;
+		pending = updates;
+	}
+
+	public synchronized static void checkpoint() {
+		checkpoints++;
+	}
+
+	public synchronized static void error() {
+		errors++;
+	}
+
+	public synchronized static void replayed(int n, int failed, long time) {
+		replayed = n;
+		replayFailed = failed;
+		replayTime = time;
+	}
+
+	public synchronized static void reset() {
+		appended = 0;
+		commits = 0;
+		checkpoints = 0;
+		errors = 0;
+		fsyncMax = -1;
+		fsyncLatency.reset();
+	}
+
+	public synchronized static long getSize() {
+		return size;
+	}
+
+	public synchronized static int getPending() {
+		return pending;
+	}
+
+	public synchronized static long getAppended() {
+		return appended;
+	}
+
+	public synchronized static long getCommits() {
+		return commits;
+	}
+
+	public synchronized static float getRecordsPerCommit() {
+		return (commits == 0 ? 0 : (float) appended / commits);
+	}
+
+	public synchronized static long getCheckpoints() {
+		return checkpoints;
+	}
+
+	public synchronized static long getErrors() {
+		return errors;
+	}
+
+	public static float getFsync_p50() {
+		return fsyncLatency.percentile(50) / 1000000f;
+	}
+
+	public static float getFsync_p99() {
+		return fsyncLatency.percentile(99) / 1000000f;
+	}
+
+	public synchronized static float getFsync_max() {
+		return fsyncMax / 1000000f;
+	}
+
+	public synchronized static int getReplayed() {
+		return replayed;
+	}
+
+	public synchronized static int getReplayFailed() {
+		return replayFailed;
+	}
+
+	public synchronized static long getReplayTime() {
+		return replayTime;
+	}
+}
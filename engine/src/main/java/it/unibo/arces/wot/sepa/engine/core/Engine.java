@@ -19,7 +19,9 @@ package it.unibo.arces.wot.sepa.engine.core;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import java.util.TimeZone;
 
@@ -71,8 +73,8 @@ public class Engine implements EngineMBean {
 	// SPARQL 1.1 Protocol handler
 	private HttpGate httpGate = null;
 
-	// SPARQL 1.1 SE Protocol handler
-	private WebsocketServer wsServer = null;
+	// SPARQL 1.1 SE Protocol handlers (one per shard)
+	private final List<WebsocketServer> wsServers = new ArrayList<WebsocketServer>();
 	private HttpsGate httpsGate = null;
 	private int wsShutdownTimeout = 5000;
 
@@ -356,20 +358,24 @@ public class Engine implements EngineMBean {
 			System.out.println("SPARQL 1.1 SE Protocol (http://mml.arces.unibo.it/TR/sparql11-se-protocol.html)");
 			System.out.println("----------------------");
 
-			if (!properties.isSecure()) {
-				wsServer = new WebsocketServer(properties.getWsPort(), properties.getSubscribePath(), scheduler);
-			} else {
-				wsServer = new SecureWebsocketServer(properties.getWssPort(),
-						properties.getSecurePath() + properties.getSubscribePath(), scheduler);
+			for (int shard = 0; shard < Math.max(1, properties.getWebsocketShards()); shard++) {
+				if (!properties.isSecure()) {
+					wsServers.add(new WebsocketServer(properties.getWsPort() + shard, properties.getSubscribePath(),
+							scheduler, properties));
+				} else {
+					wsServers.add(new SecureWebsocketServer(properties.getWssPort() + shard,
+							properties.getSecurePath() + properties.getSubscribePath(), scheduler, properties));
+				}
 			}
 
 			// Start all
 			scheduler.start();
 			processor.start();
-			wsServer.start();
-
-			synchronized (wsServer) {
-				wsServer.wait(5000);
+			for (WebsocketServer wsServer : wsServers) {
+				synchronized (wsServer) {
+					wsServer.start();
+					wsServer.wait(5000);
+				}
 			}
 
 			System.out.println("----------------------");
@@ -416,6 +422,10 @@ public class Engine implements EngineMBean {
 	public void shutdown() throws InterruptedException {
 		System.out.println("Stopping...");
 
+		// Before the gates: closing a gate removes its subscriptions
+		System.out.println("Saving subscriptions snapshot...");
+		processor.getSPUManager().snapshot();
+
 		if (httpGate != null) {
 			System.out.println("Stopping HTTP gate...");
 			httpGate.shutdown();
@@ -426,7 +436,7 @@ public class Engine implements EngineMBean {
 			httpsGate.shutdown();
 		}
 
-		if (wsServer != null) {
+		for (WebsocketServer wsServer : wsServers) {
 			System.out.println("Stopping WebSocket gate...");
 			wsServer.stop(wsShutdownTimeout);
 		}
@@ -40,10 +40,28 @@ import it.unibo.arces.wot.sepa.commons.exceptions.SEPAPropertiesException;
 		"processor": {
 			"updateTimeout": 5000,
 			"queryTimeout": 5000,
-			"maxConcurrentRequests": 5
+			"maxConcurrentRequests": 5,
+			"updateJournal": "",
+			"updateJournalMaxSize": 67108864
 		},
 		"spu": {
-			"timeout": 2000
+			"timeout": 2000,
+			"notificationThreads": 4,
+			"notificationQueueSize": 1000,
+			"quarantineThreshold": 3,
+			"quarantinePeriod": 10000,
+			"spillThreshold": 100000,
+			"spillDirectory": "",
+			"fingerprintThreshold": 0,
+			"fingerprintCacheSize": 1000,
+			"incrementalMaxQuads": 1000,
+			"maxConcurrentProcessing": 0,
+			"snapshotFile": "",
+			"snapshotPeriod": 60000,
+			"revalidationRate": 10,
+			"replayBufferSize": 100,
+			"replayBufferBytes": 1048576,
+			"linger": 10000
 		},
 		"gates": {
 			"security": {
@@ -63,6 +81,22 @@ import it.unibo.arces.wot.sepa.commons.exceptions.SEPAPropertiesException;
 				"register": "/oauth/register",
 				"tokenRequest": "/oauth/token",
 				"securePath": "/secure"
+			},
+			"websocket": {
+				"decoders": 0,
+				"tcpNoDelay": true,
+				"reuseAddress": true,
+				"receiveBufferSize": 0,
+				"sendBufferSize": 0,
+				"shards": 1,
+				"outboundQueueMessages": 10000,
+				"outboundQueueBytes": 67108864,
+				"slowConsumerPolicy": "disconnect",
+				"slowConsumerCloseCode": 1008,
+				"deflateLevel": 1,
+				"deflateMinSize": 1024,
+				"dictionarySize": 4096,
+				"heartbeat": 10
 			}
 		}
 	}
@@ -129,9 +163,27 @@ public class EngineProperties {
 		result.parameters.processor.queryTimeout = 5000;
 		result.parameters.processor.maxConcurrentRequests = 5;
 		result.parameters.processor.reliableUpdate = true;
+		result.parameters.processor.updateJournal = "";
+		result.parameters.processor.updateJournalMaxSize = 67108864;
 
 		// SPU
 		result.parameters.spu.timeout = 5000;
+		result.parameters.spu.notificationThreads = 4;
+		result.parameters.spu.notificationQueueSize = 1000;
+		result.parameters.spu.quarantineThreshold = 3;
+		result.parameters.spu.quarantinePeriod = 10000;
+		result.parameters.spu.spillThreshold = 100000;
+		result.parameters.spu.spillDirectory = "";
+		result.parameters.spu.fingerprintThreshold = 0;
+		result.parameters.spu.fingerprintCacheSize = 1000;
+		result.parameters.spu.incrementalMaxQuads = 1000;
+		result.parameters.spu.maxConcurrentProcessing = 0;
+		result.parameters.spu.snapshotFile = "";
+		result.parameters.spu.snapshotPeriod = 60000;
+		result.parameters.spu.revalidationRate = 10;
+		result.parameters.spu.replayBufferSize = 100;
+		result.parameters.spu.replayBufferBytes = 1048576;
+		result.parameters.spu.linger = 10000;
 
 		// Gates
 		result.parameters.gates.security.enabled = false;
@@ -151,6 +203,22 @@ public class EngineProperties {
 		result.parameters.gates.paths.unsubscribe = "/unsubscribe";
 		result.parameters.gates.paths.register = "/oauth/register";
 		result.parameters.gates.paths.tokenRequest = "/oauth/token";
+
+		// Gates -> WebSocket
+		result.parameters.gates.websocket.decoders = 0;
+		result.parameters.gates.websocket.tcpNoDelay = true;
+		result.parameters.gates.websocket.reuseAddress = true;
+		result.parameters.gates.websocket.receiveBufferSize = 0;
+		result.parameters.gates.websocket.sendBufferSize = 0;
+		result.parameters.gates.websocket.shards = 1;
+		result.parameters.gates.websocket.outboundQueueMessages = 10000;
+		result.parameters.gates.websocket.outboundQueueBytes = 67108864;
+		result.parameters.gates.websocket.slowConsumerPolicy = "disconnect";
+		result.parameters.gates.websocket.slowConsumerCloseCode = 1008;
+		result.parameters.gates.websocket.deflateLevel = 1;
+		result.parameters.gates.websocket.deflateMinSize = 1024;
+		result.parameters.gates.websocket.dictionarySize = 4096;
+		result.parameters.gates.websocket.heartbeat = 10;
 		return result;
 	}
 
@@ -228,14 +296,249 @@ public class EngineProperties {
 		return this.parameters.gates.paths.secure;
 	}
 
+	/**
+	 * @return the number of threads decoding the WebSocket messages of each
+	 *         server (0 for one per core)
+	 */
+	public int getWebsocketDecoders() {
+		return this.parameters.gates.websocket.decoders;
+	}
+
+	public boolean isWebsocketTcpNoDelay() {
+		return this.parameters.gates.websocket.tcpNoDelay;
+	}
+
+	public boolean isWebsocketReuseAddress() {
+		return this.parameters.gates.websocket.reuseAddress;
+	}
+
+	/**
+	 * @return the SO_RCVBUF of the WebSocket connections (0 for the system
+	 *         default)
+	 */
+	public int getWebsocketReceiveBufferSize() {
+		return this.parameters.gates.websocket.receiveBufferSize;
+	}
+
+	/**
+	 * @return the SO_SNDBUF of the WebSocket connections (0 for the system
+	 *         default)
+	 */
+	public int getWebsocketSendBufferSize() {
+		return this.parameters.gates.websocket.sendBufferSize;
+	}
+
+	/**
+	 * @return the number of WebSocket servers, each with its own selector and
+	 *         decoders. The servers listen on consecutive ports starting from
+	 *         the ws (or wss) port.
+	 */
+	public int getWebsocketShards() {
+		return this.parameters.gates.websocket.shards;
+	}
+
+	/**
+	 * @return the maximum number of messages buffered for a WebSocket
+	 *         connection (0 for no limit)
+	 */
+	public int getOutboundQueueMessages() {
+		return this.parameters.gates.websocket.outboundQueueMessages;
+	}
+
+	/**
+	 * @return the maximum number of bytes buffered for a WebSocket connection
+	 *         (0 for no limit)
+	 */
+	public long getOutboundQueueBytes() {
+		return this.parameters.gates.websocket.outboundQueueBytes;
+	}
+
+	/**
+	 * @return what is done when the outbound queue of a connection is full:
+	 *         drop_oldest, coalesce or disconnect
+	 */
+	public String getSlowConsumerPolicy() {
+		return this.parameters.gates.websocket.slowConsumerPolicy;
+	}
+
+	/**
+	 * @return the close code of the connections closed for being too slow
+	 */
+	public int getSlowConsumerCloseCode() {
+		return this.parameters.gates.websocket.slowConsumerCloseCode;
+	}
+
+	/**
+	 * @return the compression level (from 1 to 9) of the permessage-deflate
+	 *         extension (0 to decline the extension)
+	 */
+	public int getWebsocketDeflateLevel() {
+		return this.parameters.gates.websocket.deflateLevel;
+	}
+
+	/**
+	 * @return the messages smaller than this size (in bytes) are not deflated
+	 */
+	public int getWebsocketDeflateMinSize() {
+		return this.parameters.gates.websocket.deflateMinSize;
+	}
+
+	/**
+	 * @return the maximum number of terms of the dictionary of a connection (0
+	 *         to decline the dictionary subprotocol)
+	 */
+	public int getWebsocketDictionarySize() {
+		return this.parameters.gates.websocket.dictionarySize;
+	}
+
+	/**
+	 * @return the interval (in seconds) of the pings sent to the clients: a
+	 *         connection is closed if its pong is not received within 1.5
+	 *         intervals (0 to disable the heartbeats)
+	 */
+	public int getWebsocketHeartbeat() {
+		return this.parameters.gates.websocket.heartbeat;
+	}
+
 	public int getSPUProcessingTimeout() {
 		return this.parameters.spu.timeout;
 	}
 
+	public int getNotificationThreads() {
+		return this.parameters.spu.notificationThreads;
+	}
+
+	public int getNotificationQueueSize() {
+		return this.parameters.spu.notificationQueueSize;
+	}
+
+	public int getQuarantineThreshold() {
+		return this.parameters.spu.quarantineThreshold;
+	}
+
+	public int getQuarantinePeriod() {
+		return this.parameters.spu.quarantinePeriod;
+	}
+
+	/**
+	 * @return the number of rows over which the last results of an SPU are moved
+	 *         out of the heap (0 to disable)
+	 */
+	public int getSpillThreshold() {
+		return this.parameters.spu.spillThreshold;
+	}
+
+	/**
+	 * @return the directory of the memory mapped files of the spilled results
+	 *         (if empty, results are spilled in direct buffers)
+	 */
+	public String getSpillDirectory() {
+		return this.parameters.spu.spillDirectory;
+	}
+
+	/**
+	 * @return the number of rows over which the results of an SPU are tracked as
+	 *         row fingerprints (0 to disable)
+	 */
+	public int getFingerprintThreshold() {
+		return this.parameters.spu.fingerprintThreshold;
+	}
+
+	/**
+	 * @return the number of rows cached by an SPU in fingerprint mode (used to
+	 *         notify the removed rows)
+	 */
+	public int getFingerprintCacheSize() {
+		return this.parameters.spu.fingerprintCacheSize;
+	}
+
+	/**
+	 * @return the maximum number of quads of an update processed incrementally
+	 *         by the SPUs that support it (0 to disable the incremental SPUs)
+	 */
+	public int getIncrementalMaxQuads() {
+		return this.parameters.spu.incrementalMaxQuads;
+	}
+
+	/**
+	 * @return the maximum number of SPUs processing an update at the same time
+	 *         (0 for no limit). The SPUs of higher priority subscriptions and
+	 *         the cheapest ones are processed first.
+	 */
+	public int getMaxConcurrentProcessing() {
+		return this.parameters.spu.maxConcurrentProcessing;
+	}
+
+	/**
+	 * @return the file where the SPUs and their last results are saved (if
+	 *         empty, snapshots are disabled)
+	 */
+	public String getSnapshotFile() {
+		return this.parameters.spu.snapshotFile;
+	}
+
+	/**
+	 * @return the period of the snapshots (ms). A snapshot is also saved on
+	 *         shutdown.
+	 */
+	public long getSnapshotPeriod() {
+		return this.parameters.spu.snapshotPeriod;
+	}
+
+	/**
+	 * @return the SPUs restored from the snapshot that are evaluated again per
+	 *         second
+	 */
+	public int getRevalidationRate() {
+		return this.parameters.spu.revalidationRate;
+	}
+
+	/**
+	 * @return the last notifications kept by each SPU: a subscriber that
+	 *         reconnects within them is resumed (0 to resume only the
+	 *         subscribers that have not missed any notification)
+	 */
+	public int getReplayBufferSize() {
+		return this.parameters.spu.replayBufferSize;
+	}
+
+	/**
+	 * @return the bytes of the encoded notifications kept by each SPU (the
+	 *         oldest ones are dropped first)
+	 */
+	public long getReplayBufferBytes() {
+		return this.parameters.spu.replayBufferBytes;
+	}
+
+	/**
+	 * @return the time (ms) the SPUs left without subscribers by a closed gate
+	 *         keep running: a client that reconnects within it resumes its
+	 *         subscription (0 to kill them at once)
+	 */
+	public long getLinger() {
+		return this.parameters.spu.linger;
+	}
+
 	public boolean isUpdateReliable() {
 		return this.parameters.processor.reliableUpdate;
 	}
 
+	/**
+	 * @return the write-ahead journal of the updates (if empty, updates are not
+	 *         journaled)
+	 */
+	public String getUpdateJournal() {
+		return this.parameters.processor.updateJournal;
+	}
+
+	/**
+	 * @return the size of the update journal over which it is rewritten with
+	 *         the pending updates only (bytes)
+	 */
+	public long getUpdateJournalMaxSize() {
+		return this.parameters.processor.updateJournalMaxSize;
+	}
+
 	public int getSchedulerTimeout() {
 		return this.parameters.scheduler.timeout;
 	}
@@ -262,9 +565,13 @@ public class EngineProperties {
 		public int queryTimeout;
 		public int maxConcurrentRequests;
 		public boolean reliableUpdate;
+		public String updateJournal;
+		public long updateJournalMaxSize;
 
 		public Processor(){
 			reliableUpdate = true;
+			updateJournal = "";
+			updateJournalMaxSize = 67108864;
 			updateTimeout = 5000;
 			queryTimeout = 5000;
 			maxConcurrentRequests = 5;
@@ -273,9 +580,41 @@ public class EngineProperties {
 
 	static private class Spu {
 		public int timeout;
+		public int notificationThreads;
+		public int notificationQueueSize;
+		public int quarantineThreshold;
+		public int quarantinePeriod;
+		public int spillThreshold;
+		public String spillDirectory;
+		public int fingerprintThreshold;
+		public int fingerprintCacheSize;
+		public int incrementalMaxQuads;
+		public int maxConcurrentProcessing;
+		public String snapshotFile;
+		public long snapshotPeriod;
+		public int revalidationRate;
+		public int replayBufferSize;
+		public long replayBufferBytes;
+		public long linger;
 
 		public Spu(){
 			timeout = 5000;
+			notificationThreads = 4;
+			notificationQueueSize = 1000;
+			quarantineThreshold = 3;
+			quarantinePeriod = 10000;
+			spillThreshold = 100000;
+			spillDirectory = "";
+			fingerprintThreshold = 0;
+			fingerprintCacheSize = 1000;
+			incrementalMaxQuads = 1000;
+			maxConcurrentProcessing = 0;
+			snapshotFile = "";
+			snapshotPeriod = 60000;
+			revalidationRate = 10;
+			replayBufferSize = 100;
+			replayBufferBytes = 1048576;
+			linger = 10000;
 		}
 	}
 	
@@ -293,6 +632,7 @@ public class EngineProperties {
 		public Security security = new Security();
 		public Paths paths = new Paths();
 		public Ports ports = new Ports();
+		public Websocket websocket = new Websocket();
 	}
 
 	static private class Paths {
@@ -328,5 +668,39 @@ public class EngineProperties {
 			wss   = 9443;
 		}
 	}
+
+	static private class Websocket {
+		public int decoders;
+		public boolean tcpNoDelay;
+		public boolean reuseAddress;
+		public int receiveBufferSize;
+		public int sendBufferSize;
+		public int shards;
+		public int outboundQueueMessages;
+		public long outboundQueueBytes;
+		public String slowConsumerPolicy;
+		public int slowConsumerCloseCode;
+		public int deflateLevel;
+		public int deflateMinSize;
+		public int dictionarySize;
+		public int heartbeat;
+
+		public Websocket(){
+			decoders = 0;
+			tcpNoDelay = true;
+			reuseAddress = true;
+			receiveBufferSize = 0;
+			sendBufferSize = 0;
+			shards = 1;
+			outboundQueueMessages = 10000;
+			outboundQueueBytes = 67108864;
+			slowConsumerPolicy = "disconnect";
+			slowConsumerCloseCode = 1008;
+			deflateLevel = 1;
+			deflateMinSize = 1024;
+			dictionarySize = 4096;
+			heartbeat = 10;
+		}
+	}
 	
 }
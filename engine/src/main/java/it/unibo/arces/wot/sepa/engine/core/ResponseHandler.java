@@ -23,4 +23,17 @@ import it.unibo.arces.wot.sepa.commons.response.Response;
 
 public interface ResponseHandler {	
 	public abstract void sendResponse(Response response) throws SEPAProtocolException;
+
+	/**
+	 * Sends the response and then runs the given action (e.g., the delivery of
+	 * the notifications that must follow the response). The handlers that
+	 * send the response asynchronously run it when the response has been sent.
+	 */
+	public default void sendResponse(Response response, Runnable sent) throws SEPAProtocolException {
+		try {
+			sendResponse(response);
+		} finally {
+			sent.run();
+		}
+	}
 }
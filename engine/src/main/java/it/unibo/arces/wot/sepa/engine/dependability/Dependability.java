@@ -27,7 +27,6 @@ import org.apache.logging.log4j.Logger;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.response.Response;
 import it.unibo.arces.wot.sepa.commons.security.ClientAuthorization;
-import it.unibo.arces.wot.sepa.engine.gates.Gate;
 import it.unibo.arces.wot.sepa.engine.processing.Processor;
 
 public class Dependability {
@@ -92,14 +91,6 @@ public class Dependability {
 		SubscriptionManager.onClose(gid);
 	}
 
-	public static void addGate(Gate g)  {
-		SubscriptionManager.addGate(g);
-	}
-	
-	public static void removeGate(Gate g)  {
-		SubscriptionManager.removeGate(g);
-	}
-	
 	public static void onGateError(String gid, Exception e) {
 		SubscriptionManager.onError(gid, e);
 	}
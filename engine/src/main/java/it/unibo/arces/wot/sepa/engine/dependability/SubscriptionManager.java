@@ -1,4 +1,4 @@
-/* Subscription manager. The class keeps track of the active gates and subscriptions. It disposes gates which do not reply to ping requests.
+/* Subscription manager. The class keeps track of the active gates and subscriptions. It disposes the subscriptions of the closed gates.
  * 
  * Author: Luca Roffia (luca.roffia@unibo.it)
 
@@ -20,38 +20,25 @@ package it.unibo.arces.wot.sepa.engine.dependability;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import it.unibo.arces.wot.sepa.engine.gates.Gate;
 import it.unibo.arces.wot.sepa.engine.processing.Processor;
 
+/**
+ * The subscriptions of a gate are killed when the gate is closed (e.g., the
+ * WebSocket gates are closed when the client does not answer the heartbeats:
+ * see {@link it.unibo.arces.wot.sepa.engine.gates.websocket.WebsocketServer}).
+ * The SPUs left without subscribers keep running for the linger period, so
+ * that a reconnecting client can resume its subscriptions (see
+ * {@link it.unibo.arces.wot.sepa.engine.processing.subscriptions.Subscriptions#expire}).
+ */
 class SubscriptionManager {
-	static {
-		Thread thread = new Thread() {
-			public void run() {
-				while(true) {
-					try {
-						Thread.sleep(5000);
-					} catch (InterruptedException e) {
-						return;
-					}
-					pingGates();
-				}
-			}
-		};
-		thread.setName("SEPA-Gates-Ping");
-		thread.start();	
-	}
-	
 	private static final Logger logger = LogManager.getLogger();
 
 	// Active subscriptions and gates
 	private static final HashMap<String, ArrayList<String>> SUBSCRIPTIONS_HASH_MAP = new HashMap<String, ArrayList<String>>();
-	private static final Set<Gate> gates = new HashSet<Gate>();
 	
 	private static Processor processor = null;
 
@@ -59,32 +46,6 @@ class SubscriptionManager {
 		processor = p;
 	}
 	
-	private static synchronized void pingGates() {
-		Set<Gate> brokenGates = new HashSet<Gate>();
-		
-		for (Gate g : gates) {
-			if(g.ping()) continue;
-			brokenGates.add(g);
-		}
-		
-		for (Gate g: brokenGates) {
-			try {
-				onCloseInternal(g.getGID());
-			} catch (InterruptedException e) {
-				logger.warn("Exception on closing gate: "+g.getGID()+" exception: "+e.getMessage());
-			}
-			gates.remove(g);
-		}
-	}
-	
-	public static synchronized void addGate(Gate g) {
-		gates.add(g);
-	}
-	
-	public static synchronized void removeGate(Gate g) {
-		gates.remove(g);
-	}
-
 	public static synchronized void onSubscribe(String gid, String sid) {
 		if (gid == null) {
 			logger.error("@onSubscribe GID is null");
@@ -118,10 +79,17 @@ class SubscriptionManager {
 			return;
 		}
 
-		logger.trace("REMOVE " + gid + " " + sid + " " + SUBSCRIPTIONS_HASH_MAP.size() + " " + SUBSCRIPTIONS_HASH_MAP.get(gid).size());
+		// Gate already closed (e.g., the subscription has been resumed by another gate)
+		ArrayList<String> sids = SUBSCRIPTIONS_HASH_MAP.get(gid);
+		if (sids == null) {
+			logger.debug("@onUnsubscribe gate not found: " + gid);
+			return;
+		}
+
+		logger.trace("REMOVE " + gid + " " + sid + " " + SUBSCRIPTIONS_HASH_MAP.size() + " " + sids.size());
 
 		// Remove subscription
-		SUBSCRIPTIONS_HASH_MAP.get(gid).remove(sid);
+		sids.remove(sid);
 	}
 
 	public static synchronized void onClose(String gid) throws InterruptedException {
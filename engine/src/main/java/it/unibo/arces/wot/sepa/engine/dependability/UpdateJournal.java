@@ -0,0 +1,481 @@
+/* A write-ahead journal of the updates accepted by the engine
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.dependability;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.commons.security.ClientAuthorization;
+import it.unibo.arces.wot.sepa.engine.bean.SEPABeans;
+import it.unibo.arces.wot.sepa.engine.bean.UpdateJournalBeans;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+/**
+ * An append-only journal of the updates: an update is appended (and synced to
+ * disk) before it is acknowledged and it is marked as completed once it has
+ * been processed. On restart, the updates that have not been completed are
+ * replayed.
+ *
+ * Records are written by a single thread: all the records appended while the
+ * previous batch is being synced are written and synced together (group
+ * commit), so concurrent clients share the cost of an fsync. Completion
+ * records are not waited for: an update completed just before a crash may be
+ * replayed (i.e., updates are replayed at least once).
+ *
+ * Each record is:
+ *
+ * <pre>
+ * length (int) | CRC32 (int) | type (byte) | id (long) | update (UTF-8 JSON, only for updates)
+ * </pre>
+ *
+ * A torn record at the end of the file (i.e., a crash while writing) is
+ * discarded. When the journal grows over its maximum size, it is rewritten
+ * with the pending updates only (checkpoint).
+ */
+public class UpdateJournal implements UpdateJournalMBean {
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final byte UPDATE = 1;
+	private static final byte DONE = 2;
+
+	// Length and CRC
+	private static final int HEADER = 8;
+
+	private final Path file;
+	private volatile long maxSize;
+
+	// Written by the writer thread only
+	private FileChannel channel;
+
+	// Id ==> record of the updates not yet completed (writer thread only)
+	private final LinkedHashMap<Long, ByteBuffer> pending = new LinkedHashMap<Long, ByteBuffer>();
+
+	// Updates not completed before the restart (to be replayed)
+	private final ArrayList<InternalUpdateRequest> recovered = new ArrayList<InternalUpdateRequest>();
+
+	// The records appended while the previous batch is written
+	private static class Batch {
+		final ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		boolean done = false;
+		IOException error = null;
+	}
+
+	// Guarded by this
+	private Batch current = new Batch();
+	private long nextId = 1;
+	private boolean closed = false;
+
+	private final Thread writer;
+
+	public UpdateJournal(String file, long maxSize) throws IOException {
+		this.file = Paths.get(file);
+		this.maxSize = maxSize;
+
+		Path dir = this.file.toAbsolutePath().getParent();
+		if (dir != null)
+			Files.createDirectories(dir);
+
+		recover();
+
+		channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		UpdateJournalBeans.setSize(channel.size(), pending.size());
+
+		writer = new Thread(() -> write(), "SEPA-Update-Journal");
+		writer.setDaemon(true);
+		writer.start();
+
+		SEPABeans.registerMBean("SEPA:type=" + this.getClass().getSimpleName(), this);
+	}
+
+	/**
+	 * Appends an update and waits for it to be on disk. The update is assigned
+	 * its journal id.
+	 */
+	public void append(InternalUpdateRequest update) throws IOException {
+		JsonObject json = new JsonObject();
+		json.addProperty("sparql", update.getSparql());
+		json.add("defaultGraphUri", toJson(update.getDefaultGraphUri()));
+		json.add("namedGraphUri", toJson(update.getNamedGraphUri()));
+		byte[] payload = json.toString().getBytes(StandardCharsets.UTF_8);
+
+		Batch batch;
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Journal closed");
+
+			long id = nextId++;
+			update.setJournalId(id);
+			batch = current;
+			batch.records.add(record(UPDATE, id, payload));
+			notifyAll();
+
+			try {
+				while (!batch.done)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while syncing the journal");
+			}
+		}
+
+		if (batch.error != null)
+			throw batch.error;
+	}
+
+	/**
+	 * Marks an update as completed (i.e., it will not be replayed). It does not
+	 * wait for the record to be on disk.
+	 */
+	public synchronized void complete(InternalUpdateRequest update) {
+		if (update.getJournalId() <= 0 || closed)
+			return;
+
+		current.records.add(record(DONE, update.getJournalId(), null));
+		notifyAll();
+	}
+
+	/**
+	 * @return the updates that have not been completed before the restart (in
+	 *         order). They are returned once.
+	 */
+	public synchronized List<InternalUpdateRequest> getRecoveredUpdates() {
+		List<InternalUpdateRequest> ret = new ArrayList<InternalUpdateRequest>(recovered);
+		recovered.clear();
+		return ret;
+	}
+
+	/**
+	 * Records the outcome of the replay of the recovered updates
+	 */
+	public void replayed(int updates, int failed, long time) {
+		UpdateJournalBeans.replayed(updates, failed, time);
+	}
+
+	/**
+	 * Writes the pending records and stops the writer thread
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warn("@close " + e.getMessage());
+		}
+	}
+
+	private static ByteBuffer record(byte type, long id, byte[] payload) {
+		int length = 1 + 8 + (payload == null ? 0 : payload.length);
+		ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+		record.putInt(length);
+		record.putInt(0);
+		record.put(type);
+		record.putLong(id);
+		if (payload != null)
+			record.put(payload);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER, length);
+		record.putInt(4, (int) crc.getValue());
+
+		record.flip();
+		return record;
+	}
+
+	private void write() {
+		while (true) {
+			Batch batch;
+			synchronized (this) {
+				try {
+					while (current.records.isEmpty() && !closed)
+						wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (current.records.isEmpty())
+					return;
+
+				batch = current;
+				current = new Batch();
+			}
+
+			long start = System.nanoTime();
+			try {
+				for (ByteBuffer record : batch.records) {
+					track(record);
+					while (record.hasRemaining())
+						channel.write(record);
+				}
+				channel.force(false);
+
+				UpdateJournalBeans.commit(batch.records.size(), System.nanoTime() - start);
+
+				if (channel.size() > maxSize)
+					checkpoint();
+				UpdateJournalBeans.setSize(channel.size(), pending.size());
+			} catch (IOException e) {
+				logger.error("@write " + e.getMessage());
+				UpdateJournalBeans.error();
+				batch.error = e;
+			}
+
+			synchronized (this) {
+				batch.done = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void track(ByteBuffer record) {
+		long id = record.getLong(HEADER + 1);
+		if (record.get(HEADER) == UPDATE)
+			pending.put(id, record.duplicate());
+		else
+			pending.remove(id);
+	}
+
+	// Rewrites the journal with the pending updates only
+	private void checkpoint() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (ByteBuffer record : pending.values()) {
+				ByteBuffer data = record.duplicate();
+				data.rewind();
+				while (data.hasRemaining())
+					out.write(data);
+			}
+			out.force(false);
+		}
+
+		channel.close();
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+
+		UpdateJournalBeans.checkpoint();
+		logger.debug("@checkpoint pending updates: " + pending.size() + " size: " + channel.size());
+	}
+
+	// Reads the journal: the updates without a completion record are recovered
+	private void recover() throws IOException {
+		if (!Files.exists(file))
+			return;
+
+		Map<Long, byte[]> updates = new LinkedHashMap<Long, byte[]>();
+		long size = Files.size(file);
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int crc = in.readInt();
+				if (length < 9 || length > size - valid - HEADER)
+					throw new IOException("Bad record length: " + length);
+
+				byte[] body = new byte[length];
+				in.readFully(body);
+				CRC32 check = new CRC32();
+				check.update(body);
+				if ((int) check.getValue() != crc)
+					throw new IOException("Bad record CRC");
+
+				ByteBuffer data = ByteBuffer.wrap(body);
+				byte type = data.get();
+				long id = data.getLong();
+				if (type == UPDATE) {
+					byte[] payload = new byte[data.remaining()];
+					data.get(payload);
+					updates.put(id, payload);
+				} else
+					updates.remove(id);
+
+				nextId = Math.max(nextId, id + 1);
+				valid += HEADER + length;
+			}
+		} catch (IOException e) {
+			// Torn or corrupted tail
+			logger.warn("@recover journal truncated at " + valid + " bytes: " + e.getMessage());
+			try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				truncate.truncate(valid);
+				truncate.force(false);
+			}
+		}
+
+		int failed = 0;
+		for (Map.Entry<Long, byte[]> update : updates.entrySet()) {
+			pending.put(update.getKey(), record(UPDATE, update.getKey(), update.getValue()));
+			try {
+				JsonObject json = new JsonParser().parse(new String(update.getValue(), StandardCharsets.UTF_8))
+						.getAsJsonObject();
+				InternalUpdateRequest req = new InternalUpdateRequest(json.get("sparql").getAsString(),
+						toSet(json.get("defaultGraphUri")), toSet(json.get("namedGraphUri")), new ClientAuthorization());
+				req.setJournalId(update.getKey());
+				recovered.add(req);
+			} catch (RuntimeException e) {
+				// Not an update anymore: it will never be processed
+				logger.error("@recover discarded update #" + update.getKey() + ": " + e.getMessage());
+				failed++;
+				current.records.add(record(DONE, update.getKey(), null));
+			}
+		}
+
+		logger.info("@recover " + recovered.size() + " updates to be replayed" + (failed > 0 ? " (" + failed + " discarded)" : ""));
+	}
+
+	private static JsonArray toJson(Set<String> uris) {
+		JsonArray ret = new JsonArray();
+		for (String uri : uris)
+			ret.add(uri);
+		return ret;
+	}
+
+	private static Set<String> toSet(JsonElement uris) {
+		Set<String> ret = new HashSet<String>();
+		if (uris != null && uris.isJsonArray())
+			for (JsonElement uri : uris.getAsJsonArray())
+				ret.add(uri.getAsString());
+		return ret;
+	}
+
+	@Override
+	public String getFile() {
+		return file.toString();
+	}
+
+	@Override
+	public long getSize() {
+		return UpdateJournalBeans.getSize();
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public void setMaxSize(long bytes) {
+		maxSize = bytes;
+	}
+
+	@Override
+	public int getPendingUpdates() {
+		return UpdateJournalBeans.getPending();
+	}
+
+	@Override
+	public long getAppended() {
+		return UpdateJournalBeans.getAppended();
+	}
+
+	@Override
+	public long getCommits() {
+		return UpdateJournalBeans.getCommits();
+	}
+
+	@Override
+	public float getRecordsPerCommit() {
+		return UpdateJournalBeans.getRecordsPerCommit();
+	}
+
+	@Override
+	public long getCheckpoints() {
+		return UpdateJournalBeans.getCheckpoints();
+	}
+
+	@Override
+	public long getErrors() {
+		return UpdateJournalBeans.getErrors();
+	}
+
+	@Override
+	public float getFsync_p50() {
+		return UpdateJournalBeans.getFsync_p50();
+	}
+
+	@Override
+	public float getFsync_p99() {
+		return UpdateJournalBeans.getFsync_p99();
+	}
+
+	@Override
+	public float getFsync_max() {
+		return UpdateJournalBeans.getFsync_max();
+	}
+
+	@Override
+	public int getReplayed() {
+		return UpdateJournalBeans.getReplayed();
+	}
+
+	@Override
+	public int getReplayFailed() {
+		return UpdateJournalBeans.getReplayFailed();
+	}
+
+	@Override
+	public long getReplayTime() {
+		return UpdateJournalBeans.getReplayTime();
+	}
+
+	@Override
+	public void reset() {
+		UpdateJournalBeans.reset();
+	}
+}
@@ -0,0 +1,45 @@
+/* JMX interface of the update journal
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.dependability;
+
+public interface UpdateJournalMBean {
+	public String getFile();
+
+	public long getSize();
+	public long getMaxSize();
+	public void setMaxSize(long bytes);
+
+	public int getPendingUpdates();
+
+	public long getAppended();
+	public long getCommits();
+	public float getRecordsPerCommit();
+	public long getCheckpoints();
+	public long getErrors();
+
+	public float getFsync_p50();
+	public float getFsync_p99();
+	public float getFsync_max();
+
+	public int getReplayed();
+	public int getReplayFailed();
+	public long getReplayTime();
+
+	public void reset();
+}
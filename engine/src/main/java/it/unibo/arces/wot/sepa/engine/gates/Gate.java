@@ -17,11 +17,17 @@
 */
 package it.unibo.arces.wot.sepa.engine.gates;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import it.unibo.arces.wot.sepa.engine.scheduling.*;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest.Priority;
 import org.apache.http.HttpStatus;
 import org.apache.jena.query.QueryException;
 import org.apache.logging.log4j.LogManager;
@@ -54,8 +60,6 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 
 	public abstract void send(Response response) throws SEPAProtocolException;
 
-	public abstract boolean ping();
-
 	public Gate(Scheduler scheduler) {
 		this.scheduler = scheduler;
 
@@ -106,50 +110,126 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 		}
 	}
 
-	private static void setAliasIfPresent(ErrorResponse error, String message) {
+	private static void setAliasIfPresent(ErrorResponse error, JsonObject request) {
+		if (request == null)
+			return;
+
+		JsonElement subUnsub = request.has("subscribe") ? request.get("subscribe") : request.get("unsubscribe");
+		if (subUnsub != null && subUnsub.isJsonObject() && subUnsub.getAsJsonObject().has("alias"))
+			error.setAlias(subUnsub.getAsJsonObject().get("alias").getAsString());
+	}
+
+	public final void onMessage(String message) throws SEPAProtocolException, SEPASecurityException, QueryException {
 		JsonObject request;
 		try {
 			request = new JsonParser().parse(message).getAsJsonObject();
 		} catch (Exception e) {
+			request = null;
+		}
+
+		// A batch of requests
+		if (request != null && request.has("batch")) {
+			onBatch(request);
 			return;
 		}
 
-		JsonObject subUnsub = request.getAsJsonObject("subscribe");
-		subUnsub = subUnsub == null ? request.getAsJsonObject("unsubscribe") : subUnsub;
-		if (subUnsub.has("alias"))
-			error.setAlias(subUnsub.get("alias").getAsString());
+		// Authorize and parse the request
+		InternalRequest req = prepare(message, request, new HashMap<String, ClientAuthorization>());
+		if (req == null)
+			return;
+
+		// Schedule the request (subscribes and unsubscribes are never journaled)
+		logger.trace("@onMessage: " + getGID() + " schedule request: " + req);
+		ScheduledRequest scheduled = scheduler.schedule(Collections.singletonList(req), this).get(0);
+
+		// Request not scheduled
+		if (scheduled == null)
+			outOfTokens(request);
 	}
 
-	public final void onMessage(String message) throws SEPAProtocolException, SEPASecurityException, QueryException {
+	/**
+	 * <pre>
+	{"batch":[
+		{"subscribe":{...}},
+		{"unsubscribe":{...}},
+		...
+	]}
+	 * </pre>
+	 * 
+	 * Each request of a batch is authorized and answered as if it was sent
+	 * alone (e.g., each subscribe response carries the alias of its request),
+	 * but the message is parsed once, each token is validated once and the
+	 * requests are scheduled together (see
+	 * {@link Scheduler#schedule(List, ResponseHandler)}).
+	 */
+	private void onBatch(JsonObject batch) throws SEPAProtocolException, SEPASecurityException, QueryException {
+		if (!batch.get("batch").isJsonArray()) {
+			sendResponse(new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "invalid_request", "batch member is not an array"));
+			return;
+		}
+		JsonArray items = batch.getAsJsonArray("batch");
+		GateBeans.batch(items.size());
+
+		Map<String, ClientAuthorization> tokens = new HashMap<String, ClientAuthorization>();
+		List<InternalRequest> requests = new ArrayList<InternalRequest>(items.size());
+		List<JsonObject> accepted = new ArrayList<JsonObject>(items.size());
+		for (JsonElement item : items) {
+			if (!item.isJsonObject()) {
+				sendResponse(new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "invalid_request",
+						"batch item is not a JSON object: " + item));
+				continue;
+			}
+			JsonObject request = item.getAsJsonObject();
+			InternalRequest req = prepare(item.toString(), request, tokens);
+			if (req == null)
+				continue;
+			requests.add(req);
+			accepted.add(request);
+		}
+
+		logger.trace("@onBatch: " + getGID() + " schedule requests: " + requests.size());
+		List<ScheduledRequest> scheduled = scheduler.schedule(requests, this);
+		for (int i = 0; i < scheduled.size(); i++)
+			if (scheduled.get(i) == null)
+				outOfTokens(accepted.get(i));
+	}
+
+	/**
+	 * Authorizes and parses a request: the errors are sent to the client
+	 * 
+	 * @param request the JSON object of the message (null if the message is not
+	 *                a JSON object)
+	 * @param tokens  the tokens already validated
+	 * @return the request to be scheduled (null on errors)
+	 */
+	private InternalRequest prepare(String message, JsonObject request, Map<String, ClientAuthorization> tokens)
+			throws SEPAProtocolException, SEPASecurityException, QueryException {
 		// Authorize the request
-		ClientAuthorization auth = authorize(message);
+		ClientAuthorization auth = (request == null ? authorize(message) : authorize(request, tokens));
 		if (!auth.isAuthorized()) {
 			ErrorResponse error = new ErrorResponse(401, auth.getError(), auth.getDescription());
-			setAliasIfPresent(error, message);
+			setAliasIfPresent(error, request);
 			sendResponse(error);
-			return;
+			return null;
 		}
 
 		// Parse the request
-		InternalRequest req = parseRequest(message, auth);
+		InternalRequest req = (request == null ? parseRequest(message, auth) : parseRequest(request, auth));
 		if (req instanceof InternalDiscardRequest) {
 			logger.error("@onMessage " + getGID() + " failed to parse message: " + message);
-			setAliasIfPresent(((InternalDiscardRequest) req).getError(), message);
+			setAliasIfPresent(((InternalDiscardRequest) req).getError(), request);
 			sendResponse(((InternalDiscardRequest) req).getError());
-			return;
+			return null;
 		}
 
-		// Schedule the request
-		logger.trace("@onMessage: " + getGID() + " schedule request: " + req);
-		ScheduledRequest request = scheduler.schedule(req, this);
+		return req;
+	}
 
-		// Request not scheduled
-		if (request == null) {
-			logger.error("@onMessage: " + getGID() + " out of tokens");
-			ErrorResponse response = new ErrorResponse(500, "too_many_requests", "Too many pending requests");
-			setAliasIfPresent(response, message);
-			sendResponse(response);
-		}
+	private void outOfTokens(JsonObject request) throws SEPAProtocolException {
+		logger.error("@onMessage: " + getGID() + " out of tokens");
+		ErrorResponse response = new ErrorResponse(500, "too_many_requests", "Too many pending requests");
+		setAliasIfPresent(response, request);
+		sendResponse(response);
 	}
 
 	/**
@@ -221,6 +301,18 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 			return new ClientAuthorization("invalid_request","Failed to parse JSON message: "+message);
 		}
 
+		return authorize(request, new HashMap<String, ClientAuthorization>());
+	}
+
+	/**
+	 * @param tokens the tokens already validated (e.g., by the other requests of
+	 *               a batch)
+	 */
+	private ClientAuthorization authorize(JsonObject request, Map<String, ClientAuthorization> tokens)
+			throws SEPASecurityException {
+		if (!authorizationRequired)
+			return new ClientAuthorization();
+
 		String bearer = null;
 		JsonObject subUnsub = null;
 
@@ -263,7 +355,12 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 		}
 
 		// Token validation
-		return Dependability.validateToken(jwt);
+		ClientAuthorization auth = tokens.get(jwt);
+		if (auth == null) {
+			auth = Dependability.validateToken(jwt);
+			tokens.put(jwt, auth);
+		}
+		return auth;
 	}
 
 	/**
@@ -274,6 +371,8 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 		"sparql":"SPARQL Query 1.1", 
 		"authorization": "Bearer JWT", (optional)
 		"alias":"an alias for the subscription", (optional)
+		"priority":"high|normal|low", (optional)
+		"resume": {"spuid":"SPUID","sequence":N}, (optional: the last notification received)
 		"default-graph-uri": "graphURI", (optional)
 		"named-graph-uri": "graphURI" (optional)
 	}}
@@ -290,19 +389,26 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 			throws JsonParseException, JsonSyntaxException, IllegalStateException, ClassCastException,
 			SEPAProtocolException, QueryException {
 		JsonObject req;
-		ErrorResponse error;
 		
 		try {
 			req = new JsonParser().parse(request).getAsJsonObject();
 		} catch (JsonParseException e) {
-			error = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "JsonParseException",
+			ErrorResponse error = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "JsonParseException",
 					"JsonParseException: " + request);
 			return new InternalDiscardRequest(request, error, auth);
 		}
 
+		return parseRequest(req, auth);
+	}
+
+	private InternalRequest parseRequest(JsonObject req, ClientAuthorization auth) throws SEPAProtocolException,
+			QueryException {
+		ErrorResponse error;
+
 		if (req.has("subscribe")) {
 			String sparql = null;
 			String alias = null;
+			Priority priority = Priority.NORMAL;
 			Set<String> defaultGraphUri = new HashSet<String>();
 			Set<String> namedGraphUri = new HashSet<String>();
 
@@ -310,8 +416,8 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 				sparql = req.get("subscribe").getAsJsonObject().get("sparql").getAsString();
 			} catch (Exception e) {
 				error = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "Exception",
-						"sparql member not found: " + request);
-				return new InternalDiscardRequest(request, error, auth);
+						"sparql member not found: " + req);
+				return new InternalDiscardRequest(req.toString(), error, auth);
 			}
 
 			try {
@@ -319,6 +425,12 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 			} catch (Exception e) {
 			}
 
+			try {
+				priority = Priority.valueOf(
+						req.get("subscribe").getAsJsonObject().get("priority").getAsString().toUpperCase());
+			} catch (Exception e) {
+			}
+
 			try {
 				JsonArray array = req.get("subscribe").getAsJsonObject().get("default-graph-uri").getAsJsonArray();
 				for (JsonElement element : array) defaultGraphUri.add(element.getAsString());
@@ -331,21 +443,31 @@ public abstract class Gate implements ResponseHandler, EventHandler {
 			} catch (Exception e) {
 			}
 
-			return new InternalSubscribeRequest(sparql, alias, defaultGraphUri, namedGraphUri, this, auth);
+			InternalSubscribeRequest subscribe = new InternalSubscribeRequest(sparql, alias, defaultGraphUri,
+					namedGraphUri, this, auth);
+			subscribe.setPriority(priority);
+
+			try {
+				JsonObject resume = req.get("subscribe").getAsJsonObject().get("resume").getAsJsonObject();
+				subscribe.setResume(resume.get("spuid").getAsString(), resume.get("sequence").getAsInt());
+			} catch (Exception e) {
+			}
+
+			return subscribe;
 		} else if (req.has("unsubscribe")) {
 			String spuid;
 			try {
 				spuid = req.get("unsubscribe").getAsJsonObject().get("spuid").getAsString();
 			} catch (Exception e) {
-				error = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "Exception", "spuid member not found: " + request);
-				return new InternalDiscardRequest(request, error, auth);
+				error = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "Exception", "spuid member not found: " + req);
+				return new InternalDiscardRequest(req.toString(), error, auth);
 			}
 
 			return new InternalUnsubscribeRequest(gid, spuid, auth);
 		}
 
-		error = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "unsupported", "Bad request: " + request);
-		return new InternalDiscardRequest(request, error, auth);
+		error = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "unsupported", "Bad request: " + req);
+		return new InternalDiscardRequest(req.toString(), error, auth);
 	}
 
 }
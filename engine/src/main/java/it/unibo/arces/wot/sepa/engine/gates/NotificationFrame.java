@@ -0,0 +1,58 @@
+/* The frame of a notification
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates;
+
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.framing.DataFrame;
+
+import it.unibo.arces.wot.sepa.engine.processing.subscriptions.EncodedNotification;
+
+/**
+ * A text (JSON) or binary frame that keeps the notification it carries, so the
+ * extensions can reuse the work shared by all the subscribers of the SPU
+ * (e.g., the deflated body).
+ */
+public class NotificationFrame extends DataFrame {
+	private final EncodedNotification notification;
+	private final boolean binary;
+
+	public NotificationFrame(EncodedNotification notification, boolean binary) {
+		super(binary ? Opcode.BINARY : Opcode.TEXT);
+		this.notification = notification;
+		this.binary = binary;
+	}
+
+	public EncodedNotification getNotification() {
+		return notification;
+	}
+
+	/**
+	 * @return the header of the subscriber in the encoding of the frame
+	 */
+	public byte[] getHeader() {
+		return (binary ? notification.getBinaryHeader() : notification.getHeader());
+	}
+
+	/**
+	 * @return the body shared by the subscribers in the encoding of the frame
+	 */
+	public EncodedNotification.Body getBody() {
+		return (binary ? notification.getBinaryBody() : notification.getBody());
+	}
+}
@@ -0,0 +1,331 @@
+/* The bounded outbound queue of a WebSocket gate
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.TextFrame;
+import org.java_websocket.protocols.IProtocol;
+
+import it.unibo.arces.wot.sepa.api.protocols.websocket.BinaryNotification;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.ConnectionTermDictionary;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.engine.bean.GateBeans;
+import it.unibo.arces.wot.sepa.engine.processing.subscriptions.EncodedNotification;
+
+/**
+ * Bounds the messages and the bytes buffered for a connection, i.e., the
+ * frames buffered by the socket plus the messages waiting in the queue of the
+ * gate. The socket is given at most half of the limits: the other messages
+ * wait in the gate, where the policy still applies to them.
+ *
+ * When the limits are exceeded (e.g., the client does not read):
+ * <ul>
+ * <li>{@link Policy#DROP_OLDEST}: the oldest notifications waiting in the gate
+ * are dropped (the client sees a gap in the sequence numbers);</li>
+ * <li>{@link Policy#COALESCE}: a notification waiting in the gate is merged
+ * with the next notification of the same subscription (the added and removed
+ * bindings that cancel out are dropped);</li>
+ * <li>{@link Policy#DISCONNECT}: the connection is closed with the configured
+ * close code.</li>
+ * </ul>
+ * Responses (e.g., subscribe and unsubscribe) are never dropped: if they alone
+ * exceed the limits, the connection is closed whatever the policy.
+ *
+ * Notifications are sent as binary frames to the connections that negotiated
+ * the {@link BinaryNotification#PROTOCOL} or the
+ * {@link ConnectionTermDictionary#PROTOCOL} subprotocol. With the dictionary,
+ * a notification is encoded when it is handed to the socket (i.e., in the
+ * order it is sent): its size in the queue is the one without the dictionary.
+ *
+ * The frames buffered by the socket are accounted when they are handed to it
+ * and released when the queue of the socket gets shorter (frames are written
+ * in order): the queue is never scanned. Frames sent by the socket itself
+ * (e.g., pings) are not accounted but delay the release of the ones behind
+ * them.
+ */
+public class OutboundQueue {
+	private static final Logger logger = LogManager.getLogger();
+
+	public enum Policy {
+		DROP_OLDEST, COALESCE, DISCONNECT
+	}
+
+	// The messages waiting in the gate are handed to the socket at least every FLUSH_PERIOD ms
+	private static final long FLUSH_PERIOD = 5;
+
+	// A closed connection whose close frame is not read is dropped after CLOSE_TIMEOUT ms
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "SEPA-Gates-Flush");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static class Outbound {
+		final Response response;
+		final ByteBuffer payload;
+		final boolean binary;
+
+		/**
+		 * @param binary if the connection negotiated the binary notifications
+		 */
+		Outbound(Response response, boolean binary) {
+			this.response = response;
+			this.binary = binary && response instanceof Notification;
+			if (this.binary && response instanceof EncodedNotification)
+				payload = ((EncodedNotification) response).toBinaryBuffer();
+			else if (this.binary)
+				payload = ByteBuffer.wrap(BinaryNotification.encode((Notification) response));
+			else if (response instanceof EncodedNotification)
+				payload = ((EncodedNotification) response).toByteBuffer();
+			else
+				payload = ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		boolean isNotification() {
+			return response instanceof Notification;
+		}
+
+		int size() {
+			return payload.remaining();
+		}
+	}
+
+	private final WebSocket socket;
+	private final boolean binary;
+	private final ConnectionTermDictionary dictionary;
+	private final int maxMessages;
+	private final long maxBytes;
+	private final Policy policy;
+	private final int closeCode;
+
+	// Messages not yet handed to the socket (oldest first)
+	private final ArrayDeque<Outbound> pending = new ArrayDeque<Outbound>();
+	private long pendingBytes = 0;
+
+	// Sizes of the frames handed to the socket and possibly not written yet (oldest first)
+	private final ArrayDeque<Integer> written = new ArrayDeque<Integer>();
+	private long writtenBytes = 0;
+	private boolean flushing = false;
+	private boolean closed = false;
+
+	/**
+	 * The limits and the policy are the ones of {@link GateBeans} (0 means no
+	 * limit)
+	 */
+	public OutboundQueue(WebSocket socket) {
+		this.socket = socket;
+		String protocol = protocol(socket);
+		this.binary = BinaryNotification.PROTOCOL.equals(protocol)
+				|| ConnectionTermDictionary.PROTOCOL.equals(protocol);
+		this.dictionary = (ConnectionTermDictionary.PROTOCOL.equals(protocol)
+				? new ConnectionTermDictionary(GateBeans.getDictionarySize())
+				: null);
+		this.maxMessages = GateBeans.getOutboundQueueMessages();
+		this.maxBytes = GateBeans.getOutboundQueueBytes();
+		this.policy = GateBeans.getSlowConsumerPolicy();
+		this.closeCode = GateBeans.getSlowConsumerCloseCode();
+	}
+
+	/**
+	 * @return the subprotocol negotiated by the connection ("" if none)
+	 */
+	public static String protocol(WebSocket socket) {
+		if (!(socket.getDraft() instanceof Draft_6455))
+			return "";
+		IProtocol protocol = ((Draft_6455) socket.getDraft()).getProtocol();
+		return (protocol == null ? "" : protocol.getProvidedProtocol());
+	}
+
+	/**
+	 * Sends the response or queues it if the socket is busy. Messages sent
+	 * after the connection has been closed for being too slow are dropped.
+	 * 
+	 * @throws WebsocketNotConnectedException if the socket is not open
+	 */
+	public void send(Response response) {
+		Outbound out = new Outbound(response, binary);
+		long messages;
+		long bytes;
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			flush();
+
+			if (pending.isEmpty() && canWrite(out)) {
+				write(out);
+				GateBeans.outboundQueue(written.size(), writtenBytes);
+				return;
+			}
+
+			enqueue(out);
+
+			messages = written.size() + pending.size();
+			bytes = writtenBytes + pendingBytes;
+			if (policy == Policy.DROP_OLDEST)
+				for (Iterator<Outbound> it = pending.iterator(); it.hasNext()
+						&& !fits(messages, bytes, 1);) {
+					Outbound oldest = it.next();
+					if (!oldest.isNotification())
+						continue;
+					it.remove();
+					pendingBytes -= oldest.size();
+					messages--;
+					bytes -= oldest.size();
+					GateBeans.droppedNotification();
+				}
+			GateBeans.outboundQueue(messages, bytes);
+
+			if (fits(messages, bytes, 1)) {
+				schedule();
+				return;
+			}
+
+			// Too slow
+			closed = true;
+			pending.clear();
+			pendingBytes = 0;
+		}
+
+		GateBeans.slowConsumer();
+		logger.warn("Slow consumer " + socket.getRemoteSocketAddress() + " (buffered messages: " + messages
+				+ " bytes: " + bytes + ") closed with code " + closeCode);
+		socket.close(closeCode, "Slow consumer");
+		flusher.schedule(() -> {
+			if (!socket.isClosed())
+				socket.closeConnection(closeCode, "Slow consumer");
+		}, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param share 1 for the whole limits, 2 for half of them
+	 */
+	private boolean fits(long messages, long bytes, int share) {
+		if (maxMessages > 0 && messages > Math.max(1, maxMessages / share))
+			return false;
+		return maxBytes <= 0 || bytes <= Math.max(1, maxBytes / share);
+	}
+
+	// The socket is given at most half of the limits (or a single message)
+	private boolean canWrite(Outbound out) {
+		return written.isEmpty() || fits(written.size() + 1, writtenBytes + out.size(), 2);
+	}
+
+	// Releases the frames written by the socket since the last call
+	private void drained() {
+		int queued = (socket instanceof WebSocketImpl ? ((WebSocketImpl) socket).outQueue.size() : 0);
+		while (written.size() > queued)
+			writtenBytes -= written.poll();
+	}
+
+	private void write(Outbound out) {
+		DataFrame frame;
+		ByteBuffer payload = out.payload;
+		if (out.binary && dictionary != null) {
+			frame = new BinaryFrame();
+			payload = ByteBuffer.wrap(dictionary.encode((Notification) out.response));
+		} else if (out.response instanceof EncodedNotification)
+			frame = new NotificationFrame((EncodedNotification) out.response, out.binary);
+		else if (out.binary)
+			frame = new BinaryFrame();
+		else
+			frame = new TextFrame();
+		int size = payload.remaining();
+		frame.setPayload(payload);
+		socket.sendFrame(frame);
+		written.add(size);
+		writtenBytes += size;
+	}
+
+	private void enqueue(Outbound out) {
+		if (policy == Policy.COALESCE && out.isNotification()) {
+			String spuid = ((Notification) out.response).getSpuid();
+			for (Iterator<Outbound> it = pending.iterator(); it.hasNext();) {
+				Outbound previous = it.next();
+				if (!previous.isNotification() || !spuid.equals(((Notification) previous.response).getSpuid()))
+					continue;
+				it.remove();
+				pendingBytes -= previous.size();
+				out = new Outbound(EncodedNotification.coalesce((Notification) previous.response, (Notification) out.response), binary);
+				GateBeans.coalescedNotification();
+				break;
+			}
+		}
+
+		pending.add(out);
+		pendingBytes += out.size();
+	}
+
+	// Hands the waiting messages to the socket (within half of the limits)
+	private void flush() {
+		drained();
+		while (!pending.isEmpty()) {
+			Outbound out = pending.peek();
+			if (!canWrite(out))
+				break;
+			pending.poll();
+			pendingBytes -= out.size();
+			try {
+				write(out);
+			} catch (Exception e) {
+				logger.warn("Failed to send " + out.response + ": " + e.getMessage());
+				pending.clear();
+				pendingBytes = 0;
+			}
+		}
+	}
+
+	private void schedule() {
+		if (flushing)
+			return;
+		flushing = true;
+		flusher.schedule(() -> {
+			synchronized (this) {
+				flushing = false;
+				if (closed || !socket.isOpen()) {
+					pending.clear();
+					pendingBytes = 0;
+					return;
+				}
+				flush();
+				if (!pending.isEmpty())
+					schedule();
+			}
+		}, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+	}
+}
@@ -33,15 +33,21 @@ public class WebsocketGate extends Gate {
 	
 	protected final WebSocket socket;
 	
+	// Bounds the messages buffered for a slow client
+	private final OutboundQueue outbound;
+	
 	public WebsocketGate(WebSocket s,Scheduler scheduler){
 		super(scheduler);
 		this.socket = s;
+		this.outbound = new OutboundQueue(s);
 	}
 	
 	public void send(Response ret) throws SEPAProtocolException {
 		try{
-			socket.send(ret.toString());
-			logger.trace("Sent: "+ret);
+			// Pre-encoded notifications are not serialized again
+			outbound.send(ret);
+			
+			if (logger.isTraceEnabled()) logger.trace("Sent: "+ret);
 		}
 		catch(WebsocketNotConnectedException e){
 			if (ret.isNotification()) {
@@ -55,9 +61,4 @@ public class WebsocketGate extends Gate {
 			}
 		}	
 	}
-
-	@Override
-	public boolean ping() {
-		return socket.isOpen();
-	}
 }
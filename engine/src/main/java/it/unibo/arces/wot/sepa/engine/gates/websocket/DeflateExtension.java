@@ -0,0 +1,218 @@
+/* The server side of the WebSocket permessage-deflate extension
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.InvalidFrameException;
+import org.java_websocket.extensions.CompressionExtension;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.ContinuousFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+import it.unibo.arces.wot.sepa.api.protocols.websocket.PerMessageDeflate;
+import it.unibo.arces.wot.sepa.engine.gates.NotificationFrame;
+import it.unibo.arces.wot.sepa.engine.processing.subscriptions.EncodedNotification;
+
+/**
+ * The permessage-deflate extension (RFC 7692) of a connection. The server
+ * always answers with server_no_context_takeover: a notification is deflated
+ * as the deflated header of the subscriber followed by the body deflated once
+ * for all the subscribers of the SPU (see {@link EncodedNotification.Body}).
+ * The messages smaller than the minimum size are not deflated (note that the
+ * deflate extension of the Java-WebSocket 1.5.1 client rejects the messages
+ * not deflated: such clients need a minimum size of 0).
+ *
+ * Offers that limit the window of the server (server_max_window_bits less than
+ * 15) are declined, as the window of the JDK deflater cannot be set.
+ */
+class DeflateExtension extends CompressionExtension {
+	// The maximum size of an inflated request
+	private static final long MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	private final int level;
+	private final int minSize;
+
+	// Set by the negotiation
+	private PerMessageDeflate inflater = null;
+	private String response = null;
+
+	// If the message being sent or received is deflated (it may be fragmented)
+	private boolean deflating = false;
+	private boolean inflating = false;
+
+	/**
+	 * @param level   the compression level (from 1 to 9)
+	 * @param minSize the messages smaller than this size (in bytes) are not
+	 *                deflated
+	 */
+	DeflateExtension(int level, int minSize) {
+		this.level = level;
+		this.minSize = minSize;
+	}
+
+	@Override
+	public boolean acceptProvidedExtensionAsServer(String offers) {
+		if (offers == null)
+			return false;
+
+		// e.g. permessage-deflate; client_max_window_bits, permessage-deflate
+		for (String offer : offers.split(",")) {
+			String[] parameters = offer.split(";");
+			if (!PerMessageDeflate.EXTENSION.equalsIgnoreCase(parameters[0].trim()))
+				continue;
+
+			boolean clientNoContextTakeover = false;
+			boolean valid = true;
+			for (int i = 1; i < parameters.length && valid; i++) {
+				String[] parameter = parameters[i].split("=", 2);
+				String name = parameter[0].trim().toLowerCase();
+				String value = (parameter.length > 1 ? parameter[1].trim().replace("\"", "") : null);
+
+				switch (name) {
+				case PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER:
+					clientNoContextTakeover = true;
+					break;
+				case PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER:
+					break;
+				case PerMessageDeflate.CLIENT_MAX_WINDOW_BITS:
+					// The inflater accepts any window
+					break;
+				case PerMessageDeflate.SERVER_MAX_WINDOW_BITS:
+					valid = "15".equals(value);
+					break;
+				default:
+					valid = false;
+				}
+			}
+			if (!valid)
+				continue;
+
+			inflater = new PerMessageDeflate(!clientNoContextTakeover, MAX_MESSAGE_SIZE);
+			response = PerMessageDeflate.EXTENSION + "; " + PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER
+					+ (clientNoContextTakeover ? "; " + PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER : "");
+			return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public boolean acceptProvidedExtensionAsClient(String inputExtension) {
+		return false;
+	}
+
+	@Override
+	public String getProvidedExtensionAsServer() {
+		return response;
+	}
+
+	@Override
+	public String getProvidedExtensionAsClient() {
+		return "";
+	}
+
+	@Override
+	public void isFrameValid(Framedata frame) throws InvalidDataException {
+		super.isFrameValid(frame);
+
+		// Only the first frame of a message is marked as deflated
+		if (frame instanceof ContinuousFrame && frame.isRSV1())
+			throw new InvalidFrameException("RSV1 set on a continuation frame");
+	}
+
+	@Override
+	public void decodeFrame(Framedata frame) throws InvalidDataException {
+		if (!(frame instanceof DataFrame))
+			return;
+		if (!(frame instanceof ContinuousFrame))
+			inflating = frame.isRSV1();
+		if (!inflating)
+			return;
+
+		try {
+			byte[] inflated = inflater.inflate(bytes(frame.getPayloadData()), frame.isFin());
+			((FramedataImpl1) frame).setPayload(ByteBuffer.wrap(inflated));
+			((FramedataImpl1) frame).setRSV1(false);
+		} catch (PerMessageDeflate.MessageTooBigException e) {
+			throw new InvalidDataException(CloseFrame.TOOBIG, e.getMessage());
+		} catch (DataFormatException e) {
+			throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, e.getMessage());
+		}
+	}
+
+	/**
+	 * Frames may be sent by several threads at the same time (e.g., a response
+	 * and a notification)
+	 */
+	@Override
+	public synchronized void encodeFrame(Framedata frame) {
+		if (!(frame instanceof DataFrame))
+			return;
+		if (!(frame instanceof ContinuousFrame))
+			deflating = frame.getPayloadData().remaining() >= minSize;
+		if (!deflating)
+			return;
+
+		byte[] deflated;
+		if (frame instanceof NotificationFrame && frame.isFin()) {
+			byte[] header = ((NotificationFrame) frame).getHeader();
+			byte[] head = PerMessageDeflate.deflate(header, 0, header.length, level, false);
+			byte[] body = ((NotificationFrame) frame).getBody().deflated(level);
+			deflated = new byte[head.length + body.length];
+			System.arraycopy(head, 0, deflated, 0, head.length);
+			System.arraycopy(body, 0, deflated, head.length, body.length);
+		} else {
+			byte[] payload = bytes(frame.getPayloadData());
+			deflated = PerMessageDeflate.deflate(payload, 0, payload.length, level, frame.isFin());
+		}
+
+		((FramedataImpl1) frame).setPayload(ByteBuffer.wrap(deflated));
+		if (!(frame instanceof ContinuousFrame))
+			((FramedataImpl1) frame).setRSV1(true);
+	}
+
+	private static byte[] bytes(ByteBuffer payload) {
+		ByteBuffer data = payload.duplicate();
+		byte[] ret = new byte[data.remaining()];
+		data.get(ret);
+		return ret;
+	}
+
+	@Override
+	public IExtension copyInstance() {
+		return new DeflateExtension(level, minSize);
+	}
+
+	@Override
+	public void reset() {
+		if (inflater != null)
+			inflater.end();
+	}
+
+	@Override
+	public String toString() {
+		return "DeflateExtension level: " + level + " minSize: " + minSize;
+	}
+}
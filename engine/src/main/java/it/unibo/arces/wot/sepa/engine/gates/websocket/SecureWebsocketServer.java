@@ -26,6 +26,7 @@ import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
 import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
 import it.unibo.arces.wot.sepa.engine.gates.SecureWebsocketGate;
 import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
@@ -37,11 +38,11 @@ public class SecureWebsocketServer extends WebsocketServer {
 		return "SPARQL 1.1 Subscribe | wss://%s:%d%s";
 	}
 
-	public SecureWebsocketServer(int port, String path, Scheduler scheduler)
+	public SecureWebsocketServer(int port, String path, Scheduler scheduler, EngineProperties properties)
 			throws SEPAProtocolException, SEPASecurityException {
-		super(port, path, scheduler);
+		super(port, path, scheduler, properties);
 
-		setWebSocketFactory(new DefaultSSLWebSocketServerFactory(Dependability.getSSLContext()));
+		setWebSocketFactory(socketOptions(new DefaultSSLWebSocketServerFactory(Dependability.getSSLContext())));
 	}
 
 	@Override
@@ -57,14 +58,11 @@ public class SecureWebsocketServer extends WebsocketServer {
 		}
 
 		// Add new gate
-		synchronized (gates) {
-			SecureWebsocketGate handler = new SecureWebsocketGate(conn, scheduler);
-			gates.put(conn, handler);
+		SecureWebsocketGate handler = new SecureWebsocketGate(conn, scheduler);
+		conn.setAttachment(handler);
+		gates.put(conn, handler);
 
-			fragmentedMessages.put(conn, null);
-
-			logger.debug("@onOpen socket: " + conn.hashCode() + " UUID: " + handler.getGID() + " Total sockets: "
-					+ gates.size());
-		}
+		logger.debug("@onOpen socket: " + conn.hashCode() + " UUID: " + handler.getGID() + " Total sockets: "
+				+ gates.size());
 	}
 }
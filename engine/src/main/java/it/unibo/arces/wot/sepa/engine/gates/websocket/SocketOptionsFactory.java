@@ -0,0 +1,78 @@
+/* Sets the socket options of the accepted WebSocket connections
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.drafts.Draft;
+
+/**
+ * Sets the buffer sizes of each accepted socket before the channel is wrapped
+ * by the actual factory (e.g., the SSL one). TCP_NODELAY and SO_REUSEADDR are
+ * set by the server itself (see
+ * {@link org.java_websocket.AbstractWebSocket#setTcpNoDelay(boolean)}).
+ */
+class SocketOptionsFactory implements WebSocketServerFactory {
+	private final WebSocketServerFactory factory;
+	private final int receiveBufferSize;
+	private final int sendBufferSize;
+
+	/**
+	 * @param receiveBufferSize SO_RCVBUF (0 for the system default)
+	 * @param sendBufferSize    SO_SNDBUF (0 for the system default)
+	 */
+	SocketOptionsFactory(WebSocketServerFactory factory, int receiveBufferSize, int sendBufferSize) {
+		this.factory = factory;
+		this.receiveBufferSize = receiveBufferSize;
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	@Override
+	public WebSocketImpl createWebSocket(WebSocketAdapter a, Draft d) {
+		return factory.createWebSocket(a, d);
+	}
+
+	@Override
+	public WebSocketImpl createWebSocket(WebSocketAdapter a, List<Draft> drafts) {
+		return factory.createWebSocket(a, drafts);
+	}
+
+	@Override
+	public ByteChannel wrapChannel(SocketChannel channel, SelectionKey key) throws IOException {
+		Socket socket = channel.socket();
+		if (receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+		if (sendBufferSize > 0)
+			socket.setSendBufferSize(sendBufferSize);
+		return factory.wrapChannel(channel, key);
+	}
+
+	@Override
+	public void close() {
+		factory.close();
+	}
+}
@@ -22,7 +22,11 @@ import java.net.BindException;
 import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.http.HttpStatus;
 import org.apache.jena.query.QueryException;
@@ -30,37 +34,85 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.java_websocket.server.DefaultWebSocketServerFactory;
 import org.java_websocket.server.WebSocketServer;
 
+import it.unibo.arces.wot.sepa.api.protocols.websocket.BinaryNotification;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.ConnectionTermDictionary;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 
 import it.unibo.arces.wot.sepa.engine.bean.SEPABeans;
 import it.unibo.arces.wot.sepa.engine.bean.GateBeans;
-import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.gates.OutboundQueue;
 import it.unibo.arces.wot.sepa.engine.gates.WebsocketGate;
 import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
 
+/**
+ * The messages of different connections are processed concurrently by the
+ * decoder threads of the server: the gate of a connection is attached to its
+ * socket (see {@link WebSocket#getAttachment()}), so that no global lock is
+ * held while a message is authorized, parsed and scheduled. The messages of a
+ * connection are processed in order by the same decoder thread.
+ *
+ * The number of decoders and the socket options are configured by the
+ * <code>gates.websocket</code> properties (see {@link EngineProperties}).
+ * Each server has a single selector: to scale the I/O with the cores, the
+ * engine can run several servers (i.e., shards) on consecutive ports.
+ *
+ * The messages buffered for a slow client are bounded by the outbound queue of
+ * its gate (see {@link OutboundQueue}).
+ *
+ * Clients that offer the permessage-deflate extension receive the messages
+ * larger than the configured minimum size deflated (see
+ * {@link DeflateExtension}).
+ *
+ * Clients that offer the {@link BinaryNotification#PROTOCOL} subprotocol
+ * receive the notifications binary encoded (see {@link BinaryNotification}).
+ * With the {@link ConnectionTermDictionary#PROTOCOL} subprotocol, the terms
+ * already sent on the connection are referred to by id.
+ *
+ * The clients are pinged at the configured heartbeat interval: a connection
+ * whose pong is not received within 1.5 intervals is closed, and the
+ * subscriptions of its gate are killed by the close event (see
+ * {@link #onClose(WebSocket, int, String, boolean)}).
+ */
 public class WebsocketServer extends WebSocketServer implements WebsocketServerMBean {
 	protected static final Logger logger = LogManager.getLogger();
 	
 	// Active gates
-	protected final HashMap<WebSocket, WebsocketGate> gates = new HashMap<WebSocket, WebsocketGate>();
+	protected final Map<WebSocket, WebsocketGate> gates = new ConcurrentHashMap<WebSocket, WebsocketGate>();
 		
 	// Fragmentation support
-	protected final HashMap<WebSocket, String> fragmentedMessages = new HashMap<WebSocket, String>();
+	protected final Map<WebSocket, String> fragmentedMessages = new ConcurrentHashMap<WebSocket, String>();
 
 	protected final Scheduler scheduler;
 	protected final String welcomeMessage;
 	protected final String path;
+
+	// Socket options
+	private final int receiveBufferSize;
+	private final int sendBufferSize;
+
+	// permessage-deflate (0 = declined)
+	private final int deflateLevel;
 	
-	public WebsocketServer(int port, String path, Scheduler scheduler) throws SEPAProtocolException {
-		super(new InetSocketAddress(port));
+	public WebsocketServer(int port, String path, Scheduler scheduler, EngineProperties properties)
+			throws SEPAProtocolException {
+		super(new InetSocketAddress(port), decoders(properties), drafts(properties));
 
-		// Connection lost timeout (0 = disabled)
-		setConnectionLostTimeout( 0 );
+		// Heartbeats (0 = disabled)
+		setConnectionLostTimeout(Math.max(0, properties.getWebsocketHeartbeat()));
 
 		if (path == null || scheduler == null)
 			throw new SEPAProtocolException(new IllegalArgumentException("One or more arguments are null"));
@@ -68,7 +120,31 @@ public class WebsocketServer extends WebSocketServer implements WebsocketServerM
 		this.scheduler = scheduler;
 		this.path = path;
 
-		SEPABeans.registerMBean("SEPA:type=" + this.getClass().getSimpleName(), this);
+		setTcpNoDelay(properties.isWebsocketTcpNoDelay());
+		setReuseAddr(properties.isWebsocketReuseAddress());
+		receiveBufferSize = properties.getWebsocketReceiveBufferSize();
+		sendBufferSize = properties.getWebsocketSendBufferSize();
+		setWebSocketFactory(socketOptions(new DefaultWebSocketServerFactory()));
+		deflateLevel = deflateLevel(properties);
+
+		// Outbound queues of the gates
+		GateBeans.setOutboundQueueMessages(properties.getOutboundQueueMessages());
+		GateBeans.setOutboundQueueBytes(properties.getOutboundQueueBytes());
+		GateBeans.setSlowConsumerCloseCode(properties.getSlowConsumerCloseCode());
+		GateBeans.setDictionarySize(properties.getWebsocketDictionarySize());
+		try {
+			GateBeans.setSlowConsumerPolicy(
+					OutboundQueue.Policy.valueOf(properties.getSlowConsumerPolicy().toUpperCase()));
+		} catch (IllegalArgumentException | NullPointerException e) {
+			logger.error("Unknown slow consumer policy: " + properties.getSlowConsumerPolicy() + " (use "
+					+ GateBeans.getSlowConsumerPolicy().name().toLowerCase() + ")");
+		}
+
+		// Shards are registered by port
+		if (properties.getWebsocketShards() > 1)
+			SEPABeans.registerMBean("SEPA:type=" + this.getClass().getSimpleName() + ",port=" + port, this);
+		else
+			SEPABeans.registerMBean("SEPA:type=" + this.getClass().getSimpleName(), this);
 
 		String address = getAddress().getAddress().toString();
 
@@ -82,6 +158,44 @@ public class WebsocketServer extends WebSocketServer implements WebsocketServerM
 		welcomeMessage = String.format(getWelcomeMessage(), address, port, path);
 	}
 
+	private static int decoders(EngineProperties properties) {
+		if (properties.getWebsocketDecoders() > 0)
+			return properties.getWebsocketDecoders();
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static int deflateLevel(EngineProperties properties) {
+		return Math.max(0, Math.min(9, properties.getWebsocketDeflateLevel()));
+	}
+
+	/**
+	 * @return the RFC 6455 draft with the permessage-deflate extension (if
+	 *         enabled) and the binary notifications subprotocols, the one with
+	 *         the dictionary first if enabled (clients that offer no
+	 *         subprotocol are still accepted)
+	 */
+	private static List<Draft> drafts(EngineProperties properties) {
+		List<IExtension> extensions = new ArrayList<IExtension>();
+		if (deflateLevel(properties) > 0)
+			extensions.add(new DeflateExtension(deflateLevel(properties), properties.getWebsocketDeflateMinSize()));
+		List<IProtocol> protocols = new ArrayList<IProtocol>();
+		if (properties.getWebsocketDictionarySize() > 0)
+			protocols.add(new Protocol(ConnectionTermDictionary.PROTOCOL));
+		protocols.add(new Protocol(BinaryNotification.PROTOCOL));
+		protocols.add(new Protocol(""));
+		return Collections.singletonList(new Draft_6455(extensions, protocols));
+	}
+
+	/**
+	 * @return the factory that sets the buffer sizes of the accepted sockets
+	 *         and then wraps their channels by the given factory
+	 */
+	protected WebSocketServerFactory socketOptions(WebSocketServerFactory factory) {
+		if (receiveBufferSize <= 0 && sendBufferSize <= 0)
+			return factory;
+		return new SocketOptionsFactory(factory, receiveBufferSize, sendBufferSize);
+	}
+
 	protected String getWelcomeMessage() {
 		return "SPARQL 1.1 Subscribe | ws://%s:%d%s";
 	}
@@ -89,39 +203,37 @@ public class WebsocketServer extends WebSocketServer implements WebsocketServerM
 	@Override
 	public void onOpen(WebSocket conn, ClientHandshake handshake) {
 		// Add new gate
-		synchronized (gates) {
-			WebsocketGate gate = new WebsocketGate(conn, scheduler);
-			
-			gates.put(conn, gate);
-			
-			Dependability.addGate(gate);
-
-			fragmentedMessages.put(conn, null);
+		WebsocketGate gate = new WebsocketGate(conn, scheduler);
+		
+		conn.setAttachment(gate);
+		gates.put(conn, gate);
 
-			logger.debug("@onOpen (sockets: " + gates.size()+") GID: " + gate.getGID() + " socket: "+conn);
-		}
+		logger.debug("@onOpen (sockets: " + gates.size()+") GID: " + gate.getGID() + " socket: "+conn);
 	}
 	
 	@Override
 	public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-		synchronized (gates) {
-			logger.debug("@onClose socket: " + conn + " reason: " + reason + " remote: "+remote);
+		logger.debug("@onClose socket: " + conn + " reason: " + reason + " remote: "+remote);
 
-			fragmentedMessages.remove(conn);
+		fragmentedMessages.remove(conn);
 
-			// Close gate
-			if (gates.get(conn) != null)
-				try {
-					gates.get(conn).close();
-				} catch (InterruptedException e) {
-					logger.warn(e.getMessage());
-				}
+		// Closed by the server: the pong of the client has not been received in time
+		if (code == CloseFrame.ABNORMAL_CLOSE && !remote)
+			GateBeans.heartbeatTimeout();
 
-			Dependability.removeGate(gates.get(conn));
-			
-			// Remove from active gates
-			gates.remove(conn);
+		// Remove from active gates (once)
+		WebsocketGate gate = gates.remove(conn);
+		if (gate == null)
+			return;
+
+		// Close gate
+		try {
+			gate.close();
+		} catch (InterruptedException e) {
+			logger.warn(e.getMessage());
 		}
+
+		GateBeans.removeGate(gate.getGID());
 	}
 
 	@Override
@@ -144,23 +256,22 @@ public class WebsocketServer extends WebSocketServer implements WebsocketServerM
 			return;
 		}
 
-		synchronized (gates) {
-			try {
-				if (gates.get(conn) !=  null) gates.get(conn).onMessage(message);
-				else {
-					logger.error("Gate NOT FOUND: "+conn);
-				}
-			} catch (SEPAProtocolException | SEPASecurityException | QueryException e) {
-				logger.error(e);
-				
-				ErrorResponse response = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "parsing failed",
-						e.getMessage());
-				try{
-					conn.send(response.toString());
-				}
-				catch(Exception e1) {
-					logger.warn(e1.getMessage());
-				}
+		WebsocketGate gate = conn.getAttachment();
+		try {
+			if (gate !=  null) gate.onMessage(message);
+			else {
+				logger.error("Gate NOT FOUND: "+conn);
+			}
+		} catch (SEPAProtocolException | SEPASecurityException | QueryException e) {
+			logger.error(e);
+			
+			ErrorResponse response = new ErrorResponse(HttpStatus.SC_BAD_REQUEST, "parsing failed",
+					e.getMessage());
+			try{
+				conn.send(response.toString());
+			}
+			catch(Exception e1) {
+				logger.warn(e1.getMessage());
 			}
 		}
 	}
@@ -227,6 +338,21 @@ public class WebsocketServer extends WebSocketServer implements WebsocketServerM
 		GateBeans.reset();
 	}
 
+	@Override
+	public int getGates() {
+		return gates.size();
+	}
+
+	@Override
+	public int getDecoders() {
+		return decoders.size();
+	}
+
+	@Override
+	public int getDeflateLevel() {
+		return deflateLevel;
+	}
+
 	@Override
 	public long getMessages() {
 		return GateBeans.getMessages();
@@ -261,4 +387,69 @@ public class WebsocketServer extends WebSocketServer implements WebsocketServerM
 	public long getNotifications() {
 		return GateBeans.getNotifications();
 	}
+
+	@Override
+	public float getDeliveryLatency_p50() {
+		return GateBeans.getDeliveryLatency_p50();
+	}
+
+	@Override
+	public float getDeliveryLatency_p99() {
+		return GateBeans.getDeliveryLatency_p99();
+	}
+
+	@Override
+	public String[] getDeliveryLatency_perGate() {
+		return GateBeans.getDeliveryLatency_perGate();
+	}
+
+	@Override
+	public String[] getOutboundQueue_messagesHistogram() {
+		return GateBeans.getOutboundQueue_messagesHistogram();
+	}
+
+	@Override
+	public String[] getOutboundQueue_bytesHistogram() {
+		return GateBeans.getOutboundQueue_bytesHistogram();
+	}
+
+	@Override
+	public long getDroppedNotifications() {
+		return GateBeans.getDroppedNotifications();
+	}
+
+	@Override
+	public long getCoalescedNotifications() {
+		return GateBeans.getCoalescedNotifications();
+	}
+
+	@Override
+	public long getSlowConsumers() {
+		return GateBeans.getSlowConsumers();
+	}
+
+	@Override
+	public int getHeartbeat() {
+		return getConnectionLostTimeout();
+	}
+
+	@Override
+	public void setHeartbeat(int seconds) {
+		setConnectionLostTimeout(Math.max(0, seconds));
+	}
+
+	@Override
+	public long getHeartbeatTimeouts() {
+		return GateBeans.getHeartbeatTimeouts();
+	}
+
+	@Override
+	public long getBatches() {
+		return GateBeans.getBatches();
+	}
+
+	@Override
+	public long getBatchedRequests() {
+		return GateBeans.getBatchedRequests();
+	}
 }
@@ -21,6 +21,12 @@ package it.unibo.arces.wot.sepa.engine.gates.websocket;
 public interface WebsocketServerMBean {
 	public void reset();
 
+	public int getGates();
+
+	public int getDecoders();
+
+	public int getDeflateLevel();
+
 	public long getMessages();
 	
 	public long getFragmented();
@@ -34,4 +40,30 @@ public interface WebsocketServerMBean {
 	public long getUnsubscribeResponse();
 
 	public long getNotifications();
+
+	public float getDeliveryLatency_p50();
+	
+	public float getDeliveryLatency_p99();
+	
+	public String[] getDeliveryLatency_perGate();
+
+	public String[] getOutboundQueue_messagesHistogram();
+
+	public String[] getOutboundQueue_bytesHistogram();
+
+	public long getDroppedNotifications();
+
+	public long getCoalescedNotifications();
+
+	public long getSlowConsumers();
+
+	public int getHeartbeat();
+
+	public void setHeartbeat(int seconds);
+
+	public long getHeartbeatTimeouts();
+
+	public long getBatches();
+
+	public long getBatchedRequests();
 }
@@ -18,9 +18,13 @@
 
 package it.unibo.arces.wot.sepa.engine.processing;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.jena.query.QueryException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
@@ -29,8 +33,11 @@ import it.unibo.arces.wot.sepa.commons.response.Response;
 import it.unibo.arces.wot.sepa.engine.bean.ProcessorBeans;
 import it.unibo.arces.wot.sepa.engine.bean.QueryProcessorBeans;
 import it.unibo.arces.wot.sepa.engine.bean.SEPABeans;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
 import it.unibo.arces.wot.sepa.engine.bean.UpdateProcessorBeans;
 import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.core.ResponseHandler;
+import it.unibo.arces.wot.sepa.engine.dependability.UpdateJournal;
 import it.unibo.arces.wot.sepa.engine.processing.subscriptions.SPUManager;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
@@ -40,6 +47,8 @@ import it.unibo.arces.wot.sepa.engine.scheduling.ScheduledRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
 
 public class Processor implements ProcessorMBean {
+	private static final Logger logger = LogManager.getLogger();
+
 	// Processor threads
 	private final UpdateProcessingThread updateProcessingThread;
 	private final SubscribeProcessingThread subscribeProcessingThread;
@@ -55,6 +64,9 @@ public class Processor implements ProcessorMBean {
 	
 	// Scheduler queue
 	private final Scheduler scheduler;
+
+	// Write-ahead journal of the updates (null if disabled)
+	private final UpdateJournal journal;
 	
 	// Running flag
 	private final AtomicBoolean running = new AtomicBoolean(true);
@@ -69,7 +81,25 @@ public class Processor implements ProcessorMBean {
 		queryProcessor = new QueryProcessor(endpointProperties);
 		updateProcessor = new UpdateProcessor(endpointProperties);
 		
-		// SPU Manager
+		// SPU Manager (first queries of new SPUs are limited by the endpoint concurrency)
+		SPUManagerBeans.setSPUProcessingTimeout(properties.getSPUProcessingTimeout());
+		SPUManagerBeans.setQuarantineThreshold(properties.getQuarantineThreshold());
+		SPUManagerBeans.setQuarantinePeriod(properties.getQuarantinePeriod());
+		SPUManagerBeans.setSpillThreshold(properties.getSpillThreshold());
+		SPUManagerBeans.setSpillDirectory(properties.getSpillDirectory());
+		SPUManagerBeans.setFingerprintThreshold(properties.getFingerprintThreshold());
+		SPUManagerBeans.setFingerprintCacheSize(properties.getFingerprintCacheSize());
+		SPUManagerBeans.setIncrementalMaxQuads(properties.getIncrementalMaxQuads());
+		SPUManagerBeans.setMaxConcurrentProcessing(properties.getMaxConcurrentProcessing());
+		SPUManagerBeans.setSnapshotFile(properties.getSnapshotFile());
+		SPUManagerBeans.setSnapshotPeriod(properties.getSnapshotPeriod());
+		SPUManagerBeans.setRevalidationRate(properties.getRevalidationRate());
+		SPUManagerBeans.setReplayBufferSize(properties.getReplayBufferSize());
+		SPUManagerBeans.setReplayBufferBytes(properties.getReplayBufferBytes());
+		SPUManagerBeans.setLinger(properties.getLinger());
+		SPUManagerBeans.setInitializationThreads(properties.getMaxConcurrentRequests());
+		SPUManagerBeans.setNotificationThreads(properties.getNotificationThreads());
+		SPUManagerBeans.setNotificationQueueSize(properties.getNotificationQueueSize());
 		spuManager = new SPUManager(this);
 		
 		// Subscribe/Unsubscribe processing
@@ -88,12 +118,28 @@ public class Processor implements ProcessorMBean {
 		QueryProcessorBeans.setTimeout(properties.getQueryTimeout());		
 		UpdateProcessorBeans.setTimeout(properties.getUpdateTimeout());
 		UpdateProcessorBeans.setReilable(properties.isUpdateReliable());
+
+		// Update journal (the updates not completed before a restart are replayed first)
+		if (properties.getUpdateJournal().isEmpty())
+			journal = null;
+		else {
+			try {
+				journal = new UpdateJournal(properties.getUpdateJournal(), properties.getUpdateJournalMaxSize());
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Update journal " + properties.getUpdateJournal() + " " + e.getMessage());
+			}
+			scheduler.setUpdateJournal(journal);
+		}
 	}
 	
 	public boolean isRunning() {
 		return running.get();
 	}
-	
+
+	public SPUManager getSPUManager() {
+		return spuManager;
+	}
+
 //	public QueryProcessor getQueryProcessor() {
 //		return queryProcessor;
 //	}
@@ -116,10 +162,13 @@ public class Processor implements ProcessorMBean {
 		unsubscribeProcessingThread.interrupt();
 		subscribeProcessingThread.interrupt();
 		updateProcessingThread.interrupt();
+		spuManager.shutdown();
+		if (journal != null)
+			journal.close();
 	}
 	
-	public Response processSubscribe(InternalSubscribeRequest request) throws InterruptedException {
-		return spuManager.subscribe(request);
+	public void processSubscribe(InternalSubscribeRequest request, ResponseHandler handler) {
+		spuManager.subscribe(request, handler);
 	}
 	public void killSubscription(String sid, String gid) throws InterruptedException {
 		spuManager.killSubscription(sid, gid);
@@ -171,6 +220,10 @@ public class Processor implements ProcessorMBean {
 		scheduler.addResponse(token, ret);		
 	}
 
+	public void addResponse(int token, Response ret, Runnable sent) {
+		scheduler.addResponse(token, ret, sent);
+	}
+
 	public ScheduledRequest waitSubscribeRequest() throws InterruptedException {
 		return scheduler.waitSubscribeRequest();
 	}
@@ -191,6 +244,49 @@ public class Processor implements ProcessorMBean {
 		return spuManager.update(update);
 	}
 
+	/**
+	 * The update has been processed (or it failed): it will not be replayed
+	 */
+	public void completeUpdate(InternalUpdateRequest update) {
+		if (journal != null)
+			journal.complete(update);
+	}
+
+	/**
+	 * Processes the updates journaled but not completed before the restart (if
+	 * any). There is no client waiting for them.
+	 */
+	public void replayUpdates() {
+		if (journal == null)
+			return;
+
+		List<InternalUpdateRequest> updates = journal.getRecoveredUpdates();
+		if (updates.isEmpty())
+			return;
+
+		logger.info("Replay " + updates.size() + " journaled updates");
+
+		int failed = 0;
+		long start = System.currentTimeMillis();
+		for (InternalUpdateRequest update : updates) {
+			try {
+				Response ret = processUpdate(update);
+				if (ret.isError()) {
+					logger.error("Replay failed: " + ret);
+					failed++;
+				}
+			} catch (QueryException e) {
+				logger.error("Replay failed: " + e.getMessage());
+				failed++;
+			}
+			completeUpdate(update);
+		}
+		long time = System.currentTimeMillis() - start;
+		journal.replayed(updates.size(), failed, time);
+
+		logger.info("Replayed " + updates.size() + " updates (" + failed + " failed) in " + time + " ms");
+	}
+
 	public ScheduledRequest waitUnsubscribeRequest() throws InterruptedException {
 		return scheduler.waitUnsubscribeRequest();
 	}
@@ -22,6 +22,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.engine.core.ResponseHandler;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.ScheduledRequest;
 
@@ -43,13 +44,20 @@ class SubscribeProcessingThread extends Thread {
 				ScheduledRequest request = processor.waitSubscribeRequest();
 				logger.debug(">> " + request);
 
-				// Process request
-				Response response = processor.processSubscribe((InternalSubscribeRequest) request.getRequest());
-				
-				logger.debug("<< " + response);
+				// Process request (the response is sent back when the SPU is ready)
+				processor.processSubscribe((InternalSubscribeRequest) request.getRequest(), new ResponseHandler() {
+					@Override
+					public void sendResponse(Response response) {
+						logger.debug("<< " + response);
+						processor.addResponse(request.getToken(), response);
+					}
 
-				// Send back response
-				processor.addResponse(request.getToken(), response);
+					@Override
+					public void sendResponse(Response response, Runnable sent) {
+						logger.debug("<< " + response);
+						processor.addResponse(request.getToken(), response, sent);
+					}
+				});
 
 			} catch (InterruptedException e) {
 				logger.warn(e.getMessage());
@@ -40,6 +40,9 @@ class UpdateProcessingThread extends Thread {
 	}
 
 	public void run() {
+		// Updates accepted before a restart come first
+		processor.replayUpdates();
+
 		while (processor.isRunning()) {
 			ScheduledRequest request;
 			try {
@@ -63,6 +66,7 @@ class UpdateProcessingThread extends Thread {
 				logger.trace("Start processing update...");
 				Response ret = processor.processUpdate(update);
 				logger.trace("Update processing COMPLETED");
+				processor.completeUpdate(update);
 				
 				// Notify update result
 				if (processor.isUpdateReliable()) {
@@ -73,6 +77,7 @@ class UpdateProcessingThread extends Thread {
 			catch(QueryException e) {
 				logger.trace("Update processing EXCEPTION");
 				logger.error(e.getMessage());
+				processor.completeUpdate(update);
 				
 				// Notify update result
 				if (processor.isUpdateReliable()) {
@@ -0,0 +1,488 @@
+/* The last results of an SPU stored as tuples of term ids
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+
+/**
+ * A compact copy of a {@link BindingsResults}. Each solution is a tuple of
+ * {@link TermDictionary} ids (one per variable) stored in a primitive array.
+ * Equal solutions are stored once with their multiplicity and an open
+ * addressing index makes the lookup of a solution O(1).
+ *
+ * The results are immutable: they are built from the query results (or from
+ * the last results and the solutions added and removed by an update) and
+ * converted back to {@link BindingsResults} only to be sent. The term ids are
+ * released by {@link #release()}, once the results are no longer used.
+ *
+ * Results with more rows than the spill threshold are moved out of the heap
+ * once built: tuples, multiplicities and index are copied in a direct buffer
+ * or, if a spill directory is set, in a memory mapped file. They are accessed
+ * in place, so the diff runs on them as on the heap ones.
+ */
+class CompactResults {
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final int EMPTY = -1;
+
+	private final TermDictionary dictionary;
+
+	private final ArrayList<String> vars;
+	private final int width;
+
+	// Distinct tuples (row i at [i * width, (i+1) * width)) and their multiplicity
+	private IntBuffer tuples;
+	private IntBuffer counts;
+	private int distinct = 0;
+	private int size = 0;
+
+	// Open addressing index: slot ==> row (or EMPTY)
+	private IntBuffer index;
+
+	// Spilled out of the heap (bytes) and mapped file (if any)
+	private long spilled = 0;
+	private Path file = null;
+
+	private boolean released = false;
+
+	CompactResults(TermDictionary dictionary, BindingsResults results) {
+		this.dictionary = dictionary;
+
+		// Variables (solutions may bind variables not declared in the head)
+		vars = (results == null ? new ArrayList<String>() : results.getVariables());
+		if (results != null)
+			for (Bindings solution : results.getBindings())
+				for (String var : solution.getVariables())
+					if (!vars.contains(var))
+						vars.add(var);
+		width = vars.size();
+
+		int n = (results == null ? 0 : results.size());
+		tuples = IntBuffer.wrap(new int[n * width]);
+		counts = IntBuffer.wrap(new int[n]);
+		int[] slots = new int[tableSize(n)];
+		Arrays.fill(slots, EMPTY);
+		index = IntBuffer.wrap(slots);
+
+		if (results != null)
+			add(results);
+
+		built();
+	}
+
+	/**
+	 * The last results with the solutions added and removed by an update (see
+	 * {@link #apply(BindingsResults, BindingsResults)}).
+	 */
+	private CompactResults(CompactResults last, BindingsResults added, BindingsResults removed) {
+		dictionary = last.dictionary;
+
+		vars = new ArrayList<String>(last.vars);
+		for (Bindings solution : added.getBindings())
+			for (String var : solution.getVariables())
+				if (!vars.contains(var))
+					vars.add(var);
+		width = vars.size();
+
+		// Occurrences removed from each row of the last results
+		int[] decrements = new int[last.distinct];
+		String[] keys = new String[last.width];
+		int[] tuple = new int[last.width];
+		for (Bindings solution : removed.getBindings())
+			if (last.lookup(solution, keys, tuple)) {
+				int row = last.find(tuple);
+				if (row != EMPTY)
+					decrements[row]++;
+			}
+
+		int n = last.distinct + added.size();
+		tuples = IntBuffer.wrap(new int[n * width]);
+		counts = IntBuffer.wrap(new int[n]);
+		int[] slots = new int[tableSize(n)];
+		Arrays.fill(slots, EMPTY);
+		index = IntBuffer.wrap(slots);
+
+		// Variables bound only by the added solutions are unbound in the last ones
+		int[] widened = new int[width];
+		for (int row = 0; row < last.distinct; row++) {
+			int count = last.counts.get(row) - decrements[row];
+			if (count <= 0)
+				continue;
+			last.row(row, tuple);
+			System.arraycopy(tuple, 0, widened, 0, last.width);
+			dictionary.acquire(widened, 0, width);
+			insert(widened);
+			counts.put(distinct - 1, count);
+			size += count;
+		}
+
+		add(added);
+
+		built();
+	}
+
+	private void add(BindingsResults results) {
+		String[] keys = new String[width];
+		int[] tuple = new int[width];
+		for (Bindings solution : results.getBindings()) {
+			Arrays.fill(keys, null);
+			for (Entry<String, JsonElement> binding : solution.toJson().entrySet())
+				keys[vars.indexOf(binding.getKey())] = TermDictionary.key(binding.getValue());
+
+			dictionary.acquire(keys, tuple, 0);
+
+			int row = find(tuple);
+			if (row != EMPTY) {
+				// Duplicated solution
+				counts.put(row, counts.get(row) + 1);
+				dictionary.release(tuple, 0, width);
+			} else
+				insert(tuple);
+			size++;
+		}
+	}
+
+	private void built() {
+		int threshold = SPUManagerBeans.getSpillThreshold();
+		if (threshold > 0 && size >= threshold)
+			spill();
+
+		SPUManagerBeans.addCachedResults(size, getHeapBytes());
+	}
+
+	/**
+	 * Builds the results with the solutions added and removed by an update,
+	 * without evaluating the query again. The tuples are copied from these
+	 * results (their terms are acquired again): these results must still be
+	 * released.
+	 */
+	CompactResults apply(BindingsResults added, BindingsResults removed) {
+		return new CompactResults(this, added, removed);
+	}
+
+	/**
+	 * @return the number of occurrences of a solution
+	 */
+	int count(Bindings solution) {
+		String[] keys = new String[width];
+		int[] tuple = new int[width];
+		return (lookup(solution, keys, tuple) ? count(tuple) : 0);
+	}
+
+	// The ids of a solution (false if a variable or a term is unknown)
+	private boolean lookup(Bindings solution, String[] keys, int[] tuple) {
+		Arrays.fill(keys, null);
+		for (Entry<String, JsonElement> binding : solution.toJson().entrySet()) {
+			int i = vars.indexOf(binding.getKey());
+			if (i < 0)
+				return false;
+			keys[i] = TermDictionary.key(binding.getValue());
+		}
+		return dictionary.lookup(keys, tuple, 0);
+	}
+
+	private static int tableSize(int n) {
+		int size = 16;
+		while (size < 2 * n)
+			size <<= 1;
+		return size;
+	}
+
+	private static int hash(int[] tuple) {
+		int h = 1;
+		for (int id : tuple)
+			h = 31 * h + id;
+		return h ^ (h >>> 16);
+	}
+
+	private void insert(int[] tuple) {
+		int base = distinct * width;
+		for (int i = 0; i < width; i++)
+			tuples.put(base + i, tuple[i]);
+		counts.put(distinct, 1);
+
+		int mask = index.capacity() - 1;
+		int slot = hash(tuple) & mask;
+		while (index.get(slot) != EMPTY)
+			slot = (slot + 1) & mask;
+		index.put(slot, distinct++);
+	}
+
+	private int find(int[] tuple) {
+		int mask = index.capacity() - 1;
+		int slot = hash(tuple) & mask;
+		int row;
+		while ((row = index.get(slot)) != EMPTY) {
+			if (equals(row, tuple))
+				return row;
+			slot = (slot + 1) & mask;
+		}
+		return EMPTY;
+	}
+
+	private boolean equals(int row, int[] tuple) {
+		int base = row * width;
+		for (int i = 0; i < width; i++)
+			if (tuples.get(base + i) != tuple[i])
+				return false;
+		return true;
+	}
+
+	private void row(int row, int[] tuple) {
+		int base = row * width;
+		for (int i = 0; i < width; i++)
+			tuple[i] = tuples.get(base + i);
+	}
+
+	/**
+	 * Moves the results out of the heap: a single buffer holds the tuples, the
+	 * multiplicities and the index. If the buffer cannot be allocated, the
+	 * results stay on the heap.
+	 */
+	private void spill() {
+		int t = distinct * width;
+		long bytes = 4L * (t + distinct + index.capacity());
+		if (bytes > Integer.MAX_VALUE) {
+			logger.warn("@spill too large: " + bytes + " bytes. Results kept on heap (rows: " + size + ")");
+			return;
+		}
+
+		ByteBuffer buffer;
+		Path path = null;
+		try {
+			String directory = SPUManagerBeans.getSpillDirectory();
+			if (directory == null || directory.isEmpty())
+				buffer = ByteBuffer.allocateDirect((int) bytes);
+			else {
+				Path dir = Paths.get(directory);
+				Files.createDirectories(dir);
+				path = Files.createTempFile(dir, "spu-", ".results");
+				try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw");
+						FileChannel channel = raf.getChannel()) {
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+				}
+			}
+		} catch (IOException | OutOfMemoryError | IllegalArgumentException e) {
+			logger.warn("@spill failed: " + e.getMessage() + " Results kept on heap (rows: " + size + ")");
+			if (path != null)
+				delete(path);
+			return;
+		}
+		buffer.order(ByteOrder.nativeOrder());
+
+		IntBuffer ints = buffer.asIntBuffer();
+		tuples = copy(tuples, ints, 0, t);
+		counts = copy(counts, ints, t, distinct);
+		index = copy(index, ints, t + distinct, index.capacity());
+
+		spilled = bytes;
+		file = path;
+		SPUManagerBeans.spill(bytes);
+
+		logger.debug("@spill rows: " + size + " bytes: " + bytes + (file == null ? " (direct)" : " file: " + file));
+	}
+
+	private static IntBuffer copy(IntBuffer from, IntBuffer to, int offset, int length) {
+		IntBuffer src = from.duplicate();
+		src.position(0).limit(length);
+		IntBuffer dst = to.duplicate();
+		dst.position(offset).limit(offset + length);
+		IntBuffer ret = dst.slice();
+		ret.put(src);
+		return ret;
+	}
+
+	private static void delete(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			logger.warn("@spill failed to delete " + path + " " + e.getMessage());
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isSpilled() {
+		return spilled > 0;
+	}
+
+	ArrayList<String> getVariables() {
+		return vars;
+	}
+
+	/**
+	 * Converts the results back to the SPARQL 1.1 JSON format.
+	 */
+	BindingsResults toBindingsResults() {
+		BindingsResults ret = new BindingsResults(vars, null);
+		int[] tuple = new int[width];
+		String[] keys = new String[width];
+		for (int row = 0; row < distinct; row++) {
+			row(row, tuple);
+			Bindings solution = toBindings(tuple, keys);
+			for (int i = 0; i < counts.get(row); i++)
+				ret.add(solution);
+		}
+		return ret;
+	}
+
+	private Bindings toBindings(int[] tuple, String[] keys) {
+		dictionary.keys(tuple, 0, keys);
+		JsonObject solution = new JsonObject();
+		for (int i = 0; i < width; i++)
+			if (keys[i] != null)
+				solution.add(vars.get(i), TermDictionary.term(keys[i]));
+		return new Bindings(solution);
+	}
+
+	/**
+	 * The terms of the solution sorted by variable: two solutions with the same
+	 * key are the same solution (whatever the order of their variables)
+	 */
+	static String key(Bindings solution) {
+		TreeMap<String, String> terms = new TreeMap<String, String>();
+		for (Entry<String, JsonElement> term : solution.toJson().entrySet())
+			terms.put(term.getKey(), TermDictionary.key(term.getValue()));
+		return terms.toString();
+	}
+
+	/**
+	 * Compares the last results of an SPU with the current ones. Solutions are
+	 * compared as multisets of term ids: no JSON object is built, but for the
+	 * added and removed solutions.
+	 *
+	 * @return the added and removed solutions (empty if the results did not
+	 *         change)
+	 */
+	static ARBindingsResults diff(CompactResults last, CompactResults current) {
+		BindingsResults added = new BindingsResults(current.vars, null);
+		BindingsResults removed = new BindingsResults(current.vars, null);
+
+		// Removed: solutions of the last results that have fewer occurrences in the current ones
+		last.diff(current, removed);
+
+		// Added: solutions of the current results that have more occurrences than in the last ones
+		current.diff(last, added);
+
+		return new ARBindingsResults(added, removed);
+	}
+
+	// Adds to the results the solutions that have fewer occurrences in the other results
+	private void diff(CompactResults other, BindingsResults results) {
+		int[] map = mapTo(other);
+		int[] tuple = new int[width];
+		int[] remapped = new int[other.width];
+		String[] keys = new String[width];
+
+		for (int row = 0; row < distinct; row++) {
+			row(row, tuple);
+			int n = counts.get(row);
+			int c = (remap(tuple, map, remapped) ? other.count(remapped) : 0);
+			if (n > c) {
+				Bindings solution = toBindings(tuple, keys);
+				for (int i = c; i < n; i++)
+					results.add(solution);
+			}
+		}
+	}
+
+	// Column i of this results ==> column of the other results (or -1)
+	private int[] mapTo(CompactResults other) {
+		int[] map = new int[width];
+		for (int i = 0; i < width; i++)
+			map[i] = other.vars.indexOf(vars.get(i));
+		return map;
+	}
+
+	// Copies a tuple in the layout of the other results (false if it binds a variable unknown to them)
+	private static boolean remap(int[] tuple, int[] map, int[] remapped) {
+		Arrays.fill(remapped, TermDictionary.UNBOUND);
+		for (int i = 0; i < tuple.length; i++) {
+			if (map[i] >= 0)
+				remapped[map[i]] = tuple[i];
+			else if (tuple[i] != TermDictionary.UNBOUND)
+				return false;
+		}
+		return true;
+	}
+
+	private int count(int[] tuple) {
+		int row = find(tuple);
+		return (row == EMPTY ? 0 : counts.get(row));
+	}
+
+	/**
+	 * Releases the terms of the results. Must be called once the results are no
+	 * longer used.
+	 */
+	void release() {
+		if (released)
+			return;
+		released = true;
+
+		SPUManagerBeans.addCachedResults(-size, -getHeapBytes());
+
+		int[] tuple = new int[width];
+		for (int row = 0; row < distinct; row++) {
+			row(row, tuple);
+			dictionary.release(tuple, 0, width);
+		}
+
+		if (spilled > 0) {
+			SPUManagerBeans.spill(-spilled);
+			// Direct and mapped buffers are freed once collected
+			if (file != null)
+				delete(file);
+		}
+	}
+
+	/**
+	 * @return an estimate of the heap used by the results, but the terms (bytes)
+	 */
+	long getHeapBytes() {
+		if (spilled > 0)
+			return 0;
+		return 16L + 4L * tuples.capacity() + 16L + 4L * counts.capacity() + 16L + 4L * index.capacity();
+	}
+}
@@ -0,0 +1,268 @@
+/* A notification whose results are serialized once and shared among all the subscribers of an SPU
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.api.protocols.websocket.BinaryNotification;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.PerMessageDeflate;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+
+/**
+ * A notification is sent to every subscriber of an SPU with the same added and
+ * removed bindings: only the SPUID (i.e., the subscriber SID) and the sequence
+ * number change. The bindings are serialized once by {@link #encode} into a
+ * read-only UTF-8 buffer that ends the JSON notification. Each subscriber just
+ * prepends its own small header:
+ *
+ * <pre>
+ * {"notification":{"spuid":"SID","sequence":N, | "addedResults":{...},"removedResults":{...}}}
+ *            per subscriber header             |          shared body
+ * </pre>
+ *
+ * The same holds for the compressed notifications (see
+ * {@link Body#deflated(int)}) and for the binary ones (see
+ * {@link BinaryNotification}).
+ */
+public class EncodedNotification extends Notification {
+	private ARBindingsResults results;
+	private final Body body;
+	private final byte[] header;
+	private byte[] binaryHeader = null;
+
+	/**
+	 * The UTF-8 encoded body of the notifications of an SPU. The body is
+	 * deflated once as well, the first time a subscriber of the SPU negotiated
+	 * the permessage-deflate extension.
+	 *
+	 * The body does not keep the bindings it encodes: the notifications kept for
+	 * the resumed subscribers (see {@link ReplayBuffer}) hold just the bytes.
+	 */
+	public static class Body {
+		private final byte[] bytes;
+		private byte[] deflated = null;
+		private int level = 0;
+		private Body binary = null;
+
+		private Body(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return the size (bytes) of the encoded body
+		 */
+		public int size() {
+			return bytes.length;
+		}
+
+		/**
+		 * Parses the body back (i.e., for the notifications replayed or
+		 * coalesced)
+		 *
+		 * @return the added and removed bindings
+		 */
+		public ARBindingsResults decode() {
+			// "addedResults":{...},"removedResults":{...}}} ==> {"addedResults":{...},"removedResults":{...}}
+			String ar = "{" + new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+			JsonObject json = new JsonParser().parse(ar).getAsJsonObject();
+			return new ARBindingsResults(new BindingsResults(json.getAsJsonObject("addedResults")),
+					new BindingsResults(json.getAsJsonObject("removedResults")));
+		}
+
+		/**
+		 * @return a read-only buffer on the body
+		 */
+		public ByteBuffer getBytes() {
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+
+		/**
+		 * The body is deflated on its own (i.e., with an empty sliding window), so
+		 * it can follow the deflated header of each subscriber.
+		 *
+		 * @param level the compression level
+		 * @return the deflated body, ending the deflated message
+		 */
+		public synchronized byte[] deflated(int level) {
+			if (deflated == null || this.level != level) {
+				deflated = PerMessageDeflate.deflate(bytes, 0, bytes.length, level, true);
+				this.level = level;
+			}
+			return deflated;
+		}
+
+		/**
+		 * @param notification a notification built on the body (its bindings are
+		 *                     used the first time only)
+		 * @return the body of the binary notifications, encoded once as well
+		 */
+		private synchronized Body toBinary(EncodedNotification notification) {
+			if (binary == null)
+				binary = new Body(BinaryNotification.encodeBody(notification.getARBindingsResults()));
+			return binary;
+		}
+	}
+
+	/**
+	 * Serializes the added and removed bindings once.
+	 *
+	 * @param results the added and removed bindings
+	 * @return the body to be shared by all the notifications built on it
+	 */
+	public static Body encode(ARBindingsResults results) {
+		// {"addedResults":{...},"removedResults":{...}} ==> "addedResults":{...},"removedResults":{...}}}
+		String ar = results.toString();
+		return new Body((ar.substring(1) + "}").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * New first results (i.e., sequence 0) replace the older notification, while
+	 * first results absorb the newer notification.
+	 *
+	 * @return the notification with the bindings added and removed by the two
+	 *         notifications and the sequence number of the newer one
+	 */
+	public static EncodedNotification coalesce(Notification older, Notification newer) {
+		if (newer.getSequence() == 0 && newer instanceof EncodedNotification)
+			return (EncodedNotification) newer;
+
+		ARBindingsResults[] merged = (newer.getSequence() == 0
+				? new ARBindingsResults[] { newer.getARBindingsResults() }
+				: new ARBindingsResults[] { older.getARBindingsResults(), newer.getARBindingsResults() });
+		int sequence = (older.getSequence() == 0 ? 0 : newer.getSequence());
+
+		// Solution ==> times added (if positive) or removed (if negative)
+		Map<JsonObject, Integer> delta = new LinkedHashMap<JsonObject, Integer>();
+		LinkedHashSet<String> vars = new LinkedHashSet<String>();
+		for (ARBindingsResults results : merged) {
+			vars.addAll(results.getAddedBindings().getVariables());
+			vars.addAll(results.getRemovedBindings().getVariables());
+			for (Bindings solution : results.getAddedBindings().getBindings())
+				delta.merge(solution.toJson(), 1, Integer::sum);
+			for (Bindings solution : results.getRemovedBindings().getBindings())
+				delta.merge(solution.toJson(), -1, Integer::sum);
+		}
+
+		ArrayList<Bindings> added = new ArrayList<Bindings>();
+		ArrayList<Bindings> removed = new ArrayList<Bindings>();
+		for (Map.Entry<JsonObject, Integer> solution : delta.entrySet()) {
+			for (int i = 0; i < solution.getValue(); i++)
+				added.add(new Bindings(solution.getKey()));
+			for (int i = 0; i > solution.getValue(); i--)
+				removed.add(new Bindings(solution.getKey()));
+		}
+
+		ArrayList<String> variables = new ArrayList<String>(vars);
+		ARBindingsResults results = new ARBindingsResults(new BindingsResults(variables, added),
+				new BindingsResults(variables, removed));
+		return new EncodedNotification(newer.getSpuid(), sequence, results, encode(results));
+	}
+
+	/**
+	 * @param results the bindings encoded by the body (null to decode them from
+	 *                the body if needed)
+	 */
+	public EncodedNotification(String sid, Integer sequence, ARBindingsResults results, Body body) {
+		super(sid, null, sequence);
+
+		this.results = results;
+		this.body = body;
+		this.header = ("{\"notification\":{\"spuid\":" + new JsonPrimitive(sid).toString() + ",\"sequence\":"
+				+ sequence + ",").getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public synchronized ARBindingsResults getARBindingsResults() {
+		if (results == null)
+			results = body.decode();
+		return results;
+	}
+
+	/**
+	 * @return the UTF-8 encoded header of the subscriber
+	 */
+	public byte[] getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return the header of the subscriber in the binary notification
+	 */
+	public byte[] getBinaryHeader() {
+		if (binaryHeader == null)
+			binaryHeader = BinaryNotification.encodeHeader(getSpuid(), getSequence());
+		return binaryHeader;
+	}
+
+	public Body getBody() {
+		return body;
+	}
+
+	/**
+	 * @return the shared body of the binary notification
+	 */
+	public Body getBinaryBody() {
+		return body.toBinary(this);
+	}
+
+	/**
+	 * Returns the UTF-8 encoded notification, ready to be sent as a text frame.
+	 * The shared body is not serialized again: its bytes are just copied after
+	 * the subscriber header.
+	 */
+	public ByteBuffer toByteBuffer() {
+		ByteBuffer shared = body.getBytes();
+		ByteBuffer frame = ByteBuffer.allocate(header.length + shared.remaining());
+		frame.put(header);
+		frame.put(shared);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Returns the binary notification (see {@link BinaryNotification}), ready to
+	 * be sent as a binary frame.
+	 */
+	public ByteBuffer toBinaryBuffer() {
+		byte[] header = getBinaryHeader();
+		ByteBuffer shared = getBinaryBody().getBytes();
+		ByteBuffer frame = ByteBuffer.allocate(header.length + shared.remaining());
+		frame.put(header);
+		frame.put(shared);
+		frame.flip();
+		return frame;
+	}
+
+	@Override
+	public String toString() {
+		return StandardCharsets.UTF_8.decode(toByteBuffer()).toString();
+	}
+}
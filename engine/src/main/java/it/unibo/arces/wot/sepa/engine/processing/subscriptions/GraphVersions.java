@@ -0,0 +1,80 @@
+/* The versions of the graphs updated by the engine
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonically increasing versions of the graphs. Each update of the endpoint
+ * takes the next version of a global clock, which becomes the version of the
+ * graphs of its RDF data set (see
+ * {@link it.unibo.arces.wot.sepa.engine.scheduling.InternalUQRequest#getRdfDataSet()}).
+ *
+ * The results of an SPU processed at version v reflect all the updates with a
+ * version up to v: if none of its graphs has a newer version, an evaluation of
+ * the SPU would not change them.
+ */
+class GraphVersions {
+	private final AtomicLong clock = new AtomicLong(0);
+
+	// Graph ==> version of its last update
+	private final Map<String, Long> versions = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Must be called once the endpoint has been updated.
+	 *
+	 * @return the version of the update
+	 */
+	long update(Set<String> graphs) {
+		long version = clock.incrementAndGet();
+		for (String graph : graphs)
+			versions.merge(graph, version, Math::max);
+		return version;
+	}
+
+	/**
+	 * @return the version of the last update
+	 */
+	long current() {
+		return clock.get();
+	}
+
+	/**
+	 * @return the version of the last update of the graphs (0 if never updated)
+	 */
+	long latest(Set<String> graphs) {
+		long ret = 0;
+		for (String graph : graphs) {
+			Long version = versions.get(graph);
+			if (version != null && version > ret)
+				ret = version;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the number of graphs updated so far
+	 */
+	int size() {
+		return versions.size();
+	}
+}
@@ -0,0 +1,119 @@
+/* Notifications fan-out stage
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.engine.bean.GateBeans;
+import it.unibo.arces.wot.sepa.timing.Timings;
+
+/**
+ * Delivers notifications to subscribers using a bounded pool of threads, so
+ * that a slow gate delays neither the SPU nor the other subscribers of the
+ * same SPU: the SPU thread only queues the notifications.
+ *
+ * Notifications of a subscriber are queued on the subscriber itself and
+ * delivered by at most one thread at a time: the sequence order is preserved
+ * for each subscriber while different subscribers are served in parallel (the
+ * pool queues at most one task per subscriber). The notifications waiting for
+ * a subscriber are bounded (see {@link Subscriber#offer(Delivery)}).
+ *
+ * The notifications of a new subscriber are held until it is released (i.e.,
+ * its subscribe response has been sent): they follow the response.
+ */
+class NotificationDispatcher {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ThreadPoolExecutor executor;
+
+	static class Delivery {
+		final Notification event;
+		final long timestamp;
+
+		Delivery(Notification event) {
+			this(event, Timings.getTime());
+		}
+
+		Delivery(Notification event, long timestamp) {
+			this.event = event;
+			this.timestamp = timestamp;
+		}
+	}
+
+	NotificationDispatcher(int threads) {
+		executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger n = new AtomicInteger(0);
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "SEPA-Notifier-" + n.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.DiscardPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	void dispatch(Subscriber client, Notification event) {
+		if (client.offer(new Delivery(event)))
+			executor.execute(() -> drain(client));
+	}
+
+	/**
+	 * Starts the delivery of the notifications of a new subscriber (held until
+	 * its subscribe response has been sent)
+	 */
+	void release(Subscriber client) {
+		executor.execute(() -> drain(client));
+	}
+
+	private void drain(Subscriber client) {
+		Delivery delivery;
+		while ((delivery = client.poll()) != null) {
+			try {
+				client.notifyEvent(delivery.event);
+				GateBeans.deliveryLatency(client.getGID(), Timings.getTime() - delivery.timestamp);
+			} catch (SEPAProtocolException e) {
+				logger.error(e.getMessage());
+				if (logger.isTraceEnabled())
+					e.printStackTrace();
+			} catch (Exception e) {
+				logger.error("@drain " + client.getSID() + " " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The notifications already queued are delivered, the next ones are
+	 * dropped
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+}
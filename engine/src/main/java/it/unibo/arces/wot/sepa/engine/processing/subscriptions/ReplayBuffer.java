@@ -0,0 +1,184 @@
+/* The last notifications of an SPU
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last notifications of an SPU, numbered from 1. Only their encoded body
+ * is kept (see {@link EncodedNotification.Body}), bounded both in number and in
+ * bytes: the bindings are parsed back only for the resumed subscribers.
+ *
+ * A subscriber attached when the SPU had sent N notifications has offset N:
+ * the sequence of the notification number M is M - N for it.
+ *
+ * The subscribers detached by a closed gate are kept (with their offset) as
+ * long as the notifications that follow the last one they have been sent are
+ * in the buffer: a subscriber that reconnects with its SID and the last
+ * sequence it received is resumed with the missed notifications (see
+ * {@link Subscriptions#resume}).
+ *
+ * The buffer is guarded by the SPU lock.
+ */
+class ReplayBuffer {
+	// Detached subscribers kept at most (the oldest ones are forgotten)
+	private static final int MAX_DETACHED = 1024;
+
+	static class Entry {
+		final long number;
+		final EncodedNotification.Body body;
+
+		Entry(long number, EncodedNotification.Body body) {
+			this.number = number;
+			this.body = body;
+		}
+	}
+
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private final int capacity;
+	private final long maxBytes;
+
+	// Bytes of the bodies kept
+	private long bytes = 0;
+
+	// Number of the last notification
+	private long last = 0;
+
+	// A subscriber detached when the SPU had sent last notifications
+	private static class Detached {
+		final Subscriber subscriber;
+		final long last;
+
+		Detached(Subscriber subscriber, long last) {
+			this.subscriber = subscriber;
+			this.last = last;
+		}
+	}
+
+	// SID ==> detached subscribers (detached first, i.e., with the oldest last notification first)
+	private final LinkedHashMap<String, Detached> detached = new LinkedHashMap<String, Detached>();
+
+	/**
+	 * @param capacity the notifications kept (0 to keep none: a subscriber can
+	 *                 be resumed only if it has not missed any notification)
+	 * @param maxBytes the bytes of the bodies kept (a body larger than that is
+	 *                 not kept)
+	 */
+	ReplayBuffer(int capacity, long maxBytes) {
+		this.capacity = Math.max(0, capacity);
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	/**
+	 * @return the number of the notification
+	 */
+	long add(EncodedNotification.Body body) {
+		last++;
+		entries.addLast(new Entry(last, body));
+		bytes += body.size();
+		while (!entries.isEmpty() && (entries.size() > capacity || bytes > maxBytes))
+			bytes -= entries.removeFirst().body.size();
+
+		// The detached subscribers that can no longer be resumed
+		Iterator<Map.Entry<String, Detached>> oldest = detached.entrySet().iterator();
+		while (oldest.hasNext()) {
+			if (oldest.next().getValue().last >= first() - 1)
+				break;
+			oldest.remove();
+		}
+
+		return last;
+	}
+
+	long last() {
+		return last;
+	}
+
+	/**
+	 * The subscribers are sent new first results (see
+	 * {@link Subscriptions#notifySubscribers}): the notifications kept and the
+	 * detached subscribers can no longer be resumed.
+	 *
+	 * @return the number of the new first results
+	 */
+	long resync() {
+		entries.clear();
+		bytes = 0;
+		detached.clear();
+		return ++last;
+	}
+
+	// The number of the oldest notification kept
+	private long first() {
+		return (entries.isEmpty() ? last + 1 : entries.peekFirst().number);
+	}
+
+	/**
+	 * @param number the last notification received
+	 * @return the notifications that follow (null if some of them are no
+	 *         longer available)
+	 */
+	List<Entry> since(long number) {
+		if (number > last || number < first() - 1)
+			return null;
+
+		List<Entry> ret = new ArrayList<Entry>((int) (last - number));
+		for (Entry entry : entries)
+			if (entry.number > number)
+				ret.add(entry);
+		return ret;
+	}
+
+	/**
+	 * Keeps a subscriber detached by a closed gate (it has been sent all the
+	 * notifications until now)
+	 */
+	void detach(Subscriber subscriber) {
+		detached.put(subscriber.getSID(), new Detached(subscriber, last));
+		if (detached.size() > MAX_DETACHED)
+			detached.remove(detached.keySet().iterator().next());
+	}
+
+	/**
+	 * @return a detached subscriber (null if not found or no longer resumable)
+	 */
+	Subscriber detached(String sid) {
+		Detached subscriber = detached.get(sid);
+		return (subscriber == null ? null : subscriber.subscriber);
+	}
+
+	/**
+	 * Forgets a detached subscriber (i.e., it has been resumed)
+	 */
+	void attach(String sid) {
+		detached.remove(sid);
+	}
+
+	/**
+	 * @return the detached subscribers that can be resumed
+	 */
+	int detached() {
+		return detached.size();
+	}
+}
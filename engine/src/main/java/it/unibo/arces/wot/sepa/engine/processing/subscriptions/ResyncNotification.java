@@ -0,0 +1,36 @@
+/* The current results of an SPU sent to its subscribers as new first results
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+
+/**
+ * Returned by an SPU that can no longer tell the solutions removed by an
+ * update (e.g., row fingerprints without the removed solutions): instead of a
+ * partial notification, the subscribers are sent the current results as new
+ * first results (i.e., with sequence 0, see
+ * {@link Subscriptions#notifySubscribers}).
+ */
+class ResyncNotification extends Notification {
+	ResyncNotification(String spuid, BindingsResults results) {
+		super(spuid, new ARBindingsResults(results, new BindingsResults(results.getVariables(), null)));
+	}
+}
@@ -0,0 +1,311 @@
+/* The last results of an SPU tracked as row fingerprints
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+
+/**
+ * Keeps only a 128 bit fingerprint of each solution (and its multiplicity) in
+ * a primitive open addressing hash set. It is enough to find the added and the
+ * removed solutions, but the content of a removed solution is no longer known:
+ * it is taken from a small LRU cache of the solutions lately added to the
+ * results or, if not cached, from the results queried before the update.
+ *
+ * The fingerprint of a solution does not depend on the order of its
+ * variables.
+ */
+class RowFingerprints {
+	// Fingerprint (hi, lo) of slot i at [2i, 2i+1]. A slot is empty if its count is 0.
+	private long[] fingerprints;
+	private int[] counts;
+	private int distinct = 0;
+	private int size = 0;
+
+	// Removed solutions not found by the diff that built the fingerprints (see diff)
+	private int misses = 0;
+
+	private boolean released = false;
+
+	/**
+	 * The solutions lately added to the results of an SPU (fingerprint ==>
+	 * solution)
+	 */
+	static class RowCache extends LinkedHashMap<Fingerprint, JsonObject> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		RowCache(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Fingerprint, JsonObject> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	static class Fingerprint {
+		final long hi;
+		final long lo;
+
+		Fingerprint(long hi, long lo) {
+			this.hi = hi;
+			this.lo = lo;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (lo ^ (lo >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Fingerprint))
+				return false;
+			return ((Fingerprint) obj).hi == hi && ((Fingerprint) obj).lo == lo;
+		}
+	}
+
+	private RowFingerprints(int n) {
+		int slots = 16;
+		while (slots < 2 * n)
+			slots <<= 1;
+		fingerprints = new long[2 * slots];
+		counts = new int[slots];
+	}
+
+	/**
+	 * Fingerprints the results.
+	 */
+	RowFingerprints(BindingsResults results) {
+		this(results == null ? 0 : results.size());
+
+		if (results == null)
+			return;
+
+		for (Bindings solution : results.getBindings()) {
+			Fingerprint fp = fingerprint(solution.toJson());
+			add(fp.hi, fp.lo);
+		}
+
+		SPUManagerBeans.addFingerprints(size, getHeapBytes());
+	}
+
+	/**
+	 * Fingerprints the current results and compares them with the last ones.
+	 * Removed solutions that are neither cached nor in the results queried
+	 * before the update cannot be notified: they are counted as fingerprint
+	 * misses (see {@link #getMisses()}) and the removed solutions are not
+	 * complete.
+	 *
+	 * @param current
+	 *            the current results (the added solutions are cached)
+	 * @param before
+	 *            the results queried before the update (may be null)
+	 * @return the fingerprints of the current results
+	 */
+	static RowFingerprints diff(RowFingerprints last, BindingsResults current, BindingsResults before,
+			RowCache cache, BindingsResults added, BindingsResults removed) {
+		RowFingerprints ret = new RowFingerprints(current.size());
+
+		// Added: the k-th occurrence of a solution is new if the last results have less than k
+		for (Bindings solution : current.getBindings()) {
+			Fingerprint fp = fingerprint(solution.toJson());
+			int k = ret.add(fp.hi, fp.lo);
+			if (k > last.count(fp.hi, fp.lo)) {
+				added.add(solution);
+				cache.put(fp, solution.toJson());
+			}
+		}
+
+		// Removed: solutions with fewer occurrences in the current results
+		HashMap<Fingerprint, Integer> uncached = new HashMap<Fingerprint, Integer>();
+		for (int slot = 0; slot < last.counts.length; slot++) {
+			int n = last.counts[slot];
+			if (n == 0)
+				continue;
+
+			long hi = last.fingerprints[2 * slot];
+			long lo = last.fingerprints[2 * slot + 1];
+			int c = ret.count(hi, lo);
+			if (n <= c)
+				continue;
+
+			Fingerprint fp = new Fingerprint(hi, lo);
+			JsonObject solution = (c == 0 ? cache.remove(fp) : cache.get(fp));
+			if (solution == null) {
+				uncached.put(fp, n - c);
+				continue;
+			}
+			for (int i = c; i < n; i++)
+				removed.add(new Bindings(solution));
+		}
+
+		// Removed and not cached: look for them in the results before the update
+		if (before != null && !uncached.isEmpty()) {
+			for (Bindings solution : before.getBindings()) {
+				Integer n = uncached.remove(fingerprint(solution.toJson()));
+				if (n == null)
+					continue;
+				for (int i = 0; i < n; i++)
+					removed.add(solution);
+				if (uncached.isEmpty())
+					break;
+			}
+		}
+
+		int misses = 0;
+		for (int n : uncached.values())
+			misses += n;
+
+		if (misses > 0)
+			SPUManagerBeans.fingerprintMisses(misses);
+		ret.misses = misses;
+
+		SPUManagerBeans.addFingerprints(ret.size, ret.getHeapBytes());
+
+		return ret;
+	}
+
+	/**
+	 * @return a 128 bit fingerprint of a solution: the sum of the hashes of its
+	 *         bindings
+	 */
+	static Fingerprint fingerprint(JsonObject solution) {
+		long hi = 0;
+		long lo = 0;
+		for (Entry<String, JsonElement> binding : solution.entrySet()) {
+			String key = binding.getKey() + '\0' + TermDictionary.key(binding.getValue());
+			long h1 = 0xcbf29ce484222325L;
+			long h2 = 0x9e3779b97f4a7c15L;
+			for (int i = 0; i < key.length(); i++) {
+				char c = key.charAt(i);
+				h1 = (h1 ^ c) * 0x100000001b3L;
+				h2 = (h2 + c) * 0xc6a4a7935bd1e995L;
+				h2 ^= (h2 >>> 47);
+			}
+			hi += mix(h1);
+			lo += mix(h2 ^ key.length());
+		}
+		return new Fingerprint(mix(hi), mix(lo));
+	}
+
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	// Returns the number of occurrences of the solution after adding it
+	private int add(long hi, long lo) {
+		if (2 * (distinct + 1) > counts.length)
+			grow();
+
+		size++;
+
+		int mask = counts.length - 1;
+		int slot = (int) lo & mask;
+		while (counts[slot] != 0) {
+			if (fingerprints[2 * slot] == hi && fingerprints[2 * slot + 1] == lo)
+				return ++counts[slot];
+			slot = (slot + 1) & mask;
+		}
+
+		fingerprints[2 * slot] = hi;
+		fingerprints[2 * slot + 1] = lo;
+		counts[slot] = 1;
+		distinct++;
+		return 1;
+	}
+
+	private int count(long hi, long lo) {
+		int mask = counts.length - 1;
+		int slot = (int) lo & mask;
+		while (counts[slot] != 0) {
+			if (fingerprints[2 * slot] == hi && fingerprints[2 * slot + 1] == lo)
+				return counts[slot];
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	private void grow() {
+		long[] oldFingerprints = fingerprints;
+		int[] oldCounts = counts;
+
+		fingerprints = new long[oldFingerprints.length * 2];
+		counts = new int[oldCounts.length * 2];
+
+		int mask = counts.length - 1;
+		for (int i = 0; i < oldCounts.length; i++) {
+			if (oldCounts[i] == 0)
+				continue;
+			long hi = oldFingerprints[2 * i];
+			long lo = oldFingerprints[2 * i + 1];
+			int slot = (int) lo & mask;
+			while (counts[slot] != 0)
+				slot = (slot + 1) & mask;
+			fingerprints[2 * slot] = hi;
+			fingerprints[2 * slot + 1] = lo;
+			counts[slot] = oldCounts[i];
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	void release() {
+		if (released)
+			return;
+		released = true;
+
+		SPUManagerBeans.addFingerprints(-size, -getHeapBytes());
+	}
+
+	/**
+	 * @return the removed solutions that the diff that built the fingerprints
+	 *         could not find
+	 */
+	int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the heap used by the fingerprints (bytes)
+	 */
+	long getHeapBytes() {
+		return 16L + 8L * fingerprints.length + 16L + 4L * counts.length;
+	}
+}
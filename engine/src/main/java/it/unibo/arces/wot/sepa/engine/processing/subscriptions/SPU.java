@@ -19,12 +19,14 @@
 package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
 
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
 //import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest.Priority;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
 
 import org.apache.logging.log4j.LogManager;
@@ -32,9 +34,13 @@ import org.apache.logging.log4j.Logger;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
 import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
 import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
 import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
 
 /**
@@ -62,30 +68,239 @@ public abstract class SPU extends Thread implements ISPU {
 //	PostProccessingThread postThread;
 //	PreProccessingThread preThread;
 
-	// Last bindings results
-	protected BindingsResults lastBindings = null;
+	// Last bindings results (term ids of the SPU manager dictionary)
+	protected CompactResults lastBindings = null;
 
-	// Request and response
-	private final AtomicBoolean preProcessing = new AtomicBoolean();
-	protected InternalUpdateRequest request;
-	protected Response response;
+	// The SPU has been killed and its results released
+	private boolean disposed = false;
+
+	// Pre and post processing requests (processed in order by the SPU thread)
+	private final LinkedBlockingQueue<Runnable> requests = new LinkedBlockingQueue<Runnable>();
 	protected final InternalSubscribeRequest subscribe;
 
+	// Guards the last bindings and the subscribers of the SPU: a new subscriber
+	// gets the results and the notifications that follow them
+	final Object lock = new Object();
+
+	// Guards the state of the processing: held by the SPU thread while it processes
+	// an update, which queries the endpoint without holding the lock (see postProcessing)
+	final Object processing = new Object();
+
+	// The results of the processing, replacing the last bindings once the subscribers are notified
+	private CompactResults staged = null;
+
+	// The last notifications, replayed to the resumed subscribers (guarded by the lock)
+	final ReplayBuffer replay = new ReplayBuffer(SPUManagerBeans.getReplayBufferSize(),
+			SPUManagerBeans.getReplayBufferBytes());
+
+	// Processing deadlines (guarded by the SPU manager processing pool)
+	int timeouts = 0;
+	boolean quarantined = false;
+	long quarantineTime = 0;
+	// Without subscribers since (0 if not lingering: see Subscriptions#expire, guarded by the lock)
+	long lingering = 0;
+	// Still processing out of the update cycle (i.e., late, catch-up or re-evaluation)
+	boolean background = false;
+	// The background processing has been started by the manager (i.e., catch-up or re-evaluation)
+	boolean evaluation = false;
+	// Updates have been skipped while out of the update cycle
+	boolean dirty = false;
+	// Updates have been skipped since the last processing (read by the SPU thread)
+	volatile boolean skipped = false;
+	// The version of the updates reflected by the last results (-1 if unknown, see GraphVersions)
+	volatile long version = -1;
+	long startTime = 0;
+	long lastProcessingTime = -1;
+
+	// Scheduling of the update processing (see SPUManager): the highest priority of the subscribers,
+	// the number of subscribers and the average post-processing time (ns)
+	volatile Priority priority;
+	volatile int subscribers = 0;
+	volatile long cost = 0;
+	// Scheduling rank in the processing pool (guarded by the SPU manager processing pool)
+	double rank = 0;
+
 	protected final SPUManager manager;
 
 	public SPU(InternalSubscribeRequest subscribe, SPUManager manager) {
 		this.manager = manager;
 		this.subscribe = subscribe;
 		this.spuid = "sepa://spu/" + UUID.randomUUID();
+		this.priority = subscribe.getPriority();
 	}
 
 	public InternalSubscribeRequest getSubscribe() {
 		return subscribe;
 	}
 
+	/**
+	 * @return true if the SPU processes the quads of the updates (see
+	 *         {@link InternalPreProcessedUpdateRequest#getInsertedQuads()})
+	 */
+	boolean needsQuads() {
+		return false;
+	}
+
 	@Override
 	public BindingsResults getLastBindings() {
-		return lastBindings;
+		synchronized (lock) {
+			return (lastBindings == null ? null : lastBindings.toBindingsResults());
+		}
+	}
+
+	/**
+	 * @return the last results to be saved in a snapshot (null if they are not
+	 *         kept by the SPU)
+	 */
+	BindingsResults getSnapshot() {
+		synchronized (lock) {
+			return (lastBindings == null || disposed ? null : lastBindings.toBindingsResults());
+		}
+	}
+
+	/**
+	 * Initializes the SPU with the results of a snapshot instead of the first
+	 * query. The results may be out of date: the SPU must be evaluated again.
+	 */
+	Response restore(CompactResults results) {
+		synchronized (lock) {
+			lastBindings = results;
+			// The next processing evaluates the whole query
+			skipped = true;
+			// The first results are taken from the SPU by the subscribers
+			return new SubscribeResponse(getSPUID(), subscribe.getAlias(), null);
+		}
+	}
+
+	/**
+	 * @return the results of the whole query
+	 */
+	BindingsResults query() throws SEPAProcessingException {
+		Response ret;
+		try {
+			ret = manager.processQuery(subscribe);
+		} catch (SEPASecurityException e) {
+			if (logger.isTraceEnabled())
+				e.printStackTrace();
+			throw new SEPAProcessingException(e.getMessage());
+		}
+
+		if (ret.isError())
+			throw new SEPAProcessingException(ret.toString());
+
+		return ((QueryResponse) ret).getBindingsResults();
+	}
+
+	/**
+	 * Compares the last results with the current ones, which replace them once
+	 * the subscribers are notified (see {@link #stage(CompactResults)})
+	 *
+	 * @return the added and removed solutions
+	 */
+	ARBindingsResults replace(BindingsResults results) {
+		CompactResults currentBindings = new CompactResults(manager.getTermDictionary(), results);
+
+		// Empty bindings if null
+		CompactResults last = (lastBindings != null ? lastBindings
+				: new CompactResults(manager.getTermDictionary(), null));
+
+		ARBindingsResults ar = CompactResults.diff(last, currentBindings);
+		if (last != lastBindings)
+			last.release();
+
+		stage(currentBindings);
+
+		return ar;
+	}
+
+	/**
+	 * The results of the processing of an update (null to discard them): they
+	 * replace the last results holding the lock, when the subscribers are
+	 * notified (see {@link #commit(Notification)})
+	 */
+	void stage(CompactResults results) {
+		if (staged != null)
+			staged.release();
+		staged = results;
+	}
+
+	/**
+	 * Replaces the last results with the staged ones, if any. Must be called
+	 * holding the lock.
+	 */
+	void swap() {
+		if (staged == null)
+			return;
+
+		if (lastBindings != null)
+			lastBindings.release();
+		lastBindings = staged;
+		staged = null;
+	}
+
+	/**
+	 * Called by the SPU thread holding the lock once an update has been
+	 * processed: the last results are replaced before the subscribers are
+	 * notified.
+	 *
+	 * @param notify the notification of the processing (null if none)
+	 * @return the notification to send (null if none)
+	 */
+	Notification commit(Notification notify) throws SEPAProcessingException {
+		swap();
+		return notify;
+	}
+
+	/**
+	 * Evaluates the whole query and compares the results with the last ones: an
+	 * incremental SPU falls back to it when the changes of an update cannot be
+	 * found otherwise. Its own state is rebuilt by
+	 * {@link #evaluated(BindingsResults)}.
+	 *
+	 * @return the notification of the added and removed solutions (null if the
+	 *         results did not change)
+	 */
+	Notification evaluate() throws SEPAProcessingException {
+		SPUManagerBeans.incrementalEvaluation();
+
+		BindingsResults results;
+		try {
+			results = query();
+		} catch (SEPAProcessingException e) {
+			evaluated(null);
+			throw e;
+		}
+
+		ARBindingsResults ar = replace(results);
+		evaluated(results);
+
+		if (!ar.getAddedBindings().isEmpty() || !ar.getRemovedBindings().isEmpty())
+			return new Notification(getSPUID(), ar);
+
+		return null;
+	}
+
+	/**
+	 * Called by {@link #evaluate()} with the results of the whole query
+	 *
+	 * @param results the current results (null if the query failed)
+	 */
+	void evaluated(BindingsResults results) throws SEPAProcessingException {
+	}
+
+	/**
+	 * Releases the last results. The SPU will no longer process updates.
+	 */
+	void dispose() {
+		synchronized (processing) {
+			synchronized (lock) {
+				disposed = true;
+				stage(null);
+				if (lastBindings != null)
+					lastBindings.release();
+				lastBindings = null;
+			}
+		}
 	}
 	
 	public void interrupt() {
@@ -113,20 +328,29 @@ public abstract class SPU extends Thread implements ISPU {
 	@Override
 	public final void postUpdateProcessing(Response res) {
 //		new PostProccessingThread(this).start(res);
-		synchronized (preProcessing) {
-			response = res;
-			preProcessing.set(false);
-			preProcessing.notify();
-		}
+		requests.add(() -> postProcessing(res, 0));
+	}
+
+	/**
+	 * @param updated
+	 *            the time (ns) the endpoint has been updated: the notification
+	 *            latency is measured from it
+	 */
+	final void postUpdateProcessing(Response res, long updated) {
+		requests.add(() -> postProcessing(res, updated));
+	}
+
+	/**
+	 * Accounts for the time (ns) taken by a processing (exponential moving
+	 * average)
+	 */
+	void cost(long time) {
+		cost = (cost == 0 ? time : (cost * 7 + time) / 8);
 	}
 	
 	@Override
 	public final void preUpdateProcessing(InternalPreProcessedUpdateRequest req) {
-		synchronized (preProcessing) {
-			request = req;
-			preProcessing.set(true);
-			preProcessing.notify();
-		}
+		requests.add(() -> preProcessing(req));
 //		new PreProccessingThread(this).start(req);
 	}
 
@@ -210,34 +434,74 @@ public abstract class SPU extends Thread implements ISPU {
 	@Override
 	public void run() {
 		while (running.get()) {
+			Runnable request;
 			try {
-				synchronized (preProcessing) {
-					preProcessing.wait();
-				}
+				request = requests.take();
 			} catch (InterruptedException e) {
 				logger.warn("SPU interrupted. Exit. " + e.getMessage());
 				return;
 			}
 
-			if (preProcessing.get()) {
-				// PRE processing
-				logger.debug("* PRE PROCESSING *");
+			request.run();
 
+			// End of processing
+			logger.trace("Notify SPU manager of EOP. Running: " + running);
+			manager.endOfProcessing(this);
+		}
+	}
+
+	private void preProcessing(InternalUpdateRequest request) {
+		// PRE processing
+		logger.debug("* PRE PROCESSING *");
+
+		synchronized (processing) {
+			if (disposed)
+				return;
+
+			try {
+				preUpdateInternalProcessing(request);
+			} catch (SEPAProcessingException e) {
+				SPUManagerBeans.preProcessingException();
+				logger.error("PRE-PROCESSING FAILED " + e.getMessage());
+				if (logger.isTraceEnabled())
+					e.printStackTrace();
+			}
+		}
+	}
+
+	private void postProcessing(Response response, long updated) {
+		// POST processing
+		logger.debug("* POST PROCESSING *");
+
+		synchronized (processing) {
+			if (disposed)
+				return;
+
+			// Updates applied to the endpoint from now on may not be reflected by the results
+			long current = manager.getVersion();
+
+			// The endpoint is queried without holding the lock: new subscribers are not held up
+			Notification notify = null;
+			long start = System.nanoTime();
+			try {
+				notify = postUpdateInternalProcessing((UpdateResponse) response);
+			} catch (SEPAProcessingException e) {
+				stage(null);
+				SPUManagerBeans.postProcessingException();
+				logger.error("POST-PROCESSING FAILED " + e.getMessage());
+				if (logger.isTraceEnabled())
+					e.printStackTrace();
+				return;
+			}
+
+			synchronized (lock) {
 				try {
-					preUpdateInternalProcessing(request);
-				} catch (SEPAProcessingException e) {
-					SPUManagerBeans.preProcessingException();
-					logger.error("PRE-PROCESSING FAILED " + e.getMessage());
-					if (logger.isTraceEnabled())
-						e.printStackTrace();
-				}
-			} else {
-				// POST processing
-				logger.debug("* POST PROCESSING *");
-				Notification notify = null;
-				try {
-					notify = postUpdateInternalProcessing((UpdateResponse) response);
+					notify = commit(notify);
+					version = current;
+					cost(System.nanoTime() - start);
 				} catch (SEPAProcessingException e) {
+					stage(null);
+					notify = null;
 					SPUManagerBeans.postProcessingException();
 					logger.error("POST-PROCESSING FAILED " + e.getMessage());
 					if (logger.isTraceEnabled())
@@ -248,6 +512,8 @@ public abstract class SPU extends Thread implements ISPU {
 				if (notify != null)
 					try {
 						manager.notifyEvent(notify);
+						if (updated > 0)
+							SPUManagerBeans.notificationLatency(priority, System.nanoTime() - updated);
 					} catch (SEPAProtocolException e) {
 						SPUManagerBeans.notifyException();
 						logger.error("NOTIFY EVENT FAILED " + e.getMessage());
@@ -255,10 +521,6 @@ public abstract class SPU extends Thread implements ISPU {
 							e.printStackTrace();
 					}
 			}
-
-			// End of processing
-			logger.trace("Notify SPU manager of EOP. Running: " + running);
-			manager.endOfProcessing(this);
 		}
 	}
 }
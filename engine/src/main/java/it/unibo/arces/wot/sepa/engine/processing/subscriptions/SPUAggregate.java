@@ -0,0 +1,684 @@
+/* An SPU that maintains the groups of an aggregate subscription
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryException;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.AggAvg;
+import org.apache.jena.sparql.expr.aggregate.AggCount;
+import org.apache.jena.sparql.expr.aggregate.AggCountVar;
+import org.apache.jena.sparql.expr.aggregate.AggMax;
+import org.apache.jena.sparql.expr.aggregate.AggMin;
+import org.apache.jena.sparql.expr.aggregate.AggSum;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.expr.nodevalue.XSDFuncOp;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonObject;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+/**
+ * Maintains the groups of a <code>SELECT ?g (AGG(?x) AS ?a) ... GROUP BY
+ * ?g</code> subscription (see {@link #accepts(Query)}) with the solutions of
+ * the pattern added and removed by the updates:
+ * <ul>
+ * <li>the solutions that match the quads of an update are queried before and
+ * after the update with the pattern restricted to such quads (see
+ * {@link TriplePatterns#restrict(Query, java.util.Collection)}): the
+ * differences are the added and removed solutions;</li>
+ * <li>COUNT, SUM and AVG are updated by adding and subtracting the values of
+ * the solutions, MIN and MAX by comparing them;</li>
+ * <li>the groups whose aggregates cannot be updated (e.g., the MIN is removed,
+ * GROUP_CONCAT, DISTINCT aggregates, non numeric values) are queried again
+ * with the state query restricted to their keys.</li>
+ * </ul>
+ * Only the groups whose solution changes are notified. The query is evaluated
+ * again if the quads of an update are not known or if some update has been
+ * skipped.
+ */
+class SPUAggregate extends SPU {
+	private final Logger logger;
+
+	private enum Kind {
+		COUNT, SUM, AVG, MIN, MAX, OTHER
+	}
+
+	/**
+	 * A projected aggregate
+	 */
+	private static class Aggregate {
+		final Var var;
+		final Kind kind;
+		// The variable of the pattern that is aggregated (null for COUNT(*))
+		final Var arg;
+		final Aggregator aggregator;
+
+		Aggregate(Var var, Kind kind, Var arg, Aggregator aggregator) {
+			this.var = var;
+			this.kind = kind;
+			this.arg = arg;
+			this.aggregator = aggregator;
+		}
+	}
+
+	/**
+	 * The state of a group
+	 */
+	private static class Group {
+		final Binding key;
+		// Number of solutions
+		long count = 0;
+		// SUM for SUM and AVG, the value for the others (null if unbound)
+		final NodeValue[] state;
+		// The state must be queried again
+		boolean recompute = false;
+		// The solution notified to the subscribers (null if none)
+		Bindings row = null;
+
+		Group(Binding key, int aggregates) {
+			this.key = key;
+			state = new NodeValue[aggregates];
+		}
+	}
+
+	private static final Var COUNT = Var.alloc("_sepa_n");
+
+	private final Query query;
+	private final TriplePatterns patterns;
+	private final List<Var> keys;
+	private final List<Aggregate> aggregates = new ArrayList<Aggregate>();
+
+	// SELECT DISTINCT <pattern variables> WHERE <pattern>
+	private final Query solutions;
+	// SELECT <keys> (COUNT(*) AS ?_sepa_n) (<state> AS ?_sepa_i) ... GROUP BY <keys>
+	private final Query state;
+
+	// Group key ==> group (null if the query must be evaluated again)
+	private Map<String, Group> groups = null;
+	private ArrayList<String> vars = null;
+
+	// The update being processed and the solutions it may touch before the update
+	private volatile InternalPreProcessedUpdateRequest update = null;
+	private volatile Query restricted = null;
+	private volatile Map<String, Binding> before = null;
+
+	/**
+	 * @return true if the query is a <code>SELECT</code> with aggregates,
+	 *         grouped by variables (or not grouped) without HAVING, LIMIT,
+	 *         OFFSET and VALUES, whose pattern is made of triple patterns and
+	 *         filters (see {@link TriplePatterns}) without blank nodes
+	 */
+	static boolean accepts(Query query) {
+		if (!query.isSelectType() || !query.hasAggregators() || query.isQueryResultStar())
+			return false;
+		if (query.hasHaving() || query.hasLimit() || query.hasOffset() || query.hasValues())
+			return false;
+		if (!query.getGroupBy().getExprs().isEmpty())
+			return false;
+
+		TriplePatterns patterns = TriplePatterns.parse(query);
+		if (patterns == null || patterns.hasBlankNodes())
+			return false;
+
+		List<Var> keys = query.getGroupBy().getVars();
+		if (!query.getProjectVars().containsAll(keys) || !patterns.getVars().containsAll(keys))
+			return false;
+		for (Var var : query.getProjectVars())
+			if (!keys.contains(var) && aggregator(query, var) == null)
+				return false;
+
+		return true;
+	}
+
+	// The aggregator projected as the variable (null if none)
+	private static ExprAggregator aggregator(Query query, Var var) {
+		Expr expr = query.getProject().getExpr(var);
+		if (expr instanceof ExprAggregator)
+			return (ExprAggregator) expr;
+		if (expr instanceof ExprVar)
+			for (ExprAggregator aggregator : query.getAggregators())
+				if (aggregator.getVar().equals(((ExprVar) expr).asVar()))
+					return aggregator;
+		return null;
+	}
+
+	public SPUAggregate(InternalSubscribeRequest subscribe, SPUManager manager, Query query)
+			throws SEPAProtocolException {
+		super(subscribe, manager);
+
+		this.spuid = "sepa://spu/aggregate/" + UUID.randomUUID();
+
+		this.query = query;
+		patterns = TriplePatterns.parse(query);
+		keys = query.getGroupBy().getVars();
+
+		Set<Var> patternVars = patterns.getVars();
+		for (Var var : query.getProjectVars()) {
+			if (keys.contains(var))
+				continue;
+
+			Aggregator aggregator = aggregator(query, var).getAggregator();
+			ExprList args = aggregator.getExprList();
+			Var arg = (args != null && args.size() == 1 && args.get(0).isVariable() ? args.get(0).asVar() : null);
+
+			Kind kind = Kind.OTHER;
+			if (aggregator instanceof AggCount)
+				kind = Kind.COUNT;
+			else if (arg != null && patternVars.contains(arg)) {
+				if (aggregator instanceof AggCountVar)
+					kind = Kind.COUNT;
+				else if (aggregator instanceof AggSum)
+					kind = Kind.SUM;
+				else if (aggregator instanceof AggAvg)
+					kind = Kind.AVG;
+				else if (aggregator instanceof AggMin)
+					kind = Kind.MIN;
+				else if (aggregator instanceof AggMax)
+					kind = Kind.MAX;
+			}
+
+			aggregates.add(new Aggregate(var, kind, arg, aggregator));
+		}
+
+		solutions = new Query();
+		solutions.setQuerySelectType();
+		solutions.setDistinct(true);
+		for (Var var : patternVars)
+			solutions.addResultVar(var);
+		solutions.setQueryPattern(query.getQueryPattern());
+		dataset(solutions);
+
+		state = new Query();
+		state.setQuerySelectType();
+		state.setQueryPattern(query.getQueryPattern());
+		dataset(state);
+		for (Var key : keys) {
+			state.addGroupBy(key);
+			state.addResultVar(key);
+		}
+		state.addResultVar(COUNT, state.allocAggregate(new AggCount()));
+		for (int i = 0; i < aggregates.size(); i++) {
+			Aggregate aggregate = aggregates.get(i);
+			Aggregator aggregator = aggregate.aggregator;
+			if (aggregate.kind == Kind.AVG)
+				aggregator = new AggSum(new ExprVar(aggregate.arg));
+			state.addResultVar(stateVar(i), state.allocAggregate(aggregator));
+		}
+
+		logger = LogManager.getLogger("SPUAggregate" + getSPUID());
+		logger.debug("SPU: " + this.getSPUID() + " request: " + subscribe + " state: " + state);
+	}
+
+	private void dataset(Query target) {
+		for (String graph : query.getGraphURIs())
+			target.addGraphURI(graph);
+		for (String graph : query.getNamedGraphURIs())
+			target.addNamedGraphURI(graph);
+	}
+
+	private static Var stateVar(int i) {
+		return Var.alloc("_sepa_" + i);
+	}
+
+	@Override
+	boolean needsQuads() {
+		return true;
+	}
+
+	@Override
+	public Response init() throws SEPASecurityException {
+		logger.debug("PROCESS " + subscribe);
+
+		Response ret = manager.processQuery(subscribe);
+
+		if (ret.isError()) {
+			logger.error("Not initialized");
+			return ret;
+		}
+
+		BindingsResults results = ((QueryResponse) ret).getBindingsResults();
+
+		logger.debug("First results: " + results.toString());
+
+		lastBindings = new CompactResults(manager.getTermDictionary(), results);
+		try {
+			load(results);
+		} catch (SEPAProcessingException e) {
+			// Evaluated again at the next update
+			logger.warn("State not loaded: " + e.getMessage());
+			groups = null;
+		}
+
+		return new SubscribeResponse(getSPUID(), subscribe.getAlias(), results);
+	}
+
+	// Loads the state of the groups and their solutions
+	private void load(BindingsResults results) throws SEPAProcessingException {
+		groups = null;
+		vars = results.getVariables();
+
+		Map<String, Group> loaded = new LinkedHashMap<String, Group>();
+		for (Group group : query(state))
+			loaded.put(key(group.key), group);
+
+		for (Bindings solution : results.getBindings()) {
+			Binding binding = UpdateQuads.binding(solution.toJson());
+			String key = key(binding);
+			Group group = loaded.get(key);
+			if (group == null) {
+				// The endpoint has been updated in between: the group is queried again when touched
+				group = new Group(keyOf(binding), aggregates.size());
+				group.recompute = true;
+				loaded.put(key, group);
+			}
+			group.row = solution;
+		}
+
+		groups = loaded;
+	}
+
+	// Runs the state query and returns the groups
+	private List<Group> query(Query stateQuery) throws SEPAProcessingException {
+		List<Group> ret = new ArrayList<Group>();
+		for (Bindings solution : run(stateQuery).getBindings()) {
+			Binding binding = UpdateQuads.binding(solution.toJson());
+			Group group = new Group(keyOf(binding), aggregates.size());
+			Node count = binding.get(COUNT);
+			group.count = (count == null ? 0 : NodeValue.makeNode(count).getInteger().longValue());
+			for (int i = 0; i < aggregates.size(); i++) {
+				Node value = binding.get(stateVar(i));
+				group.state[i] = (value == null ? null : NodeValue.makeNode(value));
+			}
+			ret.add(group);
+		}
+		return ret;
+	}
+
+	private BindingsResults run(Query q) throws SEPAProcessingException {
+		Response ret;
+		try {
+			ret = manager.processQuery(new InternalQueryRequest(q.serialize(), subscribe.getDefaultGraphUri(),
+					subscribe.getNamedGraphUri(), subscribe.getClientAuthorization()));
+		} catch (SEPASecurityException | QueryException e) {
+			if (logger.isTraceEnabled())
+				e.printStackTrace();
+			throw new SEPAProcessingException(e.getMessage());
+		}
+		if (ret.isError())
+			throw new SEPAProcessingException(ret.toString());
+		return ((QueryResponse) ret).getBindingsResults();
+	}
+
+	// The values of the group variables
+	private Binding keyOf(Binding binding) {
+		BindingMap ret = BindingFactory.create();
+		for (Var key : keys) {
+			Node node = binding.get(key);
+			if (node != null)
+				ret.add(key, node);
+		}
+		return ret;
+	}
+
+	private String key(Binding binding) {
+		StringBuilder ret = new StringBuilder();
+		for (Var key : keys) {
+			Node node = binding.get(key);
+			ret.append(node == null ? "" : TermDictionary.key(UpdateQuads.term(node))).append('\n');
+		}
+		return ret.toString();
+	}
+
+	// Solution key ==> solution
+	private Map<String, Binding> solutions(Query q) throws SEPAProcessingException {
+		Map<String, Binding> ret = new HashMap<String, Binding>();
+		for (Bindings solution : run(q).getBindings())
+			ret.put(CompactResults.key(solution), UpdateQuads.binding(solution.toJson()));
+		return ret;
+	}
+
+	@Override
+	Response restore(CompactResults results) {
+		synchronized (lock) {
+			groups = null;
+			return super.restore(results);
+		}
+	}
+
+	@Override
+	public void preUpdateInternalProcessing(InternalUpdateRequest req) throws SEPAProcessingException {
+		update = (req instanceof InternalPreProcessedUpdateRequest ? (InternalPreProcessedUpdateRequest) req : null);
+		restricted = null;
+		before = null;
+
+		if (groups == null || skipped || update == null || !update.hasQuads())
+			return;
+
+		List<Quad> quads = quads(update);
+		if (quads.isEmpty() || !patterns.matches(quads))
+			return;
+
+		Query q = patterns.restrict(solutions, quads);
+		if (q == null)
+			return;
+
+		try {
+			before = solutions(q);
+			restricted = q;
+		} catch (SEPAProcessingException e) {
+			logger.warn("Solutions before the update not queried: " + e.getMessage());
+		}
+	}
+
+	private static List<Quad> quads(InternalPreProcessedUpdateRequest req) {
+		List<Quad> ret = new ArrayList<Quad>(req.getDeletedQuads());
+		ret.addAll(req.getInsertedQuads());
+		return ret;
+	}
+
+	@Override
+	public Notification postUpdateInternalProcessing(UpdateResponse res) throws SEPAProcessingException {
+		logger.trace("* PROCESSING *" + subscribe);
+
+		InternalPreProcessedUpdateRequest req = update;
+		Query q = restricted;
+		Map<String, Binding> old = before;
+		update = null;
+		restricted = null;
+		before = null;
+		boolean missed = skipped;
+		skipped = false;
+
+		if (groups == null || req == null || missed || !req.hasQuads())
+			return evaluate();
+
+		List<Quad> quads = quads(req);
+		if (quads.isEmpty() || !patterns.matches(quads)) {
+			SPUManagerBeans.incrementalUpdate();
+			return null;
+		}
+
+		if (q == null || old == null)
+			return evaluate();
+
+		Map<String, Binding> current = solutions(q);
+
+		Set<Group> touched = new LinkedHashSet<Group>();
+		for (Entry<String, Binding> solution : old.entrySet())
+			if (!current.containsKey(solution.getKey()))
+				touched.add(apply(solution.getValue(), -1));
+		for (Entry<String, Binding> solution : current.entrySet())
+			if (!old.containsKey(solution.getKey()))
+				touched.add(apply(solution.getValue(), 1));
+
+		SPUManagerBeans.incrementalUpdate();
+
+		if (touched.isEmpty())
+			return null;
+
+		recompute(touched);
+
+		return notify(touched);
+	}
+
+	// Adds (sign > 0) or removes a solution from its group
+	private Group apply(Binding solution, int sign) {
+		Binding key = keyOf(solution);
+		Group group = groups.computeIfAbsent(key(key), k -> new Group(key, aggregates.size()));
+
+		long count = group.count;
+		group.count += sign;
+
+		// The implicit group has a solution also if empty. A solution removed from an unknown group is queried.
+		if (group.count <= 0) {
+			if (keys.isEmpty() || count <= 0)
+				group.recompute = true;
+			return group;
+		}
+
+		for (int i = 0; i < aggregates.size(); i++) {
+			Aggregate aggregate = aggregates.get(i);
+			if (aggregate.kind == Kind.COUNT)
+				continue;
+			if (aggregate.kind == Kind.OTHER) {
+				group.recompute = true;
+				continue;
+			}
+
+			NodeValue current = group.state[i];
+			NodeValue value = NodeValue.makeNode(solution.get(aggregate.arg));
+
+			switch (aggregate.kind) {
+			case SUM:
+			case AVG:
+				// Rounding errors of double and float are not subtracted
+				if (!value.isNumber() || (count > 0 && current == null)
+						|| (sign < 0 && (value.isDouble() || value.isFloat()))) {
+					group.recompute = true;
+					break;
+				}
+				try {
+					if (count == 0)
+						group.state[i] = value;
+					else
+						group.state[i] = (sign > 0 ? XSDFuncOp.numAdd(current, value)
+								: XSDFuncOp.numSubtract(current, value));
+				} catch (ExprEvalException e) {
+					group.recompute = true;
+				}
+				break;
+			case MIN:
+			case MAX:
+				int order = (aggregate.kind == Kind.MIN ? 1 : -1);
+				if (sign < 0) {
+					if (current == null || NodeValue.compareAlways(value, current) == 0)
+						group.recompute = true;
+				} else if (count == 0)
+					group.state[i] = value;
+				else if (current == null)
+					group.recompute = true;
+				else if (order * NodeValue.compareAlways(value, current) < 0)
+					group.state[i] = value;
+				break;
+			default:
+				break;
+			}
+		}
+
+		return group;
+	}
+
+	// Queries again the state of the groups that cannot be updated
+	private void recompute(Collection<Group> touched) throws SEPAProcessingException {
+		Map<String, Group> targets = new LinkedHashMap<String, Group>();
+		for (Group group : touched)
+			if (group.recompute)
+				targets.put(key(group.key), group);
+		if (targets.isEmpty())
+			return;
+
+		Query q = state;
+		if (!keys.isEmpty()) {
+			ElementData data = new ElementData();
+			for (Var key : keys)
+				data.add(key);
+			for (Group group : targets.values())
+				data.add(group.key);
+			q = state.cloneQuery();
+			q.setQueryPattern(TriplePatterns.join(data, state.getQueryPattern()));
+		}
+
+		for (Group group : targets.values()) {
+			group.count = 0;
+			group.recompute = false;
+			for (int i = 0; i < aggregates.size(); i++)
+				group.state[i] = null;
+		}
+
+		for (Group recomputed : query(q)) {
+			Group group = targets.get(key(recomputed.key));
+			if (group == null)
+				continue;
+			group.count = recomputed.count;
+			System.arraycopy(recomputed.state, 0, group.state, 0, aggregates.size());
+		}
+	}
+
+	// Notifies the groups whose solution has changed
+	private Notification notify(Collection<Group> touched) {
+		BindingsResults added = new BindingsResults(vars, null);
+		BindingsResults removed = new BindingsResults(vars, null);
+
+		for (Group group : touched) {
+			// Groups without solutions do not exist (but the implicit one)
+			Bindings row = (group.count <= 0 && !keys.isEmpty() ? null : row(group));
+
+			if (row == null ? group.row == null : group.row != null && row.toJson().equals(group.row.toJson()))
+				continue;
+
+			if (group.row != null)
+				removed.add(group.row);
+			if (row != null)
+				added.add(row);
+			group.row = row;
+		}
+
+		for (Group group : touched)
+			if (group.count <= 0 && !keys.isEmpty())
+				groups.remove(key(group.key));
+
+		if (added.isEmpty() && removed.isEmpty())
+			return null;
+
+		BindingsResults results = new BindingsResults(vars, null);
+		for (Group group : groups.values())
+			if (group.row != null)
+				results.add(group.row);
+		stage(new CompactResults(manager.getTermDictionary(), results));
+
+		return new Notification(getSPUID(), new ARBindingsResults(added, removed));
+	}
+
+	// The solution of a group (in the order of the projected variables)
+	private Bindings row(Group group) {
+		JsonObject solution = new JsonObject();
+		for (Var var : query.getProjectVars()) {
+			Node node = null;
+			if (keys.contains(var))
+				node = group.key.get(var);
+			else {
+				int i = indexOf(var);
+				NodeValue value = value(aggregates.get(i), group.count, group.state[i]);
+				node = (value == null ? null : value.asNode());
+			}
+			if (node != null)
+				solution.add(var.getVarName(), UpdateQuads.term(node));
+		}
+		return new Bindings(solution);
+	}
+
+	private int indexOf(Var var) {
+		for (int i = 0; i < aggregates.size(); i++)
+			if (aggregates.get(i).var.equals(var))
+				return i;
+		return -1;
+	}
+
+	// The value of an aggregate as computed by Jena (null if unbound)
+	private static NodeValue value(Aggregate aggregate, long count, NodeValue state) {
+		switch (aggregate.kind) {
+		case COUNT:
+			return NodeValue.makeInteger(count);
+		case SUM:
+			return (count == 0 ? NodeValue.nvZERO : state);
+		case AVG:
+			if (count == 0)
+				return NodeValue.nvZERO;
+			if (state == null)
+				return null;
+			try {
+				return XSDFuncOp.numDivide(state, NodeValue.makeInteger(count));
+			} catch (ExprEvalException e) {
+				return null;
+			}
+		default:
+			return state;
+		}
+	}
+
+	@Override
+	void evaluated(BindingsResults results) throws SEPAProcessingException {
+		if (results == null)
+			groups = null;
+		else
+			load(results);
+	}
+
+	@Override
+	void dispose() {
+		synchronized (processing) {
+			super.dispose();
+			groups = null;
+			update = null;
+			restricted = null;
+			before = null;
+		}
+	}
+}
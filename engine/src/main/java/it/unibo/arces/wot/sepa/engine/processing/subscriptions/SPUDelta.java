@@ -0,0 +1,186 @@
+/* An SPU that queries only the solutions touched by an update
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+/**
+ * Finds the added and removed solutions of a subscription (see
+ * {@link #accepts(Query)}) without evaluating the whole query:
+ * <ul>
+ * <li>in the pre-processing phase (i.e., before the endpoint is updated) the
+ * query restricted to the quads deleted by the update (see
+ * {@link TriplePatterns#restrict(Query, java.util.Collection)}) gives the
+ * solutions that may be removed;</li>
+ * <li>in the post-processing phase the query restricted to the inserted quads
+ * gives the solutions that may be added.</li>
+ * </ul>
+ * A solution that uses a deleted quad is removed, but if the quad is inserted
+ * again. A solution that uses an inserted quad is added, but if it was
+ * already a solution.
+ *
+ * The whole query is evaluated as by {@link SPUNaive} if the quads of an
+ * update are not known, if some update has been skipped or if the results are
+ * tracked as row fingerprints.
+ */
+class SPUDelta extends SPUNaive {
+	private final Logger logger;
+
+	// The update being processed and the solutions that may be removed (null if not known)
+	private volatile InternalPreProcessedUpdateRequest update = null;
+	private volatile Map<String, Bindings> deleted = null;
+
+	/**
+	 * @return true if the query is a <code>SELECT</code> without aggregates,
+	 *         LIMIT, OFFSET and VALUES whose pattern is made of triple patterns
+	 *         and filters (see {@link TriplePatterns}) without blank nodes and
+	 *         whose variables are all projected (i.e., the solutions are a set)
+	 */
+	static boolean accepts(Query query) {
+		if (!restrictable(query))
+			return false;
+
+		if (query.isQueryResultStar())
+			return true;
+		if (!query.getProject().getExprs().isEmpty())
+			return false;
+		return query.getProjectVars().containsAll(TriplePatterns.parse(query).getVars());
+	}
+
+	public SPUDelta(InternalSubscribeRequest subscribe, SPUManager manager, Query query)
+			throws SEPAProtocolException {
+		super(subscribe, manager, query);
+
+		this.spuid = "sepa://spu/delta/" + UUID.randomUUID();
+
+		logger = LogManager.getLogger("SPUDelta" + getSPUID());
+		logger.debug("SPU: " + this.getSPUID() + " request: " + subscribe);
+	}
+
+	@Override
+	boolean needsQuads() {
+		return true;
+	}
+
+	@Override
+	public void preUpdateInternalProcessing(InternalUpdateRequest req) throws SEPAProcessingException {
+		update = (req instanceof InternalPreProcessedUpdateRequest ? (InternalPreProcessedUpdateRequest) req : null);
+		deleted = null;
+
+		if (tracksFingerprints() || skipped || update == null || !update.hasQuads()) {
+			super.preUpdateInternalProcessing(req);
+			return;
+		}
+
+		try {
+			deleted = solutions(update.getDeletedQuads());
+		} catch (SEPAProcessingException e) {
+			logger.warn("Solutions before the update not queried: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public Notification postUpdateInternalProcessing(UpdateResponse res) throws SEPAProcessingException {
+		InternalPreProcessedUpdateRequest req = update;
+		Map<String, Bindings> removable = deleted;
+		update = null;
+		deleted = null;
+		boolean missed = skipped;
+		skipped = false;
+
+		if (tracksFingerprints() || lastBindings == null || req == null || missed || !req.hasQuads()
+				|| removable == null) {
+			SPUManagerBeans.incrementalEvaluation();
+			return super.postUpdateInternalProcessing(res);
+		}
+
+		logger.trace("* PROCESSING *" + subscribe);
+
+		Map<String, Bindings> inserted = solutions(req.getInsertedQuads());
+		if (inserted == null) {
+			SPUManagerBeans.incrementalEvaluation();
+			return super.postUpdateInternalProcessing(res);
+		}
+
+		SPUManagerBeans.incrementalUpdate();
+
+		ArrayList<String> vars = lastBindings.getVariables();
+		BindingsResults added = new BindingsResults(vars, null);
+		BindingsResults removed = new BindingsResults(vars, null);
+		for (Entry<String, Bindings> solution : removable.entrySet())
+			if (!inserted.containsKey(solution.getKey()) && lastBindings.count(solution.getValue()) > 0)
+				removed.add(solution.getValue());
+		for (Entry<String, Bindings> solution : inserted.entrySet())
+			if (!removable.containsKey(solution.getKey()) && lastBindings.count(solution.getValue()) == 0)
+				added.add(solution.getValue());
+
+		if (added.isEmpty() && removed.isEmpty())
+			return null;
+
+		stage(lastBindings.apply(added, removed));
+
+		return new Notification(getSPUID(), new ARBindingsResults(added, removed));
+	}
+
+	/**
+	 * @return the solutions that match one of the quads (solution key ==>
+	 *         solution) or null if all the solutions may match them
+	 */
+	private Map<String, Bindings> solutions(List<Quad> quads) throws SEPAProcessingException {
+		BindingsResults results = restricted(quads);
+		if (results == null)
+			return null;
+
+		Map<String, Bindings> ret = new LinkedHashMap<String, Bindings>();
+		for (Bindings solution : results.getBindings())
+			ret.put(CompactResults.key(solution), solution);
+		return ret;
+	}
+
+	@Override
+	void dispose() {
+		synchronized (processing) {
+			super.dispose();
+			update = null;
+			deleted = null;
+		}
+	}
+}
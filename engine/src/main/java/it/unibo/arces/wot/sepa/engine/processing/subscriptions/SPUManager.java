@@ -19,54 +19,191 @@
 package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPANotExistsException;
-import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
 import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.ResumeResponse;
 import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
 import it.unibo.arces.wot.sepa.commons.response.UnsubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
 import it.unibo.arces.wot.sepa.engine.bean.SEPABeans;
 import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
 import it.unibo.arces.wot.sepa.engine.core.EventHandler;
+import it.unibo.arces.wot.sepa.engine.core.ResponseHandler;
 import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
 import it.unibo.arces.wot.sepa.engine.processing.Processor;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
 import it.unibo.arces.wot.sepa.timing.Timings;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.jena.query.QueryException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * SpuManager is a monitor class. It takes care of the SPU collection and it
- * encapsulates filtering algorithms based on the internal structure.
+ * SpuManager takes care of the SPU collection and it encapsulates filtering
+ * algorithms based on the internal structure.
+ * 
+ * Updates are processed one at a time by the update processing thread, while
+ * subscribe and unsubscribe requests run concurrently with them: the
+ * {@link Subscriptions} registry is concurrent and each SPU is locked only
+ * while it is processed. New SPUs are initialized by a pool of threads, so a
+ * slow first query does not block updates nor other subscriptions.
+ * 
+ * The SPUs activated by an update are started in scheduling order: higher
+ * priority subscriptions first (see {@link InternalSubscribeRequest#getPriority()})
+ * and, within a priority class, the SPUs with the lowest processing cost per
+ * subscriber first. If a cap is set, at most that number of SPUs process the
+ * update (i.e., query the endpoint) at the same time.
+ * 
+ * Each SPU has its own processing deadline: an update is acknowledged once
+ * all the SPUs have processed it or missed their deadline. Late SPUs go on in
+ * background and catch up with the updates skipped in the meanwhile. SPUs that
+ * miss too many deadlines in a row are quarantined: they are no longer waited
+ * for and they are re-evaluated at most once per quarantine period.
+ * 
+ * The SPUs and their last results can be saved periodically in a snapshot
+ * (see {@link SubscriptionsSnapshot}). On restart, a new SPU whose request is
+ * in the snapshot takes its first results from it instead of querying the
+ * endpoint. The restored SPUs are evaluated again in background, at a bounded
+ * rate: the differences (if any) are notified as usual.
+ * 
+ * Each update gives a new version to the graphs it touches (see
+ * {@link GraphVersions}) and each SPU records the version its last results
+ * reflect. Catch-ups, re-evaluations and revalidations of an SPU whose graphs
+ * have not been updated since then are skipped, as well as the processing of
+ * an update already reflected by the results.
  */
 public class SPUManager implements SPUManagerMBean, EventHandler {
 	private final Logger logger = LogManager.getLogger();
 
-	// SPUs processing pool
+	// SPUs processing pool (guarded by itself)
 	private final HashSet<SPU> processingPool = new HashSet<SPU>();
+	// The processing pool is running the post-processing phase
+	private boolean postProcessing = false;
+	// SPUs of the processing pool not yet started, in scheduling order (guarded by the processing pool)
+	private final ArrayDeque<SPU> waiting = new ArrayDeque<SPU>();
+	// Starts the processing of an SPU in the current phase (guarded by the processing pool)
+	private Consumer<SPU> processing = null;
 	private Collection<SPU> activeSpus;
 	// SPUID ==> SPU
-	private final HashMap<String, SPU> spus = new HashMap<String, SPU>();
+	private final Map<String, SPU> spus = new ConcurrentHashMap<String, SPU>();
+
+	// Subscriptions registry
+	private final Subscriptions subscriptions = new Subscriptions();
+
+	// RDF terms of the SPUs results
+	private final TermDictionary dictionary = new TermDictionary();
+
+	// SPUID ==> SPU waiting for its first results (guarded by the SPU lock)
+	private final Map<String, PendingSPU> pending = new ConcurrentHashMap<String, PendingSPU>();
+
+	// SPUs initialization (i.e., first query)
+	private final ExecutorService initializer;
+
+	// SPUID ==> SPU that missed too many deadlines (guarded by the processing pool)
+	private final Map<String, SPU> quarantine = new HashMap<String, SPU>();
+
+	// Re-evaluation of quarantined SPUs
+	private final ScheduledExecutorService quarantineTimer;
+
+	// Snapshot key ==> results of the SPUs restored from the snapshot (not yet subscribed)
+	private final Map<String, CompactResults> restored = new ConcurrentHashMap<String, CompactResults>();
+
+	// SPUs initialized from the snapshot, waiting to be evaluated again
+	private final LinkedBlockingQueue<SPU> revalidation = new LinkedBlockingQueue<SPU>();
+
+	// Snapshots and revalidation of the restored SPUs
+	private final ScheduledExecutorService snapshotTimer;
+
+	// Kills the SPUs left without subscribers by the closed gates at the end of the linger period
+	private final ScheduledExecutorService lingerTimer;
+
+	// Versions of the updated graphs: evaluations of SPUs whose results reflect them are skipped
+	private final GraphVersions versions = new GraphVersions();
+
+	private static class PendingSPU {
+		final ArrayList<InternalSubscribeRequest> requests = new ArrayList<InternalSubscribeRequest>();
+		final ArrayList<ResponseHandler> handlers = new ArrayList<ResponseHandler>();
+
+		// The SPU has been selected by an update while running its first query
+		boolean reconcile = false;
+
+		void add(InternalSubscribeRequest req, ResponseHandler handler) {
+			requests.add(req);
+			handlers.add(handler);
+		}
+	}
 
 	private final Processor processor;
 
+	// Notifications fan-out
+	private final NotificationDispatcher dispatcher;
+
 	public SPUManager(Processor processor) {
 		this.processor = processor;
 
+		dispatcher = new NotificationDispatcher(SPUManagerBeans.getNotificationThreads());
+
+		AtomicInteger n = new AtomicInteger(0);
+		initializer = Executors.newFixedThreadPool(SPUManagerBeans.getInitializationThreads(), r -> {
+			Thread t = new Thread(r, "SEPA-SPU-Initializer-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		quarantineTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SEPA-SPU-Quarantine");
+			t.setDaemon(true);
+			return t;
+		});
+		quarantineTimer.scheduleWithFixedDelay(() -> reevaluate(), 1, 1, TimeUnit.SECONDS);
+
+		snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SEPA-SPU-Snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SEPA-SPU-Linger");
+			t.setDaemon(true);
+			return t;
+		});
+
+		restore();
+		long period = SPUManagerBeans.getSnapshotPeriod();
+		if (period > 0 && !SPUManagerBeans.getSnapshotFile().isEmpty())
+			snapshotTimer.scheduleWithFixedDelay(() -> snapshot(), period, period, TimeUnit.MILLISECONDS);
+		long delay = 1000000 / Math.max(1, SPUManagerBeans.getRevalidationRate());
+		snapshotTimer.scheduleWithFixedDelay(() -> revalidate(), delay, delay, TimeUnit.MICROSECONDS);
+
 		SEPABeans.registerMBean("SEPA:type=" + this.getClass().getSimpleName(), this);
 	}
 
-	public synchronized Response update(InternalUpdateRequest update) throws QueryException {
+	public Response update(InternalUpdateRequest update) throws QueryException {
 		logger.debug("*** UPDATE PROCESSING BEGIN *** Total running SPUs: " + spus.size());
 		try {
 			// PRE-processing update request
@@ -90,53 +227,56 @@ public class SPUManager implements SPUManagerMBean, EventHandler {
 				return ret;
 			}
 
+			// New versions of the updated graphs
+			long version = versions.update(preRequest.getRdfDataSet());
+
 			// POST-UPDATE subscriptions processing (ENDPOINT not yet updated)
-			postUpdateSubscriptionsProcessing(ret);
+			postUpdateSubscriptionsProcessing(preRequest, ret, version);
 
 			logger.debug("*** UPDATE PROCESSING END *** ");
 
 			return ret;
 
-		} catch (SEPAProcessingException | SEPASecurityException e) {
+		} catch (SEPASecurityException e) {
 			logger.error("*** SUBSCRIPTION PROCESSING EXCEPTION *** " + e.getMessage());
 			return new ErrorResponse(500, "update_processing_failed",
 					"Update: " + update + " Message: " + e.getMessage());
 		}
 	}
 
-	private void preUpdateSubscriptionsProcessing(InternalPreProcessedUpdateRequest update)
-			throws SEPAProcessingException {
+	private void preUpdateSubscriptionsProcessing(InternalPreProcessedUpdateRequest update) {
 		logger.trace("*** PRE-PROCESSING SUBSCRIPTIONS BEGIN *** ");
 
 		// Get active SPUs (e.g., LUTT filtering)
 		long start = Timings.getTime();
-		activeSpus = Subscriptions.filter(update);
+		activeSpus = subscriptions.filter(update);
 		long stop = Timings.getTime();
 		SPUManagerBeans.filteringTimings(start, stop);
 
 		// Start processing
 		start = Timings.getTime();
 
-		// Copy active SPU pool
-		processingPool.clear();
-
+		// Quads of the update (queried before the endpoint is updated, if some SPU processes them)
 		for (SPU spu : activeSpus) {
-			processingPool.add(spu);
-			spu.preUpdateProcessing(update);
+			if (!spu.needsQuads())
+				continue;
+			int max = SPUManagerBeans.getIncrementalMaxQuads();
+			if (max <= 0 || !UpdateQuads.instantiate(update, this, max))
+				SPUManagerBeans.uninstantiatedUpdate();
+			break;
 		}
 
-		logger.debug("*** PRE-PROCESSING UPDATE *** SPU processing pool size: " + processingPool.size());
+		synchronized (processingPool) {
+			// Copy active SPU pool
+			fillProcessingPool(false, 0);
 
-		// Wait all SPUs to complete processing
-		if (!processingPool.isEmpty()) {
-			logger.debug(String.format("Wait (%d ms) for %d SPUs to complete processing...",
-					SPUManagerBeans.getSPUProcessingTimeout() * processingPool.size(), processingPool.size()));
+			processing = spu -> spu.preUpdateProcessing(update);
+			dispatch();
 
-			try {
-				wait(SPUManagerBeans.getSPUProcessingTimeout() * processingPool.size());
-			} catch (Exception e) {
-				logger.error(e.getMessage());
-			}
+			logger.debug("*** PRE-PROCESSING UPDATE *** SPU processing pool size: " + processingPool.size());
+
+			// Wait all SPUs to complete processing (or their deadline)
+			waitProcessingPool("@preUpdateProcessing");
 		}
 
 		stop = Timings.getTime();
@@ -144,140 +284,612 @@ public class SPUManager implements SPUManagerMBean, EventHandler {
 		SPUManagerBeans.preProcessingTimings(start, stop);
 
 		logger.trace("*** PRE-PROCESSING SUBSCRIPTIONS END *** ");
-
-		if (!processingPool.isEmpty()) {
-			logger.error(
-					"@preUpdateProcessing TIMEOUT on SPU processing. SPUs still running: " + processingPool.size());
-			throw new SEPAProcessingException(
-					"@preUpdateProcessing TIMEOUT on SPU processing. SPUs still running: " + processingPool.size());
-		}
 	}
 
-	private void postUpdateSubscriptionsProcessing(Response ret) throws SEPAProcessingException {
+	private void postUpdateSubscriptionsProcessing(InternalUpdateRequest update, Response ret, long version) {
 		logger.trace("*** POST-PROCESSING SUBSCRIPTIONS BEGIN *** ");
 
 		long start = Timings.getTime();
+		long updated = System.nanoTime();
 
-		processingPool.clear();
+		// SPUs may have been registered while the endpoint was updated
+		activeSpus.addAll(subscriptions.filter(update));
+
+		synchronized (processingPool) {
+			fillProcessingPool(true, version);
+
+			processing = spu -> spu.postUpdateProcessing(ret, updated);
+			dispatch();
+
+			logger.debug("*** POST-PROCESSING SUBSCRIPTIONS *** SPU processing pool size: " + processingPool.size());
+
+			waitProcessingPool("@postUpdateProcessing");
+		}
+
+		long stop = Timings.getTime();
 
+		SPUManagerBeans.postProcessingTimings(start, stop);
+
+		logger.trace("*** POST-PROCESSING SUBSCRIPTIONS END *** ");
+	}
+
+	// Must be called holding the processing pool lock. SPUs killed in the meanwhile are skipped.
+	// SPUs still running their first query are not processed: they will reconcile their results once ready.
+	// SPUs quarantined or still busy out of the update cycle are not processed: they will catch up later.
+	// SPUs already processed after the update (post-processing at that version) are not processed again.
+	// The SPUs are started in scheduling order (see dispatch).
+	private void fillProcessingPool(boolean post, long version) {
+		processingPool.clear();
+		waiting.clear();
+		postProcessing = post;
+		ArrayList<SPU> scheduled = new ArrayList<SPU>();
 		for (SPU spu : activeSpus) {
-			processingPool.add(spu);
-			spu.postUpdateProcessing(ret);
+			if (isPending(spu))
+				continue;
+			if (!spus.containsKey(spu.getSPUID()))
+				continue;
+			if (spu.quarantined || spu.background) {
+				spu.dirty = true;
+				spu.skipped = true;
+				continue;
+			}
+			if (post && spu.version >= version) {
+				// The state set in the pre-processing phase (if any) is discarded
+				SPUManagerBeans.staleEvaluation();
+				spu.skipped = true;
+				continue;
+			}
+			spu.dirty = false;
+			spu.rank = spu.priority.ordinal() * PRIORITY_RANK + (double) spu.cost / Math.max(1, spu.subscribers);
+			scheduled.add(spu);
+		}
+
+		scheduled.sort(SCHEDULING);
+		processingPool.addAll(scheduled);
+		waiting.addAll(scheduled);
+	}
+
+	// Priority classes come first (i.e., a rank of a class is lower than any rank of the following one)
+	private static final double PRIORITY_RANK = 1e15;
+
+	// Higher priority first and, within a priority class, the cheapest SPUs (per subscriber) first
+	private static final Comparator<SPU> SCHEDULING = Comparator.comparingDouble(spu -> spu.rank);
+
+	/**
+	 * Must be called holding the processing pool lock. Starts the waiting SPUs of
+	 * the processing pool in scheduling order, so that at most max concurrent
+	 * processing SPUs query the endpoint at the same time (if the cap is set).
+	 */
+	private void dispatch() {
+		int max = SPUManagerBeans.getMaxConcurrentProcessing();
+		long now = System.currentTimeMillis();
+		while (!waiting.isEmpty() && (max <= 0 || processingPool.size() - waiting.size() < max)) {
+			SPU spu = waiting.poll();
+			spu.startTime = now;
+			processing.accept(spu);
+		}
+	}
+
+	private boolean isPending(SPU spu) {
+		if (!pending.containsKey(spu.getSPUID()))
+			return false;
+
+		synchronized (spu.lock) {
+			PendingSPU pendingSPU = pending.get(spu.getSPUID());
+			if (pendingSPU == null)
+				return false;
+			pendingSPU.reconcile = true;
+			spu.skipped = true;
+			return true;
 		}
+	}
+
+	/**
+	 * Must be called holding the processing pool lock. Each SPU has its own
+	 * deadline (i.e., the SPU processing timeout): the SPUs still running when it
+	 * expires go on in background and the update is acknowledged without them.
+	 * An SPU that misses its deadline too many times in a row is quarantined.
+	 */
+	private void waitProcessingPool(String phase) {
+		if (processingPool.isEmpty())
+			return;
 
-		logger.debug("*** POST-PROCESSING SUBSCRIPTIONS *** SPU processing pool size: " + processingPool.size());
+		long timeout = SPUManagerBeans.getSPUProcessingTimeout();
 
-		if (!processingPool.isEmpty()) {
-			logger.debug(String.format("Wait (%d ms) for %d SPUs to complete processing...",
-					SPUManagerBeans.getSPUProcessingTimeout(), processingPool.size()));
+		logger.debug(String.format("Wait (%d ms) for %d SPUs to complete processing...", timeout,
+				processingPool.size()));
 
+		long deadline = System.currentTimeMillis() + timeout;
+		long wait = timeout;
+		while (!processingPool.isEmpty() && wait > 0) {
 			try {
-				wait(SPUManagerBeans.getSPUProcessingTimeout());
+				processingPool.wait(wait);
 			} catch (InterruptedException e) {
 				logger.error(e.getMessage());
+				break;
 			}
+			wait = deadline - System.currentTimeMillis();
 		}
 
-		long stop = Timings.getTime();
+		if (processingPool.isEmpty())
+			return;
+
+		logger.warn(phase + " TIMEOUT on SPU processing. SPUs still running: "
+				+ (processingPool.size() - waiting.size()) + " waiting: " + waiting.size());
+
+		// SPUs not yet started go on in background: they have not missed their deadline
+		long now = System.currentTimeMillis();
+		for (SPU spu : waiting) {
+			processingPool.remove(spu);
+			spu.background = true;
+			spu.evaluation = false;
+			spu.startTime = now;
+			processing.accept(spu);
+		}
+		waiting.clear();
 
-		SPUManagerBeans.postProcessingTimings(start, stop);
+		for (SPU spu : processingPool) {
+			spu.background = true;
+			spu.evaluation = false;
+			timeout(spu, now);
+		}
+		processingPool.clear();
+	}
 
-		logger.trace("*** POST-PROCESSING SUBSCRIPTIONS END *** ");
+	// Must be called holding the processing pool lock
+	private void timeout(SPU spu, long now) {
+		SPUManagerBeans.processingTimeout();
+
+		spu.timeouts++;
+		if (!spu.quarantined && spu.timeouts >= SPUManagerBeans.getQuarantineThreshold()) {
+			logger.warn("@timeout SPU quarantined after " + spu.timeouts + " timeouts: " + spu.getSPUID());
+			spu.quarantined = true;
+			spu.quarantineTime = now;
+			quarantine.put(spu.getSPUID(), spu);
+		}
+	}
+
+	/**
+	 * Must be called holding the processing pool lock. The SPU is processed out
+	 * of the update cycle, unless it is already busy or quarantined: in that case
+	 * it will catch up later.
+	 */
+	private void evaluate(SPU spu, String reason) {
+		if (processingPool.contains(spu))
+			return;
+
+		if (spu.background || spu.quarantined) {
+			spu.dirty = true;
+			spu.skipped = true;
+			return;
+		}
+
+		startEvaluation(spu, reason, System.currentTimeMillis());
+	}
+
+	// Must be called holding the processing pool lock
+	private void startEvaluation(SPU spu, String reason, long now) {
+		if (!spus.containsKey(spu.getSPUID()))
+			return;
+
+		logger.debug("@startEvaluation " + reason + " " + spu.getSPUID());
+
+		spu.background = true;
+		spu.evaluation = true;
+		spu.dirty = false;
+		spu.startTime = now;
+		spu.postUpdateProcessing(new UpdateResponse(reason + " " + spu.getSPUID()));
+	}
+
+	// Quarantined SPUs are processed again (at most once per quarantine period) if some update has been skipped
+	private void reevaluate() {
+		long now = System.currentTimeMillis();
+
+		synchronized (processingPool) {
+			for (SPU spu : quarantine.values()) {
+				if (!spu.dirty || spu.background || now - spu.quarantineTime < SPUManagerBeans.getQuarantinePeriod())
+					continue;
+
+				if (isCurrent(spu)) {
+					SPUManagerBeans.staleEvaluation();
+					spu.dirty = false;
+					continue;
+				}
+
+				spu.quarantineTime = now;
+				startEvaluation(spu, "Re-evaluation", now);
+			}
+		}
+	}
+
+	// Restored SPUs are evaluated again one at a time (i.e., at most revalidation rate SPUs per second)
+	private void revalidate() {
+		SPU spu = revalidation.poll();
+		if (spu == null)
+			return;
+
+		synchronized (processingPool) {
+			// Already evaluated after the last update of its graphs
+			if (isCurrent(spu)) {
+				SPUManagerBeans.staleEvaluation();
+				return;
+			}
+			evaluate(spu, "Revalidation");
+		}
+	}
+
+	/**
+	 * @return true if the last results of the SPU reflect all the updates of its
+	 *         graphs (i.e., an evaluation would not change them)
+	 */
+	private boolean isCurrent(SPU spu) {
+		return spu.version >= 0 && spu.version >= versions.latest(spu.getSubscribe().getRdfDataSet());
+	}
+
+	/**
+	 * @return the version of the last update (see {@link GraphVersions})
+	 */
+	long getVersion() {
+		return versions.current();
+	}
+
+	private void restore() {
+		String file = SPUManagerBeans.getSnapshotFile();
+		if (file.isEmpty())
+			return;
+
+		try {
+			long start = System.currentTimeMillis();
+			restored.putAll(SubscriptionsSnapshot.load(Paths.get(file), dictionary));
+			logger.info("Restored " + restored.size() + " SPUs from " + file + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (IOException e) {
+			logger.error("@restore " + e.getMessage());
+		}
+	}
 
-		if (!processingPool.isEmpty()) {
-			logger.error(
-					"@postUpdateProcessing timeout on SPU processing. SPUs still running: " + processingPool.size());
-			throw new SEPAProcessingException(
-					"@postUpdateProcessing timeout on SPU processing. SPUs still running: " + processingPool.size());
+	/**
+	 * Saves the SPUs and their last results in the snapshot file (if any). The
+	 * SPUs restored from the previous snapshot that have not been subscribed
+	 * in the meanwhile are discarded.
+	 */
+	@Override
+	public synchronized void snapshot() {
+		String file = SPUManagerBeans.getSnapshotFile();
+		if (file.isEmpty())
+			return;
+
+		for (String key : restored.keySet()) {
+			CompactResults results = restored.remove(key);
+			if (results != null)
+				results.release();
+		}
 
+		try {
+			long start = System.currentTimeMillis();
+			int n = SubscriptionsSnapshot.save(Paths.get(file), spus.values());
+			long time = System.currentTimeMillis() - start;
+			SPUManagerBeans.snapshot(n, time);
+			logger.debug("@snapshot " + n + " SPUs saved in " + time + " ms");
+		} catch (IOException | RuntimeException e) {
+			logger.error("@snapshot " + e.getMessage());
 		}
 	}
 
-	public synchronized void endOfProcessing(SPU s) {
+	/**
+	 * Stops the notifications delivery and the timers of the manager
+	 */
+	public void shutdown() {
+		dispatcher.shutdown();
+		initializer.shutdown();
+		quarantineTimer.shutdown();
+		snapshotTimer.shutdown();
+		lingerTimer.shutdown();
+	}
+
+	public void endOfProcessing(SPU s) {
 		logger.trace("@endOfProcessing  SPUID: " + s.getSPUID());
 
-		processingPool.remove(s);
-		if (processingPool.isEmpty())
-			notify();
+		synchronized (processingPool) {
+			long now = System.currentTimeMillis();
+
+			if (processingPool.remove(s)) {
+				// Completed within the deadline (timeouts are counted on the whole update processing)
+				if (postProcessing)
+					s.timeouts = 0;
+				s.lastProcessingTime = now - s.startTime;
+				dispatch();
+				if (processingPool.isEmpty())
+					processingPool.notify();
+			} else if (s.background) {
+				s.background = false;
+				s.lastProcessingTime = now - s.startTime;
+
+				// Late processing has been already accounted for when the deadline expired
+				if (s.evaluation) {
+					s.evaluation = false;
+
+					if (s.lastProcessingTime <= SPUManagerBeans.getSPUProcessingTimeout()) {
+						s.timeouts = 0;
+						if (s.quarantined) {
+							logger.info("@endOfProcessing SPU released from quarantine: " + s.getSPUID());
+							s.quarantined = false;
+							quarantine.remove(s.getSPUID());
+						}
+					} else
+						timeout(s, now);
+				}
+
+				// Catch up the updates skipped in the meanwhile (unless already reflected by the results)
+				if (s.dirty && !s.quarantined) {
+					if (isCurrent(s)) {
+						SPUManagerBeans.staleEvaluation();
+						s.dirty = false;
+					} else
+						startEvaluation(s, "Catch-up", now);
+				}
+			}
+
+			// Killed
+			if (!spus.containsKey(s.getSPUID()))
+				quarantine.remove(s.getSPUID());
+		}
 	}
 
-	public synchronized Response subscribe(InternalSubscribeRequest req) throws InterruptedException {
+	/**
+	 * Subscribes to an existing SPU or creates a new one. The first query of a
+	 * new SPU runs on the initialization pool: the response is sent to the
+	 * handler when the SPU is ready, while updates and other subscriptions go on.
+	 * 
+	 * A request with a resume token (see
+	 * {@link InternalSubscribeRequest#getResumeSpuid()}) resumes the subscription
+	 * if its SPU keeps the notifications missed in the meanwhile (see
+	 * {@link ReplayBuffer}). Otherwise, it is served as a new subscription (i.e.,
+	 * full resync).
+	 */
+	public void subscribe(InternalSubscribeRequest req, ResponseHandler handler) {
 
 		SPUManagerBeans.subscribeRequest();
 
-		// Create or link to an existing SPU
-		SPU spu;
-		if (Subscriptions.contains(req)) {
-			spu = Subscriptions.getSPU(req);
-		} else {
-			spu = Subscriptions.createSPU(req, this);
+		if (req.getResumeSpuid() != null) {
+			SPU spu = subscriptions.getSPU(req);
+			if (spu != null && resume(req, spu, handler))
+				return;
+			SPUManagerBeans.resync();
+		}
 
-			// Initialize SPU
-			Response init;
-			try {
-				init = spu.init();
-			} catch (SEPASecurityException e) {
-				logger.error(e.getMessage());
-				if (logger.isTraceEnabled())
-					e.printStackTrace();
-				init = new ErrorResponse(401, "SEPASecurityException", e.getMessage());
+		while (true) {
+			// Link to an existing SPU (unless it is being killed)
+			SPU spu = subscriptions.getSPU(req);
+			if (spu != null && attach(req, spu, handler))
+				return;
+
+			// Create a new SPU
+			spu = subscriptions.createSPU(req, this);
+
+			PendingSPU pendingSPU = new PendingSPU();
+			pendingSPU.add(req, handler);
+			pending.put(spu.getSPUID(), pendingSPU);
+
+			// Register request
+			if (subscriptions.register(req, spu)) {
+				SPU newSPU = spu;
+				CompactResults results = (restored.isEmpty() ? null : restored.remove(SubscriptionsSnapshot.key(req)));
+				initializer.execute(() -> initialize(newSPU, results));
+				return;
+			}
+
+			// Another SPU has been registered in the meanwhile
+			pending.remove(spu.getSPUID());
+		}
+	}
+
+	/**
+	 * @return false if the subscription cannot be resumed
+	 */
+	private boolean resume(InternalSubscribeRequest req, SPU spu, ResponseHandler handler) {
+		String sid = req.getResumeSpuid();
+		String previous = null;
+		Subscriber sub;
+
+		synchronized (spu.lock) {
+			if (pending.containsKey(spu.getSPUID()))
+				return false;
+
+			// Still attached to the previous gate (e.g., not yet closed)
+			Subscriber attached = subscriptions.findSubscriber(sid);
+			if (attached != null && attached.getSPU() == spu)
+				previous = attached.getGID();
+
+			sub = subscriptions.resume(req, spu, sid, req.getResumeSequence());
+			if (sub == null)
+				return false;
+		}
+
+		logger.debug("@resume " + sid + " from sequence " + req.getResumeSequence());
+
+		if (previous != null)
+			Dependability.onUnsubscribe(previous, sid);
+		Dependability.onSubscribe(req.getGID(), sid);
+
+		// The missed notifications follow the response
+		sendResponse(handler, new ResumeResponse(sid, req.getAlias(), req.getResumeSequence()), sub);
+
+		return true;
+	}
+
+	/**
+	 * @return false if the SPU has been killed (or its initialization failed)
+	 */
+	private boolean attach(InternalSubscribeRequest req, SPU spu, ResponseHandler handler) {
+		Subscriber sub;
+		BindingsResults results;
+
+		// The subscriber gets the current results and all the notifications that follow
+		synchronized (spu.lock) {
+			PendingSPU pendingSPU = pending.get(spu.getSPUID());
+			if (pendingSPU != null) {
+				// First results not yet available
+				pendingSPU.add(req, handler);
+				return true;
+			}
+
+			// Results first: a re-evaluation (if any) is notified to the current subscribers only
+			results = spu.getLastBindings();
+			sub = subscriptions.addSubscriber(req, spu);
+			if (sub == null)
+				return false;
+		}
+
+		Dependability.onSubscribe(req.getGID(), sub.getSID());
+
+		sendResponse(handler, new SubscribeResponse(sub.getSID(), req.getAlias(), results), sub);
+
+		return true;
+	}
+
+	/**
+	 * @param results
+	 *            the results restored from the snapshot (null to run the first
+	 *            query)
+	 */
+	private void initialize(SPU spu, CompactResults results) {
+		logger.debug("@initialize " + spu.getSPUID() + (results != null ? " (restored)" : ""));
+
+		// Initialize SPU (i.e., first query). Restored results have no version.
+		Response init;
+		try {
+			long version = versions.current();
+			long start = System.nanoTime();
+			init = (results != null ? spu.restore(results) : spu.init());
+			if (results == null && !init.isError()) {
+				spu.version = version;
+				// The first query is the first estimate of the processing cost
+				spu.cost(System.nanoTime() - start);
 			}
+		} catch (SEPASecurityException e) {
+			logger.error(e.getMessage());
+			if (logger.isTraceEnabled())
+				e.printStackTrace();
+			init = new ErrorResponse(401, "SEPASecurityException", e.getMessage());
+		}
+
+		PendingSPU pendingSPU;
+		ArrayList<Subscriber> subscribers = new ArrayList<Subscriber>();
+		BindingsResults firstResults = null;
+		synchronized (spu.lock) {
+			pendingSPU = pending.get(spu.getSPUID());
 
 			if (init.isError()) {
 				logger.error("@subscribe SPU initialization failed: " + init);
-				if (req.getAlias() != null) {
-					((ErrorResponse) init).setAlias(req.getAlias());
-				}
+				subscriptions.unregister(spu);
+			} else {
+				// Start the SPU thread
+				spus.put(spu.getSPUID(), spu);
+				spu.setName(spu.getSPUID());
+				spu.start();
 
-				return init;
+				SPUManagerBeans.setActiveSPUs(spus.size());
+
+				// Attach the subscribers waiting for the first results
+				firstResults = spu.getLastBindings();
+				for (InternalSubscribeRequest req : pendingSPU.requests)
+					subscribers.add(subscriptions.addSubscriber(req, spu));
 			}
 
-			// Register request
-			Subscriptions.register(req, spu);
+			pending.remove(spu.getSPUID());
+		}
+
+		// Restored results may be out of date: evaluate the SPU again
+		if (!init.isError() && results != null) {
+			SPUManagerBeans.restoredSPU();
+			revalidation.add(spu);
+		}
 
-			// Create new entry for handler
-			spus.put(spu.getSPUID(), spu);
+		// Send responses
+		for (int i = 0; i < pendingSPU.requests.size(); i++) {
+			InternalSubscribeRequest req = pendingSPU.requests.get(i);
+			ResponseHandler handler = pendingSPU.handlers.get(i);
+
+			if (init.isError()) {
+				ErrorResponse error = new ErrorResponse(((ErrorResponse) init).getStatusCode(),
+						((ErrorResponse) init).getError(), ((ErrorResponse) init).getErrorDescription());
+				if (req.getAlias() != null)
+					error.setAlias(req.getAlias());
+				sendResponse(handler, error);
+			} else {
+				Subscriber sub = subscribers.get(i);
+				Dependability.onSubscribe(req.getGID(), sub.getSID());
+				sendResponse(handler, new SubscribeResponse(sub.getSID(), req.getAlias(), firstResults), sub);
+			}
+		}
 
-			// Start the SPU thread
-			spu.setName(spu.getSPUID());
-			spu.start();
+		// An update has been processed while the first query was running: reconcile the results
+		if (!init.isError() && pendingSPU.reconcile) {
+			logger.debug("@initialize reconcile " + spu.getSPUID());
+			synchronized (processingPool) {
+				evaluate(spu, "Reconcile");
+			}
 		}
+	}
 
-		Subscriber sub = Subscriptions.addSubscriber(req, spu);
+	private void sendResponse(ResponseHandler handler, Response response) {
+		try {
+			handler.sendResponse(response);
+		} catch (SEPAProtocolException e) {
+			logger.error("@sendResponse " + e.getMessage());
+		}
+	}
 
-		return new SubscribeResponse(sub.getSID(), req.getAlias(), sub.getSPU().getLastBindings());
+	/**
+	 * Sends the response of a new subscriber: its notifications are held until
+	 * the response has been sent
+	 */
+	private void sendResponse(ResponseHandler handler, Response response, Subscriber sub) {
+		try {
+			handler.sendResponse(response, () -> dispatcher.release(sub));
+		} catch (SEPAProtocolException e) {
+			logger.error("@sendResponse " + e.getMessage());
+		}
 	}
 
-	public synchronized Response unsubscribe(String sid, String gid) throws InterruptedException {
+	public Response unsubscribe(String sid, String gid) throws InterruptedException {
 		return internalUnsubscribe(sid, gid, true);
 	}
 
-	public synchronized void killSubscription(String sid, String gid) throws InterruptedException {
+	public void killSubscription(String sid, String gid) throws InterruptedException {
 		internalUnsubscribe(sid, gid, false);
 	}
 
+	/**
+	 * @param dep false if the gate has been closed: the subscriber is killed
+	 *            only if it is still attached to the gate (i.e., it has not
+	 *            been resumed by another gate) and it can be resumed
+	 */
 	private Response internalUnsubscribe(String sid, String gid, boolean dep) throws InterruptedException {
 
 		try {
-			Subscriber sub = Subscriptions.getSubscriber(sid);
-			String spuid = sub.getSPU().getSPUID();
+			Subscriber sub = subscriptions.getSubscriber(sid);
+			SPU spu = sub.getSPU();
 
-			if (Subscriptions.removeSubscriber(sub)) {
-				// If it is the last handler: kill SPU
-//				spus.get(spuid).finish();
-				spus.get(spuid).interrupt();
+			if (!dep && gid != null && !gid.equals(sub.getGID()))
+				throw new SEPANotExistsException("Subscriber " + sid + " has been resumed by another gate");
 
-				// Clear
-				spus.remove(spuid);
-
-				logger.info("@internalUnsubscribe active SPUs: " + spus.size());
-
-				SPUManagerBeans.setActiveSPUs(spus.size());
+			if (subscriptions.removeSubscriber(sub, !dep)) {
+				// If it is the last handler: kill SPU
+				kill(spu);
+			} else if (!dep && subscriptions.getSubscribers(spu).length == 0) {
+				// The SPU lingers: a reconnecting client can resume its subscriber
+				lingerTimer.schedule(() -> expire(spu), SPUManagerBeans.getLinger(), TimeUnit.MILLISECONDS);
 			}
 		} catch (SEPANotExistsException e) {
 			logger.warn("@internalUnsubscribe SID not found: " + sid);
 
-			return new ErrorResponse(500, "sid_not_found", "Unregistering a not existing subscriber: " + sid);
+			// The SID is the alias of the error (e.g., to match the unsubscribes of a batch)
+			ErrorResponse error = new ErrorResponse(500, "sid_not_found",
+					"Unregistering a not existing subscriber: " + sid);
+			error.setAlias(sid);
+			return error;
 		}
 
 		if (dep)
@@ -286,14 +898,35 @@ public class SPUManager implements SPUManagerMBean, EventHandler {
 		return new UnsubscribeResponse(sid);
 	}
 
+	private void kill(SPU spu) {
+		spus.remove(spu.getSPUID());
+		spu.interrupt();
+		spu.dispose();
+
+		// The SPU will not complete a pending processing
+		endOfProcessing(spu);
+
+		logger.info("@kill active SPUs: " + spus.size());
+
+		SPUManagerBeans.setActiveSPUs(spus.size());
+	}
+
+	// Kills the SPU if it is still lingering without subscribers
+	private void expire(SPU spu) {
+		if (subscriptions.expire(spu)) {
+			kill(spu);
+			SPUManagerBeans.lingerExpired();
+		}
+	}
+
 	@Override
 	public void notifyEvent(Notification notify) throws SEPAProtocolException {
 		logger.trace("@notifyEvent " + notify);
 
-		String spuid = notify.getSpuid();
+		SPU spu = spus.get(notify.getSpuid());
 
-		if (spus.containsKey(spuid)) {
-			Subscriptions.notifySubscribers(spuid, notify);
+		if (spu != null) {
+			subscriptions.notifySubscribers(spu, notify, dispatcher);
 		}
 	}
 
@@ -329,7 +962,43 @@ public class SPUManager implements SPUManagerMBean, EventHandler {
 
 	@Override
 	public void setSPUProcessingTimeout(long t) {
-		SPUManagerBeans.setActiveSPUs(t);
+		SPUManagerBeans.setSPUProcessingTimeout((int) t);
+	}
+
+	@Override
+	public int getQuarantineThreshold() {
+		return SPUManagerBeans.getQuarantineThreshold();
+	}
+
+	@Override
+	public void setQuarantineThreshold(int n) {
+		SPUManagerBeans.setQuarantineThreshold(n);
+	}
+
+	@Override
+	public long getQuarantinePeriod() {
+		return SPUManagerBeans.getQuarantinePeriod();
+	}
+
+	@Override
+	public void setQuarantinePeriod(long t) {
+		SPUManagerBeans.setQuarantinePeriod((int) t);
+	}
+
+	@Override
+	public long getProcessingTimeouts() {
+		return SPUManagerBeans.getProcessingTimeouts();
+	}
+
+	@Override
+	public String[] getQuarantinedSPUs() {
+		ArrayList<String> ret = new ArrayList<String>();
+		synchronized (processingPool) {
+			for (SPU spu : quarantine.values())
+				ret.add(String.format("%s timeouts: %d last processing time: %d ms query: %s", spu.getSPUID(),
+						spu.timeouts, spu.lastProcessingTime, spu.getSubscribe().getSparql()));
+		}
+		return ret.toArray(new String[ret.size()]);
 	}
 
 	@Override
@@ -382,8 +1051,225 @@ public class SPUManager implements SPUManagerMBean, EventHandler {
 		return SPUManagerBeans.getFiltering_time_average();
 	}
 
-	public Response processQuery(InternalSubscribeRequest subscribe) throws SEPASecurityException {
-		return processor.processQuery(subscribe);
+	TermDictionary getTermDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public long getResults_rows() {
+		return SPUManagerBeans.getCachedRows();
+	}
+
+	@Override
+	public long getResults_terms() {
+		return dictionary.size();
+	}
+
+	@Override
+	public long getResults_heap() {
+		return SPUManagerBeans.getCachedRowsBytes() + dictionary.getHeapBytes();
+	}
+
+	@Override
+	public long getResults_heapPerMillionRows() {
+		long rows = SPUManagerBeans.getCachedRows();
+		if (rows == 0)
+			return 0;
+		return (long) (getResults_heap() * (1000000.0 / rows));
+	}
+
+	@Override
+	public long getResults_spilled() {
+		return SPUManagerBeans.getSpilledResults();
+	}
+
+	@Override
+	public long getResults_spilledBytes() {
+		return SPUManagerBeans.getSpilledBytes();
+	}
+
+	@Override
+	public int getSpillThreshold() {
+		return SPUManagerBeans.getSpillThreshold();
+	}
+
+	@Override
+	public void setSpillThreshold(int rows) {
+		SPUManagerBeans.setSpillThreshold(rows);
+	}
+
+	@Override
+	public long getResults_fingerprintRows() {
+		return SPUManagerBeans.getFingerprintRows();
+	}
+
+	@Override
+	public long getResults_fingerprintBytes() {
+		return SPUManagerBeans.getFingerprintBytes();
+	}
+
+	@Override
+	public long getResults_fingerprintMisses() {
+		return SPUManagerBeans.getFingerprintMisses();
+	}
+
+	@Override
+	public int getFingerprintThreshold() {
+		return SPUManagerBeans.getFingerprintThreshold();
+	}
+
+	@Override
+	public void setFingerprintThreshold(int rows) {
+		SPUManagerBeans.setFingerprintThreshold(rows);
+	}
+
+	@Override
+	public long getIncremental_updates() {
+		return SPUManagerBeans.getIncrementalUpdates();
+	}
+
+	@Override
+	public long getIncremental_evaluations() {
+		return SPUManagerBeans.getIncrementalEvaluations();
+	}
+
+	@Override
+	public long getIncremental_uninstantiated() {
+		return SPUManagerBeans.getUninstantiatedUpdates();
+	}
+
+	@Override
+	public int getIncrementalMaxQuads() {
+		return SPUManagerBeans.getIncrementalMaxQuads();
+	}
+
+	@Override
+	public void setIncrementalMaxQuads(int quads) {
+		SPUManagerBeans.setIncrementalMaxQuads(quads);
+	}
+
+	@Override
+	public int getMaxConcurrentProcessing() {
+		return SPUManagerBeans.getMaxConcurrentProcessing();
+	}
+
+	@Override
+	public void setMaxConcurrentProcessing(int n) {
+		SPUManagerBeans.setMaxConcurrentProcessing(n);
+	}
+
+	@Override
+	public String[] getNotificationLatency_perPriority() {
+		return SPUManagerBeans.getNotificationLatency_perPriority();
+	}
+
+	@Override
+	public long getNotification_coalesced() {
+		return SPUManagerBeans.getCoalescedNotifications();
+	}
+
+	@Override
+	public long getVersions_skippedEvaluations() {
+		return SPUManagerBeans.getStaleEvaluations();
+	}
+
+	@Override
+	public long getVersions_current() {
+		return versions.current();
+	}
+
+	@Override
+	public int getVersions_graphs() {
+		return versions.size();
+	}
+
+	@Override
+	public int getSnapshot_SPUs() {
+		return SPUManagerBeans.getSnapshotSPUs();
+	}
+
+	@Override
+	public long getSnapshot_time() {
+		return SPUManagerBeans.getSnapshotTime();
+	}
+
+	@Override
+	public long getRestoredSPUs() {
+		return SPUManagerBeans.getRestoredSPUs();
+	}
+
+	@Override
+	public int getRevalidationsPending() {
+		return revalidation.size();
+	}
+
+	@Override
+	public int getReplayBufferSize() {
+		return SPUManagerBeans.getReplayBufferSize();
+	}
+
+	@Override
+	public void setReplayBufferSize(int n) {
+		SPUManagerBeans.setReplayBufferSize(n);
+	}
+
+	@Override
+	public long getReplayBufferBytes() {
+		return SPUManagerBeans.getReplayBufferBytes();
+	}
+
+	@Override
+	public void setReplayBufferBytes(long n) {
+		SPUManagerBeans.setReplayBufferBytes(n);
+	}
+
+	@Override
+	public long getResume_subscribers() {
+		return SPUManagerBeans.getResumedSubscribers();
+	}
+
+	@Override
+	public long getResume_replayedNotifications() {
+		return SPUManagerBeans.getReplayedNotifications();
+	}
+
+	@Override
+	public long getResume_resyncs() {
+		return SPUManagerBeans.getResyncs();
+	}
+
+	@Override
+	public long getResume_denied() {
+		return SPUManagerBeans.getResumeDenied();
+	}
+
+	@Override
+	public long getLinger() {
+		return SPUManagerBeans.getLinger();
+	}
+
+	@Override
+	public void setLinger(long ms) {
+		SPUManagerBeans.setLinger(ms);
+	}
+
+	@Override
+	public long getLinger_SPUs() {
+		return SPUManagerBeans.getLingeringSPUs();
+	}
+
+	@Override
+	public long getLinger_reattached() {
+		return SPUManagerBeans.getLingerReattached();
+	}
+
+	@Override
+	public long getLinger_expired() {
+		return SPUManagerBeans.getLingerExpired();
+	}
+
+	public Response processQuery(InternalQueryRequest query) throws SEPASecurityException {
+		return processor.processQuery(query);
 	}
 
 	@Override
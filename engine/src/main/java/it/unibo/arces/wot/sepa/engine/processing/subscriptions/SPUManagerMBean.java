@@ -49,6 +49,64 @@ public interface SPUManagerMBean {
 	public long getSPUProcessingTimeout();
 	public void setSPUProcessingTimeout(long t);
 	
+	public int getQuarantineThreshold();
+	public void setQuarantineThreshold(int n);
+	public long getQuarantinePeriod();
+	public void setQuarantinePeriod(long t);
+	public long getProcessingTimeouts();
+	public String[] getQuarantinedSPUs();
+	
+	public long getResults_rows();
+	public long getResults_terms();
+	public long getResults_heap();
+	public long getResults_heapPerMillionRows();
+	public long getResults_spilled();
+	public long getResults_spilledBytes();
+	public int getSpillThreshold();
+	public void setSpillThreshold(int rows);
+
+	public long getResults_fingerprintRows();
+	public long getResults_fingerprintBytes();
+	public long getResults_fingerprintMisses();
+	public int getFingerprintThreshold();
+	public void setFingerprintThreshold(int rows);
+
+	public long getIncremental_updates();
+	public long getIncremental_evaluations();
+	public long getIncremental_uninstantiated();
+	public int getIncrementalMaxQuads();
+	public void setIncrementalMaxQuads(int quads);
+
+	public int getMaxConcurrentProcessing();
+	public void setMaxConcurrentProcessing(int n);
+	public String[] getNotificationLatency_perPriority();
+	public long getNotification_coalesced();
+
+	public long getVersions_skippedEvaluations();
+	public long getVersions_current();
+	public int getVersions_graphs();
+
+	public int getSnapshot_SPUs();
+	public long getSnapshot_time();
+	public long getRestoredSPUs();
+	public int getRevalidationsPending();
+
+	public int getReplayBufferSize();
+	public void setReplayBufferSize(int n);
+	public long getReplayBufferBytes();
+	public void setReplayBufferBytes(long n);
+	public long getResume_subscribers();
+	public long getResume_replayedNotifications();
+	public long getResume_resyncs();
+	public long getResume_denied();
+
+	public long getLinger();
+	public void setLinger(long ms);
+	public long getLinger_SPUs();
+	public long getLinger_reattached();
+	public long getLinger_expired();
+	public void snapshot();
+	
 	public void scale_ms();
 	public void scale_us();
 	public void scale_ns();
@@ -18,34 +18,90 @@
 
 package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
 
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryException;
+import org.apache.jena.sparql.core.Quad;
 import org.apache.logging.log4j.Logger;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
 import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
 import it.unibo.arces.wot.sepa.commons.response.Response;
 import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
 import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
 import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
-import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
 import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.apache.logging.log4j.LogManager;
 
+/**
+ * Evaluates the subscription after each update and compares the current
+ * results with the last ones.
+ *
+ * Results with at least the fingerprint threshold rows are tracked as row
+ * fingerprints (see {@link RowFingerprints}). The removed solutions are taken
+ * from a small cache of the solutions lately added or, if not cached, from the
+ * solutions queried in the pre-processing phase (i.e., before the endpoint is
+ * updated): only the ones that match the deleted quads if the query can be
+ * restricted to them (see {@link #restrictable(Query)}), all of them
+ * otherwise.
+ *
+ * If a removed solution cannot be found (e.g., a catch-up or a re-evaluation
+ * is not pre-processed), the subscribers are sent the current results as new
+ * first results (see {@link ResyncNotification}): a notification would not be
+ * complete.
+ */
 class SPUNaive extends SPU {
 	private final Logger logger;
 
-	public SPUNaive(InternalSubscribeRequest subscribe, SPUManager manager) throws SEPAProtocolException {
+	// The query (null if not parsed) and its triple patterns (null if it cannot be restricted to the quads)
+	final Query query;
+	final TriplePatterns patterns;
+
+	// Fingerprint mode (lastBindings is null)
+	private volatile RowFingerprints fingerprints = null;
+	private RowFingerprints.RowCache cache = null;
+
+	// First results (fingerprint mode): returned once to the first subscribers
+	private BindingsResults firstResults = null;
+
+	// Results before the update (fingerprint mode): used to notify the removed solutions
+	private volatile BindingsResults before = null;
+
+	// Results queried by the processing of an update and the ones before it: compared
+	// with the last ones holding the lock (see commit)
+	private BindingsResults fetched = null;
+	private BindingsResults removable = null;
+
+	// Incremented each time a new subscriber reconciles the results (fingerprint mode)
+	private volatile long reconciled = 0;
+	private long seen = 0;
+
+	/**
+	 * @param query the parsed query (null if not known: the query is not
+	 *              restricted to the quads of the updates)
+	 */
+	public SPUNaive(InternalSubscribeRequest subscribe, SPUManager manager, Query query)
+			throws SEPAProtocolException {
 		super(subscribe, manager);
 
 		this.spuid = "sepa://spu/naive/" + UUID.randomUUID();
 
+		this.query = query;
+		patterns = (query != null && restrictable(query) ? TriplePatterns.parse(query) : null);
+
 		logger = LogManager.getLogger("SPUNaive" + getSPUID());
 		logger.debug("SPU: " + this.getSPUID() + " request: " + subscribe);
 	}
@@ -62,77 +118,252 @@ class SPUNaive extends SPU {
 			return ret;
 		}
 
-		lastBindings = ((QueryResponse) ret).getBindingsResults();
+		BindingsResults results = ((QueryResponse) ret).getBindingsResults();
+
+		logger.debug("First results: " + results.toString());
 
-		logger.debug("First results: " + lastBindings.toString());
+		int threshold = SPUManagerBeans.getFingerprintThreshold();
+		if (threshold > 0 && results.size() >= threshold) {
+			cache = new RowFingerprints.RowCache(SPUManagerBeans.getFingerprintCacheSize());
+			fingerprints = new RowFingerprints(results);
+			firstResults = results;
+		} else
+			lastBindings = new CompactResults(manager.getTermDictionary(), results);
 
-		return new SubscribeResponse(getSPUID(), subscribe.getAlias(), lastBindings);
+		return new SubscribeResponse(getSPUID(), subscribe.getAlias(), results);
 	}
 
-	@Override
-	public void preUpdateInternalProcessing(InternalUpdateRequest req) throws SEPAProcessingException {
+	/**
+	 * @return true if the solutions that match some quads are given by the
+	 *         query restricted to them (see
+	 *         {@link TriplePatterns#restrict(Query, java.util.Collection)}): a
+	 *         <code>SELECT</code> without aggregates, LIMIT, OFFSET and VALUES
+	 *         whose pattern is made of triple patterns and filters without blank
+	 *         nodes
+	 */
+	static boolean restrictable(Query query) {
+		if (!query.isSelectType() || query.hasLimit() || query.hasOffset())
+			return false;
+		if (query.hasGroupBy() || query.hasAggregators() || query.hasHaving() || query.hasValues())
+			return false;
+
+		TriplePatterns patterns = TriplePatterns.parse(query);
+		return patterns != null && !patterns.hasBlankNodes();
+	}
 
+	/**
+	 * @return true if the results are tracked as row fingerprints (i.e.,
+	 *         lastBindings is null)
+	 */
+	boolean tracksFingerprints() {
+		return fingerprints != null;
 	}
 
 	@Override
-	public Notification postUpdateInternalProcessing(UpdateResponse res) throws SEPAProcessingException {
-		logger.trace("* PROCESSING *" + subscribe);
-		Response ret = null;
+	boolean needsQuads() {
+		return patterns != null && tracksFingerprints();
+	}
 
-		// Query the SPARQL processing service
+	@Override
+	public void preUpdateInternalProcessing(InternalUpdateRequest req) throws SEPAProcessingException {
+		before = null;
+		if (fingerprints == null)
+			return;
+
+		// The solutions that may be removed are the ones that match the deleted quads
+		InternalPreProcessedUpdateRequest update = (req instanceof InternalPreProcessedUpdateRequest
+				? (InternalPreProcessedUpdateRequest) req
+				: null);
+		BindingsResults removable = null;
+		if (patterns != null && update != null && update.hasQuads())
+			removable = restricted(update.getDeletedQuads());
+
+		before = (removable != null ? removable : query());
+	}
+
+	/**
+	 * @return the solutions that match one of the quads (i.e., the results of
+	 *         the query restricted to them) or null if all the solutions may
+	 *         match them
+	 */
+	BindingsResults restricted(List<Quad> quads) throws SEPAProcessingException {
+		if (quads.isEmpty() || !patterns.matches(quads))
+			return new BindingsResults(new ArrayList<String>(), null);
+
+		Query restricted = patterns.restrict(query, quads);
+		if (restricted == null)
+			return null;
+		restricted.setDistinct(true);
+
+		Response ret;
 		try {
-			ret = manager.processQuery(subscribe);
-		} catch (SEPASecurityException e) {
-			if (logger.isTraceEnabled()) e.printStackTrace();
+			ret = manager.processQuery(new InternalQueryRequest(restricted.serialize(), subscribe.getDefaultGraphUri(),
+					subscribe.getNamedGraphUri(), subscribe.getClientAuthorization()));
+		} catch (SEPASecurityException | QueryException e) {
+			if (logger.isTraceEnabled())
+				e.printStackTrace();
 			throw new SEPAProcessingException(e.getMessage());
 		}
-
-		if (ret.isError()) {
+		if (ret.isError())
 			throw new SEPAProcessingException(ret.toString());
-		}
 
-		// Current and previous bindings
-		BindingsResults results = ((QueryResponse) ret).getBindingsResults();
-		BindingsResults currentBindings = new BindingsResults(results);
+		return ((QueryResponse) ret).getBindingsResults();
+	}
 
-		// Initialize the results with the current bindings
-		BindingsResults added = new BindingsResults(results.getVariables(), null);
-		BindingsResults removed = new BindingsResults(results.getVariables(), null);
+	@Override
+	public Notification postUpdateInternalProcessing(UpdateResponse res) throws SEPAProcessingException {
+		logger.trace("* PROCESSING *" + subscribe);
 
-		// Create empty bindings if null
-		if (lastBindings == null)
-			lastBindings = new BindingsResults(null, null);
+		removable = before;
+		before = null;
 
-		logger.trace("Current bindings: " + currentBindings);
-		logger.trace("Last bindings: " + lastBindings);
+		// Current bindings (compared with the last ones holding the lock)
+		seen = reconciled;
+		fetched = query();
 
-		// Find removed bindings
+		return null;
+	}
+
+	@Override
+	Notification commit(Notification notify) throws SEPAProcessingException {
+		BindingsResults results = fetched;
+		BindingsResults removable = this.removable;
+		fetched = null;
+		this.removable = null;
+
+		// Not queried by the processing (e.g., incremental)
+		if (results == null)
+			return super.commit(notify);
+
+		// Reconciled by a new subscriber in the meanwhile: the results queried may be older
+		if (reconciled != seen)
+			results = query();
+		firstResults = null;
+
+		// Find added and removed bindings (and update the last bindings with the current ones)
 		long start = System.nanoTime();
-		for (Bindings solution : lastBindings.getBindings()) {
-			if (!results.contains(solution) && !solution.isEmpty())
-				removed.add(solution);
-			else
-				results.remove(solution);
+		ARBindingsResults ar = (fingerprints != null ? diffFingerprints(results, removable) : replace(results));
+		swap();
+		if (ar == null) {
+			logger.warn("Removed solutions not found: new first results");
+			track(results);
+			return new ResyncNotification(getSPUID(), results);
 		}
 		long stop = System.nanoTime();
-		logger.trace("Removed bindings: " + removed + " found in " + (stop - start) + " ns");
+		logger.trace("Added bindings: " + ar.getAddedBindings() + " Removed bindings: " + ar.getRemovedBindings()
+				+ " found in " + (stop - start) + " ns");
 
-		// Find added bindings
-		start = System.nanoTime();
-		for (Bindings solution : results.getBindings()) {
-			if (!lastBindings.contains(solution) && !solution.isEmpty())
-				added.add(solution);
-		}
-		stop = System.nanoTime();
-		logger.trace("Added bindings: " + added + " found in " + (stop - start) + " ns");
-
-		// Update the last bindings with the current ones
-		lastBindings = currentBindings;
+		// Results grown over (or shrunk under) the fingerprint threshold
+		track(results);
 
 		// Send notification (or end processing indication)
-		if (!added.isEmpty() || !removed.isEmpty())
-			return new Notification(getSPUID(), new ARBindingsResults(added, removed));
+		if (!ar.getAddedBindings().isEmpty() || !ar.getRemovedBindings().isEmpty())
+			return new Notification(getSPUID(), ar);
 
 		return null;
 	}
+
+	/**
+	 * @param before the solutions before the update that may be removed (null
+	 *               if not known)
+	 * @return the added and removed solutions or null if some removed solution
+	 *         has not been found
+	 */
+	private ARBindingsResults diffFingerprints(BindingsResults results, BindingsResults before) {
+		BindingsResults added = new BindingsResults(results.getVariables(), null);
+		BindingsResults removed = new BindingsResults(results.getVariables(), null);
+
+		RowFingerprints current = RowFingerprints.diff(fingerprints, results, before, cache, added, removed);
+		fingerprints.release();
+		fingerprints = current;
+
+		return (current.getMisses() > 0 ? null : new ARBindingsResults(added, removed));
+	}
+
+	// Switches between fingerprints and compact results
+	private void track(BindingsResults results) {
+		int threshold = SPUManagerBeans.getFingerprintThreshold();
+		boolean fingerprint = threshold > 0 && results.size() >= threshold;
+
+		if (fingerprint && fingerprints == null) {
+			logger.debug("Track fingerprints (rows: " + results.size() + ")");
+			cache = new RowFingerprints.RowCache(SPUManagerBeans.getFingerprintCacheSize());
+			fingerprints = new RowFingerprints(results);
+			lastBindings.release();
+			lastBindings = null;
+		} else if (!fingerprint && fingerprints != null) {
+			logger.debug("Track results (rows: " + results.size() + ")");
+			lastBindings = new CompactResults(manager.getTermDictionary(), results);
+			fingerprints.release();
+			fingerprints = null;
+			cache = null;
+		}
+	}
+
+	/**
+	 * In fingerprint mode the results are not kept: they are queried again. If
+	 * they changed since the last processing (i.e., the endpoint has been updated
+	 * and the SPU has not yet processed the update), the subscribers of the SPU
+	 * are notified before the new one is attached. The results queried before
+	 * the update, if any, are left to its post-processing.
+	 */
+	@Override
+	public BindingsResults getLastBindings() {
+		synchronized (lock) {
+			if (fingerprints == null)
+				return super.getLastBindings();
+
+			if (firstResults != null) {
+				BindingsResults ret = firstResults;
+				firstResults = null;
+				return ret;
+			}
+
+			Response ret;
+			try {
+				ret = manager.processQuery(subscribe);
+			} catch (SEPASecurityException e) {
+				ret = new ErrorResponse(401, "SEPASecurityException", e.getMessage());
+			}
+			if (ret.isError()) {
+				logger.error("@getLastBindings " + ret);
+				return new BindingsResults(new ArrayList<String>(), null);
+			}
+
+			BindingsResults results = ((QueryResponse) ret).getBindingsResults();
+			ARBindingsResults ar = diffFingerprints(results, before);
+			reconciled++;
+			Notification notify = null;
+			if (ar == null)
+				notify = new ResyncNotification(getSPUID(), results);
+			else if (!ar.getAddedBindings().isEmpty() || !ar.getRemovedBindings().isEmpty())
+				notify = new Notification(getSPUID(), ar);
+			if (notify != null)
+				try {
+					manager.notifyEvent(notify);
+				} catch (SEPAProtocolException e) {
+					SPUManagerBeans.notifyException();
+					logger.error("NOTIFY EVENT FAILED " + e.getMessage());
+				}
+
+			return results;
+		}
+	}
+
+	@Override
+	void dispose() {
+		synchronized (processing) {
+			synchronized (lock) {
+				super.dispose();
+				if (fingerprints != null)
+					fingerprints.release();
+				fingerprints = null;
+				cache = null;
+				firstResults = null;
+				before = null;
+				fetched = null;
+				removable = null;
+			}
+		}
+	}
 }
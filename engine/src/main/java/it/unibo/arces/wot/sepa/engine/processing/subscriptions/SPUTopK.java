@@ -0,0 +1,316 @@
+/* An SPU that maintains the top-k results of an ORDER BY ... LIMIT subscription
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryException;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingComparator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+/**
+ * Keeps the top-k window of a <code>SELECT * ... ORDER BY ... LIMIT k</code>
+ * subscription (see {@link #accepts(Query)}) in a sorted tree and maintains it
+ * with the quads of the updates:
+ * <ul>
+ * <li>the solutions that may enter the window are those that match an
+ * inserted quad: they are queried with the query restricted to such quads (see
+ * {@link TriplePatterns#restrict(Query, java.util.Collection)});</li>
+ * <li>a solution of the window that matches a deleted quad is queried again
+ * (in the same restricted query): if it no longer exists and the window was
+ * full, the (k+1)-th solution is needed and the whole query is evaluated
+ * again.</li>
+ * </ul>
+ * The query is also evaluated again if the quads of an update are not known
+ * or if some update has been skipped.
+ */
+class SPUTopK extends SPU {
+	private final Logger logger;
+
+	private final Query query;
+	private final TriplePatterns patterns;
+	private final int k;
+
+	// The window (null if the query must be evaluated again)
+	private TreeSet<Row> window = null;
+	private ArrayList<String> vars = null;
+
+	// The update being processed (set in the pre-processing phase)
+	private volatile InternalPreProcessedUpdateRequest update = null;
+
+	/**
+	 * A solution of the window
+	 */
+	private static class Row {
+		final Bindings solution;
+		final Binding binding;
+		// Two rows with the same key are the same solution (see CompactResults#key)
+		final String key;
+
+		Row(Bindings solution) {
+			this.solution = solution;
+			binding = UpdateQuads.binding(solution.toJson());
+			key = CompactResults.key(solution);
+		}
+	}
+
+	/**
+	 * @return true if the query is a <code>SELECT * ... ORDER BY ... LIMIT
+	 *         k</code> without OFFSET, aggregates and VALUES, whose pattern is
+	 *         made of triple patterns and filters (see {@link TriplePatterns})
+	 */
+	static boolean accepts(Query query) {
+		if (!query.isSelectType() || !query.hasOrderBy() || !query.hasLimit() || query.getLimit() <= 0
+				|| query.getLimit() > Integer.MAX_VALUE || query.hasOffset())
+			return false;
+		if (query.hasGroupBy() || query.hasAggregators() || query.hasHaving() || query.hasValues())
+			return false;
+
+		TriplePatterns patterns = TriplePatterns.parse(query);
+		if (patterns == null)
+			return false;
+
+		// All the variables of the pattern are needed to find the solutions that match a quad
+		if (query.isQueryResultStar())
+			return true;
+		if (!query.getProject().getExprs().isEmpty())
+			return false;
+		return query.getProjectVars().containsAll(patterns.getVars());
+	}
+
+	public SPUTopK(InternalSubscribeRequest subscribe, SPUManager manager, Query query)
+			throws SEPAProtocolException {
+		super(subscribe, manager);
+
+		this.spuid = "sepa://spu/topk/" + UUID.randomUUID();
+
+		this.query = query;
+		patterns = TriplePatterns.parse(query);
+		k = (int) query.getLimit();
+
+		logger = LogManager.getLogger("SPUTopK" + getSPUID());
+		logger.debug("SPU: " + this.getSPUID() + " request: " + subscribe + " k: " + k);
+	}
+
+	@Override
+	boolean needsQuads() {
+		return true;
+	}
+
+	private TreeSet<Row> newWindow() {
+		BindingComparator order = new BindingComparator(query.getOrderBy());
+		return new TreeSet<Row>((a, b) -> {
+			int ret = order.compare(a.binding, b.binding);
+			return (ret != 0 ? ret : a.key.compareTo(b.key));
+		});
+	}
+
+	@Override
+	public Response init() throws SEPASecurityException {
+		logger.debug("PROCESS " + subscribe);
+
+		Response ret = manager.processQuery(subscribe);
+
+		if (ret.isError()) {
+			logger.error("Not initialized");
+			return ret;
+		}
+
+		BindingsResults results = ((QueryResponse) ret).getBindingsResults();
+
+		logger.debug("First results: " + results.toString());
+
+		lastBindings = new CompactResults(manager.getTermDictionary(), results);
+		fill(results);
+
+		return new SubscribeResponse(getSPUID(), subscribe.getAlias(), results);
+	}
+
+	// Builds the window with the results of the query
+	private void fill(BindingsResults results) {
+		vars = results.getVariables();
+		window = newWindow();
+		for (Bindings solution : results.getBindings())
+			window.add(new Row(solution));
+	}
+
+	@Override
+	Response restore(CompactResults results) {
+		synchronized (lock) {
+			window = null;
+			return super.restore(results);
+		}
+	}
+
+	@Override
+	public void preUpdateInternalProcessing(InternalUpdateRequest req) throws SEPAProcessingException {
+		update = (req instanceof InternalPreProcessedUpdateRequest ? (InternalPreProcessedUpdateRequest) req : null);
+	}
+
+	@Override
+	public Notification postUpdateInternalProcessing(UpdateResponse res) throws SEPAProcessingException {
+		logger.trace("* PROCESSING *" + subscribe);
+
+		InternalPreProcessedUpdateRequest req = update;
+		update = null;
+		boolean missed = skipped;
+		skipped = false;
+
+		if (window == null || req == null || missed || !req.hasQuads())
+			return evaluate();
+
+		// Solutions of the window that may have been deleted
+		TriplePatterns.QuadIndex deleted = new TriplePatterns.QuadIndex(req.getDeletedQuads());
+		List<Row> touched = new ArrayList<Row>();
+		if (!deleted.isEmpty())
+			for (Row row : window)
+				if (patterns.touches(row.binding, deleted))
+					touched.add(row);
+
+		List<Quad> quads = new ArrayList<Quad>(req.getInsertedQuads());
+		if (!touched.isEmpty())
+			quads.addAll(req.getDeletedQuads());
+
+		if (quads.isEmpty() || !patterns.matches(quads)) {
+			SPUManagerBeans.incrementalUpdate();
+			return null;
+		}
+
+		// The top-k solutions that match the quads
+		Query restricted = patterns.restrict(query, quads);
+		if (restricted == null)
+			return evaluate();
+		restricted.setDistinct(true);
+
+		Response ret;
+		try {
+			ret = manager.processQuery(new InternalQueryRequest(restricted.serialize(), subscribe.getDefaultGraphUri(),
+					subscribe.getNamedGraphUri(), subscribe.getClientAuthorization()));
+		} catch (SEPASecurityException | QueryException e) {
+			if (logger.isTraceEnabled())
+				e.printStackTrace();
+			throw new SEPAProcessingException(e.getMessage());
+		}
+		if (ret.isError())
+			throw new SEPAProcessingException(ret.toString());
+
+		List<Row> candidates = new ArrayList<Row>();
+		Set<String> keys = new HashSet<String>();
+		for (Bindings solution : ((QueryResponse) ret).getBindingsResults().getBindings()) {
+			Row row = new Row(solution);
+			candidates.add(row);
+			keys.add(row.key);
+		}
+
+		// Touched solutions that no longer exist
+		List<Row> deletedRows = new ArrayList<Row>();
+		for (Row row : touched)
+			if (!keys.contains(row.key))
+				deletedRows.add(row);
+
+		// The (k+1)-th solution is needed
+		if (!deletedRows.isEmpty() && window.size() >= k)
+			return evaluate();
+
+		SPUManagerBeans.incrementalUpdate();
+		return merge(deletedRows, candidates);
+	}
+
+	private Notification merge(List<Row> deletedRows, List<Row> candidates) {
+		BindingsResults added = new BindingsResults(vars, null);
+		BindingsResults removed = new BindingsResults(vars, null);
+
+		for (Row row : deletedRows) {
+			window.remove(row);
+			removed.add(row.solution);
+		}
+
+		Set<Row> entered = new HashSet<Row>();
+		for (Row row : candidates) {
+			if (!window.add(row))
+				continue;
+			entered.add(row);
+			if (window.size() <= k)
+				continue;
+
+			// Eviction
+			Row last = window.pollLast();
+			if (!entered.remove(last))
+				removed.add(last.solution);
+		}
+
+		for (Row row : window)
+			if (entered.contains(row))
+				added.add(row.solution);
+
+		if (added.isEmpty() && removed.isEmpty())
+			return null;
+
+		// Last bindings in the window order
+		BindingsResults results = new BindingsResults(vars, null);
+		for (Row row : window)
+			results.add(row.solution);
+		stage(new CompactResults(manager.getTermDictionary(), results));
+
+		return new Notification(getSPUID(), new ARBindingsResults(added, removed));
+	}
+
+	@Override
+	void evaluated(BindingsResults results) {
+		if (results == null)
+			window = null;
+		else
+			fill(results);
+	}
+
+	@Override
+	void dispose() {
+		synchronized (processing) {
+			super.dispose();
+			window = null;
+			update = null;
+		}
+	}
+}
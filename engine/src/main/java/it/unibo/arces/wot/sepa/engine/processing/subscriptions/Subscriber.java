@@ -18,10 +18,12 @@
 
 package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
 
+import java.util.ArrayDeque;
 import java.util.UUID;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
 
 public class Subscriber {
@@ -31,18 +33,47 @@ public class Subscriber {
 	// Subscriber Identifier
 	private final String sid;
 	
-	private int sequence = 0;
+	// The notifications of the SPU sent before the subscriber was attached or
+	// resynced (see ReplayBuffer, guarded by the SPU lock)
+	private long offset;
 	
-	public Subscriber(SPU spu,InternalSubscribeRequest sub) {
+	// Notifications waiting to be delivered (see NotificationDispatcher, guarded by
+	// the subscriber). The notifications are held until the subscribe response has been sent.
+	private final ArrayDeque<NotificationDispatcher.Delivery> pending = new ArrayDeque<NotificationDispatcher.Delivery>();
+	private boolean draining = true;
+	
+	public Subscriber(SPU spu,InternalSubscribeRequest sub, long offset) {
+		this(spu, sub, "sepa://subscription/" + UUID.randomUUID().toString(), offset);
+	}
+	
+	/**
+	 * A resumed subscriber keeps its SID and offset
+	 */
+	Subscriber(SPU spu, InternalSubscribeRequest sub, String sid, long offset) {
 		this.spu = spu;
 		this.sub = sub;
-		
-		sid = "sepa://subscription/" + UUID.randomUUID().toString();
+		this.sid = sid;
+		this.offset = offset;
 	}
 	
-	public int nextSequence() {
-		sequence++;
-		return sequence;
+	/**
+	 * @param number the number of a notification of the SPU
+	 * @return the sequence of the notification for the subscriber
+	 */
+	public int sequence(long number) {
+		return (int) (number - offset);
+	}
+	
+	long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * The subscriber is sent new first results: their number is the new offset
+	 * (i.e., their sequence is 0)
+	 */
+	void resync(long offset) {
+		this.offset = offset;
 	}
 	
 //	public EventHandler getHandler() {
@@ -61,6 +92,10 @@ public class Subscriber {
 		return spu;
 	}
 
+	public InternalSubscribeRequest getSubscribe() {
+		return sub;
+	}
+
 	public void notifyEvent(Notification event) throws SEPAProtocolException {
 		sub.notifyEvent(event);
 	}
@@ -69,4 +104,40 @@ public class Subscriber {
 		return sub.getGID();
 	}
 	
+	/**
+	 * Queues a notification. If the notification queue size (see
+	 * {@link SPUManagerBeans#getNotificationQueueSize()}) is reached, the last
+	 * notification waiting is coalesced with the new one: the subscriber sees
+	 * a gap in the sequence numbers, but its results are consistent. New first
+	 * results (i.e., sequence 0) replace the notifications waiting.
+	 * 
+	 * @return true if the caller must schedule the delivery of the queue
+	 */
+	synchronized boolean offer(NotificationDispatcher.Delivery delivery) {
+		int max = SPUManagerBeans.getNotificationQueueSize();
+		if (delivery.event.getSequence() == 0)
+			pending.clear();
+		else if (max > 0 && pending.size() >= max) {
+			NotificationDispatcher.Delivery last = pending.pollLast();
+			delivery = new NotificationDispatcher.Delivery(
+					EncodedNotification.coalesce(last.event, delivery.event), last.timestamp);
+			SPUManagerBeans.coalescedNotification();
+		}
+		pending.add(delivery);
+		
+		if (draining) return false;
+		draining = true;
+		return true;
+	}
+	
+	/**
+	 * @return the next notification to be delivered or null if the queue is
+	 *         empty (the caller must stop draining)
+	 */
+	synchronized NotificationDispatcher.Delivery poll() {
+		NotificationDispatcher.Delivery next = pending.poll();
+		if (next == null) draining = false;
+		return next;
+	}
+	
 }
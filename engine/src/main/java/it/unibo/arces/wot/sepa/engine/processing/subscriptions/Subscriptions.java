@@ -1,4 +1,4 @@
-/* A monitor class for subscription management
+/* The registry of SPUs and subscribers
  * 
  * Author: Luca Roffia (luca.roffia@unibo.it)
 
@@ -19,51 +19,88 @@
 package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryException;
+import org.apache.jena.query.QueryFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPANotExistsException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
 import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
-import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest.Priority;
 import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
 
+/**
+ * The registry of SPUs and subscribers of an SPU manager.
+ * 
+ * Maps are concurrent: filtering an update does not block subscribe and
+ * unsubscribe requests. The subscribers of an SPU are guarded by the SPU lock
+ * (see {@link SPU#lock}), so that adding or removing a subscriber is atomic
+ * with respect to the SPU processing and its notifications.
+ */
 public class Subscriptions {
 	private static final Logger logger = LogManager.getLogger();
 
 	// SID ==> Subscriber
-	private static final HashMap<String, Subscriber> subscribers = new HashMap<String, Subscriber>();
+	private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<String, Subscriber>();
 
-	// SPUID ==> Subscribers
-	private static final HashMap<String, HashSet<Subscriber>> handlers = new HashMap<String, HashSet<Subscriber>>();
+	// SPUID ==> Subscribers (guarded by the SPU lock)
+	private final Map<String, HashSet<Subscriber>> handlers = new ConcurrentHashMap<String, HashSet<Subscriber>>();
 
 	// Request ==> SPU
-	private static final HashMap<InternalSubscribeRequest, SPU> requests = new HashMap<InternalSubscribeRequest, SPU>();
+	private final Map<InternalSubscribeRequest, SPU> requests = new ConcurrentHashMap<InternalSubscribeRequest, SPU>();
 
-	public synchronized static SPU createSPU(InternalSubscribeRequest req, SPUManager manager) {
+	public SPU createSPU(InternalSubscribeRequest req, SPUManager manager) {
 		try {
-			return new SPUNaive(req, manager);
+			// Top-k, aggregate and plain pattern subscriptions are maintained with the quads of the updates
+			Query query = null;
+			if (SPUManagerBeans.getIncrementalMaxQuads() > 0) {
+				query = parse(req);
+				if (query != null && SPUTopK.accepts(query))
+					return new SPUTopK(req, manager, query);
+				if (query != null && SPUAggregate.accepts(query))
+					return new SPUAggregate(req, manager, query);
+				if (query != null && SPUDelta.accepts(query))
+					return new SPUDelta(req, manager, query);
+			}
+
+			return new SPUNaive(req, manager, query);
 		} catch (SEPAProtocolException e) {
 			return null;
 		}
 	}
+
+	private static Query parse(InternalSubscribeRequest req) {
+		try {
+			return QueryFactory.create(req.getSparql());
+		} catch (QueryException e) {
+			logger.warn("@parse " + e.getMessage());
+			return null;
+		}
+	}
 	
-	public synchronized static Collection<SPU> filter(InternalUpdateRequest update) {
+	public Collection<SPU> filter(InternalUpdateRequest update) {
 		// First level filter: RDF data set
 		Collection<SPU> ret = new HashSet<>();
 		Set<String> target = update.getRdfDataSet();
 		
-		for(InternalSubscribeRequest sub : requests.keySet()) {
-			Set<String> context = sub.getRdfDataSet();
+		for(Map.Entry<InternalSubscribeRequest, SPU> entry : requests.entrySet()) {
+			Set<String> context = entry.getKey().getRdfDataSet();
 			for (String graph: target) {
 				if (context.contains(graph)) {
-					ret.add(requests.get(sub));
+					ret.add(entry.getValue());
 					break;
 				}
 			}
@@ -72,82 +109,280 @@ public class Subscriptions {
 		return ret;
 	}
 	
-	public synchronized static boolean contains(InternalSubscribeRequest req) {
+	public boolean contains(InternalSubscribeRequest req) {
 		return requests.containsKey(req);
 	}
 
-	public synchronized static void register(InternalSubscribeRequest req, SPU spu) {
+	/**
+	 * @return false if an SPU has been already registered for the same request
+	 */
+	public boolean register(InternalSubscribeRequest req, SPU spu) {
 		handlers.put(spu.getSPUID(), new HashSet<Subscriber>());
-		requests.put(req, spu);
+		if (requests.putIfAbsent(req, spu) != null) {
+			handlers.remove(spu.getSPUID());
+			return false;
+		}
 
-		SPUManagerBeans.setActiveSPUs(handlers.size());
-		logger.debug("@subscribe SPU activated: " + spu.getSPUID() + " total (" + handlers.size() + ")");
+		logger.debug("@subscribe SPU registered: " + spu.getSPUID() + " total (" + handlers.size() + ")");
+		return true;
 	}
 
-	public synchronized static SPU getSPU(InternalSubscribeRequest req) {
+	public void unregister(SPU spu) {
+		requests.remove(spu.getSubscribe(), spu);
+		handlers.remove(spu.getSPUID());
+	}
+
+	public SPU getSPU(InternalSubscribeRequest req) {
 		return requests.get(req);
 	}
 
-	public synchronized static Subscriber addSubscriber(InternalSubscribeRequest req, SPU spu) {
-		Subscriber sub = new Subscriber(spu, req);
-		handlers.get(spu.getSPUID()).add(sub);
-		subscribers.put(sub.getSID(), sub);
+	/**
+	 * @return the new subscriber or null if the SPU has been killed in the
+	 *         meanwhile (i.e., its last subscriber has been removed)
+	 */
+	public Subscriber addSubscriber(InternalSubscribeRequest req, SPU spu) {
+		Subscriber sub;
+		synchronized (spu.lock) {
+			HashSet<Subscriber> set = handlers.get(spu.getSPUID());
+			if (set == null) return null;
+			
+			sub = new Subscriber(spu, req, spu.replay.last());
+			set.add(sub);
+			subscribers.put(sub.getSID(), sub);
+			schedule(spu, set);
+			if (spu.lingering > 0) {
+				spu.lingering = 0;
+				SPUManagerBeans.lingerReattached();
+			}
+		}
 
 		SPUManagerBeans.addSubscriber();
-		Dependability.onSubscribe(req.getGID(), sub.getSID());
 
 		return sub;
 	}
 	
-	public synchronized static Subscriber getSubscriber(String sid) throws SEPANotExistsException {
+	public Subscriber getSubscriber(String sid) throws SEPANotExistsException {
 		Subscriber sub = subscribers.get(sid);
 		
 		if (sub == null) throw new SEPANotExistsException("Subscriber "+sid+" does not exists");
 		return sub;
 	}
 
-	public synchronized static boolean removeSubscriber(Subscriber sub) throws SEPANotExistsException {
-		String sid = sub.getSID();
-		String spuid = sub.getSPU().getSPUID();
+	/**
+	 * Resumes a subscriber (e.g., after a reconnection) with the same SID: the
+	 * notifications that follow the given sequence are queued on the new
+	 * subscriber. The subscriber may still be attached (e.g., the old gate has
+	 * not been closed yet): it is replaced.
+	 * 
+	 * @return the resumed subscriber or null if the SPU has been killed or the
+	 *         notifications are no longer available (i.e., a full resync is
+	 *         needed)
+	 */
+	public Subscriber resume(InternalSubscribeRequest req, SPU spu, String sid, int sequence) {
+		Subscriber sub;
+		List<ReplayBuffer.Entry> missed;
+		synchronized (spu.lock) {
+			HashSet<Subscriber> set = handlers.get(spu.getSPUID());
+			if (set == null) return null;
+
+			Subscriber attached = subscribers.get(sid);
+			Subscriber previous = (attached != null ? attached : spu.replay.detached(sid));
+			if (previous == null || previous.getSPU() != spu) return null;
+
+			// Only the client that owns the subscription can resume it
+			if (!sameCredentials(previous.getSubscribe(), req)) {
+				logger.warn("@resume credentials do not match: " + sid);
+				SPUManagerBeans.resumeDenied();
+				return null;
+			}
 
-		if (!subscribers.containsKey(sid)) {
-			logger.warn("@internalUnsubscribe SID not found: " + sid);
-			throw new SEPANotExistsException("SID not found: " + sid);
+			long offset = previous.getOffset();
+			missed = spu.replay.since(offset + sequence);
+			if (missed == null) return null;
+
+			if (attached != null) {
+				set.remove(attached);
+				SPUManagerBeans.removeSubscriber();
+			}
+			else
+				spu.replay.attach(sid);
+			if (spu.lingering > 0) {
+				spu.lingering = 0;
+				SPUManagerBeans.lingerReattached();
+			}
+
+			sub = new Subscriber(spu, req, sid, offset);
+			for (ReplayBuffer.Entry entry : missed)
+				sub.offer(new NotificationDispatcher.Delivery(
+						new EncodedNotification(sid, sub.sequence(entry.number), null, entry.body)));
+			set.add(sub);
+			subscribers.put(sid, sub);
+			schedule(spu, set);
+		}
+
+		SPUManagerBeans.addSubscriber();
+		SPUManagerBeans.resumed(missed.size());
+
+		return sub;
+	}
+
+	private static boolean sameCredentials(InternalSubscribeRequest a, InternalSubscribeRequest b) {
+		try {
+			return Objects.equals(credentials(a), credentials(b));
+		} catch (SEPASecurityException e) {
+			return false;
 		}
+	}
+
+	private static String credentials(InternalSubscribeRequest req) throws SEPASecurityException {
+		if (req.getClientAuthorization() == null)
+			return null;
+		return req.getClientAuthorization().getBasicAuthorizationHeader();
+	}
 
-		SPUManagerBeans.removeSubscriber();
+	/**
+	 * @return the subscriber or null if not found
+	 */
+	public Subscriber findSubscriber(String sid) {
+		return subscribers.get(sid);
+	}
+
+	/**
+	 * @return true if the subscriber was the last one of its SPU (i.e., the SPU
+	 *         has been removed from the registry and it must be killed)
+	 */
+	public boolean removeSubscriber(Subscriber sub) throws SEPANotExistsException {
+		return removeSubscriber(sub, false);
+	}
+
+	/**
+	 * @param detach the subscriber may be resumed (i.e., its gate has been
+	 *               closed). If it is the last one of its SPU, the SPU lingers
+	 *               (see {@link #expire(SPU)}).
+	 * @return true if the subscriber was the last one of its SPU (i.e., the SPU
+	 *         has been removed from the registry and it must be killed)
+	 */
+	public boolean removeSubscriber(Subscriber sub, boolean detach) throws SEPANotExistsException {
+		String sid = sub.getSID();
+		SPU spu = sub.getSPU();
+		String spuid = spu.getSPUID();
+
+		synchronized (spu.lock) {
+			if (!subscribers.remove(sid, sub)) {
+				logger.warn("@internalUnsubscribe SID not found: " + sid);
+				throw new SEPANotExistsException("SID not found: " + sid);
+			}
+
+			SPUManagerBeans.removeSubscriber();
+
+			logger.trace("@internalUnsubscribe SID: " + sid + " from SPU: " + spuid + " with active subscriptions: "
+					+ subscribers.size());
 
-		logger.trace("@internalUnsubscribe SID: " + sid + " from SPU: " + spuid + " with active subscriptions: "
-				+ subscribers.size());
+			HashSet<Subscriber> set = handlers.get(spuid);
+			set.remove(sub);
+			schedule(spu, set);
 
-		handlers.get(spuid).remove(sub);
-		subscribers.remove(sid);
+			if (detach) spu.replay.detach(sub);
 
-		// No more handlers: return true
-		if (handlers.get(spuid).isEmpty()) {
-			logger.debug("@internalUnsubscribe no more subscribers. Kill SPU: " + sub.getSPU().getSPUID());
+			// More handlers
+			if (!set.isEmpty()) return false;
 
-			requests.remove(sub.getSPU().getSubscribe());
+			// The SPU keeps running without subscribers until the linger period expires
+			if (detach && SPUManagerBeans.getLinger() > 0) {
+				logger.debug("@internalUnsubscribe no more subscribers. SPU lingering: " + spuid);
+				spu.lingering = System.currentTimeMillis();
+				SPUManagerBeans.lingering();
+				return false;
+			}
+			
+			// No more handlers: return true
+			logger.debug("@internalUnsubscribe no more subscribers. Kill SPU: " + spuid);
+
+			requests.remove(spu.getSubscribe(), spu);
 			handlers.remove(spuid);
 
 			return true;
 		}
+	}
+
+	/**
+	 * @return true if the SPU has been lingering without subscribers for the
+	 *         linger period (i.e., the SPU has been removed from the registry
+	 *         and it must be killed)
+	 */
+	public boolean expire(SPU spu) {
+		synchronized (spu.lock) {
+			HashSet<Subscriber> set = handlers.get(spu.getSPUID());
+			if (set == null || !set.isEmpty() || spu.lingering == 0
+					|| System.currentTimeMillis() - spu.lingering < SPUManagerBeans.getLinger())
+				return false;
 
-		// More handlers
-		return false;
+			logger.debug("@expire linger period expired. Kill SPU: " + spu.getSPUID());
+
+			requests.remove(spu.getSubscribe(), spu);
+			handlers.remove(spu.getSPUID());
+			spu.lingering = 0;
+
+			return true;
+		}
 	}
 
-	public synchronized static void notifySubscribers(String spuid, Notification notify) {
-		for (Subscriber client : handlers.get(spuid)) {
+	// The SPU is scheduled with the highest priority of its subscribers (must be called holding the SPU lock)
+	private static void schedule(SPU spu, HashSet<Subscriber> set) {
+		Priority priority = null;
+		for (Subscriber sub : set)
+			if (priority == null || sub.getSubscribe().getPriority().compareTo(priority) < 0)
+				priority = sub.getSubscribe().getPriority();
+		if (priority != null)
+			spu.priority = priority;
+		spu.subscribers = set.size();
+	}
+
+	public Subscriber[] getSubscribers(SPU spu) {
+		synchronized (spu.lock) {
+			HashSet<Subscriber> set = handlers.get(spu.getSPUID());
+			if (set == null) return new Subscriber[0];
+			return set.toArray(new Subscriber[set.size()]);
+		}
+	}
+	
+	/**
+	 * Must be called holding the SPU lock (i.e., by the SPU processing). A
+	 * {@link ResyncNotification} is sent as new first results: the sequence of
+	 * each subscriber restarts from 0.
+	 */
+	public void notifySubscribers(SPU spu, Notification notify, NotificationDispatcher dispatcher) {
+		// Snapshot of the subscribers: the delivery runs without holding the lock
+		Subscriber[] clients = getSubscribers(spu);
+		
+		if (notify instanceof ResyncNotification) {
+			resync(spu, clients, notify, dispatcher);
+			return;
+		}
+		
+		// Added and removed bindings are the same for all the subscribers: serialize them once
+		ARBindingsResults results = notify.getARBindingsResults();
+		EncodedNotification.Body body = EncodedNotification.encode(results);
+
+		// Kept for the subscribers that will be resumed
+		long number = spu.replay.add(body);
+		
+		for (Subscriber client : clients) {
 			// Dispatching events
-			Notification event = new Notification(client.getSID(), notify.getARBindingsResults(),
-					client.nextSequence());
-			try {
-				client.notifyEvent(event);
-			} catch (SEPAProtocolException e) {
-				logger.error(e.getMessage());
-				if (logger.isTraceEnabled()) e.printStackTrace();
-			}
+			dispatcher.dispatch(client, new EncodedNotification(client.getSID(), client.sequence(number), results, body));
+		}
+	}
+
+	private void resync(SPU spu, Subscriber[] clients, Notification notify, NotificationDispatcher dispatcher) {
+		ARBindingsResults results = notify.getARBindingsResults();
+		EncodedNotification.Body body = EncodedNotification.encode(results);
+
+		// The notifications sent so far can no longer be replayed
+		long number = spu.replay.resync();
+
+		for (Subscriber client : clients) {
+			client.resync(number);
+			dispatcher.dispatch(client, new EncodedNotification(client.getSID(), 0, results, body));
 		}
 	}
 }
@@ -0,0 +1,208 @@
+/* A snapshot of the SPUs and their last results
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+
+/**
+ * Saves and loads the SPUs of an SPU manager: for each SPU, the subscribe
+ * request (i.e., the query as processed by the engine and its data set) and
+ * the last results. The file is a JSON object:
+ *
+ * <pre>
+ * {
+ * 	"created": 1589891234567,
+ * 	"spus": [{
+ * 		"sparql": "SELECT ...",
+ * 		"defaultGraphUri": ["..."],
+ * 		"namedGraphUri": ["..."],
+ * 		"results": {"head": {"vars": [...]}, "results": {"bindings": [...]}}
+ * 	}]
+ * }
+ * </pre>
+ *
+ * The snapshot is written in a temporary file, which is forced to the disk
+ * (with its directory) and then replaces the previous one: a crash or a power
+ * loss while saving does not corrupt the last snapshot.
+ */
+class SubscriptionsSnapshot {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * @return the key of a request in a snapshot: two requests with the same key
+	 *         have the same results
+	 */
+	static String key(InternalSubscribeRequest req) {
+		return key(req.getSparql(), req.getDefaultGraphUri(), req.getNamedGraphUri());
+	}
+
+	private static String key(String sparql, Set<String> defaultGraphUri, Set<String> namedGraphUri) {
+		return new TreeSet<String>(defaultGraphUri) + "\n" + new TreeSet<String>(namedGraphUri) + "\n" + sparql;
+	}
+
+	/**
+	 * Saves the last results of the SPUs (SPUs whose results are not available
+	 * are skipped).
+	 *
+	 * @return the number of saved SPUs
+	 */
+	static int save(Path file, Collection<SPU> spus) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		if (dir != null)
+			Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+		Gson gson = new Gson();
+		int n = 0;
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+				Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+				JsonWriter writer = new JsonWriter(out)) {
+			writer.beginObject();
+			writer.name("created").value(System.currentTimeMillis());
+			writer.name("spus").beginArray();
+			for (SPU spu : spus) {
+				BindingsResults results = spu.getSnapshot();
+				if (results == null)
+					continue;
+
+				InternalSubscribeRequest req = spu.getSubscribe();
+				JsonObject entry = new JsonObject();
+				entry.addProperty("sparql", req.getSparql());
+				entry.add("defaultGraphUri", toJson(req.getDefaultGraphUri()));
+				entry.add("namedGraphUri", toJson(req.getNamedGraphUri()));
+				entry.add("results", results.toJson());
+				gson.toJson(entry, writer);
+				n++;
+			}
+			writer.endArray();
+			writer.endObject();
+			writer.flush();
+			channel.force(true);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+
+		force(dir);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		force(dir);
+
+		return n;
+	}
+
+	// Forces the entries of a directory to the disk (not supported by all the platforms)
+	private static void force(Path dir) {
+		if (dir == null)
+			return;
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			logger.debug("Directory " + dir + " not forced: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the last results of the SPUs.
+	 *
+	 * @return key (see {@link #key(InternalSubscribeRequest)}) ==> results (empty
+	 *         if there is no snapshot)
+	 */
+	static Map<String, CompactResults> load(Path file, TermDictionary dictionary) throws IOException {
+		Map<String, CompactResults> ret = new HashMap<String, CompactResults>();
+		if (!Files.exists(file))
+			return ret;
+
+		Gson gson = new Gson();
+		try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+				JsonReader reader = new JsonReader(in)) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!reader.nextName().equals("spus")) {
+					reader.skipValue();
+					continue;
+				}
+
+				reader.beginArray();
+				while (reader.hasNext()) {
+					JsonObject entry = gson.fromJson(reader, JsonObject.class);
+					String key = key(entry.get("sparql").getAsString(), toSet(entry.get("defaultGraphUri")),
+							toSet(entry.get("namedGraphUri")));
+					BindingsResults results = new BindingsResults(entry.getAsJsonObject("results"));
+					CompactResults old = ret.put(key, new CompactResults(dictionary, results));
+					if (old != null)
+						old.release();
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+		} catch (JsonParseException | IllegalStateException | NullPointerException e) {
+			for (CompactResults results : ret.values())
+				results.release();
+			throw new IOException("Malformed snapshot " + file + " " + e.getMessage());
+		}
+
+		logger.debug("@load " + ret.size() + " SPUs from " + file);
+
+		return ret;
+	}
+
+	private static JsonArray toJson(Set<String> uris) {
+		JsonArray ret = new JsonArray();
+		for (String uri : uris)
+			ret.add(uri);
+		return ret;
+	}
+
+	private static Set<String> toSet(JsonElement uris) {
+		TreeSet<String> ret = new TreeSet<String>();
+		if (uris != null && uris.isJsonArray())
+			for (JsonElement uri : uris.getAsJsonArray())
+				ret.add(uri.getAsString());
+		return ret;
+	}
+}
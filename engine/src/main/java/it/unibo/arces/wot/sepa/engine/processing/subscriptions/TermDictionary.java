@@ -0,0 +1,207 @@
+/* An engine wide dictionary of the RDF terms in the SPU results
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Maps each RDF term (i.e., a SPARQL 1.1 JSON results term) to an int id, so
+ * that the results of all the SPUs share a single copy of each term.
+ *
+ * Terms are reference counted: an id is acquired for each occurrence of the
+ * term in the cached results and it is released when the results are
+ * discarded. Ids of unused terms are recycled. The id 0 stands for an unbound
+ * variable.
+ *
+ * A term is stored as a string key:
+ *
+ * <pre>
+ * type \0 datatype \0 language \0 value
+ * </pre>
+ */
+class TermDictionary {
+	static final int UNBOUND = 0;
+
+	private static final char SEPARATOR = '\0';
+
+	// Key ==> id
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	// Id ==> key, references
+	private String[] terms = new String[1024];
+	private int[] refs = new int[1024];
+
+	// Recycled ids
+	private int[] free = new int[64];
+	private int freeCount = 0;
+	private int next = 1;
+
+	// Total length of the keys (chars)
+	private long chars = 0;
+
+	/**
+	 * @return the dictionary key of a term or null if the term is not a JSON
+	 *         object
+	 */
+	static String key(JsonElement term) {
+		if (term == null || !term.isJsonObject())
+			return null;
+
+		JsonObject obj = term.getAsJsonObject();
+		StringBuilder key = new StringBuilder();
+		key.append(string(obj, "type")).append(SEPARATOR);
+		key.append(string(obj, "datatype")).append(SEPARATOR);
+		key.append(string(obj, "xml:lang")).append(SEPARATOR);
+		key.append(string(obj, "value"));
+		return key.toString();
+	}
+
+	private static String string(JsonObject obj, String member) {
+		JsonElement e = obj.get(member);
+		return (e == null || e.isJsonNull() ? "" : e.getAsString());
+	}
+
+	/**
+	 * @return the SPARQL 1.1 JSON results term of a dictionary key
+	 */
+	static JsonObject term(String key) {
+		int type = key.indexOf(SEPARATOR);
+		int datatype = key.indexOf(SEPARATOR, type + 1);
+		int lang = key.indexOf(SEPARATOR, datatype + 1);
+
+		JsonObject term = new JsonObject();
+		term.addProperty("type", key.substring(0, type));
+		if (datatype > type + 1)
+			term.addProperty("datatype", key.substring(type + 1, datatype));
+		if (lang > datatype + 1)
+			term.addProperty("xml:lang", key.substring(datatype + 1, lang));
+		term.addProperty("value", key.substring(lang + 1));
+		return term;
+	}
+
+	/**
+	 * Acquires the ids of a tuple of terms (null keys are unbound).
+	 */
+	synchronized void acquire(String[] keys, int[] tuple, int offset) {
+		for (int i = 0; i < keys.length; i++) {
+			String key = keys[i];
+			if (key == null) {
+				tuple[offset + i] = UNBOUND;
+				continue;
+			}
+
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = newId();
+				ids.put(key, id);
+				terms[id] = key;
+				chars += key.length();
+			}
+			refs[id]++;
+			tuple[offset + i] = id;
+		}
+	}
+
+	/**
+	 * Acquires again the ids of the tuples stored in data[from,to)
+	 */
+	synchronized void acquire(int[] data, int from, int to) {
+		for (int i = from; i < to; i++)
+			if (data[i] != UNBOUND)
+				refs[data[i]]++;
+	}
+
+	/**
+	 * Gets the ids of a tuple of terms without acquiring them (null keys are
+	 * unbound).
+	 *
+	 * @return false if a term is not in the dictionary
+	 */
+	synchronized boolean lookup(String[] keys, int[] tuple, int offset) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == null) {
+				tuple[offset + i] = UNBOUND;
+				continue;
+			}
+			Integer id = ids.get(keys[i]);
+			if (id == null)
+				return false;
+			tuple[offset + i] = id;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the ids of the tuples stored in data[from,to)
+	 */
+	synchronized void release(int[] data, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int id = data[i];
+			if (id == UNBOUND)
+				continue;
+
+			if (--refs[id] > 0)
+				continue;
+
+			ids.remove(terms[id]);
+			chars -= terms[id].length();
+			terms[id] = null;
+
+			if (freeCount == free.length)
+				free = Arrays.copyOf(free, free.length * 2);
+			free[freeCount++] = id;
+		}
+	}
+
+	/**
+	 * @return the keys of a tuple (null for unbound variables)
+	 */
+	synchronized void keys(int[] data, int offset, String[] keys) {
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = terms[data[offset + i]];
+	}
+
+	private int newId() {
+		if (freeCount > 0)
+			return free[--freeCount];
+
+		if (next == terms.length) {
+			terms = Arrays.copyOf(terms, terms.length * 2);
+			refs = Arrays.copyOf(refs, refs.length * 2);
+		}
+		return next++;
+	}
+
+	synchronized int size() {
+		return ids.size();
+	}
+
+	/**
+	 * @return an estimate of the heap used by the dictionary (bytes)
+	 */
+	synchronized long getHeapBytes() {
+		// Per term: key (String + char[]), HashMap node, boxed id
+		return ids.size() * (24L + 16L + 32L + 16L) + 2 * chars + 4L * (free.length + refs.length)
+				+ 8L * terms.length;
+	}
+}
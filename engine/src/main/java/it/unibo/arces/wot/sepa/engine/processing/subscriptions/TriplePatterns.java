@@ -0,0 +1,336 @@
+/* The triple patterns of a subscription
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementPathBlock;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.apache.jena.sparql.syntax.ElementUnion;
+
+/**
+ * The triple patterns of a query pattern made only of triple patterns (also
+ * within GRAPH), groups and filters (without EXISTS). The solutions of such a
+ * pattern only depend on the triples that match its triple patterns: if an
+ * update does not touch them, the solutions do not change.
+ *
+ * Triple patterns out of a GRAPH may match the quads of any graph: the data
+ * set of the query is not known (e.g., the default graph of the endpoint may
+ * be the union of the named graphs).
+ */
+class TriplePatterns {
+	private final List<Triple> triples = new ArrayList<Triple>();
+	// The graph of each triple pattern (null if the default graph)
+	private final List<Node> graphs = new ArrayList<Node>();
+
+	private TriplePatterns() {
+	}
+
+	/**
+	 * @return the triple patterns of the query pattern or null if it contains
+	 *         other elements (e.g., OPTIONAL, UNION, MINUS, property paths,
+	 *         sub-queries, EXISTS)
+	 */
+	static TriplePatterns parse(Query query) {
+		TriplePatterns ret = new TriplePatterns();
+		if (!ret.collect(query.getQueryPattern(), null) || ret.triples.isEmpty())
+			return null;
+		return ret;
+	}
+
+	private boolean collect(Element element, Node graph) {
+		if (element instanceof ElementGroup) {
+			for (Element e : ((ElementGroup) element).getElements())
+				if (!collect(e, graph))
+					return false;
+			return true;
+		}
+
+		if (element instanceof ElementPathBlock) {
+			for (TriplePath path : ((ElementPathBlock) element).getPattern()) {
+				if (!path.isTriple())
+					return false;
+				triples.add(path.asTriple());
+				graphs.add(graph);
+			}
+			return true;
+		}
+
+		if (element instanceof ElementTriplesBlock) {
+			for (Triple triple : ((ElementTriplesBlock) element).getPattern()) {
+				triples.add(triple);
+				graphs.add(graph);
+			}
+			return true;
+		}
+
+		if (element instanceof ElementFilter)
+			return !hasPattern(((ElementFilter) element).getExpr());
+
+		if (element instanceof ElementNamedGraph && graph == null)
+			return collect(((ElementNamedGraph) element).getElement(),
+					((ElementNamedGraph) element).getGraphNameNode());
+
+		return false;
+	}
+
+	// EXISTS and NOT EXISTS
+	private static boolean hasPattern(Expr expr) {
+		if (expr instanceof ExprFunctionOp)
+			return true;
+		if (expr instanceof ExprFunction)
+			for (Expr arg : ((ExprFunction) expr).getArgs())
+				if (hasPattern(arg))
+					return true;
+		return false;
+	}
+
+	/**
+	 * @return true if some triple pattern contains a blank node (i.e., a
+	 *         variable that is not projected)
+	 */
+	boolean hasBlankNodes() {
+		for (int i = 0; i < triples.size(); i++)
+			for (Node node : nodes(i))
+				if (node != null && (node.isBlank() || (Var.isVar(node) && !Var.isNamedVar(node))))
+					return true;
+		return false;
+	}
+
+	/**
+	 * @return the named variables of the triple patterns
+	 */
+	Set<Var> getVars() {
+		Set<Var> ret = new LinkedHashSet<Var>();
+		for (int i = 0; i < triples.size(); i++) {
+			for (Node node : nodes(i))
+				if (node != null && Var.isVar(node) && Var.isNamedVar(node))
+					ret.add(Var.alloc(node));
+		}
+		return ret;
+	}
+
+	// Graph, subject, predicate, object (the graph is null for the default graph)
+	private List<Node> nodes(int i) {
+		Triple t = triples.get(i);
+		return Arrays.asList(graphs.get(i), t.getSubject(), t.getPredicate(), t.getObject());
+	}
+
+	/**
+	 * @return true if a quad matches a triple pattern
+	 */
+	boolean matches(Collection<Quad> quads) {
+		for (int i = 0; i < triples.size(); i++)
+			for (Quad quad : quads)
+				if (match(i, quad) != null)
+					return true;
+		return false;
+	}
+
+	/**
+	 * The quads of an update indexed by triple
+	 */
+	static class QuadIndex {
+		// Triple ==> graphs
+		private final Map<Triple, Set<Node>> index = new HashMap<Triple, Set<Node>>();
+
+		QuadIndex(Collection<Quad> quads) {
+			for (Quad quad : quads)
+				index.computeIfAbsent(quad.asTriple(), t -> new HashSet<Node>()).add(quad.getGraph());
+		}
+
+		boolean isEmpty() {
+			return index.isEmpty();
+		}
+	}
+
+	/**
+	 * @return true if the solution, substituted in a triple pattern, gives one
+	 *         of the quads. It is also true if the solution does not bind all the
+	 *         variables of a triple pattern (it may match).
+	 */
+	boolean touches(Binding solution, QuadIndex quads) {
+		for (int i = 0; i < triples.size(); i++) {
+			Triple triple = Substitute.substitute(triples.get(i), solution);
+			if (!triple.isConcrete())
+				return true;
+
+			Set<Node> tripleGraphs = quads.index.get(triple);
+			if (tripleGraphs == null)
+				continue;
+
+			Node graph = graphs.get(i);
+			if (graph == null)
+				return true;
+			graph = Substitute.substitute(graph, solution);
+			if (!graph.isConcrete() || tripleGraphs.contains(graph))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Restricts the query to the solutions where some triple pattern matches
+	 * one of the quads. For each triple pattern matched by the quads, the
+	 * pattern of the query is joined with the VALUES of the variables of the
+	 * triple pattern given by the quads and the restricted patterns are put in
+	 * UNION: <code>{VALUES (?s ?o) {...} pattern} UNION {VALUES ... }</code>
+	 *
+	 * @return the restricted query or null if a triple pattern without
+	 *         variables matches a quad (i.e., all the solutions may change). The
+	 *         quads must match at least a triple pattern (see
+	 *         {@link #matches(Collection)}).
+	 */
+	Query restrict(Query query, Collection<Quad> quads) {
+		Element pattern = query.getQueryPattern();
+		List<Element> restricted = new ArrayList<Element>();
+
+		for (int i = 0; i < triples.size(); i++) {
+			List<Var> vars = new ArrayList<Var>();
+			for (Node node : nodes(i))
+				if (node != null && Var.isVar(node) && Var.isNamedVar(node) && !vars.contains(node))
+					vars.add(Var.alloc(node));
+
+			ElementData data = new ElementData();
+			for (Var var : vars)
+				data.add(var);
+
+			Set<List<Node>> rows = new HashSet<List<Node>>();
+			for (Quad quad : quads) {
+				Binding match = match(i, quad);
+				if (match == null)
+					continue;
+				if (vars.isEmpty())
+					return null;
+
+				List<Node> row = new ArrayList<Node>();
+				for (Var var : vars)
+					row.add(match.get(var));
+				if (rows.add(row))
+					data.add(match);
+			}
+
+			if (rows.isEmpty())
+				continue;
+
+			restricted.add(join(data, pattern));
+		}
+
+		// The variables of SELECT * would follow the VALUES blocks
+		Query ret = query.cloneQuery();
+		if (ret.isSelectType() && ret.isQueryResultStar()) {
+			List<String> resultVars = query.getResultVars();
+			ret.setQueryResultStar(false);
+			for (String var : resultVars)
+				ret.addResultVar(var);
+		}
+		if (restricted.size() == 1)
+			ret.setQueryPattern(restricted.get(0));
+		else {
+			ElementUnion union = new ElementUnion();
+			for (Element element : restricted)
+				union.addElement(element);
+			ElementGroup group = new ElementGroup();
+			group.addElement(union);
+			ret.setQueryPattern(group);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the pattern joined with the VALUES block. The block is put first in
+	 *         the group of the pattern: it may be substituted in the pattern.
+	 */
+	static Element join(ElementData data, Element pattern) {
+		ElementGroup ret = new ElementGroup();
+		ret.addElement(data);
+		if (pattern instanceof ElementGroup)
+			for (Element element : ((ElementGroup) pattern).getElements())
+				ret.addElement(element);
+		else
+			ret.addElement(pattern);
+		return ret;
+	}
+
+	/**
+	 * @return the bindings of the named variables of the i-th triple pattern
+	 *         that give the quad or null if the quad does not match it
+	 */
+	private Binding match(int i, Quad quad) {
+		List<Node> pattern = nodes(i);
+		List<Node> terms = Arrays.asList(quad.getGraph(), quad.getSubject(), quad.getPredicate(), quad.getObject());
+
+		BindingMap ret = BindingFactory.create();
+		for (int n = 0; n < 4; n++) {
+			Node node = pattern.get(n);
+			Node term = terms.get(n);
+
+			// Triple patterns of the default graph
+			if (node == null)
+				continue;
+
+			if (!Var.isVar(node)) {
+				if (!node.equals(term))
+					return null;
+				continue;
+			}
+
+			// Graph variables do not match the default graph
+			if (n == 0 && quad.isDefaultGraph())
+				return null;
+
+			if (!Var.isNamedVar(node))
+				continue;
+
+			Var var = Var.alloc(node);
+			Node bound = ret.get(var);
+			if (bound == null)
+				ret.add(var, term);
+			else if (!bound.equals(term))
+				return null;
+		}
+		return ret;
+	}
+}
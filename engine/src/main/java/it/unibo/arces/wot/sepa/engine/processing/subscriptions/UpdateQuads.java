@@ -0,0 +1,277 @@
+/* The ground quads deleted and inserted by an update
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryException;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.modify.request.UpdateDataDelete;
+import org.apache.jena.sparql.modify.request.UpdateDataInsert;
+import org.apache.jena.sparql.modify.request.UpdateDeleteWhere;
+import org.apache.jena.sparql.modify.request.UpdateModify;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.apache.jena.update.Update;
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.update.UpdateRequest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalPreProcessedUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+
+/**
+ * Instantiates the quads deleted and inserted by an update before the
+ * endpoint is updated. The quads are known if the update is a sequence of
+ * INSERT DATA and DELETE DATA operations, optionally preceded by a single
+ * DELETE/INSERT ... WHERE (or DELETE WHERE) operation: its WHERE clause is
+ * queried once and its templates are instantiated with the solutions.
+ *
+ * Updates with other operations, with blank nodes or with too many quads are
+ * not instantiated: the SPUs that need the quads evaluate their query again.
+ */
+class UpdateQuads {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Sets the quads of the update (if they can be instantiated).
+	 *
+	 * @param max
+	 *            the maximum number of quads
+	 * @return true if the quads have been set
+	 */
+	static boolean instantiate(InternalPreProcessedUpdateRequest update, SPUManager manager, int max) {
+		UpdateRequest request;
+		try {
+			request = UpdateFactory.create(update.getSparql());
+		} catch (QueryException e) {
+			logger.warn("@instantiate " + e.getMessage());
+			return false;
+		}
+
+		List<Quad> deleted = new ArrayList<Quad>();
+		List<Quad> inserted = new ArrayList<Quad>();
+
+		List<Update> operations = request.getOperations();
+		for (int i = 0; i < operations.size(); i++) {
+			Update op = operations.get(i);
+
+			if (op instanceof UpdateDataInsert)
+				inserted.addAll(((UpdateDataInsert) op).getQuads());
+			else if (op instanceof UpdateDataDelete)
+				deleted.addAll(((UpdateDataDelete) op).getQuads());
+			else if (i == 0 && op instanceof UpdateModify) {
+				UpdateModify modify = (UpdateModify) op;
+				if (!instantiate(update, manager, max, modify, modify.getWherePattern(), modify.getDeleteQuads(),
+						modify.getInsertQuads(), deleted, inserted))
+					return false;
+			} else if (i == 0 && op instanceof UpdateDeleteWhere) {
+				List<Quad> quads = ((UpdateDeleteWhere) op).getQuads();
+				if (!instantiate(update, manager, max, null, pattern(quads), quads, new ArrayList<Quad>(), deleted,
+						inserted))
+					return false;
+			} else {
+				logger.debug("@instantiate unsupported operation: " + op.getClass().getSimpleName());
+				return false;
+			}
+
+			if (deleted.size() + inserted.size() > max) {
+				logger.debug("@instantiate too many quads: " + (deleted.size() + inserted.size()));
+				return false;
+			}
+		}
+
+		// Blank nodes cannot be matched with the ones of the endpoint
+		if (hasBlankNodes(deleted) || hasBlankNodes(inserted)) {
+			logger.debug("@instantiate blank nodes");
+			return false;
+		}
+
+		update.setQuads(deleted, inserted);
+
+		return true;
+	}
+
+	private static boolean instantiate(InternalPreProcessedUpdateRequest update, SPUManager manager, int max,
+			UpdateModify modify, Element where, List<Quad> deleteTemplate, List<Quad> insertTemplate,
+			List<Quad> deleted, List<Quad> inserted) {
+		// Blank nodes of the insert template are new nodes
+		if (hasBlankNodes(insertTemplate))
+			return false;
+
+		Node with = null;
+		Query query = new Query();
+		query.setQuerySelectType();
+		query.setQueryResultStar(true);
+		query.setQueryPattern(where);
+		query.setLimit(max + 1);
+		if (modify != null) {
+			with = modify.getWithIRI();
+			for (Node graph : modify.getUsing())
+				query.addGraphURI(graph.getURI());
+			for (Node graph : modify.getUsingNamed())
+				query.addNamedGraphURI(graph.getURI());
+			if (with != null && !query.hasDatasetDescription())
+				query.addGraphURI(with.getURI());
+		}
+
+		Response ret;
+		try {
+			ret = manager.processQuery(new InternalQueryRequest(query.serialize(), update.getDefaultGraphUri(),
+					update.getNamedGraphUri(), update.getClientAuthorization()));
+		} catch (SEPASecurityException | QueryException e) {
+			logger.warn("@instantiate " + e.getMessage());
+			return false;
+		}
+		if (ret.isError()) {
+			logger.warn("@instantiate " + ret);
+			return false;
+		}
+
+		List<Bindings> solutions = ((QueryResponse) ret).getBindingsResults().getBindings();
+		if (solutions.size() > max)
+			return false;
+
+		for (Bindings solution : solutions) {
+			Binding binding = binding(solution.toJson());
+			substitute(deleteTemplate, binding, with, deleted);
+			substitute(insertTemplate, binding, with, inserted);
+		}
+
+		return true;
+	}
+
+	// Unbound variables: the quad is skipped
+	private static void substitute(List<Quad> template, Binding binding, Node with, List<Quad> quads) {
+		for (Quad quad : template) {
+			Quad ground = Substitute.substitute(quad, binding);
+			if (!ground.isConcrete())
+				continue;
+			if (with != null && ground.isDefaultGraph())
+				ground = new Quad(with, ground.asTriple());
+			quads.add(ground);
+		}
+	}
+
+	// The pattern of a DELETE WHERE
+	private static Element pattern(List<Quad> quads) {
+		ElementTriplesBlock defaultGraph = new ElementTriplesBlock();
+		Map<Node, ElementTriplesBlock> namedGraphs = new LinkedHashMap<Node, ElementTriplesBlock>();
+		for (Quad quad : quads) {
+			if (quad.isDefaultGraph())
+				defaultGraph.addTriple(quad.asTriple());
+			else
+				namedGraphs.computeIfAbsent(quad.getGraph(), g -> new ElementTriplesBlock()).addTriple(quad.asTriple());
+		}
+
+		ElementGroup ret = new ElementGroup();
+		if (!defaultGraph.isEmpty())
+			ret.addElement(defaultGraph);
+		for (Entry<Node, ElementTriplesBlock> graph : namedGraphs.entrySet())
+			ret.addElement(new ElementNamedGraph(graph.getKey(), graph.getValue()));
+		return ret;
+	}
+
+	private static boolean hasBlankNodes(List<Quad> quads) {
+		for (Quad quad : quads)
+			if (quad.getGraph().isBlank() || quad.getSubject().isBlank() || quad.getPredicate().isBlank()
+					|| quad.getObject().isBlank())
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the Jena binding of a SPARQL 1.1 JSON results solution
+	 */
+	static Binding binding(JsonObject solution) {
+		BindingMap ret = BindingFactory.create();
+		for (Entry<String, JsonElement> term : solution.entrySet())
+			ret.add(Var.alloc(term.getKey()), node(term.getValue().getAsJsonObject()));
+		return ret;
+	}
+
+	/**
+	 * @return the SPARQL 1.1 JSON results term of a Jena node (members are in
+	 *         the order of {@link TermDictionary#term(String)})
+	 */
+	static JsonObject term(Node node) {
+		JsonObject ret = new JsonObject();
+		if (node.isURI()) {
+			ret.addProperty("type", "uri");
+			ret.addProperty("value", node.getURI());
+		} else if (node.isBlank()) {
+			ret.addProperty("type", "bnode");
+			ret.addProperty("value", node.getBlankNodeLabel());
+		} else {
+			ret.addProperty("type", "literal");
+			String lang = node.getLiteralLanguage();
+			String datatype = node.getLiteralDatatypeURI();
+			if (lang != null && !lang.isEmpty())
+				ret.addProperty("xml:lang", lang);
+			else if (datatype != null && !datatype.equals(XSDDatatype.XSDstring.getURI()))
+				ret.addProperty("datatype", datatype);
+			ret.addProperty("value", node.getLiteralLexicalForm());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the Jena node of a SPARQL 1.1 JSON results term
+	 */
+	static Node node(JsonObject term) {
+		String value = term.get("value").getAsString();
+		switch (term.get("type").getAsString()) {
+		case "uri":
+			return NodeFactory.createURI(value);
+		case "bnode":
+			return NodeFactory.createBlankNode(value);
+		default:
+			if (term.has("xml:lang"))
+				return NodeFactory.createLiteral(value, term.get("xml:lang").getAsString());
+			if (term.has("datatype"))
+				return NodeFactory.createLiteral(value,
+						TypeMapper.getInstance().getSafeTypeByName(term.get("datatype").getAsString()));
+			return NodeFactory.createLiteral(value);
+		}
+	}
+}
@@ -42,6 +42,7 @@ import org.apache.jena.query.QueryException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 import it.unibo.arces.wot.sepa.commons.security.ClientAuthorization;
@@ -243,7 +244,16 @@ public abstract class SPARQL11Handler implements HttpAsyncRequestHandler<HttpReq
 
 		// Schedule request
 		Timings.log(sepaRequest);
-		ScheduledRequest req = scheduler.schedule(sepaRequest, new SPARQL11ResponseHandler(httpExchange, jmx));
+		ScheduledRequest req;
+		try {
+			req = scheduler.schedule(sepaRequest, new SPARQL11ResponseHandler(httpExchange, jmx));
+		} catch (SEPAProcessingException e) {
+			// Not durable: the update is not acknowledged
+			logger.error(e.getMessage());
+			HttpUtilities.sendFailureResponse(httpExchange,
+					new ErrorResponse(500, "update_not_journaled", e.getMessage()));
+			return;
+		}
 		if (req == null) {
 			logger.error("Out of tokens");
 			HttpUtilities.sendFailureResponse(httpExchange,
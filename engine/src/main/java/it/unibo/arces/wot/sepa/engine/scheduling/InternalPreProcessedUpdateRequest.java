@@ -1,11 +1,18 @@
 package it.unibo.arces.wot.sepa.engine.scheduling;
 
+import java.util.List;
+
 import org.apache.jena.query.QueryException;
+import org.apache.jena.sparql.core.Quad;
 
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 
 public class InternalPreProcessedUpdateRequest extends InternalUpdateRequest{
 	ErrorResponse retErrorResponse = null;
+
+	// Ground quads deleted and inserted by the update (null if not known)
+	private List<Quad> deletedQuads = null;
+	private List<Quad> insertedQuads = null;
 	
 	public InternalPreProcessedUpdateRequest(ErrorResponse errorResponse) throws QueryException {
 		super(null, null, null, null);
@@ -24,4 +31,24 @@ public class InternalPreProcessedUpdateRequest extends InternalUpdateRequest{
 		return retErrorResponse;
 	}
 
+	/**
+	 * Sets the quads of the update as instantiated before the endpoint is updated.
+	 * Deleted quads may not exist and inserted quads may already exist.
+	 */
+	public void setQuads(List<Quad> deleted, List<Quad> inserted) {
+		deletedQuads = deleted;
+		insertedQuads = inserted;
+	}
+
+	public boolean hasQuads() {
+		return deletedQuads != null && insertedQuads != null;
+	}
+
+	public List<Quad> getDeletedQuads() {
+		return deletedQuads;
+	}
+
+	public List<Quad> getInsertedQuads() {
+		return insertedQuads;
+	}
 }
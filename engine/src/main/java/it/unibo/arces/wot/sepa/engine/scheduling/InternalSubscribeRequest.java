@@ -29,8 +29,21 @@ import it.unibo.arces.wot.sepa.engine.gates.Gate;
 
 public class InternalSubscribeRequest extends InternalQueryRequest {
 
+	/**
+	 * Priority classes of the subscriptions: the SPUs of higher priority
+	 * subscriptions are processed first
+	 */
+	public enum Priority {
+		HIGH, NORMAL, LOW
+	}
+
 	private String alias = null;
 	private EventHandler gate;
+	private Priority priority = Priority.NORMAL;
+
+	// The subscription to be resumed (null for a new subscription)
+	private String resumeSpuid = null;
+	private int resumeSequence = 0;
 	
 	public InternalSubscribeRequest(String sparql, String alias,Set<String> defaultGraphUri, Set<String> namedGraphUri,EventHandler gate,ClientAuthorization auth) throws QueryException {
 		super(sparql, defaultGraphUri, namedGraphUri,auth);
@@ -47,7 +60,35 @@ public class InternalSubscribeRequest extends InternalQueryRequest {
 	public String getAlias() {
 		return alias;
 	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
 	
+	/**
+	 * Resumes a subscription (e.g., after a reconnection): the notifications
+	 * that follow the last one received are replayed, if still available
+	 * 
+	 * @param spuid    the SPUID of the subscription
+	 * @param sequence the sequence of the last notification received
+	 */
+	public void setResume(String spuid, int sequence) {
+		resumeSpuid = spuid;
+		resumeSequence = sequence;
+	}
+
+	public String getResumeSpuid() {
+		return resumeSpuid;
+	}
+
+	public int getResumeSequence() {
+		return resumeSequence;
+	}
+
 	public void setEventHandler(EventHandler gate) {
 		this.gate = gate;
 	}
@@ -40,10 +40,21 @@ import it.unibo.arces.wot.sepa.commons.security.ClientAuthorization;
 import it.unibo.arces.wot.sepa.engine.protocol.sparql11.SPARQL11ProtocolException;
 
 public class InternalUpdateRequest extends InternalUQRequest {
+	// Id of the update in the journal (0 if not journaled)
+	private long journalId = 0;
+
 	public InternalUpdateRequest(String sparql, Set<String> defaultGraphUri, Set<String> namedGraphUri,ClientAuthorization auth) throws QueryException, SPARQL11ProtocolException {
 		super(sparql, defaultGraphUri, namedGraphUri,auth);
 	}
 
+	public long getJournalId() {
+		return journalId;
+	}
+
+	public void setJournalId(long id) {
+		journalId = id;
+	}
+
 	@Override
 	public String toString() {
 		return "*UPDATE* {RDF DATA SET: "+rdfDataSet +" USING GRAPHS: "+ defaultGraphUri + " NAMED GRAPHS: " + namedGraphUri+"} SPARQL: " +sparql ;
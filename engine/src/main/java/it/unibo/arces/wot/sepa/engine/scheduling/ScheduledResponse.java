@@ -25,6 +25,7 @@ import it.unibo.arces.wot.sepa.commons.response.Response;
 public class ScheduledResponse {
 	private int token = -1;
 	private Response response = null;
+	private Runnable sent = null;
 	long timestamp;
 	
 	public ScheduledResponse(int token,Response response) {
@@ -33,6 +34,18 @@ public class ScheduledResponse {
 		this.timestamp = new Date().getTime();
 	}
 	
+	/**
+	 * @param sent run when the response has been sent
+	 */
+	public ScheduledResponse(int token,Response response,Runnable sent) {
+		this(token, response);
+		this.sent = sent;
+	}
+	
+	public void sent() {
+		if (sent != null) sent.run();
+	}
+	
 	public Response getResponse() {
 		return response;
 	}
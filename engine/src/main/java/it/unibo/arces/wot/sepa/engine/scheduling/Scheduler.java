@@ -18,18 +18,23 @@
 
 package it.unibo.arces.wot.sepa.engine.scheduling;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.response.Response;
 import it.unibo.arces.wot.sepa.engine.bean.SEPABeans;
 import it.unibo.arces.wot.sepa.engine.bean.SchedulerBeans;
 import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
 import it.unibo.arces.wot.sepa.engine.core.ResponseHandler;
+import it.unibo.arces.wot.sepa.engine.dependability.UpdateJournal;
 import it.unibo.arces.wot.sepa.engine.timing.Timings;
 
 /**
@@ -47,6 +52,9 @@ public class Scheduler extends Thread implements SchedulerMBean {
 	// Synchronized queues
 	private final SchedulerQueue queue;
 
+	// Updates are journaled before being scheduled (if set)
+	private volatile UpdateJournal journal = null;
+
 	public Scheduler(EngineProperties properties) {
 		if (properties == null) {
 			logger.error("Properties are null");
@@ -63,36 +71,105 @@ public class Scheduler extends Thread implements SchedulerMBean {
 		setName("SEPA-Scheduler");
 	}
 
-	public ScheduledRequest schedule(InternalRequest request, ResponseHandler handler) {
+	public void setUpdateJournal(UpdateJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return the scheduled request (null if refused: too many pending requests)
+	 * @throws SEPAProcessingException if the update cannot be journaled (i.e.,
+	 *                                 it is refused)
+	 */
+	public ScheduledRequest schedule(InternalRequest request, ResponseHandler handler) throws SEPAProcessingException {
 		if (request == null || handler == null) {
 			logger.error("Request handler or request are null");
 			return null;
 		}
 
-		ScheduledRequest scheduled = null;		
+		journal(request);
+
 		synchronized (responders) {
-			// Add request to the scheduler queue (null means no more tokens)
-			scheduled = queue.addRequest(request, handler);
+			return enqueue(request, handler);
+		}
+	}
 
-			// No more tokens
-			if (scheduled == null) {
+	/**
+	 * Schedules the requests of a batch (e.g., the subscribes of a dashboard)
+	 * taking the lock of the responders once. Updates are journaled one at a
+	 * time (see {@link #schedule(InternalRequest, ResponseHandler)}): they are
+	 * refused in a batch.
+	 * 
+	 * @return the scheduled requests, in the same order (null if a request is
+	 *         refused: an update or too many pending requests)
+	 */
+	public List<ScheduledRequest> schedule(List<InternalRequest> requests, ResponseHandler handler) {
+		List<ScheduledRequest> ret = new ArrayList<ScheduledRequest>(requests.size());
+		if (handler == null) {
+			logger.error("Request handler is null");
+			for (int i = 0; i < requests.size(); i++)
+				ret.add(null);
+			return ret;
+		}
+
+		synchronized (responders) {
+			for (InternalRequest request : requests) {
+				if (request.isUpdateRequest()) {
+					SchedulerBeans.newRequest(request, false);
+					logger.error("Update refused in a batch: " + request);
+					ret.add(null);
+				} else
+					ret.add(enqueue(request, handler));
+			}
+		}
+
+		return ret;
+	}
+
+	// Durable before being acknowledged (concurrent updates share the same disk sync)
+	private void journal(InternalRequest request) throws SEPAProcessingException {
+		UpdateJournal journal = this.journal;
+		if (journal != null && request.isUpdateRequest()) {
+			try {
+				journal.append((InternalUpdateRequest) request);
+			} catch (IOException e) {
+				logger.error("Update not journaled: " + e.getMessage());
 				SchedulerBeans.newRequest(request, false);
-				logger.error("Request refused: too many pending requests: " + request);
-				return null;
+				throw new SEPAProcessingException("Update not journaled: " + e.getMessage());
 			}
+		}
+	}
 
-			logger.info(">> " + scheduled);
-			logger.debug(scheduled.getRequest());
-			
-			Timings.log(request);
+	// A journaled update that will not be processed
+	private void complete(InternalRequest request) {
+		UpdateJournal journal = this.journal;
+		if (journal != null && request.isUpdateRequest())
+			journal.complete((InternalUpdateRequest) request);
+	}
 
-			SchedulerBeans.newRequest(request, true);
+	// Called holding the lock of the responders
+	private ScheduledRequest enqueue(InternalRequest request, ResponseHandler handler) {
+		// Add request to the scheduler queue (null means no more tokens)
+		ScheduledRequest scheduled = queue.addRequest(request, handler);
 
-			// Register response handlers
-			logger.trace("Register handler: " + handler + " token: " + scheduled.getToken());
-			responders.put(scheduled.getToken(), handler);
+		// No more tokens
+		if (scheduled == null) {
+			complete(request);
+			SchedulerBeans.newRequest(request, false);
+			logger.error("Request refused: too many pending requests: " + request);
+			return null;
 		}
 
+		logger.info(">> " + scheduled);
+		logger.debug(scheduled.getRequest());
+
+		Timings.log(request);
+
+		SchedulerBeans.newRequest(request, true);
+
+		// Register response handlers
+		logger.trace("Register handler: " + handler + " token: " + scheduled.getToken());
+		responders.put(scheduled.getToken(), handler);
+
 		return scheduled;
 	}
 
@@ -130,6 +207,7 @@ public class Scheduler extends Thread implements SchedulerMBean {
 					// Remove handlers
 					responders.remove(token);
 				}
+				response.sent();
 
 			} catch (InterruptedException e) {
 				running.set(false);
@@ -190,6 +268,13 @@ public class Scheduler extends Thread implements SchedulerMBean {
 		return queue.addResponse(token, ret);
 	}
 
+	/**
+	 * @param sent run when the response has been sent to its handler
+	 */
+	public boolean addResponse(int token, Response ret, Runnable sent) {
+		return queue.addResponse(token, ret, sent);
+	}
+
 	public ScheduledRequest waitSubscribeRequest() throws InterruptedException {
 		return queue.waitSubscribeRequest();
 	}
@@ -33,16 +33,16 @@ class SchedulerQueue {
 	private static final Logger logger = LogManager.getLogger();
 	
 	// Tokens
-	private final static Vector<Integer> tokens = new Vector<Integer>();
+	private final Vector<Integer> tokens = new Vector<Integer>();
 
 	// Requests
-	private final static LinkedBlockingQueue<ScheduledRequest> updates = new LinkedBlockingQueue<ScheduledRequest>();
-	private final static LinkedBlockingQueue<ScheduledRequest> queries = new LinkedBlockingQueue<ScheduledRequest>();
-	private final static LinkedBlockingQueue<ScheduledRequest> subscribes = new LinkedBlockingQueue<ScheduledRequest>();
-	private final static LinkedBlockingQueue<ScheduledRequest> unsubscribes = new LinkedBlockingQueue<ScheduledRequest>();
+	private final LinkedBlockingQueue<ScheduledRequest> updates = new LinkedBlockingQueue<ScheduledRequest>();
+	private final LinkedBlockingQueue<ScheduledRequest> queries = new LinkedBlockingQueue<ScheduledRequest>();
+	private final LinkedBlockingQueue<ScheduledRequest> subscribes = new LinkedBlockingQueue<ScheduledRequest>();
+	private final LinkedBlockingQueue<ScheduledRequest> unsubscribes = new LinkedBlockingQueue<ScheduledRequest>();
 	
 	// Responses
-	private final static LinkedBlockingQueue<ScheduledResponse> responses = new LinkedBlockingQueue<ScheduledResponse>();
+	private final LinkedBlockingQueue<ScheduledResponse> responses = new LinkedBlockingQueue<ScheduledResponse>();
 
 	public SchedulerQueue(long size) {
 		// Initialize token jar
@@ -130,8 +130,16 @@ class SchedulerQueue {
 
 	// Returns false if the corresponding token has not been released (e.g., a timeout has been triggered or the response received), true otherwise
 	public boolean addResponse(int token,Response res) {
-		if (!releaseToken(token)) return false;
-		responses.offer(new ScheduledResponse(token,res));
+		return addResponse(token, res, null);
+	}
+	
+	// As above, the action is run when the response has been sent (or discarded)
+	public boolean addResponse(int token,Response res,Runnable sent) {
+		if (!releaseToken(token)) {
+			if (sent != null) sent.run();
+			return false;
+		}
+		responses.offer(new ScheduledResponse(token,res,sent));
 		return true;
 	}
 
@@ -0,0 +1,230 @@
+/* Stress test of the update journal
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.dependability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.jena.system.Txn;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProcessingException;
+import it.unibo.arces.wot.sepa.engine.bean.UpdateJournalBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressUpdateJournal {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int CLIENTS = 16;
+	private static final int UPDATES = 200;
+
+	private File journal;
+
+	@Before
+	public void init() throws Exception {
+		journal = File.createTempFile("sepa-journal", ".wal");
+		journal.delete();
+	}
+
+	@After
+	public void end() {
+		journal.delete();
+	}
+
+	private static InternalUpdateRequest update(int i) {
+		return new InternalUpdateRequest("INSERT DATA {GRAPH <http://sepatest/journal> {<http://sepatest/S" + i
+				+ "> <http://sepatest/P> \"" + i + "\"}}", null, null, null);
+	}
+
+	@Test(timeout = 120000)
+	public void groupCommit() throws Exception {
+		UpdateJournal wal = new UpdateJournal(journal.getAbsolutePath(), 1 << 30);
+		long commits = UpdateJournalBeans.getCommits();
+
+		// Concurrent clients share the disk syncs
+		AtomicLong latency = new AtomicLong(0);
+		AtomicReference<Exception> error = new AtomicReference<Exception>();
+		List<Thread> clients = new ArrayList<Thread>();
+		for (int c = 0; c < CLIENTS; c++) {
+			int client = c;
+			clients.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < UPDATES; i++) {
+						InternalUpdateRequest update = update(client * UPDATES + i);
+						long start = System.nanoTime();
+						wal.append(update);
+						latency.addAndGet(System.nanoTime() - start);
+						wal.complete(update);
+					}
+				} catch (Exception e) {
+					error.compareAndSet(null, e);
+				}
+			}));
+		}
+		long start = System.currentTimeMillis();
+		for (Thread client : clients)
+			client.start();
+		for (Thread client : clients)
+			client.join();
+		long time = System.currentTimeMillis() - start;
+		assertTrue("Append failed " + error.get(), error.get() == null);
+
+		commits = UpdateJournalBeans.getCommits() - commits;
+		logger.info(String.format("%d updates journaled in %d ms: %d commits, average append latency %.3f ms, fsync p50 %.3f ms p99 %.3f ms",
+				CLIENTS * UPDATES, time, commits, latency.get() / (CLIENTS * UPDATES) / 1000000f,
+				UpdateJournalBeans.getFsync_p50(), UpdateJournalBeans.getFsync_p99()));
+		assertTrue("No group commit: " + commits + " commits", commits < CLIENTS * UPDATES);
+
+		wal.close();
+
+		// All the updates have been completed
+		UpdateJournal restarted = new UpdateJournal(journal.getAbsolutePath(), 1 << 30);
+		assertEquals("Recovered updates", 0, restarted.getRecoveredUpdates().size());
+		restarted.close();
+	}
+
+	@Test(timeout = 60000)
+	public void recover() throws Exception {
+		UpdateJournal wal = new UpdateJournal(journal.getAbsolutePath(), 1 << 30);
+		for (int i = 0; i < 10; i++) {
+			InternalUpdateRequest update = update(i);
+			wal.append(update);
+			if (i < 5)
+				wal.complete(update);
+		}
+		wal.close();
+
+		// Torn record at the end (i.e., crash while writing)
+		try (FileOutputStream out = new FileOutputStream(journal, true)) {
+			out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+		}
+
+		wal = new UpdateJournal(journal.getAbsolutePath(), 1 << 30);
+		List<InternalUpdateRequest> recovered = wal.getRecoveredUpdates();
+		assertEquals("Recovered updates", 5, recovered.size());
+		for (int i = 0; i < 5; i++)
+			assertEquals(update(i + 5).getSparql(), recovered.get(i).getSparql());
+
+		// New ids follow the recovered ones
+		InternalUpdateRequest update = update(10);
+		wal.append(update);
+		assertTrue("Journal id", update.getJournalId() > recovered.get(4).getJournalId());
+		wal.complete(update);
+		wal.close();
+	}
+
+	@Test(timeout = 60000)
+	public void checkpoint() throws Exception {
+		UpdateJournal wal = new UpdateJournal(journal.getAbsolutePath(), 4096);
+		long checkpoints = UpdateJournalBeans.getCheckpoints();
+
+		InternalUpdateRequest pending = update(0);
+		wal.append(pending);
+		for (int i = 1; i < 200; i++) {
+			InternalUpdateRequest update = update(i);
+			wal.append(update);
+			wal.complete(update);
+		}
+		wal.close();
+
+		assertTrue("Checkpoints", UpdateJournalBeans.getCheckpoints() > checkpoints);
+		assertTrue("Journal size " + journal.length(), journal.length() < 4096 * 2);
+
+		wal = new UpdateJournal(journal.getAbsolutePath(), 4096);
+		List<InternalUpdateRequest> recovered = wal.getRecoveredUpdates();
+		assertEquals("Recovered updates", 1, recovered.size());
+		assertEquals(pending.getSparql(), recovered.get(0).getSparql());
+		wal.close();
+	}
+
+	/**
+	 * An update that cannot be journaled is refused (i.e., never acknowledged)
+	 */
+	@Test(timeout = 60000)
+	public void notJournaled() throws Exception {
+		Scheduler scheduler = new Scheduler(EngineProperties.load("src/main/resources/engine.jpar"));
+		UpdateJournal wal = new UpdateJournal(journal.getAbsolutePath(), 1 << 30);
+		scheduler.setUpdateJournal(wal);
+		wal.close();
+
+		try {
+			scheduler.schedule(update(0), response -> {
+			});
+			fail("Update scheduled without being journaled");
+		} catch (SEPAProcessingException e) {
+			logger.info(e.getMessage());
+		}
+
+		// Updates are never batched
+		List<InternalRequest> batch = new ArrayList<InternalRequest>();
+		batch.add(update(1));
+		assertNull("Update scheduled in a batch", scheduler.schedule(batch, response -> {
+		}).get(0));
+
+		assertEquals("Pending updates", 0, scheduler.getPendingUpdates());
+	}
+
+	@Test(timeout = 60000)
+	public void replay() throws Exception {
+		UpdateJournal wal = new UpdateJournal(journal.getAbsolutePath(), 1 << 30);
+		for (int i = 0; i < 10; i++)
+			wal.append(update(i));
+		wal.close();
+
+		// The processor replays the updates not completed
+		String jpar = new String(Files.readAllBytes(Paths.get("src/main/resources/engine.jpar")), StandardCharsets.UTF_8);
+		jpar = jpar.replace("\"updateJournal\": \"\"", "\"updateJournal\": \"" + journal.getAbsolutePath() + "\"");
+		File properties = File.createTempFile("sepa-engine", ".jpar");
+		Files.write(properties.toPath(), jpar.getBytes(StandardCharsets.UTF_8));
+		InMemoryProcessor processor = new InMemoryProcessor(EngineProperties.load(properties.getAbsolutePath()));
+		properties.delete();
+
+		processor.replayUpdates();
+		assertEquals("Replayed", 10, UpdateJournalBeans.getReplayed());
+		assertEquals("Replay failed", 0, UpdateJournalBeans.getReplayFailed());
+		long triples = Txn.calculateRead(processor.getDataset(),
+				() -> processor.getDataset().getNamedModel("http://sepatest/journal").size());
+		assertEquals("Replayed triples", 10, triples);
+		processor.interrupt();
+
+		wal = new UpdateJournal(journal.getAbsolutePath(), 1 << 30);
+		assertEquals("Recovered updates", 0, wal.getRecoveredUpdates().size());
+		wal.close();
+	}
+}
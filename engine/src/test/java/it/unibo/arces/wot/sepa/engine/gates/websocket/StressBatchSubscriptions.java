@@ -0,0 +1,404 @@
+/* Stress test of the subscribe and unsubscribe requests sent in batches
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.api.ISubscriptionHandler;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.WebsocketSubscriptionProtocol;
+import it.unibo.arces.wot.sepa.commons.request.Request;
+import it.unibo.arces.wot.sepa.commons.request.SubscribeRequest;
+import it.unibo.arces.wot.sepa.commons.request.UnsubscribeRequest;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.engine.bean.GateBeans;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressBatchSubscriptions {
+	protected static final Logger logger = LogManager.getLogger();
+
+	// The subscriptions of a dashboard
+	private static final int SUBSCRIPTIONS = 200;
+	private static final int QUERIES = 20;
+	// The first run warms up the JIT
+	private static final int RUNS = 3;
+
+	private static Scheduler scheduler;
+	private static InMemoryProcessor processor;
+	private static WebsocketServer server;
+	private static int port;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		EngineProperties properties = EngineProperties.load("src/main/resources/engine.jpar");
+		scheduler = new Scheduler(properties);
+		processor = new InMemoryProcessor(properties, scheduler);
+		Dependability.setProcessor(processor);
+		scheduler.start();
+		processor.start();
+
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new WebsocketServer(port, "/subscribe", scheduler, properties);
+		synchronized (server) {
+			server.start();
+			server.wait(10000);
+		}
+	}
+
+	@AfterClass
+	public static void end() throws Exception {
+		server.stop();
+		processor.interrupt();
+		scheduler.finish();
+		scheduler.interrupt();
+	}
+
+	// Queues the responses
+	private static class Client extends WebSocketClient {
+		private final BlockingQueue<JsonObject> responses = new LinkedBlockingQueue<JsonObject>();
+
+		Client() throws Exception {
+			super(new URI("ws://localhost:" + port + "/subscribe"));
+		}
+
+		JsonObject next() throws InterruptedException {
+			JsonObject ret = responses.poll(30, TimeUnit.SECONDS);
+			assertNotNull("Response not received", ret);
+			return ret;
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+		}
+
+		@Override
+		public void onMessage(String message) {
+			responses.add(new JsonParser().parse(message).getAsJsonObject());
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+		}
+
+		@Override
+		public void onError(Exception ex) {
+			logger.error(ex.getMessage());
+		}
+	}
+
+	private static String subscribe(int i) {
+		return "{\"subscribe\":{\"sparql\":\"SELECT * WHERE {GRAPH <http://sepatest/batch" + (i % QUERIES)
+				+ "> {?s ?p ?o}}\",\"alias\":\"a" + i + "\"}}";
+	}
+
+	private static String unsubscribe(String spuid) {
+		return "{\"unsubscribe\":{\"spuid\":\"" + spuid + "\"}}";
+	}
+
+	private static String batch(List<String> requests) {
+		return "{\"batch\":[" + String.join(",", requests) + "]}";
+	}
+
+	// The SPUIDs of the subscribe responses (one for each alias from a0)
+	private static List<String> subscribed(Client client, int responses) throws InterruptedException {
+		List<String> spuids = new ArrayList<String>();
+		Set<String> aliases = new HashSet<String>();
+		for (int i = 0; i < responses; i++) {
+			JsonObject response = client.next();
+			assertTrue("Not a subscribe response: " + response, response.has("notification"));
+			aliases.add(response.getAsJsonObject("notification").get("alias").getAsString());
+			spuids.add(response.getAsJsonObject("notification").get("spuid").getAsString());
+		}
+		assertEquals("Aliases", responses, aliases.size());
+		for (int i = 0; i < responses; i++)
+			assertTrue("Alias not answered: a" + i, aliases.contains("a" + i));
+		return spuids;
+	}
+
+	private static void unsubscribed(Client client, int responses) throws InterruptedException {
+		for (int i = 0; i < responses; i++) {
+			JsonObject response = client.next();
+			assertTrue("Not an unsubscribe response: " + response, response.has("unsubscribed"));
+		}
+	}
+
+	/**
+	 * The subscriptions of a dashboard sent one by one (waiting each response, as
+	 * the client library does) and in a single batch
+	 */
+	@Test(timeout = 300000)
+	public void dashboard() throws Exception {
+		int subscribers = SPUManagerBeans.getSubscribers();
+		Client client = new Client();
+		assertTrue("Client not connected", client.connectBlocking(10, TimeUnit.SECONDS));
+
+		for (int run = 0; run < RUNS; run++) {
+			// One by one
+			long start = System.nanoTime();
+			List<String> spuids = new ArrayList<String>();
+			for (int i = 0; i < SUBSCRIPTIONS; i++) {
+				client.send(subscribe(i));
+				JsonObject response = client.next();
+				assertTrue("Not a subscribe response: " + response, response.has("notification"));
+				spuids.add(response.getAsJsonObject("notification").get("spuid").getAsString());
+			}
+			long sequential = System.nanoTime() - start;
+			for (String spuid : spuids) {
+				client.send(unsubscribe(spuid));
+				unsubscribed(client, 1);
+			}
+
+			// Batch
+			long batches = GateBeans.getBatches();
+			long batchedRequests = GateBeans.getBatchedRequests();
+			List<String> requests = new ArrayList<String>();
+			for (int i = 0; i < SUBSCRIPTIONS; i++)
+				requests.add(subscribe(i));
+			start = System.nanoTime();
+			client.send(batch(requests));
+			spuids = subscribed(client, SUBSCRIPTIONS);
+			long batch = System.nanoTime() - start;
+			assertEquals("Batches", batches + 1, GateBeans.getBatches());
+			assertEquals("Batched requests", batchedRequests + SUBSCRIPTIONS, GateBeans.getBatchedRequests());
+
+			requests.clear();
+			for (String spuid : spuids)
+				requests.add(unsubscribe(spuid));
+			client.send(batch(requests));
+			unsubscribed(client, SUBSCRIPTIONS);
+
+			logger.info(String.format("%d subscriptions: one by one %d ms, batch %d ms (%.1fx)", SUBSCRIPTIONS,
+					sequential / 1000000, batch / 1000000, (double) sequential / batch));
+		}
+
+		client.closeBlocking();
+		assertEquals("Subscribers", subscribers, SPUManagerBeans.getSubscribers());
+	}
+
+	/**
+	 * A bad request of a batch is answered by an error: the other requests are
+	 * served
+	 */
+	@Test(timeout = 60000)
+	public void badRequests() throws Exception {
+		Client client = new Client();
+		assertTrue("Client not connected", client.connectBlocking(10, TimeUnit.SECONDS));
+
+		List<String> requests = new ArrayList<String>();
+		requests.add(subscribe(0));
+		requests.add("{\"subscribe\":{\"alias\":\"bad\"}}");
+		requests.add("42");
+		requests.add(subscribe(1));
+		client.send(batch(requests));
+
+		int errors = 0;
+		Set<String> aliases = new HashSet<String>();
+		List<String> spuids = new ArrayList<String>();
+		for (int i = 0; i < requests.size(); i++) {
+			JsonObject response = client.next();
+			if (response.has("notification")) {
+				spuids.add(response.getAsJsonObject("notification").get("spuid").getAsString());
+				aliases.add(response.getAsJsonObject("notification").get("alias").getAsString());
+			} else {
+				assertTrue("Not an error: " + response, response.has("error"));
+				if (response.has("alias"))
+					assertEquals("Alias of the error", "bad", response.get("alias").getAsString());
+				errors++;
+			}
+		}
+		assertEquals("Errors", 2, errors);
+		assertTrue("Subscribed", aliases.contains("a0") && aliases.contains("a1"));
+
+		// Not an array
+		client.send("{\"batch\":{}}");
+		assertTrue("Not an error", client.next().has("error"));
+
+		requests.clear();
+		for (String spuid : spuids)
+			requests.add(unsubscribe(spuid));
+		client.send(batch(requests));
+		unsubscribed(client, spuids.size());
+
+		client.closeBlocking();
+	}
+
+	/**
+	 * The client API sends the batch in a single message and waits all the
+	 * responses before the next request
+	 */
+	@Test(timeout = 60000)
+	public void clientApi() throws Exception {
+		CountDownLatch subscribed = new CountDownLatch(SUBSCRIPTIONS + 1);
+		CountDownLatch unsubscribed = new CountDownLatch(SUBSCRIPTIONS + 1);
+		AtomicInteger errors = new AtomicInteger(0);
+		List<String> spuids = new ArrayList<String>();
+
+		ISubscriptionHandler handler = new ISubscriptionHandler() {
+			@Override
+			public void onSemanticEvent(Notification notify) {
+			}
+
+			@Override
+			public void onBrokenConnection(ErrorResponse errorResponse) {
+			}
+
+			@Override
+			public void onError(ErrorResponse errorResponse) {
+				logger.error(errorResponse);
+				errors.incrementAndGet();
+			}
+
+			@Override
+			public void onSubscribe(String id, String alias) {
+				synchronized (spuids) {
+					spuids.add(id);
+				}
+				subscribed.countDown();
+			}
+
+			@Override
+			public void onUnsubscribe(String id) {
+				unsubscribed.countDown();
+			}
+		};
+
+		long batches = GateBeans.getBatches();
+		WebsocketSubscriptionProtocol protocol = new WebsocketSubscriptionProtocol("localhost", port, "/subscribe",
+				handler, null);
+		List<Request> requests = new ArrayList<Request>();
+		for (int i = 0; i < SUBSCRIPTIONS; i++)
+			requests.add(new SubscribeRequest("SELECT * WHERE {GRAPH <http://sepatest/batch" + (i % QUERIES)
+					+ "> {?s ?p ?o}}", "a" + i, null, null, null, 5000, 0));
+		protocol.batch(requests);
+
+		// Sent after the responses of the batch
+		protocol.subscribe(new SubscribeRequest("SELECT * WHERE {GRAPH <http://sepatest/batch> {?s ?p ?o}}", "last",
+				null, null, null, 5000, 0));
+		assertTrue("Not subscribed", subscribed.await(30, TimeUnit.SECONDS));
+
+		requests.clear();
+		synchronized (spuids) {
+			for (String spuid : spuids)
+				requests.add(new UnsubscribeRequest(spuid, null, 5000, 0));
+		}
+		protocol.batch(requests);
+		assertTrue("Not unsubscribed", unsubscribed.await(30, TimeUnit.SECONDS));
+		assertEquals("Batches", batches + 2, GateBeans.getBatches());
+		assertEquals("Errors", 0, errors.get());
+
+		protocol.close();
+	}
+
+	/**
+	 * The responses of a batch are matched by alias (the error of an unsubscribe
+	 * carries its SPUID) and a broken connection releases the requests waiting
+	 * for them
+	 */
+	@Test(timeout = 60000)
+	public void matchedResponses() throws Exception {
+		CountDownLatch subscribed = new CountDownLatch(2);
+		List<String> errors = new ArrayList<String>();
+
+		ISubscriptionHandler handler = new ISubscriptionHandler() {
+			@Override
+			public void onSemanticEvent(Notification notify) {
+			}
+
+			@Override
+			public void onBrokenConnection(ErrorResponse errorResponse) {
+			}
+
+			@Override
+			public void onError(ErrorResponse errorResponse) {
+				synchronized (errors) {
+					errors.add(errorResponse.getAlias());
+				}
+			}
+
+			@Override
+			public void onSubscribe(String id, String alias) {
+				subscribed.countDown();
+			}
+
+			@Override
+			public void onUnsubscribe(String id) {
+			}
+		};
+
+		WebsocketSubscriptionProtocol protocol = new WebsocketSubscriptionProtocol("localhost", port, "/subscribe",
+				handler, null);
+		List<Request> requests = new ArrayList<Request>();
+		requests.add(new SubscribeRequest("SELECT * WHERE {GRAPH <http://sepatest/batch/matched> {?s ?p ?o}}",
+				"matched", null, null, null, 5000, 0));
+		requests.add(new UnsubscribeRequest("sepa://spu/unknown", null, 5000, 0));
+		protocol.batch(requests);
+
+		// Sent after the subscribe response and the unsubscribe error
+		protocol.subscribe(new SubscribeRequest("SELECT * WHERE {GRAPH <http://sepatest/batch/after> {?s ?p ?o}}",
+				"after", null, null, null, 5000, 0));
+		assertTrue("Not subscribed", subscribed.await(30, TimeUnit.SECONDS));
+		synchronized (errors) {
+			assertEquals("Errors", 1, errors.size());
+			assertEquals("Alias of the error", "sepa://spu/unknown", errors.get(0));
+		}
+
+		// The connection is closed before (or while) the batch is answered
+		requests.clear();
+		requests.add(new SubscribeRequest("SELECT * WHERE {GRAPH <http://sepatest/batch/broken> {?s ?p ?o}}",
+				"broken", null, null, null, 5000, 0));
+		protocol.batch(requests);
+		protocol.close();
+		protocol.subscribe(new SubscribeRequest(
+				"SELECT * WHERE {GRAPH <http://sepatest/batch/reconnected> {?s ?p ?o}}", "reconnected", null, null,
+				null, 5000, 0));
+
+		protocol.close();
+	}
+}
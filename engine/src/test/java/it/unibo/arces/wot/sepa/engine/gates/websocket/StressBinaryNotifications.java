@@ -0,0 +1,527 @@
+/* Size and CPU of the binary WebSocket notifications (with and without dictionary)
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.api.ISubscriptionHandler;
+import it.unibo.arces.wot.sepa.api.SPARQL11SEProperties.NotificationEncoding;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.BinaryNotification;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.ConnectionTermDictionary;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.TermDictionaryMirror;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.WebsocketSubscriptionProtocol;
+import it.unibo.arces.wot.sepa.commons.request.SubscribeRequest;
+import it.unibo.arces.wot.sepa.commons.request.UnsubscribeRequest;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.sparql.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparql.RDFTermBNode;
+import it.unibo.arces.wot.sepa.commons.sparql.RDFTermLiteral;
+import it.unibo.arces.wot.sepa.commons.sparql.RDFTermURI;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressBinaryNotifications {
+	protected static final Logger logger = LogManager.getLogger();
+
+	private static final int CLIENTS = 20;
+	private static final int UPDATES = 100;
+	private static final int ROWS = 20;
+	private static final int ITERATIONS = 20000;
+	// The first run (JSON) warms up the JIT
+	private static final NotificationEncoding[] ENCODINGS = new NotificationEncoding[] { NotificationEncoding.JSON,
+			NotificationEncoding.JSON, NotificationEncoding.BINARY, NotificationEncoding.DICTIONARY };
+
+	private static final File jpar = new File("target/binary-notifications.jpar");
+
+	private static Scheduler scheduler;
+	private static InMemoryProcessor processor;
+	private static String properties;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		properties = new String(Files.readAllBytes(Paths.get("src/main/resources/engine.jpar")), "UTF-8");
+		EngineProperties engineProperties = EngineProperties.load("src/main/resources/engine.jpar");
+
+		scheduler = new Scheduler(engineProperties);
+		processor = new InMemoryProcessor(engineProperties, scheduler);
+		Dependability.setProcessor(processor);
+		scheduler.start();
+		processor.start();
+	}
+
+	@AfterClass
+	public static void end() throws Exception {
+		processor.interrupt();
+		scheduler.finish();
+		scheduler.interrupt();
+		jpar.delete();
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static WebsocketServer start(int port) throws Exception {
+		// Not compressed, to compare the encodings only
+		try (FileWriter out = new FileWriter(jpar)) {
+			out.write(properties.replace("\"deflateLevel\": 1", "\"deflateLevel\": 0"));
+		}
+		WebsocketServer server = new WebsocketServer(port, "/subscribe", scheduler, EngineProperties.load(jpar.getPath()));
+		synchronized (server) {
+			server.start();
+			server.wait(10000);
+		}
+		return server;
+	}
+
+	// Counts the bytes received from the server (i.e., the frames on the wire)
+	private static class CountingSocket extends Socket {
+		final AtomicLong received = new AtomicLong(0);
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new FilterInputStream(super.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int ret = super.read();
+					if (ret >= 0)
+						received.incrementAndGet();
+					return ret;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int ret = super.read(b, off, len);
+					if (ret > 0)
+						received.addAndGet(ret);
+					return ret;
+				}
+			};
+		}
+	}
+
+	// Checks the content of each notification
+	private static class Client extends WebSocketClient {
+		final CountingSocket socket = new CountingSocket();
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		final CountDownLatch notified = new CountDownLatch(UPDATES);
+		final AtomicInteger errors = new AtomicInteger(0);
+		final AtomicInteger binary = new AtomicInteger(0);
+		final TermDictionaryMirror dictionary = new TermDictionaryMirror();
+
+		Client(int port, NotificationEncoding encoding) throws Exception {
+			super(new URI("ws://localhost:" + port + "/subscribe"), draft(encoding));
+			setSocket(socket);
+		}
+
+		private static Draft_6455 draft(NotificationEncoding encoding) {
+			switch (encoding) {
+			case BINARY:
+				return new Draft_6455(Collections.<IExtension>emptyList(),
+						Collections.<IProtocol>singletonList(new Protocol(BinaryNotification.PROTOCOL)));
+			case DICTIONARY:
+				return new Draft_6455(Collections.<IExtension>emptyList(),
+						Collections.<IProtocol>singletonList(new Protocol(ConnectionTermDictionary.PROTOCOL)));
+			default:
+				return new Draft_6455();
+			}
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+		}
+
+		@Override
+		public void onMessage(String message) {
+			JsonObject response = new JsonParser().parse(message).getAsJsonObject();
+			if (!response.has("notification")) {
+				logger.error(message);
+				errors.incrementAndGet();
+				return;
+			}
+			onNotification(new Notification(response));
+		}
+
+		@Override
+		public void onMessage(ByteBuffer message) {
+			binary.incrementAndGet();
+			onNotification(dictionary.decode(message));
+		}
+
+		private void onNotification(Notification notification) {
+			int sequence = notification.getSequence();
+			if (sequence == 0) {
+				subscribed.countDown();
+				return;
+			}
+
+			// Update N inserts the values N*ROWS ... N*ROWS + ROWS - 1
+			List<Bindings> added = notification.getARBindingsResults().getAddedBindings().getBindings();
+			int first = (sequence - 1) * ROWS;
+			boolean valid = added.size() == ROWS;
+			for (int i = 0; valid && i < ROWS; i++) {
+				int value = Integer.parseInt(added.get(i).getValue("value"));
+				valid = value >= first && value < first + ROWS;
+			}
+			if (!valid) {
+				logger.error("Bad notification: " + notification);
+				errors.incrementAndGet();
+			}
+			notified.countDown();
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+		}
+
+		@Override
+		public void onError(Exception ex) {
+			logger.error(ex.getMessage());
+		}
+	}
+
+	private static String subscribe(String graph) {
+		return "{\"subscribe\":{\"sparql\":\"SELECT ?sensor ?value WHERE {GRAPH <" + graph
+				+ "> {?sensor <http://sepatest/binary/hasValue> ?value}}\",\"alias\":\"binary\"}}";
+	}
+
+	// The same ROWS sensors get a new value at each update
+	private static void update(String graph, int n) {
+		StringBuilder update = new StringBuilder("INSERT DATA {GRAPH <" + graph + "> {");
+		for (int i = n * ROWS; i < (n + 1) * ROWS; i++)
+			update.append("<http://sepatest/binary/building/B1/floor/F2/room/R" + (i % ROWS)
+					+ "/sensor/temperature> <http://sepatest/binary/hasValue> " + i + " . ");
+		update.append("}}");
+		Response ret = processor.processUpdate(new InternalUpdateRequest(update.toString(), null, null, null));
+		assertTrue(ret.toString(), !ret.isError());
+	}
+
+	private static long cpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getProcessCpuTime();
+	}
+
+	// A notification with all the kinds of terms (and an unbound variable)
+	private static Notification sample(int rows) {
+		return sample(0, rows);
+	}
+
+	// The rows from first to first + rows - 1
+	private static Notification sample(int first, int rows) {
+		ArrayList<String> vars = new ArrayList<String>(Arrays.asList("sensor", "value", "label", "node", "unit"));
+		List<Bindings> added = new ArrayList<Bindings>();
+		List<Bindings> removed = new ArrayList<Bindings>();
+		for (int i = first; i < first + rows; i++) {
+			Bindings solution = new Bindings();
+			solution.addBinding("sensor",
+					new RDFTermURI("http://sepatest/binary/building/B1/floor/F2/room/R" + i + "/sensor/temperature"));
+			solution.addBinding("value",
+					new RDFTermLiteral(String.valueOf(20.5 + i), "http://www.w3.org/2001/XMLSchema#decimal"));
+			solution.addBinding("label", new RDFTermLiteral("Température " + i, null, "fr"));
+			solution.addBinding("node", new RDFTermBNode("b" + i));
+			if (i % 2 == 0)
+				solution.addBinding("unit", new RDFTermURI("http://qudt.org/vocab/unit/DEG_C"));
+			if (i % 4 == 0)
+				removed.add(solution);
+			else
+				added.add(solution);
+		}
+		return new Notification("sepa://spuid/" + rows, new ARBindingsResults(new BindingsResults(vars, added),
+				new BindingsResults(vars, removed)), rows + 1);
+	}
+
+	/**
+	 * A notification is decoded as it was encoded
+	 */
+	@Test(timeout = 10000)
+	public void roundTrip() throws Exception {
+		for (int rows : new int[] { 0, 1, 20, 1000 }) {
+			Notification notification = sample(rows);
+			Notification decoded = BinaryNotification.decode(ByteBuffer.wrap(BinaryNotification.encode(notification)));
+
+			assertEquals("SPUID", notification.getSpuid(), decoded.getSpuid());
+			assertEquals("Sequence", notification.getSequence(), decoded.getSequence());
+			assertEquals("Results", notification.getARBindingsResults().toJson(),
+					decoded.getARBindingsResults().toJson());
+		}
+	}
+
+	/**
+	 * The client mirrors the dictionary of the server, also when the terms are
+	 * evicted
+	 */
+	@Test(timeout = 10000)
+	public void dictionary() throws Exception {
+		for (int capacity : new int[] { 1, 10, 30, 100, 4096 }) {
+			ConnectionTermDictionary dictionary = new ConnectionTermDictionary(capacity);
+			TermDictionaryMirror mirror = new TermDictionaryMirror();
+
+			// Sliding windows of rows (more terms than the capacity are sent without the dictionary)
+			for (int n = 0; n < 200; n++) {
+				Notification notification = sample(n % 50, new int[] { 0, 1, 2, 5, 20, 1000 }[n % 6]);
+				Notification decoded = mirror.decode(ByteBuffer.wrap(dictionary.encode(notification)));
+
+				assertEquals("SPUID", notification.getSpuid(), decoded.getSpuid());
+				assertEquals("Sequence", notification.getSequence(), decoded.getSequence());
+				assertEquals("Results", notification.getARBindingsResults().toJson(),
+						decoded.getARBindingsResults().toJson());
+				assertTrue("Dictionary size " + dictionary.size(), dictionary.size() <= capacity);
+				assertEquals("Mirror size", dictionary.size(), mirror.size());
+			}
+		}
+
+		// The terms of the previous notification are not sent again
+		ConnectionTermDictionary dictionary = new ConnectionTermDictionary(4096);
+		Notification notification = sample(ROWS);
+		int first = dictionary.encode(notification).length;
+		int second = dictionary.encode(notification).length;
+		assertTrue("First " + first + " second " + second, second < first / 2);
+	}
+
+	/**
+	 * Size and CPU of the encoding and the decoding of a notification
+	 */
+	@Test(timeout = 120000)
+	public void codec() throws Exception {
+		Notification notification = sample(ROWS);
+		byte[] json = notification.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] binary = BinaryNotification.encode(notification);
+		assertTrue("Binary " + binary.length + " JSON " + json.length, binary.length < json.length);
+
+		// Warm up
+		for (int i = 0; i < ITERATIONS; i++) {
+			new Notification(new JsonParser().parse(notification.toString()).getAsJsonObject())
+					.getARBindingsResults().getAddedBindings().size();
+			BinaryNotification.decode(ByteBuffer.wrap(BinaryNotification.encode(notification)))
+					.getARBindingsResults().getAddedBindings().size();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			notification.toString().getBytes(StandardCharsets.UTF_8);
+		long jsonEncode = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			new Notification(new JsonParser().parse(new String(json, StandardCharsets.UTF_8)).getAsJsonObject())
+					.getARBindingsResults().getAddedBindings().size();
+		long jsonDecode = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			BinaryNotification.encode(notification);
+		long binaryEncode = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			BinaryNotification.decode(ByteBuffer.wrap(binary)).getARBindingsResults().getAddedBindings().size();
+		long binaryDecode = System.nanoTime() - start;
+
+		logger.info(String.format("JSON: %d bytes, encode %d ns, decode %d ns", json.length,
+				jsonEncode / ITERATIONS, jsonDecode / ITERATIONS));
+		logger.info(String.format("Binary: %d bytes (%.1f%%), encode %d ns, decode %d ns", binary.length,
+				100.0 * binary.length / json.length, binaryEncode / ITERATIONS, binaryDecode / ITERATIONS));
+	}
+
+	/**
+	 * The same notifications are sent to the subscribers JSON or binary encoded (with and without dictionary)
+	 */
+	@Test(timeout = 300000)
+	public void encodings() throws Exception {
+		long json = 0;
+		long plain = 0;
+
+		for (int run = 0; run < ENCODINGS.length; run++) {
+			NotificationEncoding encoding = ENCODINGS[run];
+			boolean binary = encoding != NotificationEncoding.JSON;
+			int subscribers = SPUManagerBeans.getSubscribers();
+			String graph = "http://sepatest/binary/run" + run;
+			int port = freePort();
+			WebsocketServer server = start(port);
+
+			List<Client> clients = new ArrayList<Client>();
+			for (int i = 0; i < CLIENTS; i++) {
+				Client client = new Client(port, encoding);
+				assertTrue("Client not connected", client.connectBlocking(10, TimeUnit.SECONDS));
+				client.send(subscribe(graph));
+				assertTrue("Not subscribed", client.subscribed.await(10, TimeUnit.SECONDS));
+				clients.add(client);
+			}
+			long handshake = 0;
+			for (Client client : clients)
+				handshake += client.socket.received.get();
+
+			long cpu = cpuTime();
+			long start = System.nanoTime();
+			for (int i = 0; i < UPDATES; i++)
+				update(graph, i);
+			for (Client client : clients)
+				assertTrue("Notifications not received", client.notified.await(60, TimeUnit.SECONDS));
+			long time = System.nanoTime() - start;
+			cpu = cpuTime() - cpu;
+
+			long bytes = -handshake;
+			for (Client client : clients) {
+				bytes += client.socket.received.get();
+				assertEquals("Errors", 0, client.errors.get());
+				assertEquals("Binary notifications", binary ? UPDATES : 0, client.binary.get());
+			}
+			if (!binary)
+				json = bytes;
+			else
+				assertTrue(encoding + " " + bytes + " JSON " + json, bytes < json);
+			if (encoding == NotificationEncoding.BINARY)
+				plain = bytes;
+			else if (encoding == NotificationEncoding.DICTIONARY)
+				assertTrue("Dictionary " + bytes + " binary " + plain, bytes < plain);
+
+			logger.info(String.format("%s: %d notifications, %d bytes (%.1f%%) in %d ms, CPU %d ms",
+					encoding, CLIENTS * UPDATES, bytes, 100.0 * bytes / json, time / 1000000,
+					cpu / 1000000));
+
+			for (Client client : clients)
+				client.closeBlocking();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (SPUManagerBeans.getSubscribers() > subscribers && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertEquals("Subscribers", subscribers, SPUManagerBeans.getSubscribers());
+			server.stop();
+		}
+	}
+
+	/**
+	 * The client API negotiates the subprotocols and decodes the notifications
+	 */
+	@Test(timeout = 60000)
+	public void clientApi() throws Exception {
+		clientApi(NotificationEncoding.BINARY);
+		clientApi(NotificationEncoding.DICTIONARY);
+	}
+
+	private void clientApi(NotificationEncoding encoding) throws Exception {
+		String graph = "http://sepatest/binary/api/" + encoding;
+		int port = freePort();
+		WebsocketServer server = start(port);
+
+		CountDownLatch subscribed = new CountDownLatch(1);
+		CountDownLatch notified = new CountDownLatch(2);
+		CountDownLatch unsubscribed = new CountDownLatch(1);
+		AtomicInteger added = new AtomicInteger(0);
+		AtomicInteger errors = new AtomicInteger(0);
+		StringBuilder spuid = new StringBuilder();
+
+		ISubscriptionHandler handler = new ISubscriptionHandler() {
+			@Override
+			public void onSemanticEvent(Notification notify) {
+				if (notify.getSequence() == 0)
+					return;
+				added.set(notify.getARBindingsResults().getAddedBindings().size());
+				notified.countDown();
+			}
+
+			@Override
+			public void onBrokenConnection(ErrorResponse errorResponse) {
+			}
+
+			@Override
+			public void onError(ErrorResponse errorResponse) {
+				logger.error(errorResponse);
+				errors.incrementAndGet();
+			}
+
+			@Override
+			public void onSubscribe(String id, String alias) {
+				spuid.append(id);
+				subscribed.countDown();
+			}
+
+			@Override
+			public void onUnsubscribe(String id) {
+				unsubscribed.countDown();
+			}
+		};
+
+		WebsocketSubscriptionProtocol protocol = new WebsocketSubscriptionProtocol("localhost", port, "/subscribe",
+				handler, null, 0, 0, encoding);
+		protocol.subscribe(new SubscribeRequest("SELECT ?sensor ?value WHERE {GRAPH <" + graph
+				+ "> {?sensor <http://sepatest/binary/hasValue> ?value}}", "api", null, null, null, 5000, 0));
+		assertTrue("Not subscribed", subscribed.await(10, TimeUnit.SECONDS));
+
+		// The second notification refers to the sensors defined by the first one
+		update(graph, 0);
+		update(graph, 1);
+		assertTrue("Not notified", notified.await(10, TimeUnit.SECONDS));
+		assertEquals("Added bindings", ROWS, added.get());
+
+		protocol.unsubscribe(new UnsubscribeRequest(spuid.toString(), null, 5000, 0));
+		assertTrue("Not unsubscribed", unsubscribed.await(10, TimeUnit.SECONDS));
+		assertEquals("Errors", 0, errors.get());
+
+		protocol.close();
+		server.stop();
+	}
+}
@@ -0,0 +1,354 @@
+/* Bandwidth and CPU of the WebSocket notifications with permessage-deflate
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.api.ISubscriptionHandler;
+import it.unibo.arces.wot.sepa.api.protocols.websocket.WebsocketSubscriptionProtocol;
+import it.unibo.arces.wot.sepa.commons.request.SubscribeRequest;
+import it.unibo.arces.wot.sepa.commons.request.UnsubscribeRequest;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressDeflateNotifications {
+	protected static final Logger logger = LogManager.getLogger();
+
+	private static final int CLIENTS = 20;
+	private static final int UPDATES = 100;
+	private static final int ROWS = 20;
+	// The first run (not compressed) warms up the JIT
+	private static final int[] LEVELS = new int[] { 0, 0, 1, 6, 9 };
+
+	private static final File jpar = new File("target/deflate-notifications.jpar");
+
+	private static Scheduler scheduler;
+	private static InMemoryProcessor processor;
+	private static String properties;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		properties = new String(Files.readAllBytes(Paths.get("src/main/resources/engine.jpar")), "UTF-8");
+		EngineProperties engineProperties = EngineProperties.load("src/main/resources/engine.jpar");
+
+		scheduler = new Scheduler(engineProperties);
+		processor = new InMemoryProcessor(engineProperties, scheduler);
+		Dependability.setProcessor(processor);
+		scheduler.start();
+		processor.start();
+	}
+
+	@AfterClass
+	public static void end() throws Exception {
+		processor.interrupt();
+		scheduler.finish();
+		scheduler.interrupt();
+		jpar.delete();
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static WebsocketServer start(int port, int level) throws Exception {
+		// The deflate extension of the Java-WebSocket client does not accept uncompressed messages
+		try (FileWriter out = new FileWriter(jpar)) {
+			out.write(properties.replace("\"deflateLevel\": 1", "\"deflateLevel\": " + level)
+					.replace("\"deflateMinSize\": 1024", "\"deflateMinSize\": 0"));
+		}
+		WebsocketServer server = new WebsocketServer(port, "/subscribe", scheduler, EngineProperties.load(jpar.getPath()));
+		synchronized (server) {
+			server.start();
+			server.wait(10000);
+		}
+		return server;
+	}
+
+	// Counts the bytes received from the server (i.e., the frames on the wire)
+	private static class CountingSocket extends Socket {
+		final AtomicLong received = new AtomicLong(0);
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new FilterInputStream(super.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int ret = super.read();
+					if (ret >= 0)
+						received.incrementAndGet();
+					return ret;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int ret = super.read(b, off, len);
+					if (ret > 0)
+						received.addAndGet(ret);
+					return ret;
+				}
+			};
+		}
+	}
+
+	// Checks the content of each notification
+	private static class Client extends WebSocketClient {
+		final CountingSocket socket = new CountingSocket();
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		final CountDownLatch notified = new CountDownLatch(UPDATES);
+		final AtomicInteger errors = new AtomicInteger(0);
+
+		Client(int port, boolean deflate) throws Exception {
+			super(new URI("ws://localhost:" + port + "/subscribe"),
+					(deflate ? new Draft_6455(new PerMessageDeflateExtension()) : new Draft_6455()));
+			setSocket(socket);
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+		}
+
+		@Override
+		public void onMessage(String message) {
+			JsonObject response = new JsonParser().parse(message).getAsJsonObject();
+			if (!response.has("notification")) {
+				logger.error(message);
+				errors.incrementAndGet();
+				return;
+			}
+
+			JsonObject notification = response.getAsJsonObject("notification");
+			int sequence = notification.get("sequence").getAsInt();
+			if (sequence == 0) {
+				subscribed.countDown();
+				return;
+			}
+
+			// Update N inserts the values N*ROWS ... N*ROWS + ROWS - 1
+			JsonArray added = notification.getAsJsonObject("addedResults").getAsJsonObject("results")
+					.getAsJsonArray("bindings");
+			int first = (sequence - 1) * ROWS;
+			boolean valid = added.size() == ROWS;
+			for (int i = 0; valid && i < ROWS; i++) {
+				int value = added.get(i).getAsJsonObject().getAsJsonObject("value").get("value").getAsInt();
+				valid = value >= first && value < first + ROWS;
+			}
+			if (!valid) {
+				logger.error("Bad notification: " + message);
+				errors.incrementAndGet();
+			}
+			notified.countDown();
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+		}
+
+		@Override
+		public void onError(Exception ex) {
+			logger.error(ex.getMessage());
+		}
+	}
+
+	private static String subscribe(String graph) {
+		return "{\"subscribe\":{\"sparql\":\"SELECT ?sensor ?value WHERE {GRAPH <" + graph
+				+ "> {?sensor <http://sepatest/deflate/hasValue> ?value}}\",\"alias\":\"deflate\"}}";
+	}
+
+	private static void update(String graph, int n) {
+		StringBuilder update = new StringBuilder("INSERT DATA {GRAPH <" + graph + "> {");
+		for (int i = n * ROWS; i < (n + 1) * ROWS; i++)
+			update.append("<http://sepatest/deflate/building/B1/floor/F2/room/R" + i
+					+ "/sensor/temperature> <http://sepatest/deflate/hasValue> " + i + " . ");
+		update.append("}}");
+		Response ret = processor.processUpdate(new InternalUpdateRequest(update.toString(), null, null, null));
+		assertTrue(ret.toString(), !ret.isError());
+	}
+
+	private static long cpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getProcessCpuTime();
+	}
+
+	/**
+	 * The same notifications are sent to the subscribers by servers with
+	 * different compression levels (0 = no compression)
+	 */
+	@Test(timeout = 300000)
+	public void levels() throws Exception {
+		long plain = 0;
+
+		for (int run = 0; run < LEVELS.length; run++) {
+			int level = LEVELS[run];
+			int subscribers = SPUManagerBeans.getSubscribers();
+			String graph = "http://sepatest/deflate/run" + run;
+			int port = freePort();
+			WebsocketServer server = start(port, level);
+
+			List<Client> clients = new ArrayList<Client>();
+			for (int i = 0; i < CLIENTS; i++) {
+				Client client = new Client(port, level > 0);
+				assertTrue("Client not connected", client.connectBlocking(10, TimeUnit.SECONDS));
+				client.send(subscribe(graph));
+				assertTrue("Not subscribed", client.subscribed.await(10, TimeUnit.SECONDS));
+				clients.add(client);
+			}
+			long handshake = 0;
+			for (Client client : clients)
+				handshake += client.socket.received.get();
+
+			long cpu = cpuTime();
+			long start = System.nanoTime();
+			for (int i = 0; i < UPDATES; i++)
+				update(graph, i);
+			for (Client client : clients)
+				assertTrue("Notifications not received", client.notified.await(60, TimeUnit.SECONDS));
+			long time = System.nanoTime() - start;
+			cpu = cpuTime() - cpu;
+
+			long bytes = -handshake;
+			for (Client client : clients) {
+				bytes += client.socket.received.get();
+				assertEquals("Errors", 0, client.errors.get());
+			}
+			if (level == 0)
+				plain = bytes;
+			else
+				assertTrue("Deflated " + bytes + " plain " + plain, bytes < plain);
+
+			logger.info(String.format("Level %d: %d notifications, %d bytes (%.1f%%) in %d ms, CPU %d ms", level,
+					CLIENTS * UPDATES, bytes, 100.0 * bytes / plain, time / 1000000, cpu / 1000000));
+
+			for (Client client : clients)
+				client.closeBlocking();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (SPUManagerBeans.getSubscribers() > subscribers && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertEquals("Subscribers", subscribers, SPUManagerBeans.getSubscribers());
+			server.stop();
+		}
+	}
+
+	/**
+	 * The client API negotiates the extension and deflates its requests too
+	 */
+	@Test(timeout = 60000)
+	public void clientApi() throws Exception {
+		String graph = "http://sepatest/deflate/api";
+		int port = freePort();
+		WebsocketServer server = start(port, 6);
+
+		CountDownLatch subscribed = new CountDownLatch(1);
+		CountDownLatch notified = new CountDownLatch(1);
+		CountDownLatch unsubscribed = new CountDownLatch(1);
+		AtomicInteger added = new AtomicInteger(0);
+		AtomicInteger errors = new AtomicInteger(0);
+		StringBuilder spuid = new StringBuilder();
+
+		ISubscriptionHandler handler = new ISubscriptionHandler() {
+			@Override
+			public void onSemanticEvent(Notification notify) {
+				if (notify.getSequence() == 0)
+					return;
+				added.set(notify.getARBindingsResults().getAddedBindings().size());
+				notified.countDown();
+			}
+
+			@Override
+			public void onBrokenConnection(ErrorResponse errorResponse) {
+			}
+
+			@Override
+			public void onError(ErrorResponse errorResponse) {
+				logger.error(errorResponse);
+				errors.incrementAndGet();
+			}
+
+			@Override
+			public void onSubscribe(String id, String alias) {
+				spuid.append(id);
+				subscribed.countDown();
+			}
+
+			@Override
+			public void onUnsubscribe(String id) {
+				unsubscribed.countDown();
+			}
+		};
+
+		// Requests are deflated whatever their size
+		WebsocketSubscriptionProtocol protocol = new WebsocketSubscriptionProtocol("localhost", port, "/subscribe",
+				handler, null, 6, 0);
+		protocol.subscribe(new SubscribeRequest("SELECT ?sensor ?value WHERE {GRAPH <" + graph
+				+ "> {?sensor <http://sepatest/deflate/hasValue> ?value}}", "api", null, null, null, 5000, 0));
+		assertTrue("Not subscribed", subscribed.await(10, TimeUnit.SECONDS));
+
+		update(graph, 0);
+		assertTrue("Not notified", notified.await(10, TimeUnit.SECONDS));
+		assertEquals("Added bindings", ROWS, added.get());
+
+		protocol.unsubscribe(new UnsubscribeRequest(spuid.toString(), null, 5000, 0));
+		assertTrue("Not unsubscribed", unsubscribed.await(10, TimeUnit.SECONDS));
+		assertEquals("Errors", 0, errors.get());
+
+		protocol.close();
+		server.stop();
+	}
+}
@@ -0,0 +1,196 @@
+/* Stress test of the detection of the dead WebSocket clients
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.engine.bean.GateBeans;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressHeartbeats {
+	protected static final Logger logger = LogManager.getLogger();
+
+	// Seconds
+	private static final int HEARTBEAT = 1;
+	private static final int ALIVE = 20;
+	private static final int DEAD = 5;
+
+	private static final File jpar = new File("target/heartbeats.jpar");
+
+	private static Scheduler scheduler;
+	private static InMemoryProcessor processor;
+	private static WebsocketServer server;
+	private static int port;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		EngineProperties properties = EngineProperties.load("src/main/resources/engine.jpar");
+		scheduler = new Scheduler(properties);
+		processor = new InMemoryProcessor(properties, scheduler);
+		Dependability.setProcessor(processor);
+		scheduler.start();
+		processor.start();
+
+		String json = new String(Files.readAllBytes(Paths.get("src/main/resources/engine.jpar")), "UTF-8");
+		try (FileWriter out = new FileWriter(jpar)) {
+			out.write(json.replace("\"heartbeat\": 10", "\"heartbeat\": " + HEARTBEAT));
+		}
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new WebsocketServer(port, "/subscribe", scheduler, EngineProperties.load(jpar.getPath()));
+		synchronized (server) {
+			server.start();
+			server.wait(10000);
+		}
+	}
+
+	@AfterClass
+	public static void end() throws Exception {
+		server.stop();
+		processor.interrupt();
+		scheduler.finish();
+		scheduler.interrupt();
+		jpar.delete();
+	}
+
+	// Subscribes once; a dead client does not answer the pings (e.g., a half-open connection)
+	private static class Client extends WebSocketClient {
+		private final boolean dead;
+		private final CountDownLatch subscribed = new CountDownLatch(1);
+		private final CountDownLatch closed = new CountDownLatch(1);
+
+		Client(boolean dead) throws Exception {
+			super(new URI("ws://localhost:" + port + "/subscribe"));
+			this.dead = dead;
+
+			// Only the server sends heartbeats
+			setConnectionLostTimeout(0);
+		}
+
+		@Override
+		public void onWebsocketPing(WebSocket conn, Framedata f) {
+			if (!dead)
+				super.onWebsocketPing(conn, f);
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+			send("{\"subscribe\":{\"sparql\":\"SELECT * WHERE {GRAPH <http://sepatest/heartbeat> {?s ?p ?o}}\"}}");
+		}
+
+		@Override
+		public void onMessage(String message) {
+			JsonObject response = new JsonParser().parse(message).getAsJsonObject();
+			if (response.has("notification"))
+				subscribed.countDown();
+			else
+				logger.error(message);
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+			closed.countDown();
+		}
+
+		@Override
+		public void onError(Exception ex) {
+			logger.error(ex.getMessage());
+		}
+	}
+
+	/**
+	 * The gates of the clients that do not answer the pings are closed (and their
+	 * subscriptions killed) within two heartbeats; the other clients are not
+	 * affected
+	 */
+	@Test(timeout = 60000)
+	public void deadClients() throws Exception {
+		int subscribers = SPUManagerBeans.getSubscribers();
+		long timeouts = GateBeans.getHeartbeatTimeouts();
+		assertEquals("Heartbeat", HEARTBEAT, server.getHeartbeat());
+
+		List<Client> alive = new ArrayList<Client>();
+		List<Client> dead = new ArrayList<Client>();
+		for (int i = 0; i < ALIVE + DEAD; i++) {
+			Client client = new Client(i >= ALIVE);
+			assertTrue("Client not connected", client.connectBlocking(10, TimeUnit.SECONDS));
+			assertTrue("Not subscribed", client.subscribed.await(10, TimeUnit.SECONDS));
+			(client.dead ? dead : alive).add(client);
+		}
+		long start = System.nanoTime();
+		assertEquals("Subscribers", subscribers + ALIVE + DEAD, SPUManagerBeans.getSubscribers());
+
+		for (Client client : dead)
+			assertTrue("Dead client not closed", client.closed.await(10 * HEARTBEAT, TimeUnit.SECONDS));
+		long time = System.nanoTime() - start;
+		logger.info(String.format("%d dead clients closed in %d ms (heartbeat %d s)", DEAD, time / 1000000,
+				HEARTBEAT));
+
+		// Subscriptions are killed by the close event
+		long deadline = System.currentTimeMillis() + 10000;
+		while (SPUManagerBeans.getSubscribers() > subscribers + ALIVE && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Subscribers", subscribers + ALIVE, SPUManagerBeans.getSubscribers());
+		assertEquals("Heartbeat timeouts", timeouts + DEAD, GateBeans.getHeartbeatTimeouts());
+
+		// The clients that answer stay connected
+		Thread.sleep(3000 * HEARTBEAT);
+		for (Client client : alive)
+			assertTrue("Client closed", client.isOpen());
+		assertEquals("Gates", ALIVE, server.getGates());
+
+		for (Client client : alive)
+			client.closeBlocking();
+		deadline = System.currentTimeMillis() + 10000;
+		while (SPUManagerBeans.getSubscribers() > subscribers && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Subscribers", subscribers, SPUManagerBeans.getSubscribers());
+		assertEquals("Heartbeat timeouts", timeouts + DEAD, GateBeans.getHeartbeatTimeouts());
+	}
+}
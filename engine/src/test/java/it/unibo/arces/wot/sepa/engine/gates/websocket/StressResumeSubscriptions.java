@@ -0,0 +1,352 @@
+/* Stress test of the subscriptions resumed after a reconnection
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressResumeSubscriptions {
+	protected static final Logger logger = LogManager.getLogger();
+
+	private static final int MISSED = 50;
+	private static final int REPLAY = 10;
+
+	private static Scheduler scheduler;
+	private static InMemoryProcessor processor;
+	private static WebsocketServer server;
+	private static int port;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		EngineProperties properties = EngineProperties.load("src/main/resources/engine.jpar");
+		scheduler = new Scheduler(properties);
+		processor = new InMemoryProcessor(properties, scheduler);
+		Dependability.setProcessor(processor);
+		scheduler.start();
+		processor.start();
+
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new WebsocketServer(port, "/subscribe", scheduler, properties);
+		synchronized (server) {
+			server.start();
+			server.wait(10000);
+		}
+	}
+
+	@AfterClass
+	public static void end() throws Exception {
+		SPUManagerBeans.setReplayBufferSize(100);
+		SPUManagerBeans.setReplayBufferBytes(1048576);
+		SPUManagerBeans.setLinger(10000);
+
+		server.stop();
+		processor.interrupt();
+		scheduler.finish();
+		scheduler.interrupt();
+	}
+
+	// Queues the messages received
+	private static class Client extends WebSocketClient {
+		final LinkedBlockingQueue<JsonObject> messages = new LinkedBlockingQueue<JsonObject>();
+
+		Client() throws Exception {
+			super(new URI("ws://localhost:" + port + "/subscribe"));
+			assertTrue("Client not connected", connectBlocking(10, TimeUnit.SECONDS));
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+		}
+
+		@Override
+		public void onMessage(String message) {
+			messages.add(new JsonParser().parse(message).getAsJsonObject());
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+		}
+
+		@Override
+		public void onError(Exception ex) {
+			logger.error(ex.getMessage());
+		}
+
+		void subscribe(String graph, String spuid, int sequence) {
+			String resume = (spuid == null ? ""
+					: ",\"resume\":{\"spuid\":\"" + spuid + "\",\"sequence\":" + sequence + "}");
+			send("{\"subscribe\":{\"sparql\":\"SELECT ?s ?o WHERE {GRAPH <" + graph
+					+ "> {?s <http://sepatest/P> ?o}}\"" + resume + "}}");
+		}
+
+		JsonObject next() throws InterruptedException {
+			JsonObject message = messages.poll(10, TimeUnit.SECONDS);
+			assertNotNull("Message not received", message);
+			return message;
+		}
+
+		// The response to a new subscription
+		JsonObject subscribed() throws InterruptedException {
+			JsonObject message = next();
+			assertTrue(message.toString(), message.has("notification"));
+			JsonObject notification = message.getAsJsonObject("notification");
+			assertEquals("Sequence", 0, notification.get("sequence").getAsInt());
+			return notification;
+		}
+
+		// The notification of a row added
+		void notified(String spuid, int sequence, int row) throws InterruptedException {
+			JsonObject message = next();
+			assertTrue(message.toString(), message.has("notification"));
+			JsonObject notification = message.getAsJsonObject("notification");
+			assertEquals("SPUID", spuid, notification.get("spuid").getAsString());
+			assertEquals("Sequence", sequence, notification.get("sequence").getAsInt());
+			assertEquals("Row", "http://sepatest/S" + row,
+					notification.getAsJsonObject("addedResults").getAsJsonObject("results")
+							.getAsJsonArray("bindings").get(0).getAsJsonObject().getAsJsonObject("s").get("value")
+							.getAsString());
+		}
+	}
+
+	private static void insert(String graph, int row) {
+		Response ret = processor.processUpdate(new InternalUpdateRequest("INSERT DATA {GRAPH <" + graph
+				+ "> {<http://sepatest/S" + row + "> <http://sepatest/P> \"" + row + "\"}}", null, null, null));
+		assertTrue(ret.toString(), !ret.isError());
+	}
+
+	private static void waitSubscribers(int n) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (SPUManagerBeans.getSubscribers() != n && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Subscribers", n, SPUManagerBeans.getSubscribers());
+	}
+
+	/**
+	 * A client reconnects with its SPUID and the last sequence received: it is
+	 * sent the notifications missed while disconnected (the SPU is kept alive by
+	 * another subscriber) and then the new ones, with the same SPUID
+	 */
+	@Test(timeout = 60000)
+	public void replay() throws Exception {
+		String graph = "http://sepatest/resume/replay";
+		int subscribers = SPUManagerBeans.getSubscribers();
+		long resumed = SPUManagerBeans.getResumedSubscribers();
+		long replayed = SPUManagerBeans.getReplayedNotifications();
+
+		Client keeper = new Client();
+		keeper.subscribe(graph, null, 0);
+		keeper.subscribed();
+
+		Client client = new Client();
+		client.subscribe(graph, null, 0);
+		String spuid = client.subscribed().get("spuid").getAsString();
+		insert(graph, 0);
+		client.notified(spuid, 1, 0);
+
+		client.closeBlocking();
+		waitSubscribers(subscribers + 1);
+		for (int i = 1; i <= MISSED; i++)
+			insert(graph, i);
+
+		long start = System.nanoTime();
+		client = new Client();
+		client.subscribe(graph, spuid, 1);
+		JsonObject response = client.next();
+		assertTrue(response.toString(), response.has("resumed"));
+		assertEquals("SPUID", spuid, response.getAsJsonObject("resumed").get("spuid").getAsString());
+		for (int i = 1; i <= MISSED; i++)
+			client.notified(spuid, i + 1, i);
+		long time = System.nanoTime() - start;
+		logger.info(String.format("Resumed with %d missed notifications in %d ms", MISSED, time / 1000000));
+
+		insert(graph, MISSED + 1);
+		client.notified(spuid, MISSED + 2, MISSED + 1);
+		assertNull("Unexpected message", client.messages.poll(500, TimeUnit.MILLISECONDS));
+
+		assertEquals("Subscribers", subscribers + 2, SPUManagerBeans.getSubscribers());
+		assertEquals("Resumed", resumed + 1, SPUManagerBeans.getResumedSubscribers());
+		assertEquals("Replayed", replayed + MISSED, SPUManagerBeans.getReplayedNotifications());
+
+		client.closeBlocking();
+		keeper.closeBlocking();
+		waitSubscribers(subscribers);
+	}
+
+	/**
+	 * The missed notifications are no longer available (or the SPU has been
+	 * killed): the client is sent the first results of a new subscription
+	 */
+	@Test(timeout = 60000)
+	public void resync() throws Exception {
+		String graph = "http://sepatest/resume/resync";
+		int subscribers = SPUManagerBeans.getSubscribers();
+		long resyncs = SPUManagerBeans.getResyncs();
+		SPUManagerBeans.setReplayBufferSize(REPLAY);
+		SPUManagerBeans.setLinger(0);
+
+		Client keeper = new Client();
+		keeper.subscribe(graph, null, 0);
+		keeper.subscribed();
+
+		Client client = new Client();
+		client.subscribe(graph, null, 0);
+		String spuid = client.subscribed().get("spuid").getAsString();
+
+		client.closeBlocking();
+		waitSubscribers(subscribers + 1);
+		for (int i = 0; i < REPLAY + 1; i++)
+			insert(graph, i);
+
+		client = new Client();
+		client.subscribe(graph, spuid, 0);
+		JsonObject notification = client.subscribed();
+		assertNotEquals("SPUID", spuid, notification.get("spuid").getAsString());
+		assertEquals("First results", REPLAY + 1, notification.getAsJsonObject("addedResults")
+				.getAsJsonObject("results").getAsJsonArray("bindings").size());
+		assertEquals("Resyncs", resyncs + 1, SPUManagerBeans.getResyncs());
+
+		// No more subscribers: the SPU is killed (no linger period)
+		spuid = notification.get("spuid").getAsString();
+		client.closeBlocking();
+		keeper.closeBlocking();
+		waitSubscribers(subscribers);
+
+		client = new Client();
+		client.subscribe(graph, spuid, 0);
+		notification = client.subscribed();
+		assertNotEquals("SPUID", spuid, notification.get("spuid").getAsString());
+		assertEquals("Resyncs", resyncs + 2, SPUManagerBeans.getResyncs());
+
+		client.closeBlocking();
+		waitSubscribers(subscribers);
+	}
+
+	/**
+	 * The notifications kept are bounded in bytes as well: the missed ones fit
+	 * the number of notifications kept, but not their bytes
+	 */
+	@Test(timeout = 60000)
+	public void replayBytes() throws Exception {
+		String graph = "http://sepatest/resume/bytes";
+		int subscribers = SPUManagerBeans.getSubscribers();
+		long resyncs = SPUManagerBeans.getResyncs();
+		SPUManagerBeans.setReplayBufferSize(100);
+		SPUManagerBeans.setReplayBufferBytes(2048);
+
+		Client keeper = new Client();
+		keeper.subscribe(graph, null, 0);
+		keeper.subscribed();
+
+		// A few notifications fit
+		Client client = new Client();
+		client.subscribe(graph, null, 0);
+		String spuid = client.subscribed().get("spuid").getAsString();
+		client.closeBlocking();
+		waitSubscribers(subscribers + 1);
+		insert(graph, 0);
+
+		client = new Client();
+		client.subscribe(graph, spuid, 0);
+		JsonObject response = client.next();
+		assertTrue(response.toString(), response.has("resumed"));
+		client.notified(spuid, 1, 0);
+
+		// Too many bytes
+		client.closeBlocking();
+		waitSubscribers(subscribers + 1);
+		for (int i = 1; i <= MISSED; i++)
+			insert(graph, i);
+
+		client = new Client();
+		client.subscribe(graph, spuid, 1);
+		JsonObject notification = client.subscribed();
+		assertNotEquals("SPUID", spuid, notification.get("spuid").getAsString());
+		assertEquals("First results", MISSED + 1, notification.getAsJsonObject("addedResults")
+				.getAsJsonObject("results").getAsJsonArray("bindings").size());
+		assertEquals("Resyncs", resyncs + 1, SPUManagerBeans.getResyncs());
+
+		SPUManagerBeans.setReplayBufferBytes(1048576);
+		client.closeBlocking();
+		keeper.closeBlocking();
+		waitSubscribers(subscribers);
+	}
+
+	/**
+	 * The old connection has not been closed yet (e.g., half-open): the
+	 * subscriber is moved to the new one and the close of the old one does not
+	 * kill it
+	 */
+	@Test(timeout = 60000)
+	public void halfOpen() throws Exception {
+		String graph = "http://sepatest/resume/halfopen";
+		int subscribers = SPUManagerBeans.getSubscribers();
+
+		Client old = new Client();
+		old.subscribe(graph, null, 0);
+		String spuid = old.subscribed().get("spuid").getAsString();
+		insert(graph, 0);
+		old.notified(spuid, 1, 0);
+
+		Client client = new Client();
+		client.subscribe(graph, spuid, 1);
+		JsonObject response = client.next();
+		assertTrue(response.toString(), response.has("resumed"));
+		assertEquals("Subscribers", subscribers + 1, SPUManagerBeans.getSubscribers());
+
+		old.closeBlocking();
+		Thread.sleep(500);
+		assertEquals("Subscribers", subscribers + 1, SPUManagerBeans.getSubscribers());
+
+		insert(graph, 1);
+		client.notified(spuid, 2, 1);
+		assertNull("Unexpected message", old.messages.poll());
+
+		client.closeBlocking();
+		waitSubscribers(subscribers);
+	}
+}
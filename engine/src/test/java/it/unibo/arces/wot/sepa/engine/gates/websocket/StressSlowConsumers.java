@@ -0,0 +1,287 @@
+/* Stress test of the outbound queue of a WebSocket client that does not read
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.engine.bean.GateBeans;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.gates.OutboundQueue.Policy;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressSlowConsumers {
+	protected static final Logger logger = LogManager.getLogger();
+
+	private static final int UPDATES = 300;
+	private static final int ROWS = 5;
+	private static final int LIMIT = 20;
+	private static final int BUFFER = 4096;
+
+	private static final String LITERAL = new String(new char[4000]).replace('\0', 'x');
+
+	private static final File jpar = new File("target/slow-consumers.jpar");
+
+	private static Scheduler scheduler;
+	private static InMemoryProcessor processor;
+	private static WebsocketServer server;
+	private static int port;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		// Small socket buffers: the frames not read by the client stay in the engine
+		String properties = new String(Files.readAllBytes(Paths.get("src/main/resources/engine.jpar")), "UTF-8")
+				.replace("\"sendBufferSize\": 0", "\"sendBufferSize\": " + BUFFER);
+		try (FileWriter out = new FileWriter(jpar)) {
+			out.write(properties);
+		}
+		EngineProperties engineProperties = EngineProperties.load(jpar.getPath());
+
+		scheduler = new Scheduler(engineProperties);
+		processor = new InMemoryProcessor(engineProperties, scheduler);
+		Dependability.setProcessor(processor);
+		scheduler.start();
+		processor.start();
+
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new WebsocketServer(port, "/subscribe", scheduler, engineProperties);
+		synchronized (server) {
+			server.start();
+			server.wait(10000);
+		}
+	}
+
+	@AfterClass
+	public static void end() throws Exception {
+		GateBeans.setOutboundQueueMessages(10000);
+		GateBeans.setOutboundQueueBytes(67108864);
+		GateBeans.setSlowConsumerPolicy(Policy.DISCONNECT);
+
+		server.stop();
+		processor.interrupt();
+		scheduler.finish();
+		scheduler.interrupt();
+		jpar.delete();
+	}
+
+	// Stops reading at the first notification, until released
+	private static class Client extends WebSocketClient {
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final AtomicInteger notifications = new AtomicInteger(0);
+		final Set<String> rows = ConcurrentHashMap.newKeySet();
+		volatile String spuid = null;
+		volatile int sequence = 0;
+		volatile int closeCode = -1;
+
+		Client() throws Exception {
+			super(new URI("ws://localhost:" + port + "/subscribe"));
+			Socket socket = new Socket();
+			socket.setReceiveBufferSize(BUFFER);
+			setSocket(socket);
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+		}
+
+		@Override
+		public void onMessage(String message) {
+			JsonObject response = new JsonParser().parse(message).getAsJsonObject();
+			if (!response.has("notification"))
+				return;
+
+			JsonObject notification = response.getAsJsonObject("notification");
+			if (notification.get("sequence").getAsInt() == 0) {
+				spuid = notification.get("spuid").getAsString();
+				subscribed.countDown();
+				return;
+			}
+
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (JsonElement row : notification.getAsJsonObject("removedResults").getAsJsonObject("results")
+					.getAsJsonArray("bindings"))
+				rows.remove(row.getAsJsonObject().getAsJsonObject("s").get("value").getAsString());
+			for (JsonElement row : notification.getAsJsonObject("addedResults").getAsJsonObject("results")
+					.getAsJsonArray("bindings"))
+				rows.add(row.getAsJsonObject().getAsJsonObject("s").get("value").getAsString());
+			notifications.incrementAndGet();
+			sequence = notification.get("sequence").getAsInt();
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+			closeCode = code;
+			closed.countDown();
+		}
+
+		@Override
+		public void onError(Exception ex) {
+			logger.error(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Subscribes a client that does not read and runs the updates: each one
+	 * inserts a row and deletes the row inserted ROWS updates before
+	 */
+	private Client run(Policy policy, String graph) throws Exception {
+		GateBeans.reset();
+		GateBeans.setOutboundQueueMessages(LIMIT);
+		GateBeans.setSlowConsumerPolicy(policy);
+
+		Client client = new Client();
+		assertTrue("Client not connected", client.connectBlocking(10, TimeUnit.SECONDS));
+		client.send("{\"subscribe\":{\"sparql\":\"SELECT ?s ?o WHERE {GRAPH <" + graph
+				+ "> {?s <http://sepatest/P> ?o}}\",\"alias\":\"slow\"}}");
+		assertTrue("Not subscribed", client.subscribed.await(10, TimeUnit.SECONDS));
+
+		for (int i = 0; i < UPDATES; i++) {
+			String update = "INSERT DATA {GRAPH <" + graph + "> {<http://sepatest/S" + i + "> <http://sepatest/P> \""
+					+ LITERAL + "\"}}";
+			if (i >= ROWS)
+				update = "DELETE DATA {GRAPH <" + graph + "> {<http://sepatest/S" + (i - ROWS)
+						+ "> <http://sepatest/P> \"" + LITERAL + "\"}} ; " + update;
+			Response ret = processor.processUpdate(new InternalUpdateRequest(update, null, null, null));
+			assertTrue(ret.toString(), !ret.isError());
+		}
+		return client;
+	}
+
+	private void waitLastNotification(Client client) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (client.sequence < UPDATES && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertEquals("Last notification", UPDATES, client.sequence);
+	}
+
+	private void close(Client client, int subscribers) throws Exception {
+		client.send("{\"unsubscribe\":{\"spuid\":\"" + client.spuid + "\"}}");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (SPUManagerBeans.getSubscribers() > subscribers && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		client.closeBlocking();
+		assertEquals("Subscribers", subscribers, SPUManagerBeans.getSubscribers());
+	}
+
+	@Test(timeout = 120000)
+	public void disconnect() throws Exception {
+		int subscribers = SPUManagerBeans.getSubscribers();
+		Client client = run(Policy.DISCONNECT, "http://sepatest/slow/disconnect");
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (GateBeans.getSlowConsumers() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertEquals("Slow consumers", 1, GateBeans.getSlowConsumers());
+
+		// The client reads what has been buffered and then the close frame
+		client.release.countDown();
+		assertTrue("Client not closed", client.closed.await(20, TimeUnit.SECONDS));
+		assertEquals("Close code", GateBeans.getSlowConsumerCloseCode(), client.closeCode);
+		assertTrue("Max buffered " + GateBeans.getOutboundQueue_maxMessages(),
+				GateBeans.getOutboundQueue_maxMessages() <= LIMIT + 1);
+		logger.info(String.join(", ", GateBeans.getOutboundQueue_messagesHistogram()));
+
+		// The subscription of the closed gate is removed
+		deadline = System.currentTimeMillis() + 10000;
+		while (SPUManagerBeans.getSubscribers() > subscribers && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertEquals("Subscribers", subscribers, SPUManagerBeans.getSubscribers());
+	}
+
+	@Test(timeout = 120000)
+	public void dropOldest() throws Exception {
+		int subscribers = SPUManagerBeans.getSubscribers();
+		Client client = run(Policy.DROP_OLDEST, "http://sepatest/slow/drop");
+
+		client.release.countDown();
+		waitLastNotification(client);
+
+		long dropped = GateBeans.getDroppedNotifications();
+		logger.info("Received: " + client.notifications.get() + " dropped: " + dropped);
+		assertTrue("Dropped notifications", dropped > 0);
+		assertEquals("Received + dropped", UPDATES, client.notifications.get() + dropped);
+		assertTrue("Max buffered " + GateBeans.getOutboundQueue_maxMessages(),
+				GateBeans.getOutboundQueue_maxMessages() <= LIMIT);
+		assertEquals("Slow consumers", 0, GateBeans.getSlowConsumers());
+
+		close(client, subscribers);
+	}
+
+	@Test(timeout = 120000)
+	public void coalesce() throws Exception {
+		int subscribers = SPUManagerBeans.getSubscribers();
+		Client client = run(Policy.COALESCE, "http://sepatest/slow/coalesce");
+
+		client.release.countDown();
+		waitLastNotification(client);
+
+		logger.info("Received: " + client.notifications.get() + " coalesced: "
+				+ GateBeans.getCoalescedNotifications());
+		assertTrue("Coalesced notifications", GateBeans.getCoalescedNotifications() > 0);
+		assertTrue("Received notifications", client.notifications.get() < UPDATES);
+		assertEquals("Slow consumers", 0, GateBeans.getSlowConsumers());
+
+		// The coalesced notifications give the same results
+		Set<String> expected = new HashSet<String>();
+		for (int i = UPDATES - ROWS; i < UPDATES; i++)
+			expected.add("http://sepatest/S" + i);
+		assertEquals("Results", expected, client.rows);
+
+		close(client, subscribers);
+	}
+}
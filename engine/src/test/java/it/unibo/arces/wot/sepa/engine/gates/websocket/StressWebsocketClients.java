@@ -0,0 +1,190 @@
+/* Stress test of the WebSocket server with many concurrent clients
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.gates.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.dependability.Dependability;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+public class StressWebsocketClients {
+	protected static final Logger logger = LogManager.getLogger();
+
+	private static final int CLIENTS = 100;
+	private static final int SUBSCRIPTIONS = 50;
+	private static final int QUERIES = 10;
+	private static final int SHARDS = 2;
+
+	private static Scheduler scheduler;
+	private static InMemoryProcessor processor;
+	private static final List<WebsocketServer> servers = new ArrayList<WebsocketServer>();
+	private static final List<Integer> ports = new ArrayList<Integer>();
+
+	@BeforeClass
+	public static void init() throws Exception {
+		EngineProperties properties = EngineProperties.load("src/main/resources/engine.jpar");
+		scheduler = new Scheduler(properties);
+		processor = new InMemoryProcessor(properties, scheduler);
+		Dependability.setProcessor(processor);
+		scheduler.start();
+		processor.start();
+
+		// Each shard has its own selector and decoders
+		for (int i = 0; i < SHARDS; i++) {
+			try (ServerSocket socket = new ServerSocket(0)) {
+				ports.add(socket.getLocalPort());
+			}
+			WebsocketServer server = new WebsocketServer(ports.get(i), "/subscribe", scheduler, properties);
+			synchronized (server) {
+				server.start();
+				server.wait(10000);
+			}
+			servers.add(server);
+		}
+	}
+
+	@AfterClass
+	public static void end() throws Exception {
+		for (WebsocketServer server : servers)
+			server.stop();
+		processor.interrupt();
+		scheduler.finish();
+		scheduler.interrupt();
+	}
+
+	// Subscribes and unsubscribes in a loop, waiting for each response (as the client library does)
+	private static class Client extends WebSocketClient {
+		private final int id;
+		private final CountDownLatch done;
+		private final AtomicLong errors;
+		private int subscriptions = 0;
+
+		Client(int id, CountDownLatch done, AtomicLong errors) throws Exception {
+			super(new URI("ws://localhost:" + ports.get(id % SHARDS) + "/subscribe"));
+			this.id = id;
+			this.done = done;
+			this.errors = errors;
+		}
+
+		void subscribe() {
+			send("{\"subscribe\":{\"sparql\":\"SELECT * WHERE {GRAPH <http://sepatest/ws" + ((id + subscriptions) % QUERIES)
+					+ "> {?s ?p ?o}}\",\"alias\":\"c" + id + "\"}}");
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+		}
+
+		@Override
+		public void onMessage(String message) {
+			JsonObject response = new JsonParser().parse(message).getAsJsonObject();
+			if (response.has("notification")) {
+				String sid = response.getAsJsonObject("notification").get("spuid").getAsString();
+				send("{\"unsubscribe\":{\"spuid\":\"" + sid + "\"}}");
+			} else if (response.has("unsubscribed")) {
+				if (++subscriptions < SUBSCRIPTIONS)
+					subscribe();
+				else
+					done.countDown();
+			} else {
+				logger.error(message);
+				errors.incrementAndGet();
+				done.countDown();
+			}
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+		}
+
+		@Override
+		public void onError(Exception ex) {
+			logger.error(ex.getMessage());
+		}
+	}
+
+	private static int gates() {
+		int ret = 0;
+		for (WebsocketServer server : servers)
+			ret += server.getGates();
+		return ret;
+	}
+
+	@Test(timeout = 300000)
+	public void concurrentClients() throws Exception {
+		CountDownLatch done = new CountDownLatch(CLIENTS);
+		AtomicLong errors = new AtomicLong();
+		int subscribers = SPUManagerBeans.getSubscribers();
+
+		List<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < CLIENTS; i++) {
+			Client client = new Client(i, done, errors);
+			assertTrue("Client not connected", client.connectBlocking(10, TimeUnit.SECONDS));
+			clients.add(client);
+		}
+		// The server may open the gate after the client has received the handshake
+		long deadline = System.currentTimeMillis() + 10000;
+		while (gates() < CLIENTS && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Gates", CLIENTS, gates());
+
+		long start = System.nanoTime();
+		for (Client client : clients)
+			client.subscribe();
+		assertTrue("Clients not completed", done.await(240, TimeUnit.SECONDS));
+		long time = System.nanoTime() - start;
+
+		long messages = 2L * CLIENTS * SUBSCRIPTIONS;
+		logger.info(String.format("%d clients, %d shards: %d messages in %d ms (%.0f messages/s)", CLIENTS, SHARDS,
+				messages, time / 1000000, messages * 1e9 / time));
+		assertEquals("Error responses", 0, errors.get());
+
+		// Gates are closed and removed
+		for (Client client : clients)
+			client.closeBlocking();
+		deadline = System.currentTimeMillis() + 10000;
+		while (gates() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertEquals("Gates", 0, gates());
+		assertEquals("Subscribers", subscribers, SPUManagerBeans.getSubscribers());
+	}
+}
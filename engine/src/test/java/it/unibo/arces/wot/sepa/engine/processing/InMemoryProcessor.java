@@ -0,0 +1,140 @@
+/* A processor backed by an in-memory Jena dataset (used by stress tests and benchmarks)
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.system.Txn;
+import org.apache.jena.update.UpdateAction;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAPropertiesException;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
+import it.unibo.arces.wot.sepa.commons.protocol.SPARQL11Properties;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.Scheduler;
+
+/**
+ * Replaces the SPARQL endpoint with a transactional in-memory dataset, so that
+ * the subscription processing can be stressed without any external service.
+ */
+public class InMemoryProcessor extends Processor {
+	private final Dataset dataset = DatasetFactory.createTxnMem();
+
+	// Simulates a slow endpoint: results are returned after this delay (ms)
+	private volatile long queryDelay = 0;
+
+	// Simulates slow queries: the results of the queries that contain the key are returned after the delay (ms)
+	private final Map<String, Long> slowQueries = new ConcurrentHashMap<String, Long>();
+
+	public InMemoryProcessor(EngineProperties properties) throws SEPAProtocolException {
+		this(properties, new Scheduler(properties));
+	}
+
+	/**
+	 * Processes the requests of the scheduler (once started)
+	 */
+	public InMemoryProcessor(EngineProperties properties, Scheduler scheduler) throws SEPAProtocolException {
+		super(new SPARQL11Properties(), properties, scheduler);
+	}
+
+	public static InMemoryProcessor create() throws SEPAPropertiesException, SEPAProtocolException {
+		return new InMemoryProcessor(EngineProperties.load("src/main/resources/engine.jpar"));
+	}
+
+	public Dataset getDataset() {
+		return dataset;
+	}
+
+	public void setQueryDelay(long ms) {
+		queryDelay = ms;
+	}
+
+	public void setQueryDelay(String match, long ms) {
+		if (ms > 0)
+			slowQueries.put(match, ms);
+		else
+			slowQueries.remove(match);
+	}
+
+	/**
+	 * Subscribes and waits for the response (i.e., the first results)
+	 */
+	public Response subscribe(InternalSubscribeRequest req) throws InterruptedException, ExecutionException {
+		CompletableFuture<Response> ret = new CompletableFuture<Response>();
+		processSubscribe(req, response -> ret.complete(response));
+		return ret.get();
+	}
+
+	@Override
+	public Response updateEndpoint(InternalUpdateRequest req) {
+		try {
+			Txn.executeWrite(dataset, () -> UpdateAction.parseExecute(req.getSparql(), dataset));
+		} catch (Exception e) {
+			return new ErrorResponse(500, "update_failed", e.getMessage());
+		}
+		return new UpdateResponse("Update done");
+	}
+
+	@Override
+	public Response processQuery(InternalQueryRequest req) {
+		Response ret;
+		try {
+			ret = Txn.calculateRead(dataset, () -> {
+				try (QueryExecution exec = QueryExecutionFactory.create(req.getSparql(), dataset)) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					ResultSetFormatter.outputAsJSON(out, exec.execSelect());
+					return new QueryResponse(new String(out.toByteArray(), StandardCharsets.UTF_8));
+				}
+			});
+		} catch (Exception e) {
+			return new ErrorResponse(500, "query_failed", e.getMessage());
+		}
+
+		long delay = queryDelay;
+		for (Map.Entry<String, Long> slow : slowQueries.entrySet())
+			if (req.getSparql().contains(slow.getKey()))
+				delay = Math.max(delay, slow.getValue());
+
+		if (delay > 0)
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return new ErrorResponse(500, "query_interrupted", e.getMessage());
+			}
+
+		return ret;
+	}
+}
@@ -0,0 +1,77 @@
+/* Rebuilds the results of a subscription from its notifications
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.core.EventHandler;
+
+/**
+ * Rebuilds the results of a subscription from the first results and the
+ * notifications and checks the sequence numbers. A notification with sequence
+ * 0 carries new first results (i.e., the subscription has been resynchronized).
+ */
+class Mirror implements EventHandler {
+	final Map<String, Integer> results = new HashMap<String, Integer>();
+	int sequence = 0;
+	boolean resynced = false;
+	final AtomicReference<String> error = new AtomicReference<String>();
+
+	synchronized void onSubscribe(SubscribeResponse response) {
+		// Resynchronized before the response has been received
+		if (resynced)
+			return;
+		for (Bindings b : response.getBindingsResults().getBindings())
+			results.merge(b.toJson().toString(), 1, Integer::sum);
+	}
+
+	@Override
+	public synchronized void notifyEvent(Notification notify) {
+		if (notify.getSequence() == 0) {
+			results.clear();
+			sequence = 0;
+			resynced = true;
+			for (Bindings b : notify.getARBindingsResults().getAddedBindings().getBindings())
+				results.merge(b.toJson().toString(), 1, Integer::sum);
+			return;
+		}
+
+		if (notify.getSequence() != sequence + 1)
+			error.compareAndSet(null, "Sequence " + notify.getSequence() + " expected " + (sequence + 1));
+		sequence = notify.getSequence();
+
+		for (Bindings b : notify.getARBindingsResults().getRemovedBindings().getBindings())
+			results.merge(b.toJson().toString(), -1, (x, y) -> (x + y == 0 ? null : x + y));
+		for (Bindings b : notify.getARBindingsResults().getAddedBindings().getBindings())
+			results.merge(b.toJson().toString(), 1, Integer::sum);
+	}
+
+	synchronized boolean matches(BindingsResults current) {
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		for (Bindings b : current.getBindings())
+			expected.merge(b.toJson().toString(), 1, Integer::sum);
+		return expected.equals(results);
+	}
+}
@@ -0,0 +1,171 @@
+/* Updates a graph of sensors and checks the results of a subscription on it
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.system.Txn;
+
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+/**
+ * A graph of sensors, each one with a value, updated by a sequence of updates
+ * that add a sensor, remove one or change its value. The results of a
+ * subscription are rebuilt from its notifications (see {@link Mirror}) and
+ * compared with the ones of the query.
+ *
+ * The sensor triples, the values and the sensors updated are given by the
+ * subclasses (i.e., by the stress tests of the incremental SPUs).
+ */
+abstract class SensorUpdates {
+	static final String VALUE = "http://sepatest/value";
+
+	private final InMemoryProcessor processor;
+	private final String graph;
+	private final String query;
+	private final int size;
+
+	// Sensor ==> value
+	final Map<String, Integer> values = new HashMap<String, Integer>();
+	final List<String> sensors = new ArrayList<String>();
+	final Random random = new Random(7);
+
+	SensorUpdates(InMemoryProcessor processor, String graph, String query, int size) {
+		this.processor = processor;
+		this.graph = graph;
+		this.query = query;
+		this.size = size;
+	}
+
+	// The value of a new or updated sensor
+	abstract int newValue();
+
+	// Adds the triples of a sensor
+	void add(Model model, String s, int v) {
+		model.createResource(s).addLiteral(model.createProperty(VALUE), v);
+	}
+
+	// The triples of a sensor (in a SPARQL data block)
+	String triples(String s, int v) {
+		return "<" + s + "> <" + VALUE + "> " + v;
+	}
+
+	// The sensor removed or updated by the i-th update
+	String sensor(int i) {
+		return sensors.get(random.nextInt(sensors.size()));
+	}
+
+	private void load() {
+		values.clear();
+		sensors.clear();
+		Dataset dataset = processor.getDataset();
+		Txn.executeWrite(dataset, () -> {
+			dataset.removeNamedModel(graph);
+			Model model = dataset.getNamedModel(graph);
+			for (int i = 0; i < size; i++) {
+				String s = "http://sepatest/S" + i;
+				int v = newValue();
+				add(model, s, v);
+				values.put(s, v);
+				sensors.add(s);
+			}
+		});
+	}
+
+	private String update(int i) {
+		String s = sensor(i);
+		switch (i % 4) {
+		case 0:
+			// New sensor
+			s = "http://sepatest/N" + i;
+			int v = newValue();
+			values.put(s, v);
+			sensors.add(s);
+			return "INSERT DATA {GRAPH <" + graph + "> {" + triples(s, v) + "}}";
+		case 1:
+			// Removed sensor
+			int old = values.remove(s);
+			sensors.remove(s);
+			return "DELETE DATA {GRAPH <" + graph + "> {" + triples(s, old) + "}}";
+		default:
+			// Updated sensor
+			int value = newValue();
+			values.put(s, value);
+			return "WITH <" + graph + "> DELETE {<" + s + "> <" + VALUE + "> ?v} INSERT {<" + s + "> <" + VALUE
+					+ "> " + value + "} WHERE {<" + s + "> <" + VALUE + "> ?v}";
+		}
+	}
+
+	private void assertMatches(Mirror mirror, String alias) throws Exception {
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(query, null, null, null))).getBindingsResults();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertTrue(alias + " results " + mirror.error.get(), mirror.error.get() == null);
+		assertTrue(alias + " results do not match the endpoint", mirror.matches(current));
+	}
+
+	/**
+	 * Loads the sensors, subscribes and checks the results every 50 updates
+	 *
+	 * @return the time to process the updates (ns)
+	 */
+	long run(int updates, String alias) throws Exception {
+		load();
+
+		Mirror mirror = new Mirror();
+		Response ret = processor.subscribe(new InternalSubscribeRequest(query, alias, null, null, mirror, null));
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		mirror.onSubscribe((SubscribeResponse) ret);
+		String sid = ((SubscribeResponse) ret).getSpuid();
+
+		long time = 0;
+		for (int i = 0; i < updates; i++) {
+			InternalUpdateRequest update = new InternalUpdateRequest(update(i), null, null, null);
+			long start = System.nanoTime();
+			Response updated = processor.processUpdate(update);
+			time += System.nanoTime() - start;
+			assertTrue(updated.toString(), !updated.isError());
+
+			if (i % 50 == 49)
+				assertMatches(mirror, alias);
+		}
+		assertMatches(mirror, alias);
+
+		assertTrue(processor.unsubscribe(sid, null).isUnsubscribeResponse());
+
+		return time;
+	}
+}
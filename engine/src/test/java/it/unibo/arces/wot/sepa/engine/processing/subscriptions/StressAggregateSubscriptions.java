@@ -0,0 +1,220 @@
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.system.Txn;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressAggregateSubscriptions {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int SENSORS = 5000;
+	private static final int TYPES = 20;
+	private static final int UPDATES = 300;
+
+	private static final String GRAPH = "http://sepatest/aggregate";
+	private static final String TYPE = "http://sepatest/type";
+	private static final String VALUE = "http://sepatest/value";
+
+	private static final String PATTERN = "WHERE {GRAPH <" + GRAPH + "> {?s <" + TYPE + "> ?t ; <" + VALUE
+			+ "> ?v}}";
+
+	private static final String[] QUERIES = {
+			// Decomposable aggregates
+			"SELECT ?t (COUNT(*) AS ?n) (SUM(?v) AS ?sum) (AVG(?v) AS ?avg) (MIN(?v) AS ?min) (MAX(?v) AS ?max) "
+					+ PATTERN + " GROUP BY ?t",
+			// Implicit group
+			"SELECT (COUNT(?s) AS ?n) (SUM(?v) AS ?sum) (MAX(?v) AS ?max) " + PATTERN,
+			// Non decomposable aggregates
+			"SELECT ?t (COUNT(DISTINCT ?v) AS ?d) (MIN(?v) AS ?min) " + PATTERN + " GROUP BY ?t" };
+
+	private static InMemoryProcessor processor;
+
+	// Sensor ==> type, value
+	private final Map<String, Integer> types = new HashMap<String, Integer>();
+	private final Map<String, String> values = new HashMap<String, String>();
+	private final List<String> sensors = new ArrayList<String>();
+	private final Random random = new Random(11);
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setIncrementalMaxQuads(1000);
+	}
+
+	// Integers and decimals (sums and averages are decimals)
+	private String newValue() {
+		if (random.nextInt(4) == 0)
+			return new BigDecimal(random.nextInt(100000)).movePointLeft(2).toPlainString();
+		return Integer.toString(random.nextInt(1000));
+	}
+
+	private String type(int t) {
+		return "http://sepatest/T" + t;
+	}
+
+	private void load() {
+		Dataset dataset = processor.getDataset();
+		Txn.executeWrite(dataset, () -> {
+			dataset.removeNamedModel(GRAPH);
+			Model model = dataset.getNamedModel(GRAPH);
+			for (int i = 0; i < SENSORS; i++) {
+				String s = "http://sepatest/S" + i;
+				int t = random.nextInt(TYPES);
+				String v = newValue();
+				Resource sensor = model.createResource(s);
+				sensor.addProperty(model.createProperty(TYPE), model.createResource(type(t)));
+				sensor.addLiteral(model.createProperty(VALUE),
+						(v.contains(".") ? model.createTypedLiteral(new BigDecimal(v))
+								: model.createTypedLiteral(Integer.parseInt(v))));
+				types.put(s, t);
+				values.put(s, v);
+				sensors.add(s);
+			}
+		});
+	}
+
+	// The sensor with the minimum value of a type (removing it needs the group to be queried again)
+	private String min(int t) {
+		String ret = null;
+		for (String s : sensors)
+			if (types.get(s) == t
+					&& (ret == null || new BigDecimal(values.get(s)).compareTo(new BigDecimal(values.get(ret))) < 0))
+				ret = s;
+		return ret;
+	}
+
+	private String update(int i) {
+		String s = (i % 7 == 0 ? min(random.nextInt(TYPES)) : sensors.get(random.nextInt(sensors.size())));
+		switch (i % 4) {
+		case 0:
+			// New sensor
+			s = "http://sepatest/N" + i;
+			int t = random.nextInt(TYPES);
+			String v = newValue();
+			types.put(s, t);
+			values.put(s, v);
+			sensors.add(s);
+			return "INSERT DATA {GRAPH <" + GRAPH + "> {<" + s + "> <" + TYPE + "> <" + type(t) + "> ; <" + VALUE
+					+ "> " + v + "}}";
+		case 1:
+			// Removed sensor
+			sensors.remove(s);
+			return "DELETE DATA {GRAPH <" + GRAPH + "> {<" + s + "> <" + TYPE + "> <" + type(types.remove(s))
+					+ "> ; <" + VALUE + "> " + values.remove(s) + "}}";
+		case 2:
+			// Updated value
+			String value = newValue();
+			values.put(s, value);
+			return "WITH <" + GRAPH + "> DELETE {<" + s + "> <" + VALUE + "> ?v} INSERT {<" + s + "> <" + VALUE
+					+ "> " + value + "} WHERE {<" + s + "> <" + VALUE + "> ?v}";
+		default:
+			// Updated type
+			int type = random.nextInt(TYPES);
+			types.put(s, type);
+			return "WITH <" + GRAPH + "> DELETE {<" + s + "> <" + TYPE + "> ?t} INSERT {<" + s + "> <" + TYPE
+					+ "> <" + type(type) + ">} WHERE {<" + s + "> <" + TYPE + "> ?t}";
+		}
+	}
+
+	private void assertMatches(String query, Mirror mirror) throws Exception {
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(query, null, null, null))).getBindingsResults();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertTrue("Aggregate results " + mirror.error.get(), mirror.error.get() == null);
+		assertTrue("Aggregate results do not match the endpoint: " + query, mirror.matches(current));
+	}
+
+	@Test(timeout = 600000)
+	public void aggregates() throws Exception {
+		SPUManagerBeans.setIncrementalMaxQuads(1000);
+		long evaluations = SPUManagerBeans.getIncrementalEvaluations();
+		long incremental = SPUManagerBeans.getIncrementalUpdates();
+
+		load();
+
+		// Added solutions of the notifications
+		AtomicLong added = new AtomicLong();
+		List<Mirror> mirrors = new ArrayList<Mirror>();
+		List<String> sids = new ArrayList<String>();
+		for (String query : QUERIES) {
+			Mirror mirror = new Mirror() {
+				@Override
+				public synchronized void notifyEvent(Notification notify) {
+					added.addAndGet(notify.getARBindingsResults().getAddedBindings().size());
+					super.notifyEvent(notify);
+				}
+			};
+			Response ret = processor
+					.subscribe(new InternalSubscribeRequest(query, "aggregate", null, null, mirror, null));
+			assertTrue(ret.toString(), ret.isSubscribeResponse());
+			assertTrue(((SubscribeResponse) ret).getBindingsResults().size() > 0);
+			mirror.onSubscribe((SubscribeResponse) ret);
+			mirrors.add(mirror);
+			sids.add(((SubscribeResponse) ret).getSpuid());
+		}
+
+		long time = 0;
+		for (int i = 0; i < UPDATES; i++) {
+			InternalUpdateRequest update = new InternalUpdateRequest(update(i), null, null, null);
+			long start = System.nanoTime();
+			Response updated = processor.processUpdate(update);
+			time += System.nanoTime() - start;
+			assertTrue(updated.toString(), !updated.isError());
+
+			if (i % 50 == 49)
+				for (int q = 0; q < QUERIES.length; q++)
+					assertMatches(QUERIES[q], mirrors.get(q));
+		}
+		for (int q = 0; q < QUERIES.length; q++)
+			assertMatches(QUERIES[q], mirrors.get(q));
+
+		for (String sid : sids)
+			assertTrue(processor.unsubscribe(sid, null).isUnsubscribeResponse());
+
+		evaluations = SPUManagerBeans.getIncrementalEvaluations() - evaluations;
+		incremental = SPUManagerBeans.getIncrementalUpdates() - incremental;
+
+		logger.info(String.format("%d sensors, %d updates: %.1f ms (%d evaluated again, %d added solutions)",
+				SENSORS, UPDATES, time / 1000000f, evaluations, added.get()));
+
+		assertEquals("Updates", QUERIES.length * UPDATES, evaluations + incremental);
+		assertTrue("Evaluations " + evaluations, evaluations < UPDATES / 10);
+
+		// An update touches at most two groups of each query
+		assertTrue("Added solutions " + added.get(), added.get() <= 5L * UPDATES);
+	}
+}
@@ -0,0 +1,86 @@
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+
+public class StressDeltaSubscriptions {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int SENSORS = 10000;
+	private static final int UPDATES = 200;
+
+	private static final String GRAPH = "http://sepatest/delta";
+	private static final String TYPE = "http://sepatest/type";
+
+	private static final String QUERY = "SELECT ?s ?t ?v WHERE {GRAPH <" + GRAPH + "> {?s <" + TYPE + "> ?t ; <"
+			+ SensorUpdates.VALUE + "> ?v}}";
+
+	private static InMemoryProcessor processor;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setIncrementalMaxQuads(1000);
+	}
+
+	private static String type(String s) {
+		return "http://sepatest/T" + (s.hashCode() & 7);
+	}
+
+	private static SensorUpdates sensors() {
+		return new SensorUpdates(processor, GRAPH, QUERY, SENSORS) {
+			@Override
+			int newValue() {
+				return random.nextInt(1000);
+			}
+
+			@Override
+			void add(Model model, String s, int v) {
+				model.createResource(s).addProperty(model.createProperty(TYPE), model.createResource(type(s)))
+						.addLiteral(model.createProperty(VALUE), v);
+			}
+
+			@Override
+			String triples(String s, int v) {
+				return "<" + s + "> <" + TYPE + "> <" + type(s) + "> ; <" + VALUE + "> " + v;
+			}
+		};
+	}
+
+	@Test(timeout = 600000)
+	public void delta() throws Exception {
+		SPUManagerBeans.setIncrementalMaxQuads(1000);
+		long evaluations = SPUManagerBeans.getIncrementalEvaluations();
+		long incremental = SPUManagerBeans.getIncrementalUpdates();
+		long delta = sensors().run(UPDATES, "delta");
+		evaluations = SPUManagerBeans.getIncrementalEvaluations() - evaluations;
+		incremental = SPUManagerBeans.getIncrementalUpdates() - incremental;
+		assertEquals("Updates", UPDATES, evaluations + incremental);
+
+		SPUManagerBeans.setIncrementalMaxQuads(0);
+		long updates = SPUManagerBeans.getIncrementalUpdates();
+		long naive = sensors().run(UPDATES, "delta");
+		assertEquals("Naive SPU", updates, SPUManagerBeans.getIncrementalUpdates());
+
+		logger.info(String.format("%d sensors, %d updates: delta SPU %.1f ms (%d evaluated again), naive SPU %.1f ms",
+				SENSORS, UPDATES, delta / 1000000f, evaluations, naive / 1000000f));
+
+		// All the quads are known: the query is never evaluated again (the timings depend on the machine)
+		assertEquals("Evaluations", 0, evaluations);
+		assertEquals("Incremental", UPDATES, incremental);
+	}
+}
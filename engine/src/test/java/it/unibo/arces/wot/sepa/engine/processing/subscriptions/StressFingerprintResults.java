@@ -0,0 +1,187 @@
+/* Stress test of the SPU results tracked as row fingerprints
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.system.Txn;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressFingerprintResults {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int ROWS = 10000;
+	private static final int UPDATES = 50;
+
+	private static InMemoryProcessor processor;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+
+		SPUManagerBeans.setSpillThreshold(0);
+		SPUManagerBeans.setFingerprintCacheSize(10);
+
+		// Wide rows (loaded on the dataset: too many for a single SPARQL update)
+		Dataset dataset = processor.getDataset();
+		Txn.executeWrite(dataset, () -> {
+			Model model = dataset.getNamedModel("http://sepatest/fingerprint");
+			for (int i = 0; i < ROWS; i++) {
+				Resource s = model.createResource("http://sepatest/S" + i);
+				for (int p = 0; p < 5; p++)
+					s.addProperty(model.createProperty("http://sepatest/P" + p),
+							"a long literal value of property " + p + " of row " + i);
+			}
+		});
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setFingerprintThreshold(0);
+	}
+
+	private static final String QUERY = "SELECT * WHERE {GRAPH <http://sepatest/fingerprint> {?s <http://sepatest/P0> ?o0 ; <http://sepatest/P1> ?o1 ; <http://sepatest/P2> ?o2 ; <http://sepatest/P3> ?o3 ; <http://sepatest/P4> ?o4}}";
+
+	private static String update(int i) {
+		return "WITH <http://sepatest/fingerprint> DELETE {<http://sepatest/S" + i + "> <http://sepatest/P0> ?o} WHERE {<http://sepatest/S"
+				+ i + "> <http://sepatest/P0> ?o} ; INSERT DATA {GRAPH <http://sepatest/fingerprint> {<http://sepatest/S" + i
+				+ "> <http://sepatest/P0> \"updated " + i + "\"}}";
+	}
+
+	private Response subscribe(Mirror mirror) throws Exception {
+		Response ret = processor.subscribe(new InternalSubscribeRequest(QUERY, "fingerprint", null, null, mirror, null));
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		mirror.onSubscribe((SubscribeResponse) ret);
+		return ret;
+	}
+
+	private void assertMatches(Mirror mirror) throws Exception {
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(QUERY, null, null, null))).getBindingsResults();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertTrue("Fingerprint results " + mirror.error.get(), mirror.error.get() == null);
+		assertTrue("Fingerprint results do not match the endpoint", mirror.matches(current));
+	}
+
+	@Test(timeout = 300000)
+	public void fingerprints() throws Exception {
+		TermDictionary dictionary = processor.getSPUManager().getTermDictionary();
+
+		// Memory of the compact results
+		SPUManagerBeans.setFingerprintThreshold(0);
+		long bytes = SPUManagerBeans.getCachedRowsBytes() + dictionary.getHeapBytes();
+		Response compact = subscribe(new Mirror());
+		long compactBytes = SPUManagerBeans.getCachedRowsBytes() + dictionary.getHeapBytes() - bytes;
+		assertTrue(processor.unsubscribe(((SubscribeResponse) compact).getSpuid(), null).isUnsubscribeResponse());
+
+		// Memory of the fingerprints
+		SPUManagerBeans.setFingerprintThreshold(ROWS / 10);
+		long misses = SPUManagerBeans.getFingerprintMisses();
+		Mirror mirror = new Mirror();
+		Response ret = subscribe(mirror);
+		assertEquals("Fingerprint rows", ROWS, SPUManagerBeans.getFingerprintRows());
+		long fingerprintBytes = SPUManagerBeans.getFingerprintBytes();
+		logger.info(String.format("%d rows: compact %d bytes, fingerprints %d bytes", ROWS, compactBytes,
+				fingerprintBytes));
+		assertTrue("Fingerprints " + fingerprintBytes + " bytes, compact " + compactBytes + " bytes",
+				fingerprintBytes * 10 < compactBytes);
+
+		// Removed rows are taken from the cache or from the results before the update
+		for (int i = 0; i < UPDATES / 2; i++) {
+			Response updated = processor.processUpdate(new InternalUpdateRequest(update(i), null, null, null));
+			assertTrue(updated.toString(), !updated.isError());
+		}
+		assertMatches(mirror);
+
+		// A new subscriber gets the current results (queried again)
+		Mirror second = new Mirror();
+		Response ret2 = subscribe(second);
+		for (int i = UPDATES / 2; i < UPDATES; i++) {
+			Response updated = processor.processUpdate(new InternalUpdateRequest(update(i), null, null, null));
+			assertTrue(updated.toString(), !updated.isError());
+		}
+		assertMatches(mirror);
+		assertMatches(second);
+		assertEquals("Fingerprint misses", misses, SPUManagerBeans.getFingerprintMisses());
+
+		// Fingerprints are released with the SPU
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret).getSpuid(), null).isUnsubscribeResponse());
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret2).getSpuid(), null).isUnsubscribeResponse());
+		assertEquals("Fingerprint rows", 0, SPUManagerBeans.getFingerprintRows());
+		assertEquals("Fingerprint bytes", 0, SPUManagerBeans.getFingerprintBytes());
+	}
+
+	@Test(timeout = 300000)
+	public void resync() throws Exception {
+		SPUManagerBeans.setFingerprintThreshold(ROWS / 10);
+		long misses = SPUManagerBeans.getFingerprintMisses();
+
+		// Rows updated while the first query is running: their old values are not known on reconcile
+		Mirror mirror = new Mirror();
+		processor.setQueryDelay(QUERY, 1000);
+		AtomicReference<Response> subscribed = new AtomicReference<Response>();
+		Thread subscriber = new Thread(() -> {
+			try {
+				subscribed.set(processor.subscribe(new InternalSubscribeRequest(QUERY, "resync", null, null, mirror, null)));
+			} catch (Exception e) {
+				logger.error(e.getMessage());
+			}
+		});
+		subscriber.start();
+		Thread.sleep(300);
+		for (int i = 0; i < UPDATES; i++) {
+			Response updated = processor.processUpdate(new InternalUpdateRequest(update(ROWS / 10 + i), null, null, null));
+			assertTrue(updated.toString(), !updated.isError());
+		}
+		processor.setQueryDelay(QUERY, 0);
+		subscriber.join();
+		Response ret = subscribed.get();
+		assertTrue(String.valueOf(ret), ret != null && ret.isSubscribeResponse());
+		mirror.onSubscribe((SubscribeResponse) ret);
+
+		// The subscriber is sent the current results as new first results
+		assertMatches(mirror);
+		assertTrue("Fingerprint misses", SPUManagerBeans.getFingerprintMisses() > misses);
+
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret).getSpuid(), null).isUnsubscribeResponse());
+		assertEquals("Fingerprint rows", 0, SPUManagerBeans.getFingerprintRows());
+	}
+}
@@ -0,0 +1,202 @@
+/* Stress test of the SPUs left without subscribers by the closed gates
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.ResumeResponse;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.security.ClientAuthorization;
+import it.unibo.arces.wot.sepa.commons.security.Credentials;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressLingeringSubscriptions {
+	protected final Logger logger = LogManager.getLogger();
+
+	// Reconnections of a flapping client
+	private static final int FLAPS = 50;
+	private static final int UPDATES = 5;
+
+	private static final long LINGER = 1000;
+
+	private static InMemoryProcessor processor;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+		SPUManagerBeans.setLinger(LINGER);
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setLinger(10000);
+	}
+
+	private static String query(String graph) {
+		return "SELECT * WHERE {GRAPH <http://sepatest/linger/" + graph + "> {?s <http://sepatest/P> ?o}}";
+	}
+
+	private static void insert(String graph, int row) {
+		Response ret = processor.processUpdate(new InternalUpdateRequest("INSERT DATA {GRAPH <http://sepatest/linger/"
+				+ graph + "> {<http://sepatest/S" + row + "> <http://sepatest/P> \"" + row + "\"}}", null, null, null));
+		assertTrue(ret.toString(), !ret.isError());
+	}
+
+	private static Response subscribe(String graph, Mirror mirror, Credentials credentials, String spuid)
+			throws Exception {
+		InternalSubscribeRequest req = new InternalSubscribeRequest(query(graph), "linger", null, null, mirror,
+				(credentials == null ? null : new ClientAuthorization(credentials)));
+		if (spuid != null)
+			req.setResume(spuid, mirror.sequence);
+		return processor.subscribe(req);
+	}
+
+	private static void matches(String graph, Mirror mirror) throws Exception {
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(query(graph), null, null, null))).getBindingsResults();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("Lingering results " + mirror.error.get(), mirror.error.get() == null);
+		assertTrue("Lingering results do not match the endpoint", mirror.matches(current));
+	}
+
+	/**
+	 * A client disconnects and reconnects many times, missing some updates each
+	 * time: its SPU is neither killed nor initialized again and the client
+	 * gets the missed notifications
+	 */
+	@Test(timeout = 60000)
+	public void flappingClient() throws Exception {
+		long spus = SPUManagerBeans.getSPUs_current();
+		long lingering = SPUManagerBeans.getLingeringSPUs();
+		long reattached = SPUManagerBeans.getLingerReattached();
+
+		Mirror mirror = new Mirror();
+		Response ret = subscribe("flapping", mirror, null, null);
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		mirror.onSubscribe((SubscribeResponse) ret);
+		String spuid = ((SubscribeResponse) ret).getSpuid();
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < FLAPS; i++) {
+			// The gate is closed
+			processor.killSubscription(spuid, null);
+			assertEquals("Active SPUs", spus + 1, SPUManagerBeans.getSPUs_current());
+
+			for (int j = 0; j < UPDATES; j++)
+				insert("flapping", i * UPDATES + j);
+
+			ret = subscribe("flapping", mirror, null, spuid);
+			assertTrue(ret.toString(), ret instanceof ResumeResponse);
+			assertEquals("SPUID", spuid, ((ResumeResponse) ret).getSpuid());
+		}
+		matches("flapping", mirror);
+		logger.info(String.format("%d reconnections with %d missed updates each in %d ms", FLAPS, UPDATES,
+				System.currentTimeMillis() - start));
+
+		assertEquals("Lingering SPUs", lingering + FLAPS, SPUManagerBeans.getLingeringSPUs());
+		assertEquals("Re-attached SPUs", reattached + FLAPS, SPUManagerBeans.getLingerReattached());
+
+		assertTrue(processor.unsubscribe(spuid, null).isUnsubscribeResponse());
+		assertEquals("Active SPUs", spus, SPUManagerBeans.getSPUs_current());
+	}
+
+	/**
+	 * The SPU is killed at the end of the linger period: the client gets the
+	 * first results of a new subscription
+	 */
+	@Test(timeout = 60000)
+	public void expired() throws Exception {
+		long spus = SPUManagerBeans.getSPUs_current();
+		long expired = SPUManagerBeans.getLingerExpired();
+		long resyncs = SPUManagerBeans.getResyncs();
+
+		Mirror mirror = new Mirror();
+		Response ret = subscribe("expired", mirror, null, null);
+		mirror.onSubscribe((SubscribeResponse) ret);
+		String spuid = ((SubscribeResponse) ret).getSpuid();
+		insert("expired", 0);
+		matches("expired", mirror);
+
+		processor.killSubscription(spuid, null);
+		long deadline = System.currentTimeMillis() + 10 * LINGER;
+		while (SPUManagerBeans.getSPUs_current() > spus && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Active SPUs", spus, SPUManagerBeans.getSPUs_current());
+		assertEquals("Expired SPUs", expired + 1, SPUManagerBeans.getLingerExpired());
+
+		ret = subscribe("expired", mirror, null, spuid);
+		assertFalse(ret.toString(), ret instanceof ResumeResponse);
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		assertNotEquals("SPUID", spuid, ((SubscribeResponse) ret).getSpuid());
+		assertEquals("First results", 1, ((SubscribeResponse) ret).getBindingsResults().size());
+		assertEquals("Resyncs", resyncs + 1, SPUManagerBeans.getResyncs());
+
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret).getSpuid(), null).isUnsubscribeResponse());
+	}
+
+	/**
+	 * Only the client with the credentials of the subscriber can resume it
+	 */
+	@Test(timeout = 60000)
+	public void credentials() throws Exception {
+		long denied = SPUManagerBeans.getResumeDenied();
+		Credentials owner = new Credentials("owner", "secret");
+
+		Mirror mirror = new Mirror();
+		Response ret = subscribe("credentials", mirror, owner, null);
+		mirror.onSubscribe((SubscribeResponse) ret);
+		String spuid = ((SubscribeResponse) ret).getSpuid();
+		processor.killSubscription(spuid, null);
+		insert("credentials", 0);
+
+		// Another client gets a subscription of its own
+		Mirror other = new Mirror();
+		ret = subscribe("credentials", other, new Credentials("other", "secret"), spuid);
+		assertFalse(ret.toString(), ret instanceof ResumeResponse);
+		assertNotEquals("SPUID", spuid, ((SubscribeResponse) ret).getSpuid());
+		assertEquals("Denied", denied + 1, SPUManagerBeans.getResumeDenied());
+		String otherSpuid = ((SubscribeResponse) ret).getSpuid();
+
+		// The owner is resumed
+		ret = subscribe("credentials", mirror, owner, spuid);
+		assertTrue(ret.toString(), ret instanceof ResumeResponse);
+		matches("credentials", mirror);
+
+		assertTrue(processor.unsubscribe(spuid, null).isUnsubscribeResponse());
+		assertTrue(processor.unsubscribe(otherSpuid, null).isUnsubscribeResponse());
+	}
+}
@@ -0,0 +1,100 @@
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EventHandler;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest.Priority;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressPrioritySubscriptions {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int HIGH = 2;
+	private static final int LOW = 16;
+	private static final int UPDATES = 20;
+	private static final int CONCURRENCY = 2;
+
+	private static final String GRAPH = "http://sepatest/priority";
+
+	private static InMemoryProcessor processor;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setMaxConcurrentProcessing(0);
+		processor.setQueryDelay(0);
+	}
+
+	private String subscribe(int i, Priority priority, EventHandler handler) throws Exception {
+		InternalSubscribeRequest req = new InternalSubscribeRequest("SELECT * WHERE {GRAPH <" + GRAPH
+				+ "> {?s <http://sepatest/P> ?o} FILTER (?o != \"" + i + "\")}", "priority", null, null, handler, null);
+		req.setPriority(priority);
+		Response ret = processor.subscribe(req);
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		return ((SubscribeResponse) ret).getSpuid();
+	}
+
+	@Test(timeout = 120000)
+	public void priorityClasses() throws Exception {
+		AtomicLong notifications = new AtomicLong();
+		EventHandler handler = new Mirror() {
+			@Override
+			public void notifyEvent(Notification notify) {
+				notifications.incrementAndGet();
+			}
+		};
+
+		List<String> sids = new ArrayList<String>();
+		for (int i = 0; i < LOW; i++)
+			sids.add(subscribe(i, Priority.LOW, handler));
+		for (int i = LOW; i < LOW + HIGH; i++)
+			sids.add(subscribe(i, Priority.HIGH, handler));
+
+		// All the SPUs are activated by each update, at most CONCURRENCY at a time query the (slow) endpoint
+		SPUManagerBeans.setMaxConcurrentProcessing(CONCURRENCY);
+		processor.setQueryDelay(20);
+
+		for (int i = 0; i < UPDATES; i++) {
+			Response ret = processor.processUpdate(new InternalUpdateRequest("INSERT DATA {GRAPH <" + GRAPH
+					+ "> {<http://sepatest/S" + i + "> <http://sepatest/P> \"v" + i + "\"}}", null, null, null));
+			assertTrue(ret.toString(), !ret.isError());
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (notifications.get() < (long) UPDATES * (LOW + HIGH) && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertEquals("Notifications", (long) UPDATES * (LOW + HIGH), notifications.get());
+
+		processor.setQueryDelay(0);
+		for (String sid : sids)
+			assertTrue(processor.unsubscribe(sid, null).isUnsubscribeResponse());
+
+		float high = SPUManagerBeans.getNotificationLatency(Priority.HIGH, 99);
+		float low = SPUManagerBeans.getNotificationLatency(Priority.LOW, 50);
+		logger.info(String.join(", ", SPUManagerBeans.getNotificationLatency_perPriority()));
+
+		// High priority SPUs are processed first
+		assertTrue("High priority p99 " + high + " ms low priority p50 " + low + " ms", high < low);
+	}
+}
@@ -0,0 +1,197 @@
+/* Stress test of the SPU deadlines: a slow subscription must not delay updates nor the other subscriptions
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressSlowSubscriptions {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int TIMEOUT = 500;
+	private static final int QUARANTINE_PERIOD = 2000;
+
+	private static InMemoryProcessor processor;
+	private static int timeout;
+	private static int period;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+
+		timeout = SPUManagerBeans.getSPUProcessingTimeout();
+		period = SPUManagerBeans.getQuarantinePeriod();
+		SPUManagerBeans.setSPUProcessingTimeout(TIMEOUT);
+		SPUManagerBeans.setQuarantinePeriod(QUARANTINE_PERIOD);
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setSPUProcessingTimeout(timeout);
+		SPUManagerBeans.setQuarantinePeriod(period);
+	}
+
+	private static String query(String s) {
+		return "SELECT * WHERE {GRAPH <http://sepatest/> {<http://sepatest/" + s + "> <http://sepatest/P> ?o}}";
+	}
+
+	private static String update(int value) {
+		return "WITH <http://sepatest/> DELETE {?s <http://sepatest/P> ?o} WHERE {?s <http://sepatest/P> ?o} ; INSERT DATA {GRAPH <http://sepatest/> {<http://sepatest/Fast> <http://sepatest/P> "
+				+ value + " . <http://sepatest/Slow> <http://sepatest/P> " + value + "}}";
+	}
+
+	private Mirror subscribe(String s) throws Exception {
+		Mirror mirror = new Mirror();
+		Response ret = processor.subscribe(new InternalSubscribeRequest(query(s), s, null, null, mirror, null));
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		mirror.onSubscribe((SubscribeResponse) ret);
+		return mirror;
+	}
+
+	private boolean matches(Mirror mirror, String s, long timeout) throws Exception {
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(query(s), null, null, null))).getBindingsResults();
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		return mirror.error.get() == null && mirror.matches(current);
+	}
+
+	private long timedUpdate(int value) throws Exception {
+		long start = System.currentTimeMillis();
+		Response ret = processor.processUpdate(new InternalUpdateRequest(update(value), null, null, null));
+		assertTrue(ret.toString(), !ret.isError());
+		return System.currentTimeMillis() - start;
+	}
+
+	@Test(timeout = 60000)
+	public void slowSubscriptionIsQuarantined() throws Exception {
+		Mirror fast = subscribe("Fast");
+		Mirror slow = subscribe("Slow");
+
+		processor.setQueryDelay("Slow", 2 * TIMEOUT);
+
+		// The update is acknowledged once the slow SPU misses its deadline
+		int threshold = SPUManagerBeans.getQuarantineThreshold();
+		long timeouts = SPUManagerBeans.getProcessingTimeouts();
+		for (int i = 0; i < threshold; i++) {
+			long time = timedUpdate(i);
+			logger.info("Update " + i + " " + time + " ms");
+			assertTrue("Update waited for the slow SPU: " + time + " ms", time < 2 * TIMEOUT);
+			assertTrue("Fast subscription delayed", matches(fast, "Fast", TIMEOUT));
+
+			// Let the slow SPU complete its late processing
+			Thread.sleep(3 * TIMEOUT);
+		}
+		assertEquals("Processing timeouts", threshold, SPUManagerBeans.getProcessingTimeouts() - timeouts);
+
+		SPUManager manager = processor.getSPUManager();
+		assertEquals("Quarantined SPUs", 1, manager.getQuarantinedSPUs().length);
+		assertTrue(manager.getQuarantinedSPUs()[0], manager.getQuarantinedSPUs()[0].contains("Slow"));
+
+		// A quarantined SPU is no longer waited for
+		for (int i = threshold; i < threshold + 5; i++) {
+			long time = timedUpdate(i);
+			assertTrue("Update waited for a quarantined SPU: " + time + " ms", time < TIMEOUT);
+			assertTrue("Fast subscription delayed", matches(fast, "Fast", TIMEOUT));
+		}
+		assertEquals("Processing timeouts", threshold, SPUManagerBeans.getProcessingTimeouts() - timeouts);
+
+		// The SPU gets faster: it is released at the next re-evaluation and catches up with the skipped updates
+		processor.setQueryDelay("Slow", 0);
+		long deadline = System.currentTimeMillis() + 2 * QUARANTINE_PERIOD + 2000;
+		while (manager.getQuarantinedSPUs().length > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertEquals("Quarantined SPUs", 0, manager.getQuarantinedSPUs().length);
+		assertTrue("Slow subscription " + slow.error.get(), matches(slow, "Slow", 5000));
+
+		// Back in the update cycle
+		timedUpdate(100);
+		assertTrue("Slow subscription " + slow.error.get(), matches(slow, "Slow", TIMEOUT));
+		assertTrue("Fast subscription " + fast.error.get(), matches(fast, "Fast", TIMEOUT));
+	}
+
+	/**
+	 * A subscriber that does not consume its notifications delays neither the
+	 * SPU nor the other subscribers: its notifications are coalesced
+	 */
+	@Test(timeout = 60000)
+	public void stuckSubscriberIsCoalesced() throws Exception {
+		int queueSize = SPUManagerBeans.getNotificationQueueSize();
+		long coalesced = SPUManagerBeans.getCoalescedNotifications();
+		SPUManagerBeans.setNotificationQueueSize(2);
+
+		CountDownLatch release = new CountDownLatch(1);
+		Mirror fast = subscribe("Fast");
+		Mirror stuck = new Mirror() {
+			@Override
+			public void notifyEvent(Notification notify) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				super.notifyEvent(notify);
+			}
+		};
+		Response ret = processor.subscribe(new InternalSubscribeRequest(query("Fast"), "Stuck", null, null, stuck, null));
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		stuck.onSubscribe((SubscribeResponse) ret);
+
+		try {
+			for (int i = 0; i < 20; i++) {
+				long time = timedUpdate(1000 + i);
+				assertTrue("Update waited for the stuck subscriber: " + time + " ms", time < TIMEOUT);
+			}
+			assertTrue("Fast subscription " + fast.error.get(), matches(fast, "Fast", TIMEOUT));
+			assertTrue("Coalesced notifications", SPUManagerBeans.getCoalescedNotifications() > coalesced);
+
+			// The coalesced notifications leave sequence gaps, not wrong results
+			release.countDown();
+			BindingsResults current = ((QueryResponse) processor
+					.processQuery(new InternalQueryRequest(query("Fast"), null, null, null))).getBindingsResults();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!stuck.matches(current) && System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+			assertTrue("Stuck subscription", stuck.matches(current));
+		} finally {
+			release.countDown();
+			SPUManagerBeans.setNotificationQueueSize(queueSize);
+		}
+	}
+}
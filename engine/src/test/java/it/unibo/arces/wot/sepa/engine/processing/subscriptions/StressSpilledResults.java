@@ -0,0 +1,136 @@
+/* Stress test of the SPU results spilled out of the heap
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.system.Txn;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressSpilledResults {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int ROWS = 20000;
+	private static final int UPDATES = 50;
+
+	private static InMemoryProcessor processor;
+	private static File directory;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+
+		directory = Files.createTempDirectory("sepa-spill").toFile();
+		SPUManagerBeans.setSpillThreshold(ROWS / 10);
+
+		// Many rows (loaded on the dataset: too many for a single SPARQL update)
+		Dataset dataset = processor.getDataset();
+		Txn.executeWrite(dataset, () -> {
+			Model model = dataset.getNamedModel("http://sepatest/spill");
+			Property p = model.createProperty("http://sepatest/P");
+			for (int i = 0; i < ROWS; i++)
+				model.add(model.createResource("http://sepatest/S" + i), p, String.valueOf(i));
+		});
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setSpillThreshold(0);
+		SPUManagerBeans.setSpillDirectory("");
+		directory.delete();
+	}
+
+	private static final String QUERY = "SELECT * WHERE {GRAPH <http://sepatest/spill> {?s <http://sepatest/P> ?o}}";
+
+	private static String update(int i) {
+		return "WITH <http://sepatest/spill> DELETE {<http://sepatest/S" + i + "> <http://sepatest/P> ?o} WHERE {<http://sepatest/S"
+				+ i + "> <http://sepatest/P> ?o} ; INSERT DATA {GRAPH <http://sepatest/spill> {<http://sepatest/S" + i
+				+ "> <http://sepatest/P> \"updated " + i + "\" . <http://sepatest/N" + i + "> <http://sepatest/P> \"new\"}}";
+	}
+
+	private void spill(String dir) throws Exception {
+		SPUManagerBeans.setSpillDirectory(dir);
+		long spilled = SPUManagerBeans.getSpilledResults();
+
+		Mirror mirror = new Mirror();
+		Response ret = processor.subscribe(new InternalSubscribeRequest(QUERY, "spill", null, null, mirror, null));
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		mirror.onSubscribe((SubscribeResponse) ret);
+		assertEquals("Spilled results", spilled + 1, SPUManagerBeans.getSpilledResults());
+		if (!dir.isEmpty())
+			assertEquals("Spill files", 1, directory.list().length);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < UPDATES; i++) {
+			Response updated = processor.processUpdate(new InternalUpdateRequest(update(i), null, null, null));
+			assertTrue(updated.toString(), !updated.isError());
+		}
+		logger.info(String.format("%d updates on %d spilled rows in %d ms", UPDATES, ROWS,
+				System.currentTimeMillis() - start));
+
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(QUERY, null, null, null))).getBindingsResults();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertTrue("Spilled results " + mirror.error.get(), mirror.error.get() == null);
+		assertTrue("Spilled results do not match the endpoint", mirror.matches(current));
+
+		// Old results are released once replaced
+		assertEquals("Spilled results", spilled + 1, SPUManagerBeans.getSpilledResults());
+		if (!dir.isEmpty())
+			assertEquals("Spill files", 1, directory.list().length);
+
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret).getSpuid(), null).isUnsubscribeResponse());
+		assertEquals("Spilled results", spilled, SPUManagerBeans.getSpilledResults());
+		if (!dir.isEmpty())
+			assertEquals("Spill files", 0, directory.list().length);
+	}
+
+	@Test(timeout = 300000)
+	public void mappedFiles() throws Exception {
+		spill(directory.getAbsolutePath());
+	}
+
+	@Test(timeout = 300000)
+	public void directBuffers() throws Exception {
+		spill("");
+	}
+}
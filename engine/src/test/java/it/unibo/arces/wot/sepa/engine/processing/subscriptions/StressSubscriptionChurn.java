@@ -0,0 +1,248 @@
+/* Stress test of the subscriptions registry: subscribe/unsubscribe churn mixed with updates
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressSubscriptionChurn {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int QUERIES = 5;
+	private static final int CHURN_THREADS = 8;
+	private static final int CHURN_CYCLES = 200;
+	private static final int UPDATES = 300;
+
+	private static InMemoryProcessor processor;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+	}
+
+	private static String query(int n) {
+		return "SELECT * WHERE {GRAPH <http://sepatest/> {<http://sepatest/S" + n + "> <http://sepatest/P> ?o}}";
+	}
+
+	private static String update(int n, int value) {
+		return "WITH <http://sepatest/> DELETE {<http://sepatest/S" + n + "> <http://sepatest/P> ?o} WHERE {<http://sepatest/S"
+				+ n + "> <http://sepatest/P> ?o} ; INSERT DATA {GRAPH <http://sepatest/> {<http://sepatest/S" + n
+				+ "> <http://sepatest/P> " + value + "}}";
+	}
+
+	@Test(timeout = 300000)
+	public void churnWithUpdates() throws Exception {
+		// Long lived subscribers: their results must always be consistent with the endpoint
+		List<Mirror> mirrors = new ArrayList<Mirror>();
+		List<String> sids = new ArrayList<String>();
+		for (int i = 0; i < QUERIES; i++) {
+			Mirror mirror = new Mirror();
+			Response ret = processor.subscribe(
+					new InternalSubscribeRequest(query(i), "mirror" + i, null, null, mirror, null));
+			assertTrue(ret.toString(), ret.isSubscribeResponse());
+			mirror.onSubscribe((SubscribeResponse) ret);
+			mirrors.add(mirror);
+			sids.add(((SubscribeResponse) ret).getSpuid());
+		}
+
+		AtomicInteger failures = new AtomicInteger(0);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		// Subscribe/unsubscribe churn
+		for (int t = 0; t < CHURN_THREADS; t++) {
+			final int seed = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < CHURN_CYCLES; i++) {
+					try {
+						// Even threads share the SPUs of the mirrors, odd ones create and kill their own SPUs
+						String sparql = (seed % 2 == 0 ? query((seed + i) % QUERIES) : query(QUERIES + seed));
+						Response ret = processor.subscribe(
+								new InternalSubscribeRequest(sparql, null, null, null, notify -> {}, null));
+						if (!ret.isSubscribeResponse()) {
+							failures.incrementAndGet();
+							continue;
+						}
+						ret = processor.unsubscribe(((SubscribeResponse) ret).getSpuid(), null);
+						if (!ret.isUnsubscribeResponse())
+							failures.incrementAndGet();
+					} catch (Exception e) {
+						logger.error(e.getMessage());
+						failures.incrementAndGet();
+					}
+				}
+			}, "Churn-" + t));
+		}
+
+		// Updates
+		threads.add(new Thread(() -> {
+			for (int i = 0; i < UPDATES; i++) {
+				try {
+					Response ret = processor
+							.processUpdate(new InternalUpdateRequest(update(i % (QUERIES + CHURN_THREADS), i), null, null, null));
+					if (ret.isError()) {
+						logger.error(ret);
+						failures.incrementAndGet();
+					}
+				} catch (Exception e) {
+					logger.error(e.getMessage());
+					failures.incrementAndGet();
+				}
+			}
+		}, "Updates"));
+
+		long start = System.nanoTime();
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		logger.info(String.format("%d subscribe/unsubscribe and %d updates in %d ms", CHURN_THREADS * CHURN_CYCLES,
+				UPDATES, (System.nanoTime() - start) / 1000000));
+
+		assertEquals("Failed requests", 0, failures.get());
+
+		// Notifications are delivered asynchronously
+		for (int i = 0; i < QUERIES; i++) {
+			Mirror mirror = mirrors.get(i);
+			BindingsResults current = ((QueryResponse) processor
+					.processQuery(new InternalQueryRequest(query(i), null, null, null))).getBindingsResults();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertTrue("Subscription " + i + " " + mirror.error.get(), mirror.error.get() == null);
+			assertTrue("Subscription " + i + " results do not match the endpoint", mirror.matches(current));
+		}
+
+		for (String sid : sids)
+			assertTrue(processor.unsubscribe(sid, null).isUnsubscribeResponse());
+
+		assertEquals("Subscribers", 0, SPUManagerBeans.getSubscribers());
+		assertEquals("Active SPUs", 0, SPUManagerBeans.getSPUs_current());
+
+		// Results of killed SPUs are released
+		assertEquals("Cached terms", 0, processor.getSPUManager().getResults_terms());
+	}
+
+	@Test(timeout = 60000)
+	public void updatesDuringInitialization() throws Exception {
+		final int n = QUERIES + CHURN_THREADS + 1;
+		processor.processUpdate(new InternalUpdateRequest(update(n, 0), null, null, null));
+
+		// The first query returns results that become stale while they are transferred
+		processor.setQueryDelay(1000);
+
+		Mirror mirror = new Mirror();
+		CompletableFuture<Response> subscribed = new CompletableFuture<Response>();
+		processor.processSubscribe(new InternalSubscribeRequest(query(n), "slow", null, null, mirror, null),
+				response -> subscribed.complete(response));
+
+		Thread.sleep(200);
+		processor.setQueryDelay(0);
+
+		// The update must not wait for the SPU initialization
+		long start = System.currentTimeMillis();
+		Response ret = processor.processUpdate(new InternalUpdateRequest(update(n, 1), null, null, null));
+		assertTrue(ret.toString(), !ret.isError());
+		assertTrue("Update blocked by the SPU initialization", System.currentTimeMillis() - start < 500);
+		assertTrue("Subscription completed before the update", !subscribed.isDone());
+
+		ret = subscribed.get();
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		mirror.onSubscribe((SubscribeResponse) ret);
+
+		// The update is not lost: the SPU reconciles its first results
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(query(n), null, null, null))).getBindingsResults();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertTrue("Update lost during the SPU initialization", mirror.matches(current));
+
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret).getSpuid(), null).isUnsubscribeResponse());
+	}
+	@Test(timeout = 60000)
+	public void subscribeDuringProcessing() throws Exception {
+		final int n = QUERIES + CHURN_THREADS + 2;
+		processor.processUpdate(new InternalUpdateRequest(update(n, 0), null, null, null));
+
+		// Not maintained incrementally: the SPU queries the whole results on each update
+		final String sparql = query(n) + " LIMIT 10";
+
+		Mirror first = new Mirror();
+		Response ret = processor.subscribe(new InternalSubscribeRequest(sparql, "first", null, null, first, null));
+		assertTrue(ret.toString(), ret.isSubscribeResponse());
+		first.onSubscribe((SubscribeResponse) ret);
+
+		// The SPU queries the endpoint slowly while processing the update
+		processor.setQueryDelay(sparql, 2000);
+		Thread updater = new Thread(() -> {
+			try {
+				processor.processUpdate(new InternalUpdateRequest(update(n, 1), null, null, null));
+			} catch (Exception e) {
+				logger.error(e.getMessage());
+			}
+		}, "Updates");
+		updater.start();
+		Thread.sleep(300);
+
+		// A new subscriber of the SPU must not wait for the query
+		Mirror second = new Mirror();
+		long start = System.currentTimeMillis();
+		Response ret2 = processor.subscribe(new InternalSubscribeRequest(sparql, "second", null, null, second, null));
+		assertTrue("Subscribe blocked by the SPU processing", System.currentTimeMillis() - start < 1000);
+		assertTrue(ret2.toString(), ret2.isSubscribeResponse());
+		second.onSubscribe((SubscribeResponse) ret2);
+
+		updater.join();
+		processor.setQueryDelay(sparql, 0);
+
+		// Both subscribers get the notification of the update (the second one after its first results)
+		BindingsResults current = ((QueryResponse) processor
+				.processQuery(new InternalQueryRequest(sparql, null, null, null))).getBindingsResults();
+		for (Mirror mirror : new Mirror[] { first, second }) {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!mirror.matches(current) && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertTrue("Subscription " + mirror.error.get(), mirror.error.get() == null);
+			assertTrue("Subscription results do not match the endpoint", mirror.matches(current));
+		}
+
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret).getSpuid(), null).isUnsubscribeResponse());
+		assertTrue(processor.unsubscribe(((SubscribeResponse) ret2).getSpuid(), null).isUnsubscribeResponse());
+	}
+}
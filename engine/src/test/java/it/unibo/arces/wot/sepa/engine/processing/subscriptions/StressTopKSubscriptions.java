@@ -0,0 +1,88 @@
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+
+public class StressTopKSubscriptions {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int SENSORS = 20000;
+	private static final int UPDATES = 300;
+
+	private static final String GRAPH = "http://sepatest/topk";
+
+	private static final String QUERY = "SELECT * WHERE {GRAPH <" + GRAPH + "> {?s <" + SensorUpdates.VALUE
+			+ "> ?v}} ORDER BY DESC(?v) LIMIT 10";
+
+	private static InMemoryProcessor processor;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		processor = InMemoryProcessor.create();
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setIncrementalMaxQuads(1000);
+	}
+
+	private static SensorUpdates sensors() {
+		return new SensorUpdates(processor, GRAPH, QUERY, SENSORS) {
+			private int next = 0;
+
+			// Values are unique: the top-k is not ambiguous
+			@Override
+			int newValue() {
+				return random.nextInt(1000000) * 1000 + (next++ % 1000);
+			}
+
+			// The sensors with the highest values are often updated to stress the evictions
+			@Override
+			String sensor(int i) {
+				if (i % 5 != 0)
+					return super.sensor(i);
+
+				String ret = null;
+				for (Map.Entry<String, Integer> e : values.entrySet())
+					if (ret == null || e.getValue() > values.get(ret))
+						ret = e.getKey();
+				return ret;
+			}
+		};
+	}
+
+	@Test(timeout = 600000)
+	public void topK() throws Exception {
+		SPUManagerBeans.setIncrementalMaxQuads(1000);
+		long evaluations = SPUManagerBeans.getIncrementalEvaluations();
+		long incremental = SPUManagerBeans.getIncrementalUpdates();
+		long topk = sensors().run(UPDATES, "topk");
+		evaluations = SPUManagerBeans.getIncrementalEvaluations() - evaluations;
+		incremental = SPUManagerBeans.getIncrementalUpdates() - incremental;
+		assertEquals("Updates", UPDATES, evaluations + incremental);
+
+		SPUManagerBeans.setIncrementalMaxQuads(0);
+		long updates = SPUManagerBeans.getIncrementalUpdates();
+		long naive = sensors().run(UPDATES, "topk");
+		assertEquals("Naive SPU", updates, SPUManagerBeans.getIncrementalUpdates());
+
+		logger.info(String.format(
+				"%d sensors, %d updates: top-k SPU %.1f ms (%d evaluated again), naive SPU %.1f ms", SENSORS,
+				UPDATES, topk / 1000000f, evaluations, naive / 1000000f));
+
+		// Only the evictions of the top solutions need the whole query (the timings depend on the machine)
+		assertTrue("Evaluations " + evaluations, evaluations < UPDATES / 4);
+		assertTrue("Incremental " + incremental + " evaluations " + evaluations, incremental > evaluations);
+	}
+}
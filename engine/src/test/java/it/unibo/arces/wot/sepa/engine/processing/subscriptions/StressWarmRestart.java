@@ -0,0 +1,220 @@
+/* Stress test of the warm restart of the SPUs from a snapshot
+ * 
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.engine.processing.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.system.Txn;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.sparql.BindingsResults;
+import it.unibo.arces.wot.sepa.engine.bean.SPUManagerBeans;
+import it.unibo.arces.wot.sepa.engine.core.EngineProperties;
+import it.unibo.arces.wot.sepa.engine.processing.InMemoryProcessor;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalQueryRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalSubscribeRequest;
+import it.unibo.arces.wot.sepa.engine.scheduling.InternalUpdateRequest;
+
+public class StressWarmRestart {
+	protected final Logger logger = LogManager.getLogger();
+
+	private static final int SUBSCRIPTIONS = 20;
+	private static final int ROWS = 100;
+
+	private static File snapshot;
+	private static File properties;
+	private static String jpar;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		snapshot = File.createTempFile("sepa-snapshot", ".json");
+		snapshot.delete();
+
+		// The SPU manager restores the snapshot when created
+		jpar = new String(Files.readAllBytes(Paths.get("src/main/resources/engine.jpar")), StandardCharsets.UTF_8);
+		jpar = jpar.replace("\"snapshotFile\": \"\"", "\"snapshotFile\": \"" + snapshot.getAbsolutePath() + "\"");
+		jpar = jpar.replace("\"snapshotPeriod\": 60000", "\"snapshotPeriod\": 0");
+		properties = File.createTempFile("sepa-engine", ".jpar");
+	}
+
+	@AfterClass
+	public static void end() {
+		SPUManagerBeans.setSnapshotFile("");
+		snapshot.delete();
+		properties.delete();
+	}
+
+	private static InMemoryProcessor create() throws Exception {
+		return create(50);
+	}
+
+	private static InMemoryProcessor create(int revalidationRate) throws Exception {
+		Files.write(properties.toPath(), jpar.replace("\"revalidationRate\": 10", "\"revalidationRate\": " + revalidationRate)
+				.getBytes(StandardCharsets.UTF_8));
+		return new InMemoryProcessor(EngineProperties.load(properties.getAbsolutePath()));
+	}
+
+	private static String query(int i) {
+		return "SELECT * WHERE {GRAPH <http://sepatest/warm" + i + "> {?s <http://sepatest/P> ?o}}";
+	}
+
+	// Rows [from, to) in each graph
+	private static void load(InMemoryProcessor processor, int from, int to) {
+		Dataset dataset = processor.getDataset();
+		Txn.executeWrite(dataset, () -> {
+			for (int i = 0; i < SUBSCRIPTIONS; i++) {
+				Model model = dataset.getNamedModel("http://sepatest/warm" + i);
+				Property p = model.createProperty("http://sepatest/P");
+				for (int j = from; j < to; j++)
+					model.add(model.createResource("http://sepatest/S" + j), p, String.valueOf(j));
+			}
+		});
+	}
+
+	private static BindingsResults current(InMemoryProcessor processor, int i) {
+		return ((QueryResponse) processor.processQuery(new InternalQueryRequest(query(i), null, null, null)))
+				.getBindingsResults();
+	}
+
+	// Before restart: no snapshot
+	private static void saveSnapshot() throws Exception {
+		InMemoryProcessor before = create();
+		load(before, 0, ROWS);
+		String[] sids = new String[SUBSCRIPTIONS];
+		for (int i = 0; i < SUBSCRIPTIONS; i++) {
+			Mirror mirror = new Mirror();
+			Response ret = before.subscribe(new InternalSubscribeRequest(query(i), "warm", null, null, mirror, null));
+			assertTrue(ret.toString(), ret.isSubscribeResponse());
+			sids[i] = ((SubscribeResponse) ret).getSpuid();
+		}
+		before.getSPUManager().snapshot();
+		assertEquals("Saved SPUs", SUBSCRIPTIONS, SPUManagerBeans.getSnapshotSPUs());
+		for (String sid : sids)
+			assertTrue(before.unsubscribe(sid, null).isUnsubscribeResponse());
+		before.interrupt();
+	}
+
+	@Test(timeout = 60000)
+	public void warmRestart() throws Exception {
+		saveSnapshot();
+
+		// After restart: the endpoint has been changed in the meanwhile and it is slow
+		InMemoryProcessor after = create();
+		load(after, ROWS / 2, ROWS + ROWS / 2);
+		after.setQueryDelay(500);
+
+		long restored = SPUManagerBeans.getRestoredSPUs();
+		String[] sids = new String[SUBSCRIPTIONS];
+		Mirror[] mirrors = new Mirror[SUBSCRIPTIONS];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < SUBSCRIPTIONS; i++) {
+			mirrors[i] = new Mirror();
+			Response ret = after.subscribe(new InternalSubscribeRequest(query(i), "warm", null, null, mirrors[i], null));
+			assertTrue(ret.toString(), ret.isSubscribeResponse());
+			assertEquals("First results from the snapshot", ROWS,
+					((SubscribeResponse) ret).getBindingsResults().size());
+			mirrors[i].onSubscribe((SubscribeResponse) ret);
+			sids[i] = ((SubscribeResponse) ret).getSpuid();
+		}
+		long time = System.currentTimeMillis() - start;
+		logger.info(SUBSCRIPTIONS + " warm subscriptions in " + time + " ms");
+		assertTrue("Warm subscriptions took " + time + " ms", time < SUBSCRIPTIONS * 500 / 2);
+		assertEquals("Restored SPUs", restored + SUBSCRIPTIONS, SPUManagerBeans.getRestoredSPUs());
+
+		// Revalidation notifies the changes
+		after.setQueryDelay(0);
+		for (int i = 0; i < SUBSCRIPTIONS; i++) {
+			BindingsResults current = current(after, i);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!mirrors[i].matches(current) && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertTrue("Revalidation " + mirrors[i].error.get(), mirrors[i].error.get() == null);
+			assertTrue("Revalidated results do not match the endpoint", mirrors[i].matches(current));
+		}
+		assertEquals("Pending revalidations", 0, after.getSPUManager().getRevalidationsPending());
+
+		for (String sid : sids)
+			assertTrue(after.unsubscribe(sid, null).isUnsubscribeResponse());
+		after.interrupt();
+	}
+
+	@Test(timeout = 60000)
+	public void skipRevalidations() throws Exception {
+		saveSnapshot();
+
+		// Revalidations are slower than the update
+		InMemoryProcessor after = create(5);
+		load(after, ROWS / 2, ROWS + ROWS / 2);
+
+		long skipped = SPUManagerBeans.getStaleEvaluations();
+		String[] sids = new String[SUBSCRIPTIONS];
+		Mirror[] mirrors = new Mirror[SUBSCRIPTIONS];
+		for (int i = 0; i < SUBSCRIPTIONS; i++) {
+			mirrors[i] = new Mirror();
+			Response ret = after.subscribe(new InternalSubscribeRequest(query(i), "warm", null, null, mirrors[i], null));
+			assertTrue(ret.toString(), ret.isSubscribeResponse());
+			mirrors[i].onSubscribe((SubscribeResponse) ret);
+			sids[i] = ((SubscribeResponse) ret).getSpuid();
+		}
+
+		// An update of all the graphs evaluates the restored SPUs before they are revalidated
+		StringBuilder update = new StringBuilder("INSERT DATA {");
+		for (int i = 0; i < SUBSCRIPTIONS; i++)
+			update.append("GRAPH <http://sepatest/warm" + i + "> {<http://sepatest/New> <http://sepatest/P> \"new\"} ");
+		Response ret = after.processUpdate(new InternalUpdateRequest(update.append("}").toString(), null, null, null));
+		assertTrue(ret.toString(), !ret.isError());
+
+		for (int i = 0; i < SUBSCRIPTIONS; i++) {
+			BindingsResults current = current(after, i);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!mirrors[i].matches(current) && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertTrue("Update " + mirrors[i].error.get(), mirrors[i].error.get() == null);
+			assertTrue("Updated results do not match the endpoint", mirrors[i].matches(current));
+		}
+		long deadline = System.currentTimeMillis() + 20000;
+		while (after.getSPUManager().getRevalidationsPending() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		assertEquals("Pending revalidations", 0, after.getSPUManager().getRevalidationsPending());
+
+		skipped = SPUManagerBeans.getStaleEvaluations() - skipped;
+		logger.info(skipped + " revalidations skipped");
+		assertTrue("Skipped revalidations " + skipped, skipped >= SUBSCRIPTIONS / 2);
+
+		for (String sid : sids)
+			assertTrue(after.unsubscribe(sid, null).isUnsubscribeResponse());
+		after.interrupt();
+	}
+}